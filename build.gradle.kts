@@ -3,6 +3,7 @@ plugins {
     application
     id("org.openjfx.javafxplugin") version "0.1.0"
     id("com.gradleup.shadow") version "9.3.0"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 group = "com.QM4RS"
@@ -26,6 +27,7 @@ dependencies {
 
     testImplementation(platform("org.junit:junit-bom:5.10.2"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 application {
@@ -57,3 +59,8 @@ tasks.build {
 tasks.test {
     useJUnitPlatform()
 }
+
+// gradlew jmh: benchmarks under src/jmh (they compare against test-only reference code)
+jmh {
+    includeTests.set(true)
+}
@@ -0,0 +1,78 @@
+package com.QM4RS.agent.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OutputParser vs the line-splitting LegacyOutputParser it replaced (see OutputParserDifferentialTest)
+ * on 1/4/10 MB snippet and legacy outputs. Run with `gradlew jmh`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class OutputParserBenchmark {
+
+    @Param({"1", "4", "10"})
+    public int megabytes;
+
+    @Param({"snippet", "legacy"})
+    public String format;
+
+    private final OutputParser parser = new OutputParser();
+    private final LegacyOutputParser legacy = new LegacyOutputParser();
+    private String text;
+
+    @Setup
+    public void setUp() {
+        text = output(megabytes * 1_000_000, "snippet".equals(format));
+    }
+
+    @Benchmark
+    public void legacyParse(Blackhole bh) {
+        bh.consume(legacy.parse(text));
+    }
+
+    @Benchmark
+    public void parse(Blackhole bh) {
+        bh.consume(parser.parse(text));
+    }
+
+    // what showing every block costs: the lazy bodies are cut as well
+    @Benchmark
+    public void parseWithBodies(Blackhole bh) {
+        for (OutputBlock b : parser.parse(text)) bh.consume(b.body());
+    }
+
+    private static String output(int chars, boolean snippets) {
+        StringBuilder sb = new StringBuilder(chars + 4096);
+        for (int k = 0; sb.length() < chars; k++) {
+            if (snippets) {
+                sb.append("// FILE: src/main/java/p/C").append(k).append(".java\n// OPERATION: REPLACE_METHOD\n// LANGUAGE: java\n");
+                for (int i = 0; i < 30; i++) {
+                    sb.append("    int v").append(i).append(" = compute(").append(i).append(");\n");
+                    if (i % 7 == 0) sb.append('\n');
+                }
+                sb.append('\n');
+            } else {
+                sb.append("CHANGE:\nfile: src/C").append(k).append(".java\naction: REPLACE_RANGE\nrange: 1-9\ncode:\n");
+                for (int i = 0; i < 30; i++) sb.append("    int v").append(i).append(" = compute(").append(i).append(");\n");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -1,9 +1,16 @@
 package com.QM4RS.agent;
 
-import javafx.application.Application;
+import com.QM4RS.agent.cli.HeadlessMain;
+
+import java.util.Arrays;
 
 public class Launcher {
     public static void main(String[] args) {
-        Application.launch(MainApp.class, args);
+        // Headless runs must never touch JavaFX classes (no display on CI)
+        if (Arrays.asList(args).contains("--headless") || (args.length > 0 && "cli".equals(args[0]))) {
+            HeadlessMain.main(args);
+            return;
+        }
+        MainApp.main(args);
     }
 }
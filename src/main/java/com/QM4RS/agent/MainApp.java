@@ -7,14 +7,21 @@ import javafx.stage.Stage;
 
 public class MainApp extends Application {
 
+    private MainWindow window;
+
     @Override
     public void start(Stage primaryStage) {
         Application.setUserAgentStylesheet(new PrimerDark().getUserAgentStylesheet());
 
-        MainWindow window = new MainWindow();
+        window = new MainWindow();
         window.show(primaryStage);
     }
 
+    @Override
+    public void stop() {
+        if (window != null) window.shutdown();
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -0,0 +1,473 @@
+package com.QM4RS.agent.cli;
+
+import com.QM4RS.agent.core.*;
+import com.QM4RS.agent.core.OpenAIService.OpenAIResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Headless entry point (no JavaFX): scan, select by glob/content, build pack, send, parse.
+ * The project is scanned once per JVM, so many prompts can be processed back to back
+ * (--prompts-file, or --stdin for a long-running daemon reading one prompt per line).
+ */
+public class HeadlessMain {
+
+    static final class Options {
+        Path project;
+        final List<String> globs = new ArrayList<>();
+        String grep;
+        final List<String> prompts = new ArrayList<>();
+        Path promptsFile;
+        boolean stdin;
+        String model;
+        Path outDir;
+        boolean dryRun;
+        boolean mock;
+        Path batchOut;
+        Path batchJobs;
+        Path batchIngest;
+        Path manifest;
+        boolean chatStats;
+        boolean repackChats;
+        Path exportChats;
+        Path importChats;
+        Path apply;
+        boolean undoApply;
+        boolean compileCheck;
+        boolean allowOverwrite;
+        List<Path> classpath = new ArrayList<>();
+        boolean profile;
+        int threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    private static final String USAGE = """
+            Usage: gpt-agent --headless --project <dir> [options]
+
+              --select <glob>        include files matching glob (repeatable, default: all)
+              --grep <regex>         only files whose content matches regex
+              --prompt <text>        prompt to send (repeatable)
+              --prompts-file <file>  one prompt per line
+              --stdin                daemon mode: read prompts from stdin, one per line
+              --model <name>         model (default: from config)
+              --out <dir>            write response-N.txt files instead of printing
+              --dry-run              build packs only, do not call the model
+              --mock                 use the local mock provider
+              --profile              record the run with JFR (~/.gpt-agent/profiles/*.jfr)
+
+            Batch API (offline, local files only):
+              --batch-out <file>     write a Batch API JSONL (+ <file>.manifest.jsonl) instead of sending
+              --batch-jobs <file>    JSONL jobs {"id","prompt","select":[globs],"grep"} for --batch-out
+              --threads <n>          pack builders for --batch-out, file checkers for --apply (default: CPU count)
+              --batch-ingest <file>  store a Batch API output JSONL as chats (no --project needed)
+              --manifest <file>      manifest for --batch-ingest (maps custom_id to prompt/model)
+
+            Chat history (~/.gpt-agent/chats, no --project needed):
+              --chat-stats           print how much the stored response bodies are de-duplicated/compressed
+              --repack-chats         move bodies still stored inline into the blob store, then print stats
+              --export-chats <file>  write all chats as NDJSON (gzip when the name ends in .gz)
+              --import-chats <file>  merge an NDJSON export by session id (revisions already present are skipped)
+
+            Applying model output:
+              --apply <file>         apply the change blocks in a saved response to --project, all files or none
+                                     (with --dry-run: only report what each block would change)
+              --allow-overwrite      with --apply: let CREATE_FILE blocks replace files that already exist
+              --compile-check        with --apply: compile the changed Java files and their dependents in memory
+                                     first; compile errors leave the project untouched
+              --classpath <paths>    jars/dirs the project needs besides build/classes, target/classes, lib(s)/*.jar
+                                     (path-separator list, repeatable)
+              --undo-apply           restore the files of the last apply (no --project needed)
+            """;
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    private final IgnoreRules ignoreRules = new IgnoreRules();
+    private final FileTextReader fileTextReader = new FileTextReader(512L * 1024);
+    private final ContextPackBuilder contextPackBuilder =
+            new ContextPackBuilder(new ProjectTreePrinter(ignoreRules), fileTextReader);
+    private final OutputParser outputParser = new OutputParser();
+
+    private int counter = 0;
+
+    HeadlessMain(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.in, System.out, System.err));
+    }
+
+    public static int run(String[] args, InputStream in, PrintStream out, PrintStream err) {
+        Options o;
+        try {
+            o = parse(args);
+        } catch (IllegalArgumentException ex) {
+            err.println("Error: " + ex.getMessage());
+            err.print(USAGE);
+            return 2;
+        }
+
+        ProfileRecorder profiler = o.profile ? new ProfileRecorder() : null;
+        try {
+            if (profiler != null) profiler.start(null, null);
+            return new HeadlessMain(out, err).execute(o, in);
+        } catch (Exception ex) {
+            err.println("Error: " + (ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage()));
+            return 1;
+        } finally {
+            if (profiler != null) {
+                try {
+                    Path jfr = profiler.stop();
+                    if (jfr != null) err.println("profile: " + jfr);
+                } catch (IOException ex) {
+                    err.println("Profile failed: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    static Options parse(String[] args) {
+        Options o = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            switch (a) {
+                case "--headless", "cli" -> { }
+                case "--project" -> o.project = Path.of(value(args, ++i, a));
+                case "--select" -> o.globs.add(value(args, ++i, a));
+                case "--grep" -> o.grep = value(args, ++i, a);
+                case "--prompt" -> o.prompts.add(value(args, ++i, a));
+                case "--prompts-file" -> o.promptsFile = Path.of(value(args, ++i, a));
+                case "--stdin" -> o.stdin = true;
+                case "--model" -> o.model = value(args, ++i, a);
+                case "--out" -> o.outDir = Path.of(value(args, ++i, a));
+                case "--dry-run" -> o.dryRun = true;
+                case "--mock" -> o.mock = true;
+                case "--profile" -> o.profile = true;
+                case "--batch-out" -> o.batchOut = Path.of(value(args, ++i, a));
+                case "--batch-jobs" -> o.batchJobs = Path.of(value(args, ++i, a));
+                case "--batch-ingest" -> o.batchIngest = Path.of(value(args, ++i, a));
+                case "--manifest" -> o.manifest = Path.of(value(args, ++i, a));
+                case "--chat-stats" -> o.chatStats = true;
+                case "--repack-chats" -> o.repackChats = true;
+                case "--export-chats" -> o.exportChats = Path.of(value(args, ++i, a));
+                case "--import-chats" -> o.importChats = Path.of(value(args, ++i, a));
+                case "--apply" -> o.apply = Path.of(value(args, ++i, a));
+                case "--undo-apply" -> o.undoApply = true;
+                case "--compile-check" -> o.compileCheck = true;
+                case "--allow-overwrite" -> o.allowOverwrite = true;
+                case "--classpath" -> {
+                    for (String e : value(args, ++i, a).split(File.pathSeparator)) {
+                        if (!e.isBlank()) o.classpath.add(Path.of(e));
+                    }
+                }
+                case "--threads" -> o.threads = parseInt(value(args, ++i, a), a);
+                default -> throw new IllegalArgumentException("Unknown option: " + a);
+            }
+        }
+        if (o.batchIngest != null || o.chatStats || o.repackChats) return o;
+        if (o.exportChats != null || o.importChats != null) return o;
+        if (o.undoApply) return o;
+
+        if (o.project == null) throw new IllegalArgumentException("--project is required.");
+        if (o.apply != null) return o;
+        if (o.batchOut != null) {
+            if (o.stdin) throw new IllegalArgumentException("--stdin cannot be combined with --batch-out.");
+            if (o.prompts.isEmpty() && o.promptsFile == null && o.batchJobs == null) {
+                throw new IllegalArgumentException("Give --prompt, --prompts-file or --batch-jobs.");
+            }
+            return o;
+        }
+        if (o.batchJobs != null) throw new IllegalArgumentException("--batch-jobs needs --batch-out.");
+        if (o.prompts.isEmpty() && o.promptsFile == null && !o.stdin) {
+            throw new IllegalArgumentException("Give --prompt, --prompts-file or --stdin.");
+        }
+        return o;
+    }
+
+    private static String value(String[] args, int i, String opt) {
+        if (i >= args.length) throw new IllegalArgumentException(opt + " needs a value.");
+        return args[i];
+    }
+
+    private static int parseInt(String v, String opt) {
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(opt + " needs a number.");
+        }
+    }
+
+    int execute(Options o, InputStream in) throws Exception {
+        if (o.batchIngest != null) return ingestBatch(o);
+        if (o.chatStats || o.repackChats) return chatStats(o);
+        if (o.exportChats != null || o.importChats != null) return exportImportChats(o);
+        if (o.apply != null || o.undoApply) return applyBlocks(o);
+
+        Path root = o.project.toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) throw new IllegalArgumentException("Not a directory: " + root);
+
+        long t0 = System.nanoTime();
+        ProjectScanner.ScanResult scan = new ProjectScanner(ignoreRules).scan(root);
+        List<Path> selected = new FileSelector(o.globs, o.grep, fileTextReader).select(root, scan.allFiles());
+        err.printf("scanned %d files, selected %d in %d ms%n",
+                scan.allFiles().size(), selected.size(), (System.nanoTime() - t0) / 1_000_000L);
+
+        AppConfig cfg = new ConfigStore().load();
+        if (o.mock) cfg.setProvider("mock");
+        String model = (o.model != null && !o.model.isBlank()) ? o.model : cfg.getModel();
+
+        if (o.batchOut != null) return writeBatch(o, root, scan.allFiles(), selected, model);
+
+        if (selected.isEmpty()) {
+            err.println("Nothing selected.");
+            return 1;
+        }
+
+        LlmProvider provider = o.dryRun ? null : LlmProvider.fromConfig(cfg);
+        if (provider != null) provider.configure(cfg.getApiKey());
+
+        if (o.outDir != null) Files.createDirectories(o.outDir);
+
+        int failures = 0;
+        try {
+            for (String p : o.prompts) {
+                if (!processOne(root, selected, p, model, provider, o)) failures++;
+            }
+            if (o.promptsFile != null) {
+                for (String p : Files.readAllLines(o.promptsFile, StandardCharsets.UTF_8)) {
+                    if (p.isBlank()) continue;
+                    if (!processOne(root, selected, p, model, provider, o)) failures++;
+                }
+            }
+            if (o.stdin) {
+                BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    if (!processOne(root, selected, line, model, provider, o)) failures++;
+                    out.flush();
+                }
+            }
+        } finally {
+            if (provider instanceof AutoCloseable c) c.close();
+        }
+
+        return failures == 0 ? 0 : 1;
+    }
+
+    private int writeBatch(Options o, Path root, List<Path> allFiles, List<Path> selected, String model)
+            throws IOException, InterruptedException {
+        List<BatchWriter.Job> jobs = new ArrayList<>();
+        for (String p : o.prompts) jobs.add(new BatchWriter.Job("job-" + (jobs.size() + 1), p, null, null));
+        if (o.promptsFile != null) {
+            for (String p : Files.readAllLines(o.promptsFile, StandardCharsets.UTF_8)) {
+                if (p.isBlank()) continue;
+                jobs.add(new BatchWriter.Job("job-" + (jobs.size() + 1), p, null, null));
+            }
+        }
+        if (o.batchJobs != null) jobs.addAll(BatchWriter.readJobs(o.batchJobs));
+        if (jobs.isEmpty()) {
+            err.println("No jobs.");
+            return 1;
+        }
+
+        BatchWriter.Report r = new BatchWriter(contextPackBuilder, fileTextReader, o.threads)
+                .write(root, allFiles, selected, model, jobs, o.batchOut);
+        err.printf("batch: %d jobs (%d with no files) -> %s (%d bytes, pack chars=%d) in %d ms%n",
+                r.jobs(), r.empty(), o.batchOut, r.bytes(), r.packChars(), r.millis());
+        err.println("manifest: " + r.manifest());
+        return 0;
+    }
+
+    private int ingestBatch(Options o) throws Exception {
+        Path manifest = o.manifest;
+        if (manifest == null) {
+            err.println("No --manifest given: chats are titled by custom_id.");
+        } else if (!Files.isRegularFile(manifest)) {
+            throw new IllegalArgumentException("Manifest not found: " + manifest);
+        }
+
+        ChatStore store = new ChatStore();
+        store.load();
+        BatchIngester.Report r;
+        try {
+            r = new BatchIngester().ingest(o.batchIngest, BatchIngester.readManifest(manifest), store);
+        } finally {
+            store.close();
+        }
+
+        for (String e : r.errors()) err.println("  failed " + e);
+        err.printf("ingested %d responses (%d blocks, %d without blocks), %d failed, %d already stored, in %d ms%n",
+                r.ok(), r.blocks(), r.withoutBlocks(), r.failed(), r.duplicates(), r.millis());
+        return r.failed() == 0 ? 0 : 1;
+    }
+
+    private int chatStats(Options o) throws Exception {
+        ChatStore store = new ChatStore();
+        store.load();
+        try {
+            if (o.repackChats) {
+                long t0 = System.nanoTime();
+                int n = store.repackSegments();
+                err.printf("repacked %d chats in %d ms%n", n, (System.nanoTime() - t0) / 1_000_000L);
+            }
+            BlobStore.Stats s = store.storageStats();
+            out.println(s.toDebugLine());
+            out.printf("Segments: %d bytes (revision fields + bodies not yet repacked)%n", store.segmentBytes());
+        } finally {
+            store.close();
+        }
+        return 0;
+    }
+
+    // import first, so "--import-chats a --export-chats b" writes the merged history
+    private int exportImportChats(Options o) throws Exception {
+        ChatStore store = new ChatStore();
+        store.load();
+        try {
+            ChatArchive archive = new ChatArchive(store);
+            if (o.importChats != null) {
+                if (!Files.isRegularFile(o.importChats)) throw new IllegalArgumentException("Not a file: " + o.importChats);
+                try (InputStream in = archiveIn(o.importChats)) {
+                    ChatArchive.Report r = archive.importFrom(in);
+                    err.printf("imported %d chats (%d new): %d revisions added, %d already present, in %d ms%n",
+                            r.sessions(), r.sessionsAdded(), r.revisions(), r.duplicates(), r.millis());
+                }
+            }
+            if (o.exportChats != null) {
+                try (OutputStream out = archiveOut(o.exportChats)) {
+                    ChatArchive.Report r = archive.export(out);
+                    err.printf("exported %d chats, %d revisions to %s in %d ms%n",
+                            r.sessions(), r.revisions(), o.exportChats, r.millis());
+                }
+            }
+        } finally {
+            store.close();
+        }
+        return 0;
+    }
+
+    private int applyBlocks(Options o) throws Exception {
+        ApplyEngine engine = new ApplyEngine();
+        if (o.undoApply) {
+            String id = engine.lastTransaction();
+            if (id == null) {
+                err.println("nothing to undo");
+                return 1;
+            }
+            ApplyEngine.Transaction tx = engine.undo(id);
+            for (String f : tx.files()) out.println("restored " + f);
+            err.printf("undid %s (%d files) in %d ms%n", tx.id(), tx.files().size(), tx.millis());
+            return 0;
+        }
+
+        if (!Files.isRegularFile(o.apply)) throw new IllegalArgumentException("Not a file: " + o.apply);
+        Path root = o.project.toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) throw new IllegalArgumentException("Not a directory: " + root);
+
+        List<OutputBlock> blocks = outputParser.parse(Files.readString(o.apply, StandardCharsets.UTF_8));
+        if (blocks.isEmpty()) throw new IllegalArgumentException("No change blocks in " + o.apply);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(o.threads, 8)));
+        ApplyEngine.Plan plan;
+        try {
+            plan = engine.plan(root, blocks, pool);
+        } finally {
+            pool.shutdownNow();
+        }
+        for (ApplyEngine.BlockResult r : plan.results) {
+            out.printf("#%d %-10s %s %s: %s%n", r.index() + 1, r.check().badge, r.block().action, r.file(), r.message());
+        }
+        err.println(plan.summary());
+        if (!plan.ok(o.allowOverwrite)) {
+            if (plan.failed() == 0) err.println(plan.overwrites() + " CREATE_FILE block(s) would overwrite existing files (--allow-overwrite)");
+            err.println("nothing applied");
+            return 1;
+        }
+        if (o.compileCheck) {
+            CompileCheck.Result cr = new CompileCheck(ignoreRules, o.classpath).check(plan);
+            for (CompileCheck.Problem p : cr.problems()) {
+                String block = p.block() == null ? "" : " (block #" + (blocks.indexOf(p.block()) + 1) + ")";
+                out.println(p + block);
+            }
+            err.println(cr.summary());
+            if (!cr.ok()) {
+                err.println("nothing applied");
+                return 1;
+            }
+        }
+        if (o.dryRun) return 0;
+
+        ApplyEngine.Transaction tx = engine.commit(plan, o.allowOverwrite);
+        err.printf("applied to %d files in %d ms (undo: --undo-apply, id %s)%n", tx.files().size(), tx.millis(), tx.id());
+        return 0;
+    }
+
+    private static InputStream archiveIn(Path p) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(p), 1 << 16);
+        return p.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(in, 1 << 16) : in;
+    }
+
+    private static OutputStream archiveOut(Path p) throws IOException {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(p), 1 << 16);
+        return p.getFileName().toString().endsWith(".gz") ? new GZIPOutputStream(out, 1 << 16) : out;
+    }
+
+    private boolean processOne(Path root, List<Path> selected, String prompt, String model,
+                               LlmProvider provider, Options o) {
+        int n = ++counter;
+        long t0 = System.nanoTime();
+        try {
+            String pack = contextPackBuilder.build(root, selected, prompt, null);
+            long packMs = (System.nanoTime() - t0) / 1_000_000L;
+
+            if (provider == null) {
+                err.printf("[%d] pack chars=%d estTokens≈%d (%d ms)%n",
+                        n, pack.length(), RateLimitController.estimateTokens(pack.length()), packMs);
+                if (o.outDir != null) Files.writeString(o.outDir.resolve("pack-" + n + ".txt"), pack);
+                return true;
+            }
+
+            OpenAIResult r = provider.generateDiff(model, PromptTemplates.buildRequestParts(pack));
+            String text = r.diffText() == null ? "" : r.diffText();
+            List<OutputBlock> blocks = outputParser.parse(text);
+
+            if (o.outDir != null) {
+                Files.writeString(o.outDir.resolve("response-" + n + ".txt"), text);
+            } else {
+                out.println("=== RESPONSE " + n + " ===");
+                out.println(text);
+            }
+
+            err.printf("[%d] blocks=%d tokens in=%s out=%s%s pack=%d ms total=%d ms%n",
+                    n, blocks.size(), r.inputTokens(), r.outputTokens(), r.cached() ? " (cached)" : "",
+                    packMs, (System.nanoTime() - t0) / 1_000_000L);
+            if (r.timings() != null) err.printf("[%d] %s%n", n, r.timings().toDebugLine());
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            err.printf("[%d] failed: %s%n", n, ex.getMessage());
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            err.printf("[%d] interrupted%n", n);
+            return false;
+        }
+    }
+}
@@ -1,12 +1,108 @@
 package com.QM4RS.agent.core;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class AppConfig {
     private String apiKey = "";
     private String model = "gpt-5.2";
 
+    // "openai" or "mock" (local MockLlmServer, no key/network needed)
+    private String provider = "openai";
+
+    // Mock provider knobs
+    private long mockLatencyMs = 300;
+    private long mockBytesPerSecond = 0;
+    private double mockErrorRate = 0.0;
+    private double mockRateLimitRate = 0.0;
+    private long mockSeed = 42;
+    private String mockOutputsDir = "";
+
+    // Response cache (off by default)
+    private boolean responseCacheEnabled = false;
+    private long responseCacheMaxMb = 256;
+    private long responseCacheTtlHours = 72;
+
+    // Models for "Compare" (fan-out send), comma separated
+    private String compareModels = "";
+
+    // Upper bound (estimated tokens) for the compacted chat history sent with "History"
+    private long historyTokenBudget = 4000;
+
     public String getApiKey() { return apiKey; }
     public void setApiKey(String apiKey) { this.apiKey = apiKey == null ? "" : apiKey.trim(); }
 
     public String getModel() { return model; }
     public void setModel(String model) { this.model = model == null ? "gpt-4.1" : model.trim(); }
+
+    public String getProvider() { return provider; }
+    public void setProvider(String provider) { this.provider = provider == null || provider.isBlank() ? "openai" : provider.trim().toLowerCase(); }
+
+    public boolean isMockProvider() { return "mock".equals(provider); }
+
+    public long getMockLatencyMs() { return mockLatencyMs; }
+    public void setMockLatencyMs(long mockLatencyMs) { this.mockLatencyMs = Math.max(0, mockLatencyMs); }
+
+    public long getMockBytesPerSecond() { return mockBytesPerSecond; }
+    public void setMockBytesPerSecond(long mockBytesPerSecond) { this.mockBytesPerSecond = Math.max(0, mockBytesPerSecond); }
+
+    public double getMockErrorRate() { return mockErrorRate; }
+    public void setMockErrorRate(double mockErrorRate) { this.mockErrorRate = clamp01(mockErrorRate); }
+
+    public double getMockRateLimitRate() { return mockRateLimitRate; }
+    public void setMockRateLimitRate(double mockRateLimitRate) { this.mockRateLimitRate = clamp01(mockRateLimitRate); }
+
+    public long getMockSeed() { return mockSeed; }
+    public void setMockSeed(long mockSeed) { this.mockSeed = mockSeed; }
+
+    public String getMockOutputsDir() { return mockOutputsDir; }
+    public void setMockOutputsDir(String mockOutputsDir) { this.mockOutputsDir = mockOutputsDir == null ? "" : mockOutputsDir.trim(); }
+
+    public boolean isResponseCacheEnabled() { return responseCacheEnabled; }
+    public void setResponseCacheEnabled(boolean responseCacheEnabled) { this.responseCacheEnabled = responseCacheEnabled; }
+
+    public long getResponseCacheMaxMb() { return responseCacheMaxMb; }
+    public void setResponseCacheMaxMb(long responseCacheMaxMb) { this.responseCacheMaxMb = Math.max(1, responseCacheMaxMb); }
+
+    public long getResponseCacheTtlHours() { return responseCacheTtlHours; }
+    public void setResponseCacheTtlHours(long responseCacheTtlHours) { this.responseCacheTtlHours = Math.max(1, responseCacheTtlHours); }
+
+    public String getCompareModels() { return compareModels; }
+    public void setCompareModels(String compareModels) { this.compareModels = compareModels == null ? "" : compareModels.trim(); }
+
+    public long getHistoryTokenBudget() { return historyTokenBudget; }
+    public void setHistoryTokenBudget(long historyTokenBudget) { this.historyTokenBudget = Math.max(200, historyTokenBudget); }
+
+    public List<String> getCompareModelList() {
+        List<String> out = new ArrayList<>();
+        for (String m : compareModels.split(",")) {
+            String t = m.trim();
+            if (!t.isEmpty() && !out.contains(t)) out.add(t);
+        }
+        return out;
+    }
+
+    public AppConfig copy() {
+        AppConfig c = new AppConfig();
+        c.apiKey = apiKey;
+        c.model = model;
+        c.provider = provider;
+        c.mockLatencyMs = mockLatencyMs;
+        c.mockBytesPerSecond = mockBytesPerSecond;
+        c.mockErrorRate = mockErrorRate;
+        c.mockRateLimitRate = mockRateLimitRate;
+        c.mockSeed = mockSeed;
+        c.mockOutputsDir = mockOutputsDir;
+        c.responseCacheEnabled = responseCacheEnabled;
+        c.responseCacheMaxMb = responseCacheMaxMb;
+        c.responseCacheTtlHours = responseCacheTtlHours;
+        c.compareModels = compareModels;
+        c.historyTokenBudget = historyTokenBudget;
+        return c;
+    }
+
+    private static double clamp01(double v) {
+        if (Double.isNaN(v)) return 0;
+        return Math.max(0, Math.min(1, v));
+    }
 }
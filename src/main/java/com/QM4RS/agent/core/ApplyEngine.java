@@ -0,0 +1,907 @@
+package com.QM4RS.agent.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Applies parsed OutputBlocks to the working tree as one transaction.
+ *
+ * plan() reads every touched file once and resolves each block against the ORIGINAL content (so block order
+ * does not shift line numbers), checks the edits of each file against each other (Conflict, through an
+ * IntervalTree per file) and computes the new file texts; nothing is written. commit() writes all files of a
+ * plan without errors: originals are copied to ~/.gpt-agent/undo/&lt;id&gt;/ first, new texts go to temp
+ * files next to their targets and are then moved into place; a failed move restores the files already moved.
+ * undo() puts the originals back, but only while the files still hold what the transaction wrote.
+ *
+ * Anchors are matched through a LineIndex (whitespace-normalized lines), and must match exactly once.
+ * Files are independent while planning, so plan() can resolve them in parallel; the UI uses that to
+ * badge every block (Check) as soon as a response is shown.
+ */
+public class ApplyEngine {
+
+    /**
+     * What resolving a block found; the first four resolve. OVERWRITES still keeps its plan from
+     * being applied unless the overwrite is confirmed (Plan#ok(boolean)).
+     */
+    public enum Check {
+        OK("ok"),
+        CREATES("new file"),
+        OVERWRITES("overwrites"),   // CREATE_FILE on a file that exists
+        ORDERED("ordered"),         // inserts at the same line as an earlier block; goes after it
+        MISSING_FILE("no file"),
+        NOT_FOUND("not found"),
+        AMBIGUOUS("ambiguous"),
+        OVERLAP("overlap"),
+        INVALID("invalid");
+
+        public final String badge;
+
+        Check(String badge) {
+            this.badge = badge;
+        }
+
+        public boolean ok() {
+            return this == OK || this == CREATES || this == OVERWRITES || this == ORDERED;
+        }
+    }
+
+    /**
+     * Outcome of one block. Lines are 1-based in the original file: the replaced lines are
+     * startLine..endLine; an insertion has endLine = startLine - 1 (nothing replaced, new lines go
+     * before startLine). Both are 0 when the block failed.
+     */
+    public record BlockResult(int index, OutputBlock block, String file, Check check, String message, int startLine, int endLine) {
+        public boolean ok() {
+            return check.ok();
+        }
+    }
+
+    /**
+     * Two blocks of one file, by block index; line is 1-based in the original file. OVERLAP: their
+     * replaced lines intersect, an insertion falls inside the other's replacement, or one is a
+     * CREATE_FILE. ANCHOR: block inserts after lines that other replaces. ORDER: both insert at the
+     * same line; block goes after other (block order). The first two fail both blocks.
+     */
+    public record Conflict(Kind kind, String file, int block, int other, int line) {
+        public enum Kind {OVERLAP, ANCHOR, ORDER}
+    }
+
+    /** One file of a plan: its original bytes (null when it does not exist) and the text to write. */
+    public static final class FileChange {
+        public final String file;   // project-relative, '/' separators
+        public final Path path;
+        public final byte[] before;
+        public String after;
+        // block index -> [first, last] 1-based lines of what it wrote in after (first == last + 1: removed lines)
+        public final Map<Integer, int[]> blockLines = new HashMap<>();
+
+        FileChange(String file, Path path, byte[] before) {
+            this.file = file;
+            this.path = path;
+            this.before = before;
+        }
+
+        public boolean existed() {
+            return before != null;
+        }
+    }
+
+    public static final class Plan {
+        public final Path root;
+        public final List<BlockResult> results;
+        public final List<FileChange> files;
+        public final List<Conflict> conflicts;  // by file, then line
+        public final long millis;
+
+        Plan(Path root, List<BlockResult> results, List<FileChange> files, List<Conflict> conflicts, long millis) {
+            this.root = root;
+            this.results = results;
+            this.files = files;
+            this.conflicts = conflicts;
+            this.millis = millis;
+        }
+
+        public int failed() {
+            int n = 0;
+            for (BlockResult r : results) if (!r.ok()) n++;
+            return n;
+        }
+
+        // CREATE_FILE blocks whose file already exists
+        public int overwrites() {
+            int n = 0;
+            for (BlockResult r : results) if (r.check() == Check.OVERWRITES) n++;
+            return n;
+        }
+
+        public boolean ok() {
+            return ok(false);
+        }
+
+        // allowOverwrites: the user confirmed that CREATE_FILE may replace existing files
+        public boolean ok(boolean allowOverwrites) {
+            return !results.isEmpty() && failed() == 0 && (allowOverwrites || overwrites() == 0);
+        }
+
+        public String summary() {
+            return String.format(Locale.ROOT, "%d block(s), %d file(s), %d failed, %d conflict(s), planned in %d ms",
+                    results.size(), files.size(), failed(), conflicts.size(), millis);
+        }
+    }
+
+    public record Transaction(String id, Path root, List<String> files, long millis) {}
+
+    // What the undo directory remembers about a transaction
+    private record Manifest(String id, String root, String at, List<ManifestFile> files) {}
+
+    private record ManifestFile(String file, boolean existed, String backup, String afterSha256) {}
+
+    // A block that cannot be resolved, and why
+    private static final class Unresolved extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        final Check check;
+
+        Unresolved(Check check, String message) {
+            super(message);
+            this.check = check;
+        }
+    }
+
+    private static final class Edit {
+        final int start;      // 0-based, inclusive
+        final int end;        // 0-based, exclusive (== start for an insertion)
+        final List<String> lines;
+        final int block;
+        final int anchorStart; // anchor lines [anchorStart, start) the block relies on but keeps; == start when none
+
+        Edit(int start, int end, List<String> lines, int block) {
+            this(start, end, lines, block, start);
+        }
+
+        Edit(int start, int end, List<String> lines, int block, int anchorStart) {
+            this.start = start;
+            this.end = end;
+            this.lines = lines;
+            this.block = block;
+            this.anchorStart = anchorStart;
+        }
+    }
+
+    // Lines of an existing file, split once; the LineIndex is built on the first anchor lookup
+    private static final class Source {
+        final String file;
+        final String text;
+        final String version;     // file + size + CRC32C of the bytes: the key for cached structures
+        final List<String> lines;
+        final String separator;
+        final boolean trailingNewline;
+        LineIndex index;
+        JavaStructure java;
+
+        Source(String file, byte[] bytes) {
+            this.file = file;
+            this.text = new String(bytes, StandardCharsets.UTF_8);
+            CRC32C crc = new CRC32C();
+            crc.update(bytes);
+            this.version = file + '\0' + bytes.length + '\0' + Long.toHexString(crc.getValue());
+            this.separator = text.contains("\r\n") ? "\r\n" : "\n";
+            String t = text.replace("\r\n", "\n");
+            this.trailingNewline = t.endsWith("\n");
+            if (trailingNewline) t = t.substring(0, t.length() - 1);
+            this.lines = t.isEmpty() && !trailingNewline ? List.of() : Arrays.asList(t.split("\n", -1));
+        }
+
+        LineIndex index() {
+            if (index == null) index = new LineIndex(lines);
+            return index;
+        }
+    }
+
+    private static final DateTimeFormatter TX_ID = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final String TMP_SUFFIX = ".gpt-agent-tmp";
+
+    private final Path undoRoot;
+    private final ObjectMapper om = new ObjectMapper();
+
+    // JavaStructure per file version, shared by the background checks and Apply
+    private final Map<String, JavaStructure> javaStructures = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JavaStructure> eldest) {
+            return size() > 64;
+        }
+    });
+
+    public ApplyEngine() {
+        this(Path.of(System.getProperty("user.home"), ".gpt-agent", "undo"));
+    }
+
+    public ApplyEngine(Path undoRoot) {
+        this.undoRoot = undoRoot;
+    }
+
+    // ---------------- plan ----------------
+
+    public Plan plan(Path root, List<OutputBlock> blocks) throws IOException {
+        return plan(root, blocks, null);
+    }
+
+    /**
+     * Same as plan(root, blocks), with the files resolved in parallel on the pool (one task per file,
+     * sharing that file's lines and LineIndex between its blocks). The pool must not be the thread
+     * calling this. A null pool resolves the files on the calling thread.
+     */
+    public Plan plan(Path root, List<OutputBlock> blocks, ExecutorService pool) throws IOException {
+        long t0 = System.nanoTime();
+        Path base = root.toAbsolutePath().normalize();
+        BlockResult[] results = new BlockResult[blocks.size()];
+        Map<String, List<Integer>> byFile = new LinkedHashMap<>();
+
+        for (int i = 0; i < blocks.size(); i++) {
+            OutputBlock b = blocks.get(i);
+            String rel = b.file == null ? "" : normalizePath(b.file);
+            if (rel.isEmpty()) {
+                results[i] = fail(i, b, rel, Check.INVALID, "No FILE.");
+                continue;
+            }
+            Path p = base.resolve(rel).normalize();
+            if (!p.startsWith(base) || p.equals(base)) {
+                results[i] = fail(i, b, rel, Check.INVALID, "FILE is outside the project.");
+                continue;
+            }
+            byFile.computeIfAbsent(base.relativize(p).toString().replace('\\', '/'), k -> new ArrayList<>()).add(i);
+        }
+
+        List<FileChange> files = new ArrayList<>();
+        List<Conflict> conflicts = Collections.synchronizedList(new ArrayList<>());
+        if (pool == null || byFile.size() < 2) {
+            for (Map.Entry<String, List<Integer>> e : byFile.entrySet()) {
+                FileChange fc = planFile(base, e.getKey(), e.getValue(), blocks, results, conflicts);
+                if (fc != null) files.add(fc);
+            }
+        } else {
+            // each task writes only its own blocks' slots; Future.get() publishes them
+            List<Future<FileChange>> tasks = new ArrayList<>(byFile.size());
+            for (Map.Entry<String, List<Integer>> e : byFile.entrySet()) {
+                tasks.add(pool.submit(() -> planFile(base, e.getKey(), e.getValue(), blocks, results, conflicts)));
+            }
+            try {
+                for (Future<FileChange> f : tasks) {
+                    FileChange fc = f.get();
+                    if (fc != null) files.add(fc);
+                }
+            } catch (InterruptedException ex) {
+                for (Future<FileChange> f : tasks) f.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Planning was interrupted.");
+            } catch (ExecutionException ex) {
+                for (Future<FileChange> f : tasks) f.cancel(true);
+                Throwable c = ex.getCause();
+                if (c instanceof IOException io) throw io;
+                if (c instanceof RuntimeException re) throw re;
+                throw new IOException(c);
+            }
+        }
+
+        conflicts.sort(Comparator.comparing(Conflict::file).thenComparingInt(Conflict::line).thenComparingInt(Conflict::block));
+        return new Plan(base, List.of(results), files, List.copyOf(conflicts), RequestTimings.millisBetween(t0, System.nanoTime()));
+    }
+
+    // Resolves the blocks of one file; returns its change, or null when a block failed (or nothing changes)
+    private FileChange planFile(Path base, String file, List<Integer> indexes, List<OutputBlock> blocks,
+                                BlockResult[] results, List<Conflict> conflicts) throws IOException {
+        Path p = base.resolve(file);
+        if (Files.isDirectory(p)) {
+            for (int i : indexes) results[i] = fail(i, blocks.get(i), file, Check.INVALID, "FILE is a directory.");
+            return null;
+        }
+        byte[] before = Files.exists(p) ? Files.readAllBytes(p) : null;
+        FileChange fc = new FileChange(file, p, before);
+        Source src = before == null ? null : new Source(file, before);
+
+        List<Edit> edits = new ArrayList<>();
+        for (int i : indexes) {
+            OutputBlock b = blocks.get(i);
+            try {
+                Edit ed = resolve(src, b, i);
+                edits.add(ed);
+                Check c = !isCreate(b) ? Check.OK : src == null ? Check.CREATES : Check.OVERWRITES;
+                results[i] = new BlockResult(i, b, file, c, describe(b, ed), ed.start + 1, ed.end);
+            } catch (Unresolved ex) {
+                results[i] = fail(i, b, file, ex.check, ex.getMessage());
+            }
+        }
+
+        List<Conflict> found = conflicts(file, edits, blocks);
+        for (Conflict c : found) mark(results, blocks, c);
+        conflicts.addAll(found);
+
+        for (int i : indexes) {
+            if (!results[i].ok()) return null;
+        }
+        if (edits.isEmpty()) return null;
+        fc.after = render(src, edits, fc.blockLines);
+        return fc;
+    }
+
+    private static boolean isCreate(OutputBlock b) {
+        return b.action != null && b.action.strip().equalsIgnoreCase("CREATE_FILE");
+    }
+
+    private Edit resolve(Source src, OutputBlock b, int blockIndex) {
+        String op = b.action == null ? "" : b.action.strip().toUpperCase(Locale.ROOT);
+        List<String> body = bodyLines(b);
+
+        if (op.equals("CREATE_FILE")) {
+            return new Edit(0, src == null ? 0 : src.lines.size(), body, blockIndex);
+        }
+        if (src == null) throw new Unresolved(Check.MISSING_FILE, "File does not exist (only CREATE_FILE can create it).");
+
+        switch (op) {
+            case "REPLACE_ANCHOR" -> {
+                int[] at = anchor(src, b);
+                return new Edit(at[0], at[1], reindent(body, src.lines, at[0], false), blockIndex);
+            }
+            case "INSERT_AFTER_ANCHOR" -> {
+                int[] at = anchor(src, b);
+                // indentation after the anchor is a guess: only lift a flush-left body to the anchor's level
+                return new Edit(at[1], at[1], reindent(body, src.lines, at[1] - 1, true), blockIndex, at[0]);
+            }
+            case "REPLACE_METHOD", "REPLACE_CLASS" -> {
+                int[] at = src.file.toLowerCase(Locale.ROOT).endsWith(".java")
+                        ? javaDeclaration(src, b, body)
+                        : structure(src, b, body, op.equals("REPLACE_CLASS"));
+                return new Edit(at[0], at[1], reindent(body, src.lines, at[0], false), blockIndex);
+            }
+            case "REPLACE_RANGE" -> {
+                int[] at = range(src, b.range);
+                return new Edit(at[0], at[1], body, blockIndex);
+            }
+            default -> throw new Unresolved(Check.INVALID, "Unsupported OPERATION: " + (op.isEmpty() ? "(none)" : op) + ".");
+        }
+    }
+
+    private static BlockResult fail(int i, OutputBlock b, String file, Check check, String message) {
+        return new BlockResult(i, b, file, check, message, 0, 0);
+    }
+
+    private static String describe(OutputBlock b, Edit e) {
+        if (e.start == e.end) return "insert " + e.lines.size() + " line(s) before line " + (e.start + 1);
+        return "replace lines " + (e.start + 1) + "-" + e.end + " with " + e.lines.size() + " line(s)";
+    }
+
+    // ---------------- locating ----------------
+
+    // [start, end) of the unique anchor match
+    private static int[] anchor(Source src, OutputBlock b) {
+        if (b.anchor == null || b.anchor.isBlank()) throw new Unresolved(Check.INVALID, "No ANCHOR.");
+        List<String> needle = Arrays.asList(b.anchor.replace("\r\n", "\n").split("\n", -1));
+        List<Integer> hits = src.index().find(needle);
+        if (hits.isEmpty()) throw new Unresolved(Check.NOT_FOUND, "ANCHOR not found.");
+        if (hits.size() > 1) {
+            throw new Unresolved(Check.AMBIGUOUS, "ANCHOR matches " + hits.size() + " places (lines " + lineList(hits) + ").");
+        }
+        int start = hits.get(0);
+        return new int[]{start, start + LineIndex.effectiveLength(needle)};
+    }
+
+    private static final Pattern CLASS_DECL = Pattern.compile("\\b(?:class|interface|enum|record)\\s+(\\w+)");
+    private static final Pattern METHOD_DECL = Pattern.compile("(\\w+)\\s*\\(");
+
+    /**
+     * [start, end) of the Java declaration the body replaces: the file's declaration of the same kind and
+     * name (JavaStructure); overloads are told apart by parameter types, same-named members of different
+     * classes by the ANCHOR (the innermost declaration containing it) or else by an identical signature line.
+     * The file's Javadoc/annotations are replaced only when the body brings its own.
+     */
+    private int[] javaDeclaration(Source src, OutputBlock b, List<String> body) {
+        String bodyText = String.join("\n", body);
+        JavaStructure.Decl want = JavaStructure.firstDeclaration(bodyText);
+        if (want == null) throw new Unresolved(Check.INVALID, "Body has no declaration.");
+        JavaStructure js = src.java;
+        if (js == null) {
+            js = javaStructures.computeIfAbsent(src.version, k -> JavaStructure.of(src.text));
+            src.java = js;
+        }
+
+        String what = (want.kind() == JavaStructure.Kind.TYPE ? "Type " : "Method ") + want.name();
+        List<JavaStructure.Decl> found = js.find(want.kind(), want.name());
+        if (found.isEmpty()) throw new Unresolved(Check.NOT_FOUND, what + " not found.");
+
+        if (b.anchor != null && !b.anchor.isBlank()) {
+            int line = anchor(src, b)[0];
+            JavaStructure.Decl inner = null;
+            for (JavaStructure.Decl d : found) {
+                if (js.lineOf(d.prefixStart()) <= line && line <= js.lineOf(d.end() - 1)
+                        && (inner == null || d.end() - d.start() < inner.end() - inner.start())) inner = d;
+            }
+            if (inner == null) throw new Unresolved(Check.NOT_FOUND, what + " does not contain the ANCHOR.");
+            found = List.of(inner);
+        } else if (found.size() > 1 && want.params() != null) {
+            List<JavaStructure.Decl> same = new ArrayList<>();
+            for (JavaStructure.Decl d : found) if (d.params().equals(want.params())) same.add(d);
+            if (!same.isEmpty()) found = same;
+        }
+        if (found.size() > 1) {
+            // same name and parameters in different classes: the one whose modifiers/signature match
+            String header = want.header(bodyText);
+            List<JavaStructure.Decl> same = new ArrayList<>();
+            for (JavaStructure.Decl d : found) if (d.header(src.text).equals(header)) same.add(d);
+            if (same.size() == 1) found = same;
+        }
+        if (found.size() > 1) {
+            List<Integer> lines = new ArrayList<>();
+            for (JavaStructure.Decl d : found) lines.add(js.lineOf(d.start()));
+            throw new Unresolved(Check.AMBIGUOUS, what + " is declared " + found.size() + " times (lines "
+                    + lineList(lines) + "); add an ANCHOR.");
+        }
+
+        JavaStructure.Decl d = found.get(0);
+        int from = want.commentStart() >= 0 ? d.prefixStart()
+                : want.annotationStart() < want.start() ? d.annotationStart()
+                : d.start();
+        return new int[]{js.lineOf(from), js.lineOf(d.end() - 1) + 1};
+    }
+
+    /**
+     * [start, end) of the method/class the body replaces in a non-Java file. The declaration line is the ANCHOR when given,
+     * else the body's own declaration line, else a declaration of the same name. The end is found by
+     * brace matching; leading annotations/comments in the file are replaced too when the body has some.
+     */
+    private static int[] structure(Source src, OutputBlock b, List<String> body, boolean isClass) {
+        int sig = signatureLine(body);
+        if (sig < 0) throw new Unresolved(Check.INVALID, "Body has no declaration line.");
+        LineIndex idx = src.index();
+
+        int decl;
+        if (b.anchor != null && !b.anchor.isBlank()) {
+            decl = anchor(src, b)[0];
+        } else {
+            List<Integer> hits = idx.find(List.of(body.get(sig)));
+            if (hits.size() == 1) {
+                decl = hits.get(0);
+            } else {
+                String name = declaredName(body.get(sig), isClass);
+                if (name == null) throw new Unresolved(Check.INVALID, "Cannot tell the declared name from the body.");
+                hits = declarations(idx, name, isClass);
+                if (hits.isEmpty()) throw new Unresolved(Check.NOT_FOUND, (isClass ? "Class " : "Method ") + name + " not found.");
+                if (hits.size() > 1) {
+                    throw new Unresolved(Check.AMBIGUOUS, name + " is declared " + hits.size() + " times (lines " + lineList(hits) + "); add an ANCHOR.");
+                }
+                decl = hits.get(0);
+            }
+        }
+
+        int end = blockEnd(src.lines, decl);
+        int start = decl;
+        if (sig > 0) {
+            while (start > 0 && isPrefixLine(src.lines.get(start - 1))) start--;
+        }
+        return new int[]{start, end};
+    }
+
+    // first body line that is not blank, an annotation or a comment
+    private static int signatureLine(List<String> body) {
+        for (int i = 0; i < body.size(); i++) {
+            if (!body.get(i).isBlank() && !isPrefixLine(body.get(i))) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isPrefixLine(String line) {
+        String t = line.strip();
+        return t.startsWith("@") || t.startsWith("//") || t.startsWith("/*") || t.startsWith("*");
+    }
+
+    private static String declaredName(String signature, boolean isClass) {
+        Matcher m = (isClass ? CLASS_DECL : METHOD_DECL).matcher(signature);
+        return m.find() ? m.group(1) : null;
+    }
+
+    // lines declaring the name: a type keyword before it, or (methods) only modifiers/types before "name("
+    private static List<Integer> declarations(LineIndex idx, String name, boolean isClass) {
+        Pattern p = isClass
+                ? Pattern.compile("\\b(?:class|interface|enum|record)\\s+" + Pattern.quote(name) + "\\b")
+                : Pattern.compile("^(?:[\\w<>\\[\\],.?@]+\\s+)+" + Pattern.quote(name) + "\\s*\\(");
+        List<Integer> out = new ArrayList<>();
+        for (int i = 0; i < idx.size(); i++) {
+            String n = idx.normalizedLine(i);
+            if (n.startsWith("return ") || n.startsWith("new ") || n.startsWith("throw ") || n.startsWith("else ")) continue;
+            if (n.startsWith("//") || n.startsWith("*") || n.startsWith("/*")) continue;
+            if (p.matcher(n).find()) out.add(i);
+        }
+        return out;
+    }
+
+    // exclusive end line of the declaration starting at decl: after its matching '}' (or its ';' when bodiless)
+    private static int blockEnd(List<String> lines, int decl) {
+        int depth = 0;
+        boolean opened = false;
+        boolean blockComment = false;
+        for (int i = decl; i < lines.size(); i++) {
+            String l = lines.get(i);
+            for (int c = 0; c < l.length(); c++) {
+                char ch = l.charAt(c);
+                if (blockComment) {
+                    if (ch == '*' && c + 1 < l.length() && l.charAt(c + 1) == '/') {
+                        blockComment = false;
+                        c++;
+                    }
+                    continue;
+                }
+                if (ch == '/' && c + 1 < l.length()) {
+                    char nx = l.charAt(c + 1);
+                    if (nx == '/') break;
+                    if (nx == '*') {
+                        blockComment = true;
+                        c++;
+                        continue;
+                    }
+                }
+                if (ch == '"' || ch == '\'') {
+                    c = skipLiteral(l, c);
+                    continue;
+                }
+                if (ch == '{') {
+                    depth++;
+                    opened = true;
+                } else if (ch == '}') {
+                    depth--;
+                    if (opened && depth == 0) return i + 1;
+                } else if (ch == ';' && !opened && depth == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        throw new Unresolved(Check.NOT_FOUND, "No matching '}' for the declaration at line " + (decl + 1) + ".");
+    }
+
+    // index of the closing quote (or the last char when the line ends first)
+    private static int skipLiteral(String l, int open) {
+        char q = l.charAt(open);
+        for (int c = open + 1; c < l.length(); c++) {
+            char ch = l.charAt(c);
+            if (ch == '\\') c++;
+            else if (ch == q) return c;
+        }
+        return l.length() - 1;
+    }
+
+    private static int[] range(Source src, String range) {
+        if (range == null || !range.strip().matches("\\d+\\s*-\\s*\\d+")) {
+            throw new Unresolved(Check.INVALID, "RANGE must look like start-end.");
+        }
+        String[] p = range.strip().split("\\s*-\\s*");
+        int start = Integer.parseInt(p[0]);
+        int end = Integer.parseInt(p[1]);
+        if (start < 1 || end < start - 1 || end > src.lines.size()) {
+            throw new Unresolved(Check.INVALID, "RANGE " + range.strip() + " is outside the file (1-" + src.lines.size() + ").");
+        }
+        return new int[]{start - 1, end};
+    }
+
+    private static String lineList(List<Integer> hits) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < hits.size() && k < 5; k++) {
+            if (k > 0) sb.append(", ");
+            sb.append(hits.get(k) + 1);
+        }
+        if (hits.size() > 5) sb.append(", …");
+        return sb.toString();
+    }
+
+    // ---------------- edits ----------------
+
+    private static List<String> bodyLines(OutputBlock b) {
+        String text = b.body() == null ? "" : b.body();
+        List<String> lines = new ArrayList<>(Arrays.asList(text.replace("\r\n", "\n").split("\n", -1)));
+        while (!lines.isEmpty() && lines.get(0).isBlank()) lines.remove(0);
+        while (!lines.isEmpty() && lines.get(lines.size() - 1).isBlank()) lines.remove(lines.size() - 1);
+        return lines;
+    }
+
+    /**
+     * Shifts the body to the indentation of the line it replaces. Anchors match ignoring indentation, so a
+     * body quoted flush-left would otherwise land flush-left; relative indentation inside it is kept.
+     */
+    private static List<String> reindent(List<String> body, List<String> lines, int at, boolean onlyFlushLeft) {
+        if (body.isEmpty() || at >= lines.size()) return body;
+        String want = indentOf(lines.get(at));
+        String have = null;
+        for (String l : body) {
+            if (!l.isBlank()) {
+                have = indentOf(l);
+                break;
+            }
+        }
+        if (have == null || have.equals(want) || (onlyFlushLeft && !have.isEmpty())) return body;
+        for (String l : body) {
+            if (!l.isBlank() && !l.startsWith(have)) return body; // mixed indentation: leave it alone
+        }
+        List<String> out = new ArrayList<>(body.size());
+        for (String l : body) out.add(l.isBlank() ? l : want + l.substring(have.length()));
+        return out;
+    }
+
+    private static String indentOf(String line) {
+        int i = 0;
+        while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) i++;
+        return line.substring(0, i);
+    }
+
+    /**
+     * Conflicts among the edits of one file (given in block order). Each edit's lines, and the anchor
+     * lines an insertion relies on, are looked up in an IntervalTree of all edits: O(n log n) plus the
+     * conflicts found.
+     */
+    private static List<Conflict> conflicts(String file, List<Edit> edits, List<OutputBlock> blocks) {
+        List<Conflict> out = new ArrayList<>();
+        int n = edits.size();
+        if (n < 2) return out;
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        boolean[] create = new boolean[n];
+        for (int k = 0; k < n; k++) {
+            Edit e = edits.get(k);
+            starts[k] = e.start;
+            ends[k] = e.end;
+            create[k] = isCreate(blocks.get(e.block));
+        }
+        IntervalTree tree = new IntervalTree(starts, ends);
+
+        Map<Integer, Edit> insertAt = new HashMap<>();
+        for (int k = 0; k < n; k++) {
+            Edit e = edits.get(k);
+            int self = k;
+            if (create[k]) {
+                // CREATE_FILE replaces the whole file, whatever the others touch
+                for (int j = 0; j < n; j++) {
+                    if (j != k && (!create[j] || j > k)) out.add(new Conflict(Conflict.Kind.OVERLAP, file, e.block, edits.get(j).block, 1));
+                }
+                continue;
+            }
+            // every pair is seen from both sides; report it from the earlier block
+            tree.forEachOverlap(e.start, e.end, j -> {
+                if (j > self && !create[j]) {
+                    out.add(new Conflict(Conflict.Kind.OVERLAP, file, e.block, edits.get(j).block, Math.max(e.start, starts[j]) + 1));
+                }
+            });
+            if (e.anchorStart < e.start) {
+                // a replacement ending after the insertion point already overlaps it
+                tree.forEachOverlap(e.anchorStart, e.start, j -> {
+                    if (j != self && !create[j] && starts[j] < ends[j] && ends[j] <= e.start) {
+                        out.add(new Conflict(Conflict.Kind.ANCHOR, file, e.block, edits.get(j).block, Math.max(e.anchorStart, starts[j]) + 1));
+                    }
+                });
+            }
+            if (e.start == e.end) {
+                Edit prev = insertAt.put(e.start, e);
+                if (prev != null) out.add(new Conflict(Conflict.Kind.ORDER, file, e.block, prev.block, e.start + 1));
+            }
+        }
+        return out;
+    }
+
+    // records a conflict in the results of its blocks
+    private static void mark(BlockResult[] results, List<OutputBlock> blocks, Conflict c) {
+        switch (c.kind()) {
+            case OVERLAP -> {
+                flag(results, blocks, c.file(), c.block(), "Overlaps block #" + (c.other() + 1) + " at line " + c.line() + ".");
+                flag(results, blocks, c.file(), c.other(), "Overlaps block #" + (c.block() + 1) + " at line " + c.line() + ".");
+            }
+            case ANCHOR -> {
+                flag(results, blocks, c.file(), c.block(), "ANCHOR is replaced by block #" + (c.other() + 1) + ".");
+                flag(results, blocks, c.file(), c.other(), "Replaces the ANCHOR of block #" + (c.block() + 1) + ".");
+            }
+            case ORDER -> {
+                BlockResult r = results[c.block()];
+                if (r.ok()) {
+                    results[c.block()] = new BlockResult(r.index(), r.block(), r.file(), Check.ORDERED,
+                            r.message() + ", after block #" + (c.other() + 1), r.startLine(), r.endLine());
+                }
+            }
+        }
+    }
+
+    private static void flag(BlockResult[] results, List<OutputBlock> blocks, String file, int i, String message) {
+        BlockResult r = results[i];
+        String m = r.check() == Check.OVERLAP ? r.message() + " " + message : message;
+        results[i] = fail(i, blocks.get(i), file, Check.OVERLAP, m);
+    }
+
+    private static String render(Source src, List<Edit> edits, Map<Integer, int[]> blockLines) {
+        List<Edit> sorted = new ArrayList<>(edits);
+        sorted.sort(Comparator.comparingInt((Edit e) -> e.start).thenComparingInt(e -> e.end).thenComparingInt(e -> e.block));
+        List<String> old = src == null ? List.of() : src.lines;
+        List<String> out = new ArrayList<>(old.size() + 16);
+        int pos = 0;
+        for (Edit e : sorted) {
+            out.addAll(old.subList(pos, e.start));
+            blockLines.put(e.block, new int[]{out.size() + 1, out.size() + e.lines.size()});
+            out.addAll(e.lines);
+            pos = Math.max(pos, e.end);
+        }
+        out.addAll(old.subList(pos, old.size()));
+
+        String sep = src == null ? "\n" : src.separator;
+        String text = String.join(sep, out);
+        boolean newline = src == null || src.trailingNewline || src.lines.isEmpty();
+        return newline && !out.isEmpty() ? text + sep : text;
+    }
+
+    // ---------------- commit / undo ----------------
+
+    /** Writes every file of the plan, or none of them. */
+    public Transaction commit(Plan plan) throws IOException {
+        return commit(plan, false);
+    }
+
+    // allowOverwrites: CREATE_FILE blocks may replace existing files (confirmed by the caller)
+    public Transaction commit(Plan plan, boolean allowOverwrites) throws IOException {
+        if (plan.failed() > 0 || plan.results.isEmpty()) throw new IllegalStateException("The plan has failed blocks: " + plan.summary());
+        if (!plan.ok(allowOverwrites)) {
+            throw new IllegalStateException(plan.overwrites() + " CREATE_FILE block(s) would overwrite existing files; confirm first.");
+        }
+        long t0 = System.nanoTime();
+
+        for (FileChange fc : plan.files) {
+            byte[] now = Files.exists(fc.path) ? Files.readAllBytes(fc.path) : null;
+            if (!Arrays.equals(now, fc.before)) throw new IOException(fc.file + " changed since the plan was made; plan again.");
+        }
+
+        String id = TX_ID.format(LocalDateTime.now()) + "-" + Integer.toHexString(ThreadLocalRandom.current().nextInt(0x1000, 0x10000));
+        Path dir = undoRoot.resolve(id);
+        Files.createDirectories(dir);
+        List<ManifestFile> mf = new ArrayList<>();
+        for (int i = 0; i < plan.files.size(); i++) {
+            FileChange fc = plan.files.get(i);
+            String backup = null;
+            if (fc.existed()) {
+                backup = "f" + i;
+                Files.write(dir.resolve(backup), fc.before);
+            }
+            mf.add(new ManifestFile(fc.file, fc.existed(), backup, sha256(fc.after.getBytes(StandardCharsets.UTF_8))));
+        }
+        om.writeValue(dir.resolve("manifest.json").toFile(), new Manifest(id, plan.root.toString(), LocalDateTime.now().toString(), mf));
+
+        List<Path> temps = new ArrayList<>();
+        int moved = 0;
+        try {
+            for (FileChange fc : plan.files) {
+                Files.createDirectories(fc.path.getParent());
+                Path tmp = fc.path.resolveSibling(fc.path.getFileName() + TMP_SUFFIX);
+                Files.writeString(tmp, fc.after, StandardCharsets.UTF_8);
+                temps.add(tmp);
+            }
+            for (; moved < plan.files.size(); moved++) {
+                moveAtomically(temps.get(moved), plan.files.get(moved).path);
+            }
+        } catch (IOException ex) {
+            for (int i = 0; i < moved; i++) {
+                FileChange fc = plan.files.get(i);
+                try {
+                    if (fc.existed()) Files.write(fc.path, fc.before);
+                    else Files.deleteIfExists(fc.path);
+                } catch (IOException restore) {
+                    ex.addSuppressed(restore);
+                }
+            }
+            for (int i = moved; i < temps.size(); i++) Files.deleteIfExists(temps.get(i));
+            deleteTree(dir);
+            throw ex;
+        }
+
+        List<String> names = new ArrayList<>();
+        for (FileChange fc : plan.files) names.add(fc.file);
+        return new Transaction(id, plan.root, names, RequestTimings.millisBetween(t0, System.nanoTime()));
+    }
+
+    /** Id of the newest transaction that can still be undone, or null. */
+    public String lastTransaction() throws IOException {
+        if (!Files.isDirectory(undoRoot)) return null;
+        try (Stream<Path> s = Files.list(undoRoot)) {
+            return s.filter(p -> Files.exists(p.resolve("manifest.json")))
+                    .map(p -> p.getFileName().toString())
+                    .max(Comparator.naturalOrder())
+                    .orElse(null);
+        }
+    }
+
+    /**
+     * Restores the files a transaction changed (deletes the ones it created). Refuses, changing nothing,
+     * when any of them was edited since.
+     */
+    public Transaction undo(String id) throws IOException {
+        long t0 = System.nanoTime();
+        Path dir = undoRoot.resolve(id);
+        Path manifestPath = dir.resolve("manifest.json");
+        if (!Files.exists(manifestPath)) throw new IllegalArgumentException("No transaction " + id + ".");
+        Manifest m = om.readValue(manifestPath.toFile(), Manifest.class);
+        Path root = Path.of(m.root());
+
+        List<String> changed = new ArrayList<>();
+        for (ManifestFile f : m.files()) {
+            Path p = root.resolve(f.file());
+            String now = Files.exists(p) ? sha256(Files.readAllBytes(p)) : null;
+            if (!f.afterSha256().equals(now)) changed.add(f.file());
+        }
+        if (!changed.isEmpty()) {
+            throw new IOException("Not undoing " + id + ": changed since it was applied: " + String.join(", ", changed));
+        }
+
+        List<String> names = new ArrayList<>();
+        for (ManifestFile f : m.files()) {
+            Path p = root.resolve(f.file());
+            if (f.existed()) {
+                Path tmp = p.resolveSibling(p.getFileName() + TMP_SUFFIX);
+                Files.copy(dir.resolve(f.backup()), tmp, StandardCopyOption.REPLACE_EXISTING);
+                moveAtomically(tmp, p);
+            } else {
+                Files.deleteIfExists(p);
+            }
+            names.add(f.file());
+        }
+        deleteTree(dir);
+        return new Transaction(id, root, names, RequestTimings.millisBetween(t0, System.nanoTime()));
+    }
+
+    // ---------------- helpers ----------------
+
+    static String normalizePath(String path) {
+        String p = path.strip().replace('\\', '/');
+        while (p.startsWith("./")) p = p.substring(2);
+        return p;
+    }
+
+    private static void moveAtomically(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
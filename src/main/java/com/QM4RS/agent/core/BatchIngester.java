@@ -0,0 +1,239 @@
+package com.QM4RS.agent.core;
+
+import com.QM4RS.agent.core.ChatStore.ChatRevision;
+import com.QM4RS.agent.core.ChatStore.ChatSession;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Offline batch mode, second half: streams a Batch API output file line by line (never loading it whole),
+ * extracts each response with ResponseStreamParser, parses it with OutputParser and stores it as a
+ * revision in ChatStore (one chat per custom_id). Re-ingesting the same file adds nothing new.
+ * Chats are saved every SAVE_EVERY revisions, so memory stays bounded and a failure keeps what was
+ * ingested before it.
+ */
+public class BatchIngester {
+
+    public record Report(int ok, int failed, int duplicates, int blocks, int withoutBlocks,
+                         long millis, List<String> errors) {}
+
+    // One line of the manifest written by BatchWriter
+    public static class ManifestEntry {
+        public String custom_id;
+        public String model;
+        public String prompt;
+        public List<String> files;
+        public Long packChars;
+    }
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final int MAX_REPORTED_ERRORS = 20;
+    private static final int SAVE_EVERY = 100;
+
+    private final ResponseStreamParser responseParser = new ResponseStreamParser();
+    private final OutputParser outputParser = new OutputParser();
+
+    // Manifest is small (prompts only), so it is the one thing kept in memory
+    public static Map<String, ManifestEntry> readManifest(Path manifest) throws IOException {
+        Map<String, ManifestEntry> out = new HashMap<>();
+        if (manifest == null || !Files.isRegularFile(manifest)) return out;
+        try (MappingIterator<ManifestEntry> it = new ObjectMapper().readerFor(ManifestEntry.class).readValues(manifest.toFile())) {
+            while (it.hasNextValue()) {
+                ManifestEntry e = it.nextValue();
+                if (e != null && e.custom_id != null) out.put(e.custom_id, e);
+            }
+        }
+        return out;
+    }
+
+    private record Line(String customId, int status, ResponseStreamParser.Parsed parsed, String error) {}
+
+    public Report ingest(Path results, Map<String, ManifestEntry> manifest, ChatStore store) throws IOException {
+        long t0 = System.nanoTime();
+        String batchName = stripExt(results.getFileName().toString());
+
+        int ok = 0, failed = 0, duplicates = 0, blocks = 0, withoutBlocks = 0;
+        List<String> errors = new ArrayList<>();
+        // sessions with revisions not saved yet (ChatStore keeps those in memory)
+        Map<String, ChatSession> unsaved = new LinkedHashMap<>();
+        int unsavedRevisions = 0;
+
+        try (BufferedReader r = Files.newBufferedReader(results, StandardCharsets.UTF_8)) {
+            String raw;
+            int lineNo = 0;
+            while ((raw = r.readLine()) != null) {
+                lineNo++;
+                if (raw.isBlank()) continue;
+
+                Line line;
+                try {
+                    line = parseLine(raw);
+                } catch (IOException ex) {
+                    failed++;
+                    addError(errors, "line " + lineNo + ": " + ex.getMessage());
+                    continue;
+                }
+
+                String id = line.customId() == null ? "line-" + lineNo : line.customId();
+                if (line.error() != null || line.parsed() == null || line.status() / 100 != 2) {
+                    failed++;
+                    addError(errors, id + ": " + (line.error() != null ? line.error() : "HTTP " + line.status()));
+                    continue;
+                }
+
+                String text = line.parsed().outputText() == null ? "" : line.parsed().outputText();
+                int n = outputParser.parse(text).size();
+
+                ManifestEntry m = manifest == null ? null : manifest.get(id);
+                ChatSession s = addRevision(store, "batch:" + batchName + ":" + id, m, id, line.parsed(), text);
+                if (s == null) {
+                    duplicates++;
+                    continue;
+                }
+
+                ok++;
+                blocks += n;
+                if (n == 0 && !text.isBlank()) withoutBlocks++;
+                unsaved.put(s.id, s);
+                if (++unsavedRevisions >= SAVE_EVERY) {
+                    save(store, unsaved);
+                    unsavedRevisions = 0;
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            try {
+                save(store, unsaved);
+            } catch (IOException | RuntimeException saveEx) {
+                ex.addSuppressed(saveEx);
+            }
+            throw ex;
+        }
+        save(store, unsaved);
+
+        return new Report(ok, failed, duplicates, blocks, withoutBlocks,
+                (System.nanoTime() - t0) / 1_000_000L, errors);
+    }
+
+    // {"id":..., "custom_id":..., "response":{"status_code":200, "body":{...}}, "error":null}
+    private Line parseLine(String raw) throws IOException {
+        String customId = null;
+        int status = 0;
+        ResponseStreamParser.Parsed parsed = null;
+        String error = null;
+
+        try (JsonParser p = JSON.createParser(raw)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) throw new IOException("not a JSON object");
+
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                JsonToken t = p.nextToken();
+                switch (field) {
+                    case "custom_id" -> {
+                        if (t == JsonToken.VALUE_STRING) customId = p.getText();
+                    }
+                    case "response" -> {
+                        if (t != JsonToken.START_OBJECT) {
+                            p.skipChildren();
+                            break;
+                        }
+                        while (p.nextToken() == JsonToken.FIELD_NAME) {
+                            String k = p.currentName();
+                            JsonToken v = p.nextToken();
+                            if ("status_code".equals(k) && v == JsonToken.VALUE_NUMBER_INT) {
+                                status = p.getIntValue();
+                            } else if ("body".equals(k) && v == JsonToken.START_OBJECT && status / 100 != 4 && status / 100 != 5) {
+                                parsed = responseParser.parse(p);
+                            } else {
+                                p.skipChildren();
+                            }
+                        }
+                    }
+                    case "error" -> {
+                        if (t == JsonToken.START_OBJECT) error = readErrorMessage(p);
+                        else if (t == JsonToken.VALUE_STRING) error = p.getText();
+                        else p.skipChildren();
+                    }
+                    default -> p.skipChildren();
+                }
+            }
+        }
+        return new Line(customId, status, parsed, error);
+    }
+
+    private static String readErrorMessage(JsonParser p) throws IOException {
+        String code = null, message = null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String k = p.currentName();
+            JsonToken v = p.nextToken();
+            if ("message".equals(k) && v == JsonToken.VALUE_STRING) message = p.getText();
+            else if ("code".equals(k) && v == JsonToken.VALUE_STRING) code = p.getText();
+            else p.skipChildren();
+        }
+        if (message == null) return code == null ? "error" : code;
+        return code == null ? message : code + ": " + message;
+    }
+
+    private static void save(ChatStore store, Map<String, ChatSession> unsaved) throws IOException {
+        if (unsaved.isEmpty()) return;
+        List<ChatSession> snapshots = new ArrayList<>(unsaved.size());
+        for (ChatSession s : unsaved.values()) snapshots.add(ChatStore.snapshotOf(s));
+        store.save(snapshots, List.of());
+        unsaved.clear();
+    }
+
+    // The session the revision was added to; null when this exact response is already stored for it
+    private static ChatSession addRevision(ChatStore store, String sessionId, ManifestEntry m, String customId,
+                                       ResponseStreamParser.Parsed parsed, String text) {
+        ChatSession s = store.findById(sessionId);
+        if (s == null) {
+            s = store.createNew(sessionId);
+            s.promptText = (m != null && m.prompt != null) ? m.prompt : customId;
+            s.title = ChatStore.titleFromPrompt(s.promptText);
+        }
+        for (ChatRevision old : store.ensureLoaded(s)) {
+            if (Objects.equals(old.responseText, text)) return null;
+        }
+
+        ChatRevision rev = new ChatRevision();
+        rev.at = OffsetDateTime.now();
+        rev.model = (m != null && m.model != null) ? m.model : "batch";
+        rev.userPrompt = s.promptText;
+        rev.historyIncluded = false;
+        rev.inputTokens = parsed.inputTokens();
+        rev.outputTokens = parsed.outputTokens();
+        rev.totalTokens = parsed.totalTokens();
+        rev.cached = false;
+        rev.responseText = text;
+
+        s.revisions.add(rev);
+        s.currentRevisionIndex = s.revisions.size() - 1;
+        store.touch(s);
+        return s;
+    }
+
+    private static void addError(List<String> errors, String msg) {
+        int nl = msg.indexOf('\n');
+        if (errors.size() < MAX_REPORTED_ERRORS) errors.add(nl < 0 ? msg : msg.substring(0, nl));
+    }
+
+    private static String stripExt(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
@@ -0,0 +1,179 @@
+package com.QM4RS.agent.core;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Offline batch mode, first half: builds the context pack of every job in parallel and writes a
+ * Batch API input file (one {"custom_id","method","url","body"} object per line) plus a manifest
+ * (<out>.manifest.jsonl) that BatchIngester uses to map results back to prompts.
+ * Lines are written in job order; only a small window of packs is held in memory at a time.
+ */
+public class BatchWriter {
+
+    public static final String ENDPOINT = "/v1/responses";
+
+    // globs/grep null or empty = use the default selection passed to write()
+    public record Job(String customId, String prompt, List<String> globs, String grep) {}
+
+    public record Report(int jobs, int empty, long bytes, long packChars, long millis, Path manifest) {}
+
+    // One line of a --batch-jobs file
+    public static class JobSpec {
+        public String id;
+        public String prompt;
+        public List<String> select;
+        public String grep;
+    }
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final ContextPackBuilder contextPackBuilder;
+    private final FileTextReader fileTextReader;
+    private final int threads;
+
+    public BatchWriter(ContextPackBuilder contextPackBuilder, FileTextReader fileTextReader, int threads) {
+        this.contextPackBuilder = contextPackBuilder;
+        this.fileTextReader = fileTextReader;
+        this.threads = Math.max(1, threads);
+    }
+
+    public static Path manifestFor(Path batchFile) {
+        return batchFile.resolveSibling(batchFile.getFileName() + ".manifest.jsonl");
+    }
+
+    // Reads a JSONL job list ({"id","prompt","select":[...],"grep"} per line) without loading it whole
+    // ids become custom_ids, which the Batch API (and the manifest) require to be unique
+    public static List<Job> readJobs(Path jobsFile) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        try (MappingIterator<JobSpec> it = new ObjectMapper().readerFor(JobSpec.class).readValues(jobsFile.toFile())) {
+            while (it.hasNextValue()) {
+                JobSpec s = it.nextValue();
+                if (s == null || s.prompt == null || s.prompt.isBlank()) continue;
+                String id = (s.id == null || s.id.isBlank()) ? "job-" + (jobs.size() + 1) : s.id;
+                if (!ids.add(id)) throw new IllegalArgumentException("Duplicate job id in " + jobsFile + ": " + id);
+                jobs.add(new Job(id, s.prompt, s.select, s.grep));
+            }
+        }
+        return jobs;
+    }
+
+    private record Built(Job job, String pack, List<String> files) {}
+
+    public Report write(Path root, List<Path> allFiles, List<Path> defaultSelection,
+                        String model, List<Job> jobs, Path out) throws IOException, InterruptedException {
+        long t0 = System.nanoTime();
+        Path manifest = manifestFor(out);
+        Path outTmp = out.resolveSibling(out.getFileName() + ".tmp");
+        Path manifestTmp = manifest.resolveSibling(manifest.getFileName() + ".tmp");
+        if (out.toAbsolutePath().getParent() != null) Files.createDirectories(out.toAbsolutePath().getParent());
+
+        int empty = 0;
+        long packChars = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "batch-pack");
+            t.setDaemon(true);
+            return t;
+        });
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(outTmp), 64 * 1024);
+             OutputStream ms = new BufferedOutputStream(Files.newOutputStream(manifestTmp));
+             JsonGenerator g = JSON.createGenerator(os, JsonEncoding.UTF8);
+             JsonGenerator mg = JSON.createGenerator(ms, JsonEncoding.UTF8)) {
+            g.setRootValueSeparator(null);
+            mg.setRootValueSeparator(null);
+
+            // bounded window: builders run ahead of the writer by at most 2 * threads packs
+            Deque<Future<Built>> window = new ArrayDeque<>();
+            int next = 0;
+            while (next < jobs.size() || !window.isEmpty()) {
+                while (next < jobs.size() && window.size() < threads * 2) {
+                    Job job = jobs.get(next++);
+                    window.add(pool.submit(() -> build(root, allFiles, defaultSelection, job)));
+                }
+
+                Built b = await(window.poll());
+                if (b.files().isEmpty()) empty++;
+                packChars += b.pack().length();
+
+                g.writeStartObject();
+                g.writeStringField("custom_id", b.job().customId());
+                g.writeStringField("method", "POST");
+                g.writeStringField("url", ENDPOINT);
+                g.writeFieldName("body");
+                new RequestBodyWriter(model, PromptTemplates.buildRequestParts(b.pack())).writeBody(g);
+                g.writeEndObject();
+                g.writeRaw('\n');
+
+                mg.writeStartObject();
+                mg.writeStringField("custom_id", b.job().customId());
+                mg.writeStringField("model", model);
+                mg.writeStringField("prompt", b.job().prompt());
+                mg.writeArrayFieldStart("files");
+                for (String f : b.files()) mg.writeString(f);
+                mg.writeEndArray();
+                mg.writeNumberField("packChars", b.pack().length());
+                mg.writeEndObject();
+                mg.writeRaw('\n');
+            }
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            Files.deleteIfExists(outTmp);
+            Files.deleteIfExists(manifestTmp);
+            throw ex;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Files.move(outTmp, out, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(manifestTmp, manifest, StandardCopyOption.REPLACE_EXISTING);
+
+        return new Report(jobs.size(), empty, Files.size(out), packChars,
+                (System.nanoTime() - t0) / 1_000_000L, manifest);
+    }
+
+    private Built build(Path root, List<Path> allFiles, List<Path> defaultSelection, Job job) throws IOException {
+        List<Path> selected = defaultSelection;
+        boolean ownSelection = (job.globs() != null && !job.globs().isEmpty())
+                || (job.grep() != null && !job.grep().isBlank());
+        if (ownSelection) {
+            selected = new FileSelector(job.globs(), job.grep(), fileTextReader).select(root, allFiles);
+        }
+
+        String pack = contextPackBuilder.build(root, selected, job.prompt(), null);
+        List<String> rel = new ArrayList<>(selected.size());
+        for (Path f : selected) rel.add(root.relativize(f).toString().replace('\\', '/'));
+        return new Built(job, pack, rel);
+    }
+
+    private static Built await(Future<Built> f) throws IOException, InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            Throwable c = ex.getCause();
+            if (c instanceof IOException io) throw io;
+            if (c instanceof RuntimeException re) throw re;
+            throw new IOException(c);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.QM4RS.agent.core;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Content-addressed, de-duplicating store for large text (revision bodies). Text is cut into chunks with
+ * content-defined chunking (gear rolling hash), so an edit only changes the chunks around it and a snippet
+ * repeated across revisions or chats maps to the same chunks. Each chunk is stored once, Deflate-compressed,
+ * under blobs/&lt;2 hex&gt;/&lt;62 hex&gt; (SHA-256 of the raw bytes).
+ *
+ * refs.log counts references per chunk ("+ hash raw stored", "- hash", "= hash refs raw stored"); a chunk
+ * whose count drops to zero is deleted. The log is replayed on first use and rewritten when it gets long.
+ * Counts only ever err towards keeping a chunk: callers add references before writing the records that
+ * use them and release them after those records are gone.
+ */
+public class BlobStore {
+
+    public record Stats(int chunks, long references, long logicalBytes, long uniqueBytes, long storedBytes) {
+        // bytes the bodies would take stored plainly / bytes they take here
+        public double ratio() {
+            return storedBytes == 0 ? 1.0 : (double) logicalBytes / storedBytes;
+        }
+
+        public String toDebugLine() {
+            return String.format(Locale.ROOT,
+                    "Blobs: chunks=%d refs=%d logical=%d unique=%d stored=%d ratio=%.2fx (dedup %.2fx, deflate %.2fx)",
+                    chunks, references, logicalBytes, uniqueBytes, storedBytes, ratio(),
+                    uniqueBytes == 0 ? 1.0 : (double) logicalBytes / uniqueBytes,
+                    storedBytes == 0 ? 1.0 : (double) uniqueBytes / storedBytes);
+        }
+    }
+
+    private static final class Entry {
+        int refs;
+        int raw;
+        int stored;
+    }
+
+    // chunk sizes: cut where the top 12 bits of the rolling hash are zero (~4 KB average), within [1 KB, 32 KB];
+    // the top bits depend on the last 64 bytes, the low ones only on the last few
+    private static final int MIN_CHUNK = 1024;
+    private static final int MAX_CHUNK = 32 * 1024;
+    private static final int CUT_SHIFT = 64 - 12;
+
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+
+    // fixed seed: boundaries must be the same in every run
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom rnd = new SplittableRandom(0x6A09E667F3BCC908L);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = rnd.nextLong();
+    }
+
+    private final Path dir;
+    private final Path refsPath;
+
+    private Map<String, Entry> refs; // loaded on first use
+    private Writer refsOut;
+    private long refsLines;
+
+    public BlobStore(Path dir) {
+        this.dir = dir;
+        this.refsPath = dir.resolve("refs.log");
+    }
+
+    /**
+     * Stores the text and adds one reference to each of its chunks; returns the chunk hashes in order
+     * (empty for empty text).
+     */
+    public synchronized List<String> put(String text) throws IOException {
+        byte[] bytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        Map<String, Entry> m = refs();
+        List<String> out = new ArrayList<>();
+        StringBuilder log = new StringBuilder();
+
+        int start = 0;
+        while (start < bytes.length) {
+            int end = cut(bytes, start);
+            String hash = sha256(bytes, start, end - start);
+
+            Entry e = m.get(hash);
+            if (e == null || !Files.isRegularFile(chunkPath(hash))) {
+                int stored = writeChunk(hash, bytes, start, end - start);
+                if (e == null) {
+                    e = new Entry();
+                    m.put(hash, e);
+                }
+                e.raw = end - start;
+                e.stored = stored;
+            }
+            e.refs++;
+            log.append("+ ").append(hash).append(' ').append(e.raw).append(' ').append(e.stored).append('\n');
+            out.add(hash);
+            start = end;
+        }
+        appendLog(log);
+        return out;
+    }
+
+    public synchronized String get(List<String> hashes) throws IOException {
+        if (hashes == null || hashes.isEmpty()) return "";
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (String h : hashes) buf.write(readChunk(h));
+        return buf.toString(StandardCharsets.UTF_8);
+    }
+
+    // Drops one reference per hash (as returned by put); chunks nobody references any more are deleted
+    public synchronized void release(List<String> hashes) throws IOException {
+        if (hashes == null || hashes.isEmpty()) return;
+        Map<String, Entry> m = refs();
+        StringBuilder log = new StringBuilder();
+        List<String> dead = new ArrayList<>();
+        for (String h : hashes) {
+            Entry e = m.get(h);
+            if (e == null) continue;
+            e.refs--;
+            log.append("- ").append(h).append('\n');
+            if (e.refs <= 0) {
+                m.remove(h);
+                dead.add(h);
+            }
+        }
+        // the log first: a crash in between leaves an orphan file, never a missing chunk
+        appendLog(log);
+        for (String h : dead) Files.deleteIfExists(chunkPath(h));
+    }
+
+    public synchronized Stats stats() throws IOException {
+        long references = 0, logical = 0, unique = 0, stored = 0;
+        Map<String, Entry> m = refs();
+        for (Entry e : m.values()) {
+            references += e.refs;
+            logical += (long) e.refs * e.raw;
+            unique += e.raw;
+            stored += e.stored;
+        }
+        return new Stats(m.size(), references, logical, unique, stored);
+    }
+
+    public synchronized void close() {
+        if (refsOut == null) return;
+        try {
+            refsOut.close();
+        } catch (IOException ignored) {
+        }
+        refsOut = null;
+    }
+
+    // ---------------- chunking ----------------
+
+    // end (exclusive) of the chunk starting at `start`
+    static int cut(byte[] b, int start) {
+        int n = b.length - start;
+        if (n <= MIN_CHUNK) return b.length;
+        int limit = start + Math.min(n, MAX_CHUNK);
+        long fp = 0;
+        for (int i = start + MIN_CHUNK; i < limit; i++) {
+            fp = (fp << 1) + GEAR[b[i] & 0xFF];
+            if ((fp >>> CUT_SHIFT) == 0) return i + 1;
+        }
+        return limit;
+    }
+
+    // ---------------- chunk files ----------------
+
+    private Path chunkPath(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    // returns the size on disk
+    private int writeChunk(String hash, byte[] b, int off, int len) throws IOException {
+        Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] packed;
+        try {
+            d.setInput(b, off, len);
+            d.finish();
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(len / 2 + 16);
+            byte[] tmp = new byte[8192];
+            while (!d.finished()) {
+                int k = d.deflate(tmp);
+                buf.write(tmp, 0, k);
+            }
+            packed = buf.toByteArray();
+        } finally {
+            d.end();
+        }
+
+        Path f = chunkPath(hash);
+        Files.createDirectories(f.getParent());
+        Path tmp = f.resolveSibling(f.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            if (packed.length < len) {
+                out.write(DEFLATED);
+                out.write(packed);
+            } else {
+                out.write(STORED); // incompressible: keep as is
+                out.write(b, off, len);
+            }
+        }
+        try {
+            Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return 1 + Math.min(packed.length, len);
+    }
+
+    private byte[] readChunk(String hash) throws IOException {
+        byte[] f = Files.readAllBytes(chunkPath(hash));
+        if (f.length == 0) throw new IOException("Empty chunk " + hash);
+        if (f[0] == STORED) return java.util.Arrays.copyOfRange(f, 1, f.length);
+
+        Inflater inf = new Inflater(true);
+        try {
+            inf.setInput(f, 1, f.length - 1);
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(f.length * 3);
+            byte[] tmp = new byte[8192];
+            while (!inf.finished()) {
+                int k = inf.inflate(tmp);
+                if (k == 0 && (inf.needsInput() || inf.needsDictionary())) throw new IOException("Truncated chunk " + hash);
+                buf.write(tmp, 0, k);
+            }
+            return buf.toByteArray();
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt chunk " + hash + ": " + ex.getMessage(), ex);
+        } finally {
+            inf.end();
+        }
+    }
+
+    private static String sha256(byte[] b, int off, int len) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(b, off, len);
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ---------------- reference counts ----------------
+
+    private Map<String, Entry> refs() throws IOException {
+        if (refs != null) return refs;
+        Map<String, Entry> m = new HashMap<>();
+        long lines = 0;
+        if (Files.isRegularFile(refsPath)) {
+            try (BufferedReader r = Files.newBufferedReader(refsPath, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    lines++;
+                    String[] p = line.split(" ");
+                    try {
+                        switch (p[0]) {
+                            case "+" -> {
+                                Entry e = m.computeIfAbsent(p[1], k -> new Entry());
+                                e.refs++;
+                                e.raw = Integer.parseInt(p[2]);
+                                e.stored = Integer.parseInt(p[3]);
+                            }
+                            case "-" -> {
+                                Entry e = m.get(p[1]);
+                                if (e != null && --e.refs <= 0) m.remove(p[1]);
+                            }
+                            case "=" -> {
+                                Entry e = new Entry();
+                                e.refs = Integer.parseInt(p[2]);
+                                e.raw = Integer.parseInt(p[3]);
+                                e.stored = Integer.parseInt(p[4]);
+                                m.put(p[1], e);
+                            }
+                            default -> { }
+                        }
+                    } catch (RuntimeException ignored) {
+                        // torn last line
+                    }
+                }
+            }
+        }
+        refs = m;
+        refsLines = lines;
+        return m;
+    }
+
+    private void appendLog(CharSequence lines) throws IOException {
+        if (lines.isEmpty()) return;
+        if (refsOut == null) {
+            Files.createDirectories(dir);
+            refsOut = Files.newBufferedWriter(refsPath, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            // a torn line from a crash: start ours on a fresh one
+            if (Files.size(refsPath) > 0) refsOut.write('\n');
+        }
+        refsOut.append(lines);
+        refsOut.flush();
+        for (int i = 0; i < lines.length(); i++) {
+            if (lines.charAt(i) == '\n') refsLines++;
+        }
+        if (refsLines > 10_000 && refsLines > 4L * refs.size()) rewriteLog();
+    }
+
+    // one "=" line per live chunk
+    private void rewriteLog() throws IOException {
+        close();
+        Path tmp = refsPath.resolveSibling("refs.log.tmp");
+        try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> me : refs.entrySet()) {
+                Entry e = me.getValue();
+                w.write("= " + me.getKey() + ' ' + e.refs + ' ' + e.raw + ' ' + e.stored + '\n');
+            }
+        }
+        try {
+            Files.move(tmp, refsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, refsPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        refsLines = refs.size();
+    }
+}
@@ -0,0 +1,241 @@
+package com.QM4RS.agent.core;
+
+import com.QM4RS.agent.core.ChatStore.ChatRevision;
+import com.QM4RS.agent.core.ChatStore.ChatSession;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * NDJSON export/import of the chat history, one record per line:
+ * <pre>
+ * {"type":"session","id":..,"title":..,"promptText":..,"includeHistory":..,"createdAt":..,"updatedAt":..,"currentRevisionIndex":..,"revisions":n}
+ * {"type":"revision","session":id,"index":i, ...ChatRevision fields...}
+ * </pre>
+ * Revisions follow their session. Both directions stream (JsonGenerator / JsonParser, one record in
+ * memory at a time; import holds at most the revisions of the session being merged), so history size
+ * does not matter.
+ *
+ * Import merges by session id: unknown sessions are created with the exported fields, known ones keep
+ * theirs. A revision is skipped when the session already has one with the same time, model, prompt and
+ * response, so importing the same file twice adds nothing. Merged revisions are appended after the
+ * existing ones. Each session is saved as soon as its records are read.
+ */
+public class ChatArchive {
+
+    public record Report(int sessions, int sessionsAdded, int revisions, int duplicates, long millis) {}
+
+    private final ChatStore store;
+    private final ObjectMapper om;
+    private final ObjectReader revisionReader;
+
+    public ChatArchive(ChatStore store) {
+        this.store = store;
+        this.om = store.mapper();
+        // records from newer versions may carry fields this one does not know
+        this.revisionReader = om.readerFor(ChatRevision.class).without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    // ---------------- export ----------------
+
+    public Report export(OutputStream out) throws IOException {
+        long t0 = System.nanoTime();
+        int sessions = 0;
+        int[] revisions = {0};
+        try (JsonGenerator g = om.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            g.setRootValueSeparator(new SerializedString("\n")); // one record per line
+            for (ChatSession s : store.getSessionsSorted()) {
+                g.writeStartObject();
+                g.writeStringField("type", "session");
+                g.writeStringField("id", s.id);
+                g.writeStringField("title", s.title);
+                g.writeStringField("promptText", s.promptText);
+                g.writeObjectField("includeHistory", s.includeHistory);
+                g.writeObjectField("createdAt", s.createdAt);
+                g.writeObjectField("updatedAt", s.updatedAt);
+                g.writeObjectField("currentRevisionIndex", s.currentRevisionIndex);
+                g.writeNumberField("revisions", s.revisionCount());
+                g.writeEndObject();
+                sessions++;
+
+                int[] index = {0};
+                store.forEachRevisionOf(s, r -> {
+                    try {
+                        writeRevision(g, s.id, index[0]++, r);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+                revisions[0] += index[0];
+            }
+            if (sessions > 0) g.writeRaw('\n');
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        return new Report(sessions, 0, revisions[0], 0, RequestTimings.millisBetween(t0, System.nanoTime()));
+    }
+
+    private void writeRevision(JsonGenerator g, String sessionId, int index, ChatRevision r) throws IOException {
+        ObjectNode n = om.valueToTree(r);
+        g.writeStartObject();
+        g.writeStringField("type", "revision");
+        g.writeStringField("session", sessionId);
+        g.writeNumberField("index", index);
+        for (Iterator<Map.Entry<String, JsonNode>> it = n.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> e = it.next();
+            if (e.getValue().isNull()) continue;
+            g.writeFieldName(e.getKey());
+            g.writeTree(e.getValue());
+        }
+        g.writeEndObject();
+    }
+
+    // ---------------- import ----------------
+
+    /**
+     * Merges the records into the store. A malformed record stops the import with its line number;
+     * sessions merged before it are already saved (importing again after fixing the file is harmless).
+     */
+    public Report importFrom(InputStream in) throws IOException {
+        long t0 = System.nanoTime();
+        Merge m = new Merge();
+        try (JsonParser p = om.getFactory().createParser(in)) {
+            p.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            JsonToken t;
+            while ((t = p.nextToken()) != null) {
+                if (t != JsonToken.START_OBJECT) {
+                    throw new IOException("Line " + p.currentLocation().getLineNr() + ": expected a JSON object.");
+                }
+                long line = p.currentLocation().getLineNr();
+                JsonNode n = om.readTree(p);
+                try {
+                    m.accept((ObjectNode) n);
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException("Line " + line + ": " + ex.getMessage(), ex);
+                }
+            }
+        }
+        m.finish();
+        return new Report(m.sessions, m.sessionsAdded, m.added, m.duplicates, RequestTimings.millisBetween(t0, System.nanoTime()));
+    }
+
+    private final class Merge {
+        ChatSession cur;
+        Set<String> keys;
+        boolean changed;
+
+        int sessions;
+        int sessionsAdded;
+        int added;
+        int duplicates;
+
+        void accept(ObjectNode n) throws IOException {
+            String type = text(n, "type");
+            if ("session".equals(type)) {
+                String id = text(n, "id");
+                if (id == null || id.isBlank()) throw new IllegalArgumentException("session without id.");
+                open(id, n);
+            } else if ("revision".equals(type)) {
+                String id = text(n, "session");
+                if (id == null || id.isBlank()) throw new IllegalArgumentException("revision without session.");
+                if (cur == null || !cur.id.equals(id)) open(id, null);
+                n.remove(List.of("type", "session", "index"));
+                ChatRevision r = revisionReader.readValue(n);
+                if (keys.add(key(r))) {
+                    store.ensureLoaded(cur).add(r);
+                    changed = true;
+                    added++;
+                } else {
+                    duplicates++;
+                }
+            }
+            // other types: written by a newer version, ignored
+        }
+
+        private void open(String id, ObjectNode fields) throws IOException {
+            finish();
+            sessions++;
+            ChatSession s = store.findById(id);
+            if (s == null) {
+                s = store.createNew(id);
+                if (fields != null) {
+                    if (text(fields, "title") != null) s.title = text(fields, "title");
+                    if (text(fields, "promptText") != null) s.promptText = text(fields, "promptText");
+                    s.includeHistory = fields.path("includeHistory").asBoolean(false);
+                    LocalDateTime c = date(fields, "createdAt");
+                    LocalDateTime u = date(fields, "updatedAt");
+                    if (c != null) s.createdAt = c;
+                    s.updatedAt = u != null ? u : s.createdAt;
+                    if (fields.hasNonNull("currentRevisionIndex")) s.currentRevisionIndex = fields.get("currentRevisionIndex").asInt();
+                }
+                sessionsAdded++;
+                changed = true;
+            }
+            cur = s;
+            keys = new HashSet<>();
+            for (ChatRevision r : store.ensureLoaded(s)) keys.add(key(r));
+        }
+
+        void finish() throws IOException {
+            if (cur == null) return;
+            if (changed) {
+                cur.clampRevisionIndex();
+                if (cur.currentRevisionIndex == null || cur.currentRevisionIndex < 0) {
+                    cur.currentRevisionIndex = cur.revisionCount() - 1;
+                }
+                store.reorder(cur);
+                store.save(List.of(ChatStore.snapshotOf(cur)), List.of());
+            }
+            cur = null;
+            keys = null;
+            changed = false;
+        }
+
+        private LocalDateTime date(ObjectNode n, String field) throws IOException {
+            JsonNode v = n.get(field);
+            return v == null || v.isNull() ? null : om.treeToValue(v, LocalDateTime.class);
+        }
+    }
+
+    private static String text(ObjectNode n, String field) {
+        JsonNode v = n.get(field);
+        return v == null || v.isNull() ? null : v.asText();
+    }
+
+    // identity of a revision for de-duplication
+    private static String key(ChatRevision r) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[]{r.at == null ? null : r.at.toString(), r.model, r.userPrompt, r.responseText}) {
+                md.update(part == null ? new byte[]{1} : part.getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.QM4RS.agent.core;
+
+import com.QM4RS.agent.core.ChatStore.ChatSession;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind saving for ChatStore. Callers mark a session dirty on the thread that edits it; that takes
+ * a snapshot (ChatStore.snapshotOf) and nothing else. Changes within `delayMs` are coalesced (latest
+ * snapshot per session wins) and written by ChatStore.save(changed, deleted) on one background thread.
+ * A failed write keeps its changes pending, is reported to the error listener and retried later.
+ * An attached ChatSearchIndex is updated on the same thread after each write and saved now and then.
+ */
+public class ChatPersister {
+
+    private static final long RETRY_MS = 5_000;
+    private static final long INDEX_SAVE_MS = 30_000;
+
+    private final ChatStore store;
+    private final long delayMs;
+
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-persist");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // guarded by this
+    private final Map<String, ChatSession> dirty = new LinkedHashMap<>();
+    private final Set<String> deleted = new HashSet<>();
+    private ScheduledFuture<?> scheduled;
+    private Consumer<Exception> errorListener;
+    private String lastReportedCompactionError;
+
+    // worker thread only
+    private ChatSearchIndex searchIndex;
+    private long indexSavedAt;
+
+    public ChatPersister(ChatStore store, long delayMs) {
+        this.store = store;
+        this.delayMs = Math.max(0, delayMs);
+    }
+
+    // Called on the worker thread; the UI should hop back to its own thread
+    public synchronized void setErrorListener(Consumer<Exception> errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    public void markDirty(ChatSession s) {
+        if (s == null || s.id == null) return;
+        ChatSession snap = ChatStore.snapshotOf(s);
+        synchronized (this) {
+            dirty.put(s.id, snap);
+            deleted.remove(s.id);
+            schedule(delayMs);
+        }
+    }
+
+    public void markDeleted(ChatSession s) {
+        if (s == null || s.id == null) return;
+        synchronized (this) {
+            dirty.remove(s.id);
+            deleted.add(s.id);
+            schedule(delayMs);
+        }
+    }
+
+    /**
+     * Attaches a search index: it is loaded and brought up to date with the store on the worker thread
+     * (so it never races a write), then kept current by every write.
+     */
+    public void attachSearchIndex(ChatSearchIndex index) {
+        worker.execute(() -> {
+            searchIndex = index;
+            try {
+                index.load();
+                index.catchUp(store);
+                saveIndex(true);
+            } catch (IOException | RuntimeException ex) {
+                report(new IOException("Search index: " + ex.getMessage(), ex));
+            }
+        });
+    }
+
+    public synchronized int pendingCount() {
+        return dirty.size() + deleted.size();
+    }
+
+    // Writes everything pending now and waits for it (on the worker, so it is ordered after earlier writes)
+    public void flush() throws IOException, InterruptedException {
+        try {
+            worker.submit(() -> {
+                writePending();
+                return null;
+            }).get();
+        } catch (ExecutionException ex) {
+            Throwable c = ex.getCause();
+            if (c instanceof IOException io) throw io;
+            if (c instanceof RuntimeException re) throw re;
+            throw new IOException(c);
+        }
+    }
+
+    // Final flush, then the store waits for a running compaction. Errors go to the listener as well.
+    public void shutdown() {
+        try {
+            flush();
+            worker.submit(() -> {
+                saveIndex(true);
+                return null;
+            }).get();
+        } catch (IOException | RuntimeException ex) {
+            report(ex);
+        } catch (ExecutionException ex) {
+            report(new IOException("Search index: " + ex.getCause().getMessage(), ex.getCause()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            worker.shutdown();
+            store.close();
+        }
+    }
+
+    // caller holds the lock; the first change opens the window, later ones ride along
+    private void schedule(long ms) {
+        if (scheduled != null) return;
+        if (worker.isShutdown()) return;
+        scheduled = worker.schedule(() -> {
+            synchronized (this) {
+                scheduled = null; // changes made during this write open a new window
+            }
+            try {
+                writePending();
+            } catch (IOException | RuntimeException ex) {
+                report(ex);
+                synchronized (this) {
+                    schedule(RETRY_MS);
+                }
+            }
+        }, ms, TimeUnit.MILLISECONDS);
+    }
+
+    // worker thread only
+    private void writePending() throws IOException {
+        List<ChatSession> changed;
+        List<String> gone;
+        synchronized (this) {
+            if (dirty.isEmpty() && deleted.isEmpty()) return;
+            changed = new ArrayList<>(dirty.values());
+            gone = new ArrayList<>(deleted);
+            dirty.clear();
+            deleted.clear();
+        }
+        try {
+            store.save(changed, gone);
+        } catch (IOException | RuntimeException ex) {
+            // put back what was not superseded meanwhile
+            synchronized (this) {
+                for (ChatSession s : changed) {
+                    if (!deleted.contains(s.id)) dirty.putIfAbsent(s.id, s);
+                }
+                for (String id : gone) {
+                    if (!dirty.containsKey(id)) deleted.add(id);
+                }
+            }
+            throw ex;
+        }
+
+        if (searchIndex != null) {
+            // the chats are saved; an index problem must not put them back
+            try {
+                for (ChatSession s : changed) searchIndex.update(s, s.revisions);
+                for (String id : gone) searchIndex.remove(id);
+                saveIndex(false);
+            } catch (IOException | RuntimeException ex) {
+                report(new IOException("Search index: " + ex.getMessage(), ex));
+            }
+        }
+
+        String err = store.lastCompactionError();
+        synchronized (this) {
+            if (err == null || err.equals(lastReportedCompactionError)) {
+                lastReportedCompactionError = err;
+                return;
+            }
+            lastReportedCompactionError = err;
+        }
+        report(new IOException("Compaction failed (the journal is kept): " + err));
+    }
+
+    // worker thread only; without `now`, at most every INDEX_SAVE_MS
+    private void saveIndex(boolean now) throws IOException {
+        if (searchIndex == null || !searchIndex.isDirty()) return;
+        long t = System.currentTimeMillis();
+        if (!now && t - indexSavedAt < INDEX_SAVE_MS) return;
+        searchIndex.save();
+        indexSavedAt = t;
+    }
+
+    private void report(Exception ex) {
+        Consumer<Exception> l;
+        synchronized (this) {
+            l = errorListener;
+        }
+        if (l != null) l.accept(ex);
+    }
+}
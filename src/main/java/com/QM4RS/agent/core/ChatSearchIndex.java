@@ -0,0 +1,469 @@
+package com.QM4RS.agent.core;
+
+import com.QM4RS.agent.core.ChatStore.ChatRevision;
+import com.QM4RS.agent.core.ChatStore.ChatSession;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Inverted index over the chat history: one document per session (title + prompt) and one per revision
+ * (its prompt, response text and the FILE: headers of its parsed blocks). Terms map to postings of
+ * (document, field-weighted term frequency); queries are ranked with BM25, every query word must match
+ * and the last one also matches as a prefix (search as you type).
+ *
+ * Updates are incremental: per session the index remembers how many revisions it has seen and a hash of
+ * title/prompt, so update() only tokenizes what is new. Removed documents become tombstones until the
+ * next save() rewrites the postings. Persisted (gzip) as chats/search.idx; a missing or unreadable file
+ * just means everything is indexed again.
+ */
+public class ChatSearchIndex {
+
+    public record Hit(String sessionId, int revision, double score) {
+        // revision is -1 when only the session's title/prompt matched
+        public boolean isSession() {
+            return revision < 0;
+        }
+    }
+
+    private static final int MAGIC = 0x47414958; // "GAIX"
+    private static final int VERSION = 1;
+
+    // field weights, applied to term counts
+    private static final int W_TITLE = 4;
+    private static final int W_FILE = 3;
+    private static final int W_PROMPT = 2;
+    private static final int W_RESPONSE = 1;
+
+    // Longer runs are hashes/base64, never searched for; also keeps every term far below writeUTF's 64 KB
+    private static final int MAX_TERM = 64;
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final class Doc {
+        final String session;
+        final int revision;
+        final int length;
+        boolean live = true;
+
+        Doc(String session, int revision, int length) {
+            this.session = session;
+            this.revision = revision;
+            this.length = length;
+        }
+    }
+
+    private static final class Postings {
+        int[] docs = new int[4];
+        int[] weights = new int[4];
+        int size;
+
+        void add(int doc, int weight) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            docs[size] = doc;
+            weights[size] = weight;
+            size++;
+        }
+    }
+
+    private static final class Indexed {
+        int revisions;
+        int metaHash;
+        int metaDoc = -1;
+        final List<Integer> revisionDocs = new ArrayList<>();
+    }
+
+    private final Path file;
+    private final OutputParser parser = new OutputParser();
+
+    // guarded by this
+    private final List<Doc> docs = new ArrayList<>();
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private final Map<String, Indexed> sessions = new HashMap<>();
+    private int liveDocs;
+    private long totalLength;
+    private int deadDocs;
+    private boolean dirty;
+
+    public ChatSearchIndex() {
+        this(Path.of(System.getProperty("user.home"), ".gpt-agent", "chats", "search.idx"));
+    }
+
+    public ChatSearchIndex(Path file) {
+        this.file = file;
+    }
+
+    // ---------------- updating ----------------
+
+    /** True when update() would have work to do for this session (a cheap check, no revisions needed). */
+    public synchronized boolean isStale(ChatSession s) {
+        Indexed ix = sessions.get(s.id);
+        return ix == null || ix.revisions != s.revisionCount() || ix.metaHash != metaHash(s);
+    }
+
+    /**
+     * Indexes what changed in the session: title/prompt if they differ, revisions past the ones seen before
+     * (all of them again if the list got shorter). `revisions` may be null when they are not loaded; then
+     * only title/prompt are updated.
+     */
+    public synchronized void update(ChatSession s, List<ChatRevision> revisions) {
+        if (s == null || s.id == null) return;
+        Indexed ix = sessions.computeIfAbsent(s.id, k -> new Indexed());
+
+        int h = metaHash(s);
+        if (ix.metaDoc < 0 || ix.metaHash != h) {
+            kill(ix.metaDoc);
+            Map<String, Integer> tf = new HashMap<>();
+            addText(tf, s.title, W_TITLE);
+            addText(tf, s.promptText, W_PROMPT);
+            ix.metaDoc = addDoc(s.id, -1, tf);
+            ix.metaHash = h;
+        }
+
+        if (revisions == null) return;
+        if (revisions.size() < ix.revisions) {
+            for (int d : ix.revisionDocs) kill(d);
+            ix.revisionDocs.clear();
+            ix.revisions = 0;
+        }
+        for (int i = ix.revisions; i < revisions.size(); i++) {
+            ChatRevision r = revisions.get(i);
+            Map<String, Integer> tf = new HashMap<>();
+            if (r != null) {
+                addText(tf, r.userPrompt, W_PROMPT);
+                addText(tf, r.responseText, W_RESPONSE);
+                for (OutputBlock b : parser.parse(r.responseText)) addText(tf, b.file, W_FILE);
+            }
+            ix.revisionDocs.add(addDoc(s.id, i, tf));
+        }
+        ix.revisions = revisions.size();
+    }
+
+    public synchronized void remove(String sessionId) {
+        Indexed ix = sessions.remove(sessionId);
+        if (ix == null) return;
+        kill(ix.metaDoc);
+        for (int d : ix.revisionDocs) kill(d);
+        dirty = true;
+    }
+
+    /**
+     * Brings the index in line with the store: sessions that are gone are removed, stale ones re-read
+     * (from memory when loaded, else streamed from their segment without caching).
+     * Returns the number of sessions updated.
+     */
+    public int catchUp(ChatStore store) throws IOException {
+        List<ChatSession> all = store.getSessionsSorted();
+        Set<String> ids = new HashSet<>();
+        for (ChatSession s : all) ids.add(s.id);
+        synchronized (this) {
+            for (String id : new ArrayList<>(sessions.keySet())) {
+                if (!ids.contains(id)) remove(id);
+            }
+        }
+        int n = 0;
+        for (ChatSession s : all) {
+            if (!isStale(s)) continue;
+            update(s, store.revisionsOf(s));
+            n++;
+        }
+        return n;
+    }
+
+    private int addDoc(String session, int revision, Map<String, Integer> tf) {
+        int id = docs.size();
+        int len = 0;
+        for (Map.Entry<String, Integer> e : tf.entrySet()) {
+            terms.computeIfAbsent(e.getKey(), k -> new Postings()).add(id, e.getValue());
+            len += e.getValue();
+        }
+        docs.add(new Doc(session, revision, len));
+        liveDocs++;
+        totalLength += len;
+        dirty = true;
+        return id;
+    }
+
+    private void kill(int doc) {
+        if (doc < 0) return;
+        Doc d = docs.get(doc);
+        if (!d.live) return;
+        d.live = false;
+        liveDocs--;
+        deadDocs++;
+        totalLength -= d.length;
+        dirty = true;
+    }
+
+    private static int metaHash(ChatSession s) {
+        return Objects.hash(s.title, s.promptText);
+    }
+
+    // ---------------- tokenizing ----------------
+
+    private static void addText(Map<String, Integer> tf, String text, int weight) {
+        if (text == null || text.isEmpty()) return;
+        for (String t : tokens(text, true)) tf.merge(t, weight, Integer::sum);
+    }
+
+    /**
+     * Lower-cased runs of letters/digits/underscore (2 to MAX_TERM chars; longer runs are skipped). With
+     * `parts`, camelCase and snake_case words also yield their pieces, so "RetryPolicy" is found by "retry"
+     * as well as "retrypolicy".
+     */
+    static List<String> tokens(String text, boolean parts) {
+        List<String> out = new ArrayList<>();
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            while (i < n && !isWordChar(text.charAt(i))) i++;
+            int start = i;
+            while (i < n && isWordChar(text.charAt(i))) i++;
+            if (i - start < 2 || i - start > MAX_TERM) continue;
+            String word = text.substring(start, i);
+            out.add(word.toLowerCase(Locale.ROOT));
+            if (parts) addParts(out, word);
+        }
+        return out;
+    }
+
+    private static void addParts(List<String> out, String word) {
+        int start = 0;
+        for (int j = 1; j <= word.length(); j++) {
+            boolean end = j == word.length()
+                    || word.charAt(j) == '_'
+                    || (Character.isUpperCase(word.charAt(j)) && Character.isLowerCase(word.charAt(j - 1)))
+                    || (Character.isDigit(word.charAt(j)) != Character.isDigit(word.charAt(j - 1)));
+            if (!end) continue;
+            String p = word.substring(start, j).replace("_", "");
+            if (p.length() >= 2 && p.length() < word.length()) out.add(p.toLowerCase(Locale.ROOT));
+            start = j;
+        }
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    // ---------------- querying ----------------
+
+    /**
+     * Best matches first. Every word of the query must occur in the document; the last word also matches
+     * longer terms starting with it. Blank queries return nothing.
+     */
+    public synchronized List<Hit> search(String query, int limit) {
+        if (query == null || query.isBlank() || liveDocs == 0) return List.of();
+        List<String> words = new ArrayList<>(new LinkedHashSet<>(tokens(query, false)));
+        if (words.isEmpty()) return List.of();
+
+        double avgLen = Math.max(1.0, (double) totalLength / liveDocs);
+        Map<Integer, Double> scores = null;
+        for (int w = 0; w < words.size(); w++) {
+            String word = words.get(w);
+            Collection<Postings> lists = w == words.size() - 1
+                    ? terms.subMap(word, true, word + Character.MAX_VALUE, false).values()
+                    : (terms.containsKey(word) ? List.of(terms.get(word)) : List.of());
+
+            Map<Integer, Double> wordScores = new HashMap<>();
+            for (Postings p : lists) {
+                double idf = Math.log(1 + (liveDocs - p.size + 0.5) / (p.size + 0.5));
+                for (int k = 0; k < p.size; k++) {
+                    int doc = p.docs[k];
+                    Doc d = docs.get(doc);
+                    if (!d.live) continue;
+                    if (scores != null && !scores.containsKey(doc)) continue;
+                    double tf = p.weights[k];
+                    double s = idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * d.length / avgLen));
+                    wordScores.merge(doc, s, Math::max); // prefix variants of one word do not add up
+                }
+            }
+            if (scores == null) {
+                scores = wordScores;
+            } else {
+                Map<Integer, Double> next = new HashMap<>();
+                for (Map.Entry<Integer, Double> e : wordScores.entrySet()) {
+                    next.put(e.getKey(), scores.get(e.getKey()) + e.getValue());
+                }
+                scores = next;
+            }
+            if (scores.isEmpty()) return List.of();
+        }
+
+        PriorityQueue<Hit> top = new PriorityQueue<>(Comparator.comparingDouble(Hit::score));
+        for (Map.Entry<Integer, Double> e : scores.entrySet()) {
+            Doc d = docs.get(e.getKey());
+            top.add(new Hit(d.session, d.revision, e.getValue()));
+            if (top.size() > limit) top.poll();
+        }
+        List<Hit> out = new ArrayList<>(top);
+        out.sort(Comparator.comparingDouble(Hit::score).reversed());
+        return out;
+    }
+
+    public synchronized int documentCount() {
+        return liveDocs;
+    }
+
+    public synchronized int termCount() {
+        return terms.size();
+    }
+
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    // ---------------- persistence ----------------
+
+    /** Reads the saved index; on any problem the index starts empty (catchUp() rebuilds it). */
+    public synchronized void load() {
+        clear();
+        if (!Files.isRegularFile(file)) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+
+            int nDocs = in.readInt();
+            List<String> sessionIds = new ArrayList<>();
+            int nSessions = in.readInt();
+            for (int i = 0; i < nSessions; i++) {
+                String id = in.readUTF();
+                sessionIds.add(id);
+                Indexed ix = new Indexed();
+                ix.revisions = in.readInt();
+                ix.metaHash = in.readInt();
+                sessions.put(id, ix);
+            }
+            for (int i = 0; i < nDocs; i++) {
+                String session = sessionIds.get(in.readInt());
+                int rev = in.readInt();
+                int len = in.readInt();
+                docs.add(new Doc(session, rev, len));
+                Indexed ix = sessions.get(session);
+                if (rev < 0) ix.metaDoc = i;
+                else ix.revisionDocs.add(i);
+                liveDocs++;
+                totalLength += len;
+            }
+            int nTerms = in.readInt();
+            for (int i = 0; i < nTerms; i++) {
+                String t = in.readUTF();
+                Postings p = new Postings();
+                int size = in.readInt();
+                p.docs = new int[Math.max(4, size)];
+                p.weights = new int[Math.max(4, size)];
+                int doc = 0;
+                for (int k = 0; k < size; k++) {
+                    doc += in.readInt(); // delta
+                    p.docs[k] = doc;
+                    p.weights[k] = in.readInt();
+                }
+                p.size = size;
+                terms.put(t, p);
+            }
+            dirty = false;
+        } catch (IOException | RuntimeException ex) {
+            clear();
+        }
+    }
+
+    /** Writes live documents only (tombstones are dropped and ids renumbered); temp file + move. */
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+        if (deadDocs > 0) compactDocs();
+
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(docs.size());
+
+            Map<String, Integer> sessionNo = new HashMap<>();
+            out.writeInt(sessions.size());
+            for (Map.Entry<String, Indexed> e : sessions.entrySet()) {
+                sessionNo.put(e.getKey(), sessionNo.size());
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().revisions);
+                out.writeInt(e.getValue().metaHash);
+            }
+            for (Doc d : docs) {
+                out.writeInt(sessionNo.get(d.session));
+                out.writeInt(d.revision);
+                out.writeInt(d.length);
+            }
+            out.writeInt(terms.size());
+            for (Map.Entry<String, Postings> e : terms.entrySet()) {
+                Postings p = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeInt(p.size);
+                int prev = 0;
+                for (int k = 0; k < p.size; k++) {
+                    out.writeInt(p.docs[k] - prev);
+                    out.writeInt(p.weights[k]);
+                    prev = p.docs[k];
+                }
+            }
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        dirty = false;
+    }
+
+    // drops tombstones: renumbers live documents and filters every postings list
+    private void compactDocs() {
+        int[] map = new int[docs.size()];
+        List<Doc> kept = new ArrayList<>(liveDocs);
+        for (int i = 0; i < docs.size(); i++) {
+            Doc d = docs.get(i);
+            map[i] = d.live ? kept.size() : -1;
+            if (d.live) kept.add(d);
+        }
+        Iterator<Postings> it = terms.values().iterator();
+        while (it.hasNext()) {
+            Postings p = it.next();
+            int w = 0;
+            for (int k = 0; k < p.size; k++) {
+                int to = map[p.docs[k]];
+                if (to < 0) continue;
+                p.docs[w] = to;
+                p.weights[w] = p.weights[k];
+                w++;
+            }
+            p.size = w;
+            if (w == 0) it.remove();
+        }
+        for (Indexed ix : sessions.values()) {
+            ix.metaDoc = ix.metaDoc < 0 ? -1 : map[ix.metaDoc];
+            ix.revisionDocs.replaceAll(d -> map[d]);
+        }
+        docs.clear();
+        docs.addAll(kept);
+        deadDocs = 0;
+    }
+
+    private void clear() {
+        docs.clear();
+        terms.clear();
+        sessions.clear();
+        liveDocs = 0;
+        totalLength = 0;
+        deadDocs = 0;
+        dirty = true;
+    }
+}
@@ -1,17 +1,62 @@
 package com.QM4RS.agent.core;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
- * Local chat history store (persisted on disk).
+ * Local chat history store (persisted on disk under ~/.gpt-agent/chats).
+ *
+ * index.json + index.journal hold only session fields and revision counts, so load() stays small no
+ * matter how much history there is. Revisions live in one append-only segment per session
+ * (&lt;id&gt;.revs.jsonl, one revision per line) and are read when a session is opened (ensureLoaded);
+ * at most LOADED_SESSIONS sessions keep their revisions in memory.
+ *
+ * save() only appends what changed: new revisions to their segment, a "meta" record per changed session
+ * to the index journal. When the journal outgrows a fraction of index.json it is rotated and folded into a
+ * new index.json on a background thread. load() replays the journal(s) on top; a torn last line from a
+ * crash is skipped. A pre-existing ~/.gpt-agent/chats.json (+ chats.journal) is migrated once.
+ *
+ * Response bodies are not kept in the segment lines: they go to a BlobStore under chats/blobs (chunked,
+ * de-duplicated across revisions and chats, Deflate-compressed) and the line lists their chunk hashes in
+ * "responseChunks". Lines with an inline "responseText" (written before) are still read.
+ *
+ * One process at a time: load() takes an exclusive file lock (chats/store.lock) that close() releases,
+ * so a headless import or batch ingest fails instead of writing under a running GUI.
  */
 public class ChatStore {
 
@@ -25,6 +70,15 @@ public class ChatStore {
         public Integer outputTokens;
         public Integer totalTokens;
 
+        // true when served from ResponseCache instead of a live call
+        public Boolean cached;
+
+        // per-phase latency of the Send that produced this revision (null for older revisions)
+        public RequestTimings timings;
+
+        // shared by the revisions of one "Compare" send (one per model); null for a normal Send
+        public String compareGroup;
+
         public String responseText;
     }
 
@@ -37,12 +91,22 @@ public class ChatStore {
         public LocalDateTime createdAt;
         public LocalDateTime updatedAt;
 
+        // null until loaded from the session's segment (ChatStore.ensureLoaded)
         public List<ChatRevision> revisions;
         public Integer currentRevisionIndex;
 
+        // revisions on disk, so the chat list can show counts without loading them
+        public Integer savedRevisionCount;
+
+        @JsonIgnore
+        public boolean isLoaded() {
+            return revisions != null;
+        }
+
         @JsonIgnore
         public int revisionCount() {
-            return revisions == null ? 0 : revisions.size();
+            if (revisions != null) return revisions.size();
+            return savedRevisionCount == null ? 0 : savedRevisionCount;
         }
 
         @JsonIgnore
@@ -57,8 +121,10 @@ public class ChatStore {
             if (currentRevisionIndex >= n) currentRevisionIndex = n - 1;
         }
 
+        // null when there are no revisions or they are not loaded
         @JsonIgnore
         public ChatRevision getCurrentRevision() {
+            if (revisions == null) return null;
             int n = revisionCount();
             if (n <= 0) return null;
             clampRevisionIndex();
@@ -74,101 +140,1041 @@ public class ChatStore {
         }
     }
 
-    private final Path storePath;
+    /**
+     * One journal line. The index journal only has "meta" (session fields and revision count) and "delete".
+     * The legacy chats.journal also has "rev" (revision at index) and "session" (whole session); those are
+     * only replayed when migrating. Every record is idempotent, so replaying over a newer snapshot is harmless.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    static final class JournalEntry {
+        public String op;
+        public String id;
+
+        public String title;
+        public String promptText;
+        public Boolean includeHistory;
+        public LocalDateTime createdAt;
+        public LocalDateTime updatedAt;
+        public Integer currentRevisionIndex;
+        public Integer savedRevisionCount;
+
+        public Integer index;
+        public ChatRevision rev;
+
+        public ChatSession session;
+    }
+
+    // What the index says about a session; diffed against on save
+    private record Meta(String id, String title, String promptText, Boolean includeHistory, LocalDateTime createdAt,
+                        LocalDateTime updatedAt, Integer currentRevisionIndex, int revisions) {
+        static Meta of(ChatSession s) {
+            return new Meta(s.id, s.title, s.promptText, s.includeHistory, s.createdAt, s.updatedAt,
+                    s.currentRevisionIndex, s.revisionCount());
+        }
+
+        Meta withRevisions(int n) {
+            return new Meta(id, title, promptText, includeHistory, createdAt, updatedAt, currentRevisionIndex, n);
+        }
+
+        ChatSession toIndexSession() {
+            ChatSession s = new ChatSession();
+            s.id = id;
+            s.title = title;
+            s.promptText = promptText;
+            s.includeHistory = includeHistory;
+            s.createdAt = createdAt;
+            s.updatedAt = updatedAt;
+            s.currentRevisionIndex = currentRevisionIndex;
+            s.savedRevisionCount = revisions;
+            return s;
+        }
+    }
+
+    // compact once the journal is this big and at least a quarter of the index
+    private static final long COMPACT_MIN_BYTES = 256L << 10;
+
+    // sessions whose revisions stay in memory (the open chat is always the most recent)
+    private static final int LOADED_SESSIONS = 8;
+
+    /**
+     * Fine-grained changes to the chat order (getSessionsSorted), fired on the thread that made the change
+     * while the store is locked. `changed` means the session kept its position but may display differently.
+     */
+    public interface OrderListener {
+        void inserted(int index, ChatSession s);
+
+        void removed(int index, ChatSession s);
+
+        void moved(int from, int to, ChatSession s);
+
+        void changed(int index, ChatSession s);
+    }
+
+    // Sort key: chats with revisions first (latest update first), then empty chats (newest first); id breaks ties
+    private record OrderKey(boolean empty, LocalDateTime time, String id) {
+        static OrderKey of(ChatSession s) {
+            boolean empty = s.revisionCount() == 0;
+            return new OrderKey(empty, empty ? s.createdAt : s.getUpdatedAtSafe(), s.id);
+        }
+    }
+
+    private static final Comparator<OrderKey> ORDER = Comparator
+            .comparing(OrderKey::empty)
+            .thenComparing(OrderKey::time, Comparator.nullsLast(Comparator.reverseOrder()))
+            .thenComparing(OrderKey::id, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private final Path dir;
+    private final Path indexPath;
+    private final Path journalPath;
+    private final Path compactingPath;
+    private final Path legacyPath;
+    private final Path legacyJournalPath;
+    private final Path lockPath;
     private final ObjectMapper om;
+    private final BlobStore blobs;
 
     private final List<ChatSession> sessions = new ArrayList<>();
 
+    // guarded by this; the order is kept up to date instead of sorting on every read
+    private final IndexedSkipList<OrderKey, ChatSession> order = new IndexedSkipList<>(ORDER);
+    private final Map<String, OrderKey> orderKeys = new HashMap<>();
+    private OrderListener orderListener;
+
+    // guarded by this
+    private final Map<String, Meta> onDisk = new LinkedHashMap<>();
+    private final LinkedHashMap<String, ChatSession> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private OutputStream journalOut;
+    private long journalBytes;
+    private volatile long snapshotBytes;
+    private int skippedRecords;
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chat-compact");
+        t.setDaemon(true);
+        return t;
+    });
+    private Future<?> compaction;
+    private volatile String lastCompactionError;
+
+    // guarded by this; held from load() until close()
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private boolean loadedLocked; // writes only ever go over a view that was read under the lock
+
     public ChatStore() {
-        this.storePath = Path.of(System.getProperty("user.home"), ".gpt-agent", "chats.json");
+        this(Path.of(System.getProperty("user.home"), ".gpt-agent", "chats"));
+    }
+
+    public ChatStore(Path dir) {
+        this.dir = dir;
+        this.indexPath = dir.resolve("index.json");
+        this.journalPath = dir.resolve("index.journal");
+        this.compactingPath = dir.resolve("index.journal.compacting");
+        this.legacyPath = dir.resolveSibling("chats.json");
+        this.legacyJournalPath = dir.resolveSibling("chats.journal");
+        this.lockPath = dir.resolve("store.lock");
+        this.blobs = new BlobStore(dir.resolve("blobs"));
         this.om = new ObjectMapper()
                 .findAndRegisterModules()
                 .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
     }
 
-    public void load() {
+    /**
+     * Takes the store's lock first: throws IllegalStateException (and loads nothing) while another
+     * process, e.g. a running GUI, has the same directory open.
+     */
+    public synchronized void load() {
+        loadedLocked = false;
+        lock();
+        loadedLocked = true;
+        PipelineEvents.ChatStoreIO ev = new PipelineEvents.ChatStoreIO();
+        ev.begin();
+        try {
+            loadSessions(ev);
+            rebuildOrder();
+        } finally {
+            if (ev.shouldCommit()) {
+                ev.operation = "load";
+                ev.sessions = sessions.size();
+                ev.revisions = countRevisions();
+                ev.commit();
+            }
+        }
+    }
+
+    /**
+     * Exclusive lock on chats/store.lock across processes. Two writers would each fold the index journal
+     * into index.json from their own view (dropping the other's sessions) and keep separate blob
+     * reference counts, so only one process may have the store open.
+     */
+    private void lock() {
+        if (lock != null && lock.isValid()) return;
+        FileChannel ch = null;
+        FileLock l = null;
+        try {
+            Files.createDirectories(dir);
+            ch = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            l = ch.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            // another ChatStore in this JVM holds it
+        } catch (IOException ex) {
+            closeQuietly(ch);
+            throw new IllegalStateException("Could not lock chat history in " + dir + ": " + ex.getMessage(), ex);
+        }
+        if (l == null) {
+            closeQuietly(ch);
+            throw new IllegalStateException("Chat history in " + dir + " is in use by another GPT-Agent process;"
+                    + " close it and try again.");
+        }
+        lockChannel = ch;
+        lock = l;
+    }
+
+    // For writers: the lock, and an in-memory view that was loaded under it
+    private void lockForWrite() {
+        if (!loadedLocked) throw new IllegalStateException("Chat history in " + dir + " was not loaded; changes are not saved.");
+        lock();
+    }
+
+    private void unlock() {
+        try {
+            if (lock != null) lock.release();
+        } catch (IOException ignored) {
+            // closing the channel releases it as well
+        }
+        closeQuietly(lockChannel);
+        lock = null;
+        lockChannel = null;
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        if (ch == null) return;
+        try {
+            ch.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void loadSessions(PipelineEvents.ChatStoreIO ev) {
         sessions.clear();
+        onDisk.clear();
+        loaded.clear();
+        closeJournal();
+        journalBytes = 0;
+        snapshotBytes = 0;
+        skippedRecords = 0;
         try {
-            if (!Files.exists(storePath)) return;
-            String json = Files.readString(storePath);
-            if (json == null || json.isBlank()) return;
+            if (!Files.exists(indexPath) && !Files.exists(journalPath) && !Files.exists(compactingPath)
+                    && (Files.exists(legacyPath) || Files.exists(legacyJournalPath))) {
+                migrateLegacy();
+            }
 
-            ChatSession[] arr = om.readValue(json, ChatSession[].class);
-            if (arr != null) sessions.addAll(Arrays.asList(arr));
+            if (Files.isRegularFile(indexPath) && Files.size(indexPath) > 0) {
+                snapshotBytes = Files.size(indexPath);
+                ChatSession[] arr = om.readValue(indexPath.toFile(), ChatSession[].class);
+                if (arr != null) sessions.addAll(Arrays.asList(arr));
+            }
+            sessions.removeIf(Objects::isNull);
+
+            // a rotated journal whose compaction never finished comes first
+            journalBytes += replay(compactingPath);
+            journalBytes += replay(journalPath);
+            ev.bytes = snapshotBytes + journalBytes;
 
             // sanity defaults
-            for (ChatSession s : sessions) {
-                if (s.id == null || s.id.isBlank()) s.id = UUID.randomUUID().toString();
-                if (s.title == null) s.title = "Chat";
-                if (s.promptText == null) s.promptText = "";
-                if (s.includeHistory == null) s.includeHistory = false;
+            for (ChatSession s : sessions) applyDefaults(s);
+        } catch (Exception ex) {
+            ev.error = ex.getClass().getSimpleName() + ": " + ex.getMessage();
+        }
+        // defaults filled in above are journaled by the next save()
+        for (ChatSession s : sessions) onDisk.put(s.id, Meta.of(s));
+    }
+
+    private static void applyDefaults(ChatSession s) {
+        if (s.id == null || s.id.isBlank()) s.id = UUID.randomUUID().toString();
+        if (s.title == null) s.title = "Chat";
+        if (s.promptText == null) s.promptText = "";
+        if (s.includeHistory == null) s.includeHistory = false;
+        if (s.savedRevisionCount == null) s.savedRevisionCount = 0;
+        if (s.createdAt == null) s.createdAt = LocalDateTime.now();
+        if (s.updatedAt == null) s.updatedAt = s.createdAt;
+        if (s.currentRevisionIndex == null) s.currentRevisionIndex = s.revisionCount() - 1;
+        s.clampRevisionIndex();
+    }
+
+    /**
+     * One-time conversion of the single-file store: chats.json (+ chats.journal) is read whole, every session
+     * is written as a segment plus an index entry, and the old files are renamed to *.migrated.
+     */
+    private void migrateLegacy() throws IOException {
+        if (Files.isRegularFile(legacyPath) && Files.size(legacyPath) > 0) {
+            ChatSession[] arr = om.readValue(legacyPath.toFile(), ChatSession[].class);
+            if (arr != null) sessions.addAll(Arrays.asList(arr));
+        }
+        sessions.removeIf(Objects::isNull);
+        replay(legacyPath.resolveSibling("chats.journal.compacting"));
+        replay(legacyJournalPath);
+
+        Files.createDirectories(dir);
+        List<ChatSession> index = new ArrayList<>();
+        for (ChatSession s : sessions) {
+            if (s.revisions == null) s.revisions = new ArrayList<>();
+            applyDefaults(s);
+            writeSegment(s.id, s.revisions);
+            index.add(Meta.of(s).toIndexSession());
+        }
+        writeAtomically(indexPath, index);
+        sessions.clear();
+
+        for (Path old : List.of(legacyPath, legacyJournalPath, legacyPath.resolveSibling("chats.journal.compacting"))) {
+            if (Files.exists(old)) {
+                Files.move(old, old.resolveSibling(old.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private long replay(Path journal) throws IOException {
+        if (!Files.isRegularFile(journal)) return 0;
+        // decoding replaces bad bytes instead of failing, so a torn UTF-8 tail cannot stop the replay
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(Files.newInputStream(journal), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.isBlank()) continue;
+                JournalEntry e;
+                try {
+                    e = om.readValue(line, JournalEntry.class);
+                } catch (IOException ex) {
+                    skippedRecords++; // torn write from a crash
+                    continue;
+                }
+                apply(e);
+            }
+        }
+        return Files.size(journal);
+    }
+
+    private void apply(JournalEntry e) {
+        if (e == null || e.op == null || e.id == null) return;
+        switch (e.op) {
+            case "delete" -> sessions.removeIf(x -> e.id.equals(x.id));
+            case "session" -> {
+                if (e.session == null) return;
+                e.session.id = e.id;
+                int i = indexOf(e.id);
+                if (i < 0) sessions.add(e.session);
+                else sessions.set(i, e.session);
+            }
+            case "meta" -> {
+                ChatSession s = findOrAdd(e.id);
+                s.title = e.title;
+                s.promptText = e.promptText;
+                s.includeHistory = e.includeHistory;
+                s.createdAt = e.createdAt;
+                s.updatedAt = e.updatedAt;
+                s.currentRevisionIndex = e.currentRevisionIndex;
+                s.savedRevisionCount = e.savedRevisionCount;
+            }
+            case "rev" -> {
+                if (e.rev == null || e.index == null) return;
+                ChatSession s = findOrAdd(e.id);
                 if (s.revisions == null) s.revisions = new ArrayList<>();
-                if (s.createdAt == null) s.createdAt = LocalDateTime.now();
-                if (s.updatedAt == null) s.updatedAt = s.createdAt;
-                if (s.currentRevisionIndex == null) s.currentRevisionIndex = s.revisionCount() - 1;
-                s.clampRevisionIndex();
+                if (e.index < s.revisions.size()) s.revisions.set(e.index, e.rev);
+                else s.revisions.add(e.rev);
             }
-        } catch (Exception ignored) {
+            default -> skippedRecords++;
         }
     }
 
-    public void save() throws Exception {
-        Files.createDirectories(storePath.getParent());
-        String json = om.writerWithDefaultPrettyPrinter().writeValueAsString(sessions);
-        Files.writeString(storePath, json);
+    private int indexOf(String id) {
+        for (int i = 0; i < sessions.size(); i++) {
+            if (id.equals(sessions.get(i).id)) return i;
+        }
+        return -1;
+    }
+
+    private ChatSession findOrAdd(String id) {
+        ChatSession s = findById(id);
+        if (s == null) {
+            s = new ChatSession();
+            s.id = id;
+            sessions.add(s);
+        }
+        return s;
+    }
+
+    // ---------------- revisions (segments) ----------------
+
+    /**
+     * Reads the session's revisions from its segment unless they are in memory, and marks it most recently
+     * used. Least recently used sessions beyond LOADED_SESSIONS drop their revisions again (once saved).
+     * Throws UncheckedIOException when the segment cannot be read, so nothing is saved over it.
+     */
+    public synchronized List<ChatRevision> ensureLoaded(ChatSession s) {
+        if (s == null) return List.of();
+        if (s.revisions == null) {
+            try {
+                s.revisions = readSegment(s.id);
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Could not read revisions of chat " + s.id + ": " + ex.getMessage(), ex);
+            }
+            // the segment wins if a crash left the index count behind
+            Meta m = onDisk.get(s.id);
+            if (m != null && m.revisions() != s.revisions.size()) onDisk.put(s.id, m.withRevisions(s.revisions.size()));
+            s.savedRevisionCount = s.revisions.size();
+            s.clampRevisionIndex();
+            reorder(s);
+        }
+        loaded.put(s.id, s);
+        evict();
+        return s.revisions;
+    }
+
+    private void evict() {
+        Iterator<ChatSession> it = loaded.values().iterator();
+        int excess = loaded.size() - LOADED_SESSIONS;
+        while (excess > 0 && it.hasNext()) {
+            ChatSession c = it.next();
+            Meta m = onDisk.get(c.id);
+            // keep sessions with revisions not written yet
+            if (c.revisions != null && (m == null || m.revisions() != c.revisions.size())) continue;
+            c.savedRevisionCount = c.revisionCount();
+            c.revisions = null;
+            it.remove();
+            excess--;
+        }
+    }
+
+    /**
+     * The session's revisions without caching them: a copy of the list when loaded, otherwise read from
+     * the segment (for background readers such as ChatSearchIndex).
+     */
+    public synchronized List<ChatRevision> revisionsOf(ChatSession s) throws IOException {
+        if (s == null) return List.of();
+        if (s.revisions != null) return new ArrayList<>(s.revisions);
+        return readSegment(s.id);
+    }
+
+    /**
+     * Model and timings of every revision (e.g. for LatencyReport). Only the snapshot of the sessions and
+     * of the loaded revision lists is taken under the store lock; segments are streamed after it is
+     * released, reading just "model" and "timings" of each line, so no response body is decompressed.
+     */
+    public void forEachTimings(BiConsumer<String, RequestTimings> visitor) throws IOException {
+        List<List<ChatRevision>> loadedRevs = new ArrayList<>();
+        List<String> onlyOnDisk = new ArrayList<>();
+        synchronized (this) {
+            for (ChatSession s : sessions) {
+                if (s.revisions != null) loadedRevs.add(new ArrayList<>(s.revisions));
+                else if (s.revisionCount() > 0) onlyOnDisk.add(s.id);
+            }
+        }
+        for (List<ChatRevision> revs : loadedRevs) {
+            for (ChatRevision r : revs) visitor.accept(r.model, r.timings);
+        }
+        for (String id : onlyOnDisk) readSegmentTimings(id, visitor);
+    }
+
+    // Same for one session, in revision order
+    public synchronized void forEachRevisionOf(ChatSession s, Consumer<ChatRevision> visitor) throws IOException {
+        if (s == null) return;
+        if (s.revisions != null) {
+            for (ChatRevision r : s.revisions) visitor.accept(r);
+        } else if (s.revisionCount() > 0) {
+            readSegment(s.id, visitor);
+        }
+    }
+
+    // The mapper used for the store's files (ISO dates), for readers/writers of the same records
+    ObjectMapper mapper() {
+        return om;
+    }
+
+    Path segmentPath(String id) {
+        // UUIDs are used as-is; other ids (e.g. batch:<file>:<custom_id>) may not be valid file names
+        if (id.matches("[A-Za-z0-9-]{1,64}")) return dir.resolve(id + ".revs.jsonl");
+        try {
+            byte[] h = MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+            return dir.resolve("h-" + HexFormat.of().formatHex(h, 0, 16) + ".revs.jsonl");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private List<ChatRevision> readSegment(String id) throws IOException {
+        List<ChatRevision> out = new ArrayList<>();
+        readSegment(id, out::add);
+        return out;
+    }
+
+    // one revision at a time, so a segment never has to fit in memory
+    private void readSegment(String id, Consumer<ChatRevision> out) throws IOException {
+        Path seg = segmentPath(id);
+        if (!Files.isRegularFile(seg)) return;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(Files.newInputStream(seg), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.isBlank()) continue;
+                ObjectNode n;
+                List<String> chunks;
+                ChatRevision rev;
+                try {
+                    n = (ObjectNode) om.readTree(line);
+                    chunks = chunksOf(n.remove("responseChunks"));
+                    rev = om.treeToValue(n, ChatRevision.class);
+                } catch (IOException | ClassCastException ex) {
+                    skippedRecords++; // torn append
+                    continue;
+                }
+                // a missing chunk is not a torn line: fail, so nothing is saved over the segment
+                if (chunks != null) rev.responseText = blobs.get(chunks);
+                out.accept(rev);
+            }
+        }
+    }
+
+    // "model" and "timings" of each line; every other field (responseChunks included) is skipped unparsed
+    private void readSegmentTimings(String id, BiConsumer<String, RequestTimings> out) throws IOException {
+        Path seg = segmentPath(id);
+        if (!Files.isRegularFile(seg)) return;
+        try (BufferedReader r = Files.newBufferedReader(seg, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.isBlank()) continue;
+                String model = null;
+                RequestTimings timings = null;
+                try (JsonParser p = om.createParser(line)) {
+                    if (p.nextToken() != JsonToken.START_OBJECT) continue;
+                    while (p.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = p.currentName();
+                        JsonToken t = p.nextToken();
+                        if ("model".equals(field)) model = t == JsonToken.VALUE_NULL ? null : p.getText();
+                        else if ("timings".equals(field)) timings = t == JsonToken.VALUE_NULL ? null : om.readValue(p, RequestTimings.class);
+                        else p.skipChildren();
+                    }
+                } catch (IOException ex) {
+                    continue; // torn append (readSegment counts it)
+                }
+                out.accept(model, timings);
+            }
+        }
+    }
+
+    // Chunk lists of every line in the segment, i.e. the blob references it holds
+    private List<List<String>> segmentChunks(Path seg) throws IOException {
+        List<List<String>> out = new ArrayList<>();
+        if (!Files.isRegularFile(seg)) return out;
+        try (BufferedReader r = Files.newBufferedReader(seg, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.isBlank()) continue;
+                try {
+                    List<String> c = chunksOf(om.readTree(line).get("responseChunks"));
+                    if (c != null) out.add(c);
+                } catch (IOException ignored) {
+                    // torn append: its references were never counted as used by a readable line
+                }
+            }
+        }
+        return out;
+    }
+
+    private static List<String> chunksOf(JsonNode n) {
+        if (n == null || !n.isArray()) return null;
+        List<String> out = new ArrayList<>(n.size());
+        for (JsonNode h : n) out.add(h.asText());
+        return out;
+    }
+
+    // One segment line; the body goes to the blob store (its references are taken here)
+    private byte[] segmentLine(ChatRevision r) throws IOException {
+        if (r.responseText == null || r.responseText.isEmpty()) return om.writeValueAsBytes(r);
+        ObjectNode n = om.valueToTree(r);
+        n.remove("responseText");
+        ArrayNode arr = n.putArray("responseChunks");
+        for (String h : blobs.put(r.responseText)) arr.add(h);
+        return om.writeValueAsBytes(n);
+    }
+
+    private void releaseChunks(List<List<String>> refs) throws IOException {
+        for (List<String> c : refs) blobs.release(c);
+    }
+
+    private long appendSegment(String id, List<ChatRevision> revs) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (ChatRevision r : revs) {
+            buf.write(segmentLine(r));
+            buf.write('\n');
+        }
+        Path seg = segmentPath(id);
+        Files.createDirectories(dir);
+        boolean torn = endsMidLine(seg);
+        try (OutputStream out = Files.newOutputStream(seg, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (torn) out.write('\n');
+            buf.writeTo(out);
+        }
+        return buf.size();
+    }
+
+    /**
+     * Whole segment, for when revisions were removed (temp file + move). The new lines take their blob
+     * references before the old segment's are released, so a crash in between only leaks chunks.
+     */
+    private long writeSegment(String id, List<ChatRevision> revs) throws IOException {
+        Path seg = segmentPath(id);
+        Path tmp = seg.resolveSibling(seg.getFileName() + ".tmp");
+        Files.createDirectories(dir);
+        List<List<String>> old = segmentChunks(seg);
+        long n = 0;
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            for (ChatRevision r : revs) {
+                byte[] line = segmentLine(r);
+                out.write(line);
+                out.write('\n');
+                n += line.length + 1;
+            }
+        }
+        moveAtomically(tmp, seg);
+        releaseChunks(old);
+        return n;
+    }
+
+    // Segment file and its blob references
+    private void deleteSegment(String id) throws IOException {
+        Path seg = segmentPath(id);
+        List<List<String>> old = segmentChunks(seg);
+        Files.deleteIfExists(seg);
+        releaseChunks(old);
+    }
+
+    // ---------------- saving ----------------
+
+    /**
+     * Appends the changes since the last save: new revisions to their segments, a "meta" record per
+     * session whose fields or revision count changed, a "delete" per removed session.
+     */
+    public synchronized void save() throws IOException {
+        List<ChatSession> live = new ArrayList<>(sessions.size());
+        Set<String> liveIds = new HashSet<>();
+        for (ChatSession s : sessions) {
+            live.add(snapshotOf(s));
+            liveIds.add(s.id);
+        }
+        List<String> deleted = new ArrayList<>();
+        for (String id : onDisk.keySet()) {
+            if (!liveIds.contains(id)) deleted.add(id);
+        }
+        save(live, deleted);
+    }
+
+    /**
+     * Same as save(), but for the given snapshots only (from snapshotOf, taken on the thread that edits
+     * the sessions), so it can run on a background thread while the UI keeps changing the live objects.
+     * A snapshot of a session whose revisions are not loaded only updates its fields.
+     */
+    public synchronized void save(Collection<ChatSession> changed, Collection<String> deleted) throws IOException {
+        lockForWrite();
+        PipelineEvents.ChatStoreIO ev = new PipelineEvents.ChatStoreIO();
+        ev.begin();
+        try {
+            StringBuilder out = new StringBuilder();
+            Map<String, Meta> updates = new LinkedHashMap<>();
+            long segmentBytes = 0;
+            for (ChatSession s : changed) {
+                Meta before = onDisk.get(s.id);
+                if (s.revisions != null) {
+                    int n = s.revisions.size();
+                    int oldN = before == null ? 0 : before.revisions();
+                    if (n < oldN) {
+                        segmentBytes += writeSegment(s.id, s.revisions);
+                    } else if (n > oldN) {
+                        segmentBytes += appendSegment(s.id, s.revisions.subList(oldN, n));
+                    }
+                    // the segment is written: never append these again, even if the journal write below fails
+                    // (the blank meta makes a retry send the meta record again)
+                    if (n != oldN) onDisk.put(s.id, new Meta(s.id, null, null, null, null, null, null, n));
+                }
+                Meta m = Meta.of(s);
+                if (before == null || !before.equals(m)) appendLine(out, metaEntry(s));
+                updates.put(s.id, m);
+            }
+            List<String> removed = new ArrayList<>();
+            for (String id : deleted) {
+                if (onDisk.containsKey(id) && !updates.containsKey(id)) {
+                    appendLine(out, entry("delete", id));
+                    removed.add(id);
+                }
+            }
+            if (out.isEmpty()) return;
+
+            byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+            journal().write(bytes);
+            journalOut.flush();
+            journalBytes += bytes.length;
+            ev.bytes = bytes.length + segmentBytes;
+
+            // only once the records are on disk
+            onDisk.putAll(updates);
+            for (String id : removed) {
+                onDisk.remove(id);
+                deleteSegment(id);
+            }
+
+            if (journalBytes >= Math.max(COMPACT_MIN_BYTES, snapshotBytes / 4)) startCompaction();
+        } catch (IOException | RuntimeException ex) {
+            ev.error = ex.getClass().getSimpleName() + ": " + ex.getMessage();
+            closeJournal(); // reopened (in append mode) by the next save
+            throw ex;
+        } finally {
+            if (ev.shouldCommit()) {
+                ev.operation = "append";
+                ev.sessions = onDisk.size();
+                int n = 0;
+                for (Meta m : onDisk.values()) n += m.revisions();
+                ev.revisions = n;
+                ev.commit();
+            }
+        }
+    }
+
+    // Writes a fresh index now (rotating the journal) instead of waiting for the size threshold
+    public synchronized void compact() throws IOException {
+        lockForWrite();
+        startCompaction();
+    }
+
+    /**
+     * Rewrites segments that still hold response bodies inline (written before the blob store) so their
+     * bodies are chunked and de-duplicated too. Returns the number of segments rewritten.
+     */
+    public synchronized int repackSegments() throws IOException {
+        lockForWrite();
+        int n = 0;
+        for (String id : new ArrayList<>(onDisk.keySet())) {
+            Path seg = segmentPath(id);
+            if (!Files.isRegularFile(seg) || !hasInlineBodies(seg)) continue;
+            writeSegment(id, readSegment(id));
+            n++;
+        }
+        return n;
+    }
+
+    private boolean hasInlineBodies(Path seg) throws IOException {
+        try (BufferedReader r = Files.newBufferedReader(seg, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.contains("\"responseText\":\"") && !line.contains("\"responseText\":\"\"")) return true;
+            }
+        }
+        return false;
+    }
+
+    /** Blob store totals: bytes the response bodies stand for vs. bytes their chunks take on disk. */
+    public BlobStore.Stats storageStats() throws IOException {
+        return blobs.stats();
+    }
+
+    // Sum of the segment files (revision metadata plus any inline bodies)
+    public synchronized long segmentBytes() throws IOException {
+        long n = 0;
+        for (String id : onDisk.keySet()) {
+            Path seg = segmentPath(id);
+            if (Files.isRegularFile(seg)) n += Files.size(seg);
+        }
+        return n;
+    }
+
+    /**
+     * Waits for a running compaction, closes the journal and releases the lock. Reading still works
+     * afterwards; saving again needs a new load(), as another process may have written in between.
+     */
+    public void close() {
+        Future<?> f;
+        synchronized (this) {
+            closeJournal();
+            blobs.close();
+            f = compaction;
+        }
+        if (f != null) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {
+                // reported through lastCompactionError()
+            }
+        }
+        synchronized (this) {
+            if (compaction == null || compaction.isDone()) {
+                unlock();
+                loadedLocked = false;
+            }
+        }
+    }
+
+    // null when the last background compaction succeeded (its journal is kept and replayed otherwise)
+    public String lastCompactionError() {
+        return lastCompactionError;
+    }
+
+    // journal and segment lines that could not be parsed (normally only a torn last line)
+    public synchronized int skippedRecords() {
+        return skippedRecords;
+    }
+
+    private static JournalEntry entry(String op, String id) {
+        JournalEntry e = new JournalEntry();
+        e.op = op;
+        e.id = id;
+        return e;
+    }
+
+    private static JournalEntry metaEntry(ChatSession s) {
+        JournalEntry e = entry("meta", s.id);
+        e.title = s.title;
+        e.promptText = s.promptText;
+        e.includeHistory = s.includeHistory;
+        e.createdAt = s.createdAt;
+        e.updatedAt = s.updatedAt;
+        e.currentRevisionIndex = s.currentRevisionIndex;
+        e.savedRevisionCount = s.revisionCount();
+        return e;
+    }
+
+    private void appendLine(StringBuilder out, JournalEntry e) throws IOException {
+        out.append(om.writeValueAsString(e)).append('\n'); // strings are escaped, so one record = one line
+    }
+
+    private OutputStream journal() throws IOException {
+        if (journalOut == null) {
+            Files.createDirectories(dir);
+            boolean torn = endsMidLine(journalPath);
+            journalOut = Files.newOutputStream(journalPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            // end a torn last record so it stays one bad line instead of swallowing the next record
+            if (torn) journalOut.write('\n');
+        }
+        return journalOut;
+    }
+
+    private static boolean endsMidLine(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) return false;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size == 0) return false;
+            ByteBuffer last = ByteBuffer.allocate(1);
+            ch.read(last, size - 1);
+            return last.get(0) != '\n';
+        }
+    }
+
+    private void closeJournal() {
+        if (journalOut == null) return;
+        try {
+            journalOut.close();
+        } catch (IOException ignored) {
+        }
+        journalOut = null;
+    }
+
+    /**
+     * Rotates index.journal to index.journal.compacting and writes the index as it is on disk now as the
+     * new index.json on the compactor thread; the rotated journal is deleted once index.json is in place.
+     */
+    private void startCompaction() throws IOException {
+        if (compaction != null && !compaction.isDone()) return;
+        closeJournal();
+        if (Files.exists(journalPath)) {
+            if (Files.exists(compactingPath)) {
+                // the previous compaction failed: keep its records in front of ours
+                try (FileChannel src = FileChannel.open(journalPath, StandardOpenOption.READ);
+                     FileChannel dst = FileChannel.open(compactingPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    long pos = 0, size = src.size();
+                    while (pos < size) pos += src.transferTo(pos, size - pos, dst);
+                }
+                Files.delete(journalPath);
+            } else {
+                Files.move(journalPath, compactingPath, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        journalBytes = 0;
+
+        List<ChatSession> index = new ArrayList<>(onDisk.size());
+        for (Meta m : onDisk.values()) index.add(m.toIndexSession());
+        compaction = compactor.submit(() -> writeSnapshot(index));
+    }
+
+    private void writeSnapshot(List<ChatSession> index) {
+        PipelineEvents.ChatStoreIO ev = new PipelineEvents.ChatStoreIO();
+        ev.begin();
+        try {
+            writeAtomically(indexPath, index);
+            snapshotBytes = Files.size(indexPath);
+            ev.bytes = snapshotBytes;
+            Files.deleteIfExists(compactingPath);
+            lastCompactionError = null;
+        } catch (IOException | RuntimeException ex) {
+            ev.error = ex.getClass().getSimpleName() + ": " + ex.getMessage();
+            lastCompactionError = ev.error;
+        } finally {
+            if (ev.shouldCommit()) {
+                ev.operation = "compact";
+                ev.sessions = index.size();
+                int n = 0;
+                for (ChatSession s : index) n += s.revisionCount();
+                ev.revisions = n;
+                ev.commit();
+            }
+        }
+    }
+
+    private void writeAtomically(Path target, Object value) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        om.writeValue(tmp.toFile(), value);
+        moveAtomically(tmp, target);
+    }
+
+    private static void moveAtomically(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Copy for saving off the UI thread: session fields plus a new revision list (null when not loaded).
+     * Revisions are never changed once added, so they are shared, not copied.
+     */
+    public static ChatSession snapshotOf(ChatSession s) {
+        ChatSession c = new ChatSession();
+        c.id = s.id;
+        c.title = s.title;
+        c.promptText = s.promptText;
+        c.includeHistory = s.includeHistory;
+        c.createdAt = s.createdAt;
+        c.updatedAt = s.updatedAt;
+        c.currentRevisionIndex = s.currentRevisionIndex;
+        c.revisions = s.revisions == null ? null : new ArrayList<>(s.revisions);
+        c.savedRevisionCount = s.revisionCount();
+        return c;
+    }
+
+    private int countRevisions() {
+        int n = 0;
+        for (ChatSession s : sessions) n += s.revisionCount();
+        return n;
     }
 
     public ChatSession createNew() {
+        return createNew(UUID.randomUUID().toString());
+    }
+
+    // With a caller-chosen id (e.g. batch ids); the id is the key of the chat order, so set it here only
+    public synchronized ChatSession createNew(String id) {
         ChatSession s = new ChatSession();
-        s.id = UUID.randomUUID().toString();
+        s.id = id;
         s.title = "New Chat";
         s.promptText = "";
         s.includeHistory = false;
         s.revisions = new ArrayList<>();
+        s.savedRevisionCount = 0;
         s.currentRevisionIndex = -1;
         s.createdAt = LocalDateTime.now();
         s.updatedAt = s.createdAt;
 
         sessions.add(s);
+        loaded.put(s.id, s);
+        evict();
+
+        OrderKey k = OrderKey.of(s);
+        orderKeys.put(s.id, k);
+        int at = order.insert(k, s);
+        if (orderListener != null) orderListener.inserted(at, s);
         return s;
     }
 
-    public void delete(ChatSession s) {
+    // First line of the prompt, shortened for the chat list
+    public static String titleFromPrompt(String prompt) {
+        if (prompt == null) return null;
+        String p = prompt.strip();
+        if (p.isBlank()) return "New Chat";
+        int nl = p.indexOf('\n');
+        String first = (nl < 0) ? p : p.substring(0, nl);
+        first = first.strip();
+        if (first.length() > 42) first = first.substring(0, 42).strip() + "…";
+        return first.isBlank() ? "Chat" : first;
+    }
+
+    public ChatSession findById(String id) {
+        if (id == null) return null;
+        for (ChatSession s : sessions) {
+            if (id.equals(s.id)) return s;
+        }
+        return null;
+    }
+
+    public synchronized void delete(ChatSession s) {
         if (s == null) return;
         sessions.removeIf(x -> Objects.equals(x.id, s.id));
-    }
+        loaded.remove(s.id);
 
-    public List<ChatSession> getSessionsSorted() {
-        List<ChatSession> out = new ArrayList<>(sessions);
+        OrderKey k = orderKeys.remove(s.id);
+        int at = k == null ? -1 : order.remove(k);
+        if (at >= 0 && orderListener != null) orderListener.removed(at, s);
+    }
 
-        out.sort((a, b) -> {
-            int ar = a == null ? 0 : a.revisionCount();
-            int br = b == null ? 0 : b.revisionCount();
+    // Chats with revisions first (latest update first), then empty chats (newest first); O(n), no sorting
+    public synchronized List<ChatSession> getSessionsSorted() {
+        return order.values();
+    }
 
-            if (ar == 0 && br > 0) return 1;
-            if (ar > 0 && br == 0) return -1;
+    // Position in getSessionsSorted(), or -1 (O(log n))
+    public synchronized int positionOf(ChatSession s) {
+        OrderKey k = s == null ? null : orderKeys.get(s.id);
+        return k == null ? -1 : order.indexOf(k);
+    }
 
-            // Both no revisions: keep them ordered by createdAt (newer first)
-            if (ar == 0 && br == 0) {
-                LocalDateTime ac = (a == null ? null : a.createdAt);
-                LocalDateTime bc = (b == null ? null : b.createdAt);
-                return compareDesc(bc, ac); // newer first
-            }
+    public synchronized void setOrderListener(OrderListener orderListener) {
+        this.orderListener = orderListener;
+    }
 
-            // Both have revisions: order by updatedAt (newer first)
-            LocalDateTime au = (a == null ? null : a.getUpdatedAtSafe());
-            LocalDateTime bu = (b == null ? null : b.getUpdatedAtSafe());
-            return compareDesc(bu, au);
-        });
+    /**
+     * Moves the session to where its revisions/timestamps now put it (O(log n)) and tells the listener.
+     * touch() does this; call it directly after changing revisions without touching.
+     */
+    public synchronized void reorder(ChatSession s) {
+        if (s == null) return;
+        OrderKey old = orderKeys.get(s.id);
+        if (old == null) return;
+        OrderKey k = OrderKey.of(s);
+        if (k.equals(old)) {
+            if (orderListener != null) orderListener.changed(order.indexOf(k), s);
+            return;
+        }
+        int from = order.remove(old);
+        int to = order.insert(k, s);
+        orderKeys.put(s.id, k);
+        if (orderListener == null) return;
+        if (from == to) orderListener.changed(to, s);
+        else orderListener.moved(from, to, s);
+    }
 
-        return out;
+    private void rebuildOrder() {
+        order.clear();
+        orderKeys.clear();
+        for (ChatSession s : sessions) {
+            if (s.id == null || orderKeys.containsKey(s.id)) continue;
+            OrderKey k = OrderKey.of(s);
+            orderKeys.put(s.id, k);
+            order.insert(k, s);
+        }
     }
 
     /**
      * promote=false => do NOT update updatedAt (so selection/prompt edits won't reorder chats with 0 revisions)
      * promote=true  => update updatedAt (used when a new revision is added or you explicitly want to bump)
      */
-    public void touch(ChatSession s, boolean promote) {
+    public synchronized void touch(ChatSession s, boolean promote) {
         if (s == null) return;
 
         // if chat has no revisions, we NEVER bump updatedAt unless explicitly promote=true AND you want it.
@@ -179,18 +1185,11 @@ public class ChatStore {
             // keep updatedAt unchanged
             if (s.updatedAt == null) s.updatedAt = s.createdAt == null ? LocalDateTime.now() : s.createdAt;
         }
+        reorder(s);
     }
 
     // Backward compat: old calls default to promote=true
     public void touch(ChatSession s) {
         touch(s, true);
     }
-
-    private static int compareDesc(LocalDateTime a, LocalDateTime b) {
-        if (a == null && b == null) return 0;
-        if (a == null) return 1;
-        if (b == null) return -1;
-        // DESC
-        return b.compareTo(a);
-    }
 }
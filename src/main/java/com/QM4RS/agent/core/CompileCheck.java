@@ -0,0 +1,575 @@
+package com.QM4RS.agent.core;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Checks that the Java files of a plan compile, in process (javax.tools) and without writing anything:
+ * the plan's new texts are compiled together with the project files that mention a type they declare;
+ * every other type comes from class files cached by earlier checks, from the project's sources
+ * (compiled on demand) or from the classpath.
+ *
+ * Kept per project between checks: an index of its main sources (package, declared types,
+ * identifiers; re-read when size or mtime change), the standard file manager over the classpath (its
+ * jar indexes stay open) and the class files of sources that compiled cleanly as they are on disk. A
+ * typical check so compiles a handful of files. Diagnostics go to the block that wrote the line, else
+ * the nearest block of that file; errors the files on disk already have are left out.
+ */
+public class CompileCheck {
+
+    /** One diagnostic; block is the block it is blamed on, null for files no block touched. */
+    public record Problem(String file, long line, long column, Diagnostic.Kind kind, String code, String message,
+                          OutputBlock block) {
+        public boolean error() {
+            return kind == Diagnostic.Kind.ERROR;
+        }
+
+        @Override
+        public String toString() {
+            return (file == null ? "" : file + ":" + line + ": ") + kind.name().toLowerCase(Locale.ROOT) + ": " + message;
+        }
+    }
+
+    /**
+     * compiled lists the files compiled from source on purpose (the plan's and their dependents);
+     * preexisting counts the errors left out because the files on disk have them too.
+     */
+    public record Result(List<Problem> problems, List<String> compiled, int preexisting, int cachedClasses, long millis) {
+        public int errors() {
+            int n = 0;
+            for (Problem p : problems) if (p.error()) n++;
+            return n;
+        }
+
+        public boolean ok() {
+            return errors() == 0;
+        }
+
+        public List<Problem> problemsOf(OutputBlock b) {
+            List<Problem> out = new ArrayList<>();
+            for (Problem p : problems) if (p.block() == b) out.add(p);
+            return out;
+        }
+
+        public String summary() {
+            return String.format(Locale.ROOT, "%d file(s) compiled, %d error(s), %d warning(s), %d already on disk, %d cached class(es), %d ms",
+                    compiled.size(), errors(), problems.size() - errors(), preexisting, cachedClasses, millis);
+        }
+    }
+
+    private static final List<String> OPTIONS = List.of("-proc:none", "-implicit:class", "-nowarn", "-Xlint:none", "-g:none");
+
+    private final IgnoreRules ignoreRules;
+    private final List<Path> extraClasspath;
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    private Project project;
+
+    public CompileCheck(IgnoreRules ignoreRules) {
+        this(ignoreRules, List.of());
+    }
+
+    /** extraClasspath: jars/directories the project needs besides what is found under it. */
+    public CompileCheck(IgnoreRules ignoreRules, List<Path> extraClasspath) {
+        this.ignoreRules = ignoreRules;
+        this.extraClasspath = List.copyOf(extraClasspath);
+    }
+
+    /** False on a runtime without javac (a JRE). */
+    public boolean available() {
+        return compiler != null;
+    }
+
+    // ---------------- per-project state ----------------
+
+    // A main source file as it is on disk
+    private static final class Unit {
+        final String file;      // project-relative, '/' separators
+        final Path path;
+        final long size;
+        final long mtime;
+        final String pkg;
+        final Set<String> types;
+        final Set<String> idents;
+
+        Unit(String file, Path path, long size, long mtime, String text) {
+            this.file = file;
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            JavaStructure js = JavaStructure.of(text);
+            this.pkg = js.packageName();
+            Set<String> t = new HashSet<>();
+            for (JavaStructure.Decl d : js.declarations()) {
+                if (d.kind() == JavaStructure.Kind.TYPE) t.add(d.name());
+            }
+            this.types = t;
+            this.idents = js.identifiers();
+        }
+
+        String simpleName() {
+            String n = file.substring(file.lastIndexOf('/') + 1);
+            return n.substring(0, n.length() - ".java".length());
+        }
+
+        // javac finds a source on the source path only where its package says
+        boolean findable() {
+            String want = (pkg.isEmpty() ? "" : pkg.replace('.', '/') + "/") + simpleName() + ".java";
+            return file.equals(want) || file.endsWith("/" + want);
+        }
+    }
+
+    private static final class Project {
+        final Path root;
+        final StandardJavaFileManager fm;
+        final Map<String, Unit> units = new HashMap<>();
+        final Map<String, byte[]> classes = new HashMap<>();           // binary name -> class file
+        final Map<String, List<String>> classesOf = new HashMap<>();   // source file -> binary names it produced
+
+        Project(Path root, StandardJavaFileManager fm) {
+            this.root = root;
+            this.fm = fm;
+        }
+
+        void evict(String file) {
+            List<String> names = classesOf.remove(file);
+            if (names != null) for (String n : names) classes.remove(n);
+        }
+    }
+
+    private Project project(Path root) throws IOException {
+        Path r = root.toAbsolutePath().normalize();
+        if (project != null && project.root.equals(r)) return project;
+        if (project != null) project.fm.close();
+
+        StandardJavaFileManager fm = compiler.getStandardFileManager(null, Locale.ROOT, StandardCharsets.UTF_8);
+        fm.setLocationFromPaths(StandardLocation.CLASS_PATH, classpath(r));
+        project = new Project(r, fm);
+        return project;
+    }
+
+    // build outputs and jar folders of the project (and of its direct sub-modules), then the extra entries
+    private List<Path> classpath(Path root) throws IOException {
+        List<Path> modules = new ArrayList<>();
+        modules.add(root);
+        try (Stream<Path> s = Files.list(root)) {
+            s.filter(Files::isDirectory).filter(p -> !ignoreRules.shouldIgnore(p, root)).sorted().forEach(modules::add);
+        }
+        List<Path> out = new ArrayList<>();
+        for (Path m : modules) {
+            for (String d : new String[]{"build/classes/java/main", "target/classes"}) {
+                if (Files.isDirectory(m.resolve(d))) out.add(m.resolve(d));
+            }
+            for (String d : new String[]{"lib", "libs", "target/dependency"}) {
+                Path dir = m.resolve(d);
+                if (!Files.isDirectory(dir)) continue;
+                try (Stream<Path> s = Files.list(dir)) {
+                    s.filter(p -> p.getFileName().toString().endsWith(".jar")).sorted().forEach(out::add);
+                }
+            }
+        }
+        out.addAll(extraClasspath);
+        return out;
+    }
+
+    // re-reads main sources whose size or mtime changed; their cached classes are dropped
+    private void refresh(Project p) throws IOException {
+        Set<String> seen = new HashSet<>();
+        Files.walkFileTree(p.root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(p.root) && ignoreRules.shouldIgnore(dir, p.root)) return FileVisitResult.SKIP_SUBTREE;
+                String rel = rel(p.root, dir);
+                return rel.equals("src/test") || rel.endsWith("/src/test") ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = file.getFileName().toString();
+                if (!attrs.isRegularFile() || !name.endsWith(".java") || name.equals("module-info.java")) return FileVisitResult.CONTINUE;
+                String rel = rel(p.root, file);
+                seen.add(rel);
+                long mtime = attrs.lastModifiedTime().toMillis();
+                Unit u = p.units.get(rel);
+                if (u == null || u.size != attrs.size() || u.mtime != mtime) {
+                    p.evict(rel);
+                    p.units.put(rel, new Unit(rel, file, attrs.size(), mtime, Files.readString(file, StandardCharsets.UTF_8)));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        for (String gone : new ArrayList<>(p.units.keySet())) {
+            if (!seen.contains(gone)) {
+                p.units.remove(gone);
+                p.evict(gone);
+            }
+        }
+    }
+
+    private static String rel(Path root, Path p) {
+        return root.relativize(p).toString().replace('\\', '/');
+    }
+
+    // ---------------- check ----------------
+
+    /** Compiles the plan's Java files (as the plan would write them) and their dependents. */
+    public synchronized Result check(ApplyEngine.Plan plan) throws IOException {
+        if (compiler == null) throw new IllegalStateException("This runtime has no Java compiler; run the app on a JDK.");
+        long t0 = System.nanoTime();
+        Project p = project(plan.root);
+        refresh(p);
+
+        // new texts that differ from the disk, and the types the plan's files declare before and after
+        Map<String, ApplyEngine.FileChange> planned = new LinkedHashMap<>();
+        Map<String, Unit> overrides = new HashMap<>();
+        Map<String, String> overrideText = new HashMap<>();
+        Set<String> touched = new HashSet<>();
+        for (ApplyEngine.FileChange fc : plan.files) {
+            if (!fc.file.endsWith(".java") || fc.after == null || fc.file.endsWith("module-info.java")) continue;
+            planned.put(fc.file, fc);
+            Unit old = p.units.get(fc.file);
+            if (old != null) touched.addAll(old.types);
+            if (old != null && fc.after.equals(Files.readString(old.path, StandardCharsets.UTF_8))) continue; // already applied
+            Path path = p.root.resolve(fc.file);
+            Unit u = new Unit(fc.file, path, fc.after.length(), Long.MAX_VALUE, fc.after);
+            overrides.put(fc.file, u);
+            overrideText.put(fc.file, fc.after);
+            touched.addAll(u.types);
+        }
+        if (planned.isEmpty()) {
+            return new Result(List.of(), List.of(), 0, p.classes.size(), RequestTimings.millisBetween(t0, System.nanoTime()));
+        }
+
+        // the plan's files, then every file that mentions one of their types
+        Set<String> explicit = new LinkedHashSet<>(planned.keySet());
+        for (Unit u : p.units.values()) {
+            if (!explicit.contains(u.file) && !Collections.disjoint(u.idents, touched)) explicit.add(u.file);
+        }
+
+        Compiled c = compile(p, explicit, overrides, overrideText);
+        int preexisting = 0;
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = c.diagnostics;
+        if (c.errors > 0 && !overrides.isEmpty()) {
+            // the same files as they are on disk: what fails there too is not the plan's doing
+            Set<String> onDisk = new LinkedHashSet<>(explicit);
+            onDisk.removeIf(f -> !p.units.containsKey(f));
+            Set<String> known = new HashSet<>();
+            if (!onDisk.isEmpty()) {
+                for (Diagnostic<? extends JavaFileObject> d : compile(p, onDisk, Map.of(), Map.of()).diagnostics) known.add(key(d));
+            }
+            List<Diagnostic<? extends JavaFileObject>> kept = new ArrayList<>();
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics) {
+                if (d.getKind() == Diagnostic.Kind.ERROR && known.contains(key(d))) preexisting++;
+                else kept.add(d);
+            }
+            diagnostics = kept;
+        }
+
+        List<Problem> problems = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> d : diagnostics) {
+            String file = d.getSource() instanceof Source s ? s.file : null;
+            ApplyEngine.FileChange fc = file == null ? null : planned.get(file);
+            OutputBlock block = fc == null ? null : blame(plan, fc, d.getLineNumber());
+            problems.add(new Problem(file, d.getLineNumber(), d.getColumnNumber(), d.getKind(), d.getCode(),
+                    d.getMessage(Locale.ROOT), block));
+        }
+        return new Result(List.copyOf(problems), List.copyOf(explicit), preexisting, p.classes.size(),
+                RequestTimings.millisBetween(t0, System.nanoTime()));
+    }
+
+    // the block whose lines hold the diagnostic, else the nearest one in the file
+    private static OutputBlock blame(ApplyEngine.Plan plan, ApplyEngine.FileChange fc, long line) {
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        for (Map.Entry<Integer, int[]> e : fc.blockLines.entrySet()) {
+            int[] at = e.getValue();
+            long d = line < at[0] ? at[0] - line : line > at[1] ? line - at[1] : 0;
+            if (d < bestDistance || (d == bestDistance && e.getKey() < best)) {
+                best = e.getKey();
+                bestDistance = d;
+            }
+        }
+        return best < 0 ? null : plan.results.get(best).block();
+    }
+
+    // what identifies a diagnostic across versions of a file: lines move, their text does not
+    private static String key(Diagnostic<? extends JavaFileObject> d) {
+        String file = d.getSource() instanceof Source s ? s.file : "";
+        String text = "";
+        if (d.getSource() instanceof Source s && d.getLineNumber() > 0) {
+            try {
+                text = lineText(s.getCharContent(true), d.getLineNumber());
+            } catch (IOException ignored) {
+            }
+        }
+        return file + '\0' + d.getCode() + '\0' + d.getMessage(Locale.ROOT) + '\0' + text;
+    }
+
+    private static String lineText(CharSequence text, long line) {
+        int start = 0;
+        for (long l = 1; l < line; l++) {
+            int nl = indexOf(text, '\n', start);
+            if (nl < 0) return "";
+            start = nl + 1;
+        }
+        int end = indexOf(text, '\n', start);
+        return LineIndex.normalize(text.subSequence(start, end < 0 ? text.length() : end).toString());
+    }
+
+    private static int indexOf(CharSequence text, char c, int from) {
+        for (int i = from; i < text.length(); i++) {
+            if (text.charAt(i) == c) return i;
+        }
+        return -1;
+    }
+
+    private record Compiled(List<Diagnostic<? extends JavaFileObject>> diagnostics, int errors) {}
+
+    /**
+     * Compiles the explicit files (overrides replacing their disk text); other project types resolve
+     * from the class cache, the source path or the classpath. When nothing failed, the classes of files
+     * compiled as they are on disk go into the cache; with overrides only those compiled on demand, since
+     * the explicit ones were compiled against the plan's texts.
+     */
+    private Compiled compile(Project p, Set<String> explicit, Map<String, Unit> overrides, Map<String, String> overrideText)
+            throws IOException {
+        Map<String, List<Source>> byPackage = new HashMap<>();
+        Map<String, Source> sources = new HashMap<>();
+        for (Unit u : p.units.values()) {
+            if (overrides.containsKey(u.file)) continue;
+            Source s = new Source(u, null);
+            sources.put(u.file, s);
+            if (u.findable()) byPackage.computeIfAbsent(u.pkg, k -> new ArrayList<>()).add(s);
+        }
+        for (Unit u : overrides.values()) {
+            Source s = new Source(u, overrideText.get(u.file));
+            sources.put(u.file, s);
+            if (u.findable()) byPackage.computeIfAbsent(u.pkg, k -> new ArrayList<>()).add(s);
+        }
+
+        Set<String> hidden = new HashSet<>(); // cached classes of files compiled from source now
+        List<Source> units = new ArrayList<>();
+        for (String f : explicit) {
+            Source s = sources.get(f);
+            if (s == null) continue;
+            units.add(s);
+            List<String> names = p.classesOf.get(f);
+            if (names != null) hidden.addAll(names);
+        }
+
+        DiagnosticCollector<JavaFileObject> dc = new DiagnosticCollector<>();
+        MemoryFileManager fm = new MemoryFileManager(p, byPackage, hidden);
+        boolean ok = compiler.getTask(null, fm, dc, OPTIONS, null, units).call();
+
+        List<Diagnostic<? extends JavaFileObject>> out = new ArrayList<>();
+        int errors = 0;
+        for (Diagnostic<? extends JavaFileObject> d : dc.getDiagnostics()) {
+            if (d.getKind() == Diagnostic.Kind.ERROR) errors++;
+            else if (d.getKind() != Diagnostic.Kind.WARNING && d.getKind() != Diagnostic.Kind.MANDATORY_WARNING) continue;
+            out.add(d);
+        }
+
+        if (ok && errors == 0) {
+            for (Output o : fm.outputs) {
+                if (o.source == null || o.bytes == null) continue;
+                if (!overrides.isEmpty() && explicit.contains(o.source.file)) continue;
+                p.classes.put(o.binaryName, o.bytes);
+                List<String> names = p.classesOf.computeIfAbsent(o.source.file, k -> new ArrayList<>());
+                if (!names.contains(o.binaryName)) names.add(o.binaryName);
+            }
+        }
+        return new Compiled(out, errors);
+    }
+
+    // ---------------- file objects ----------------
+
+    private static final class Source extends SimpleJavaFileObject {
+        final String file;
+        final Unit unit;
+        private String text;
+
+        Source(Unit unit, String text) {
+            super(unit.path.toUri(), Kind.SOURCE);
+            this.file = unit.file;
+            this.unit = unit;
+            this.text = text;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            if (text == null) text = Files.readString(unit.path, StandardCharsets.UTF_8);
+            return text;
+        }
+
+        @Override
+        public long getLastModified() {
+            return unit.mtime;
+        }
+    }
+
+    private static final class CachedClass extends SimpleJavaFileObject {
+        final String binaryName;
+        final byte[] bytes;
+
+        CachedClass(String binaryName, byte[] bytes) {
+            super(URI.create("mem:///" + binaryName.replace('.', '/') + ".class"), Kind.CLASS);
+            this.binaryName = binaryName;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        // the cache only holds classes of unchanged sources: always prefer it to compiling them again
+        @Override
+        public long getLastModified() {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static final class Output extends SimpleJavaFileObject {
+        final String binaryName;
+        final Source source;
+        byte[] bytes;
+
+        Output(String binaryName, Source source) {
+            super(URI.create("mem:///" + binaryName.replace('.', '/') + ".class"), Kind.CLASS);
+            this.binaryName = binaryName;
+            this.source = source;
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    bytes = toByteArray();
+                }
+            };
+        }
+    }
+
+    // Sources from the index (with overrides), cached classes in front of the classpath, output in memory
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        final Project project;
+        final Map<String, List<Source>> sources;
+        final Map<String, List<String>> classes = new HashMap<>(); // package -> cached binary names
+        final List<Output> outputs = new ArrayList<>();
+        final Map<JavaFileObject, String> names = new IdentityHashMap<>();
+
+        MemoryFileManager(Project project, Map<String, List<Source>> sources, Set<String> hidden) {
+            super(project.fm);
+            this.project = project;
+            this.sources = sources;
+            for (String n : project.classes.keySet()) {
+                if (hidden.contains(n)) continue;
+                int dot = n.lastIndexOf('.');
+                classes.computeIfAbsent(dot < 0 ? "" : n.substring(0, dot), k -> new ArrayList<>()).add(n);
+            }
+        }
+
+        private static boolean inPackage(String pkg, String packageName, boolean recurse) {
+            return pkg.equals(packageName) || (recurse && (packageName.isEmpty() || pkg.startsWith(packageName + ".")));
+        }
+
+        @Override
+        public boolean hasLocation(Location location) {
+            return location == StandardLocation.SOURCE_PATH || super.hasLocation(location);
+        }
+
+        @Override
+        public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds,
+                                             boolean recurse) throws IOException {
+            if (location == StandardLocation.SOURCE_PATH) {
+                if (!kinds.contains(JavaFileObject.Kind.SOURCE)) return List.of();
+                List<JavaFileObject> out = new ArrayList<>();
+                for (Map.Entry<String, List<Source>> e : sources.entrySet()) {
+                    String pkg = e.getKey();
+                    if (inPackage(pkg, packageName, recurse)) {
+                        for (Source s : e.getValue()) {
+                            names.put(s, pkg.isEmpty() ? s.unit.simpleName() : pkg + "." + s.unit.simpleName());
+                            out.add(s);
+                        }
+                    }
+                }
+                return out;
+            }
+            if (location == StandardLocation.CLASS_PATH && kinds.contains(JavaFileObject.Kind.CLASS)) {
+                List<JavaFileObject> out = new ArrayList<>();
+                for (Map.Entry<String, List<String>> e : classes.entrySet()) {
+                    if (!inPackage(e.getKey(), packageName, recurse)) continue;
+                    for (String n : e.getValue()) {
+                        CachedClass c = new CachedClass(n, project.classes.get(n));
+                        names.put(c, n);
+                        out.add(c);
+                    }
+                }
+                for (JavaFileObject f : super.list(location, packageName, kinds, recurse)) out.add(f);
+                return out;
+            }
+            return super.list(location, packageName, kinds, recurse);
+        }
+
+        @Override
+        public String inferBinaryName(Location location, JavaFileObject file) {
+            String n = names.get(file);
+            return n != null ? n : super.inferBinaryName(location, file);
+        }
+
+        @Override
+        public boolean isSameFile(FileObject a, FileObject b) {
+            if (a instanceof SimpleJavaFileObject || b instanceof SimpleJavaFileObject) return a == b;
+            return super.isSameFile(a, b);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                   FileObject sibling) throws IOException {
+            if (location != StandardLocation.CLASS_OUTPUT || kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+            }
+            Output o = new Output(className, sibling instanceof Source s ? s : null);
+            outputs.add(o);
+            return o;
+        }
+
+        // the shared standard file manager stays open for the next check
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -29,6 +29,18 @@ public class ConfigStore {
                 p.load(in);
                 cfg.setApiKey(p.getProperty("openai.apiKey", ""));
                 cfg.setModel(p.getProperty("openai.model", "gpt-4.1"));
+                cfg.setProvider(p.getProperty("provider", "openai"));
+                cfg.setMockLatencyMs(parseLong(p.getProperty("mock.latencyMs"), cfg.getMockLatencyMs()));
+                cfg.setMockBytesPerSecond(parseLong(p.getProperty("mock.bytesPerSecond"), cfg.getMockBytesPerSecond()));
+                cfg.setMockErrorRate(parseDouble(p.getProperty("mock.errorRate"), cfg.getMockErrorRate()));
+                cfg.setMockRateLimitRate(parseDouble(p.getProperty("mock.rateLimitRate"), cfg.getMockRateLimitRate()));
+                cfg.setMockSeed(parseLong(p.getProperty("mock.seed"), cfg.getMockSeed()));
+                cfg.setMockOutputsDir(p.getProperty("mock.outputsDir", ""));
+                cfg.setResponseCacheEnabled(Boolean.parseBoolean(p.getProperty("cache.enabled", "false")));
+                cfg.setResponseCacheMaxMb(parseLong(p.getProperty("cache.maxMb"), cfg.getResponseCacheMaxMb()));
+                cfg.setResponseCacheTtlHours(parseLong(p.getProperty("cache.ttlHours"), cfg.getResponseCacheTtlHours()));
+                cfg.setCompareModels(p.getProperty("compare.models", ""));
+                cfg.setHistoryTokenBudget(parseLong(p.getProperty("history.tokenBudget"), cfg.getHistoryTokenBudget()));
             } catch (Exception ignored) {
             }
         }
@@ -53,9 +65,39 @@ public class ConfigStore {
         Properties p = new Properties();
         p.setProperty("openai.apiKey", cfg.getApiKey());
         p.setProperty("openai.model", cfg.getModel());
+        p.setProperty("provider", cfg.getProvider());
+        p.setProperty("mock.latencyMs", Long.toString(cfg.getMockLatencyMs()));
+        p.setProperty("mock.bytesPerSecond", Long.toString(cfg.getMockBytesPerSecond()));
+        p.setProperty("mock.errorRate", Double.toString(cfg.getMockErrorRate()));
+        p.setProperty("mock.rateLimitRate", Double.toString(cfg.getMockRateLimitRate()));
+        p.setProperty("mock.seed", Long.toString(cfg.getMockSeed()));
+        p.setProperty("mock.outputsDir", cfg.getMockOutputsDir());
+        p.setProperty("cache.enabled", Boolean.toString(cfg.isResponseCacheEnabled()));
+        p.setProperty("cache.maxMb", Long.toString(cfg.getResponseCacheMaxMb()));
+        p.setProperty("cache.ttlHours", Long.toString(cfg.getResponseCacheTtlHours()));
+        p.setProperty("compare.models", cfg.getCompareModels());
+        p.setProperty("history.tokenBudget", Long.toString(cfg.getHistoryTokenBudget()));
 
         try (OutputStream out = Files.newOutputStream(configPath)) {
             p.store(out, "GPT-Agent local config");
         }
     }
+
+    private static long parseLong(String s, long def) {
+        if (s == null || s.isBlank()) return def;
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException ignored) {
+            return def;
+        }
+    }
+
+    private static double parseDouble(String s, double def) {
+        if (s == null || s.isBlank()) return def;
+        try {
+            return Double.parseDouble(s.trim());
+        } catch (NumberFormatException ignored) {
+            return def;
+        }
+    }
 }
@@ -5,6 +5,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
 
 public class ContextPackBuilder {
@@ -31,16 +32,69 @@ public class ContextPackBuilder {
             throw new IllegalArgumentException("Project root is invalid.");
         }
 
+        PipelineEvents.PackBuild ev = new PipelineEvents.PackBuild();
+        ev.begin();
+
+        List<String> fileSections = new ArrayList<>();
+        if (selectedFiles != null) {
+            for (Path f : selectedFiles) {
+                String section = fileSection(projectRoot, f);
+                if (section != null) fileSections.add(section);
+            }
+        }
+        String pack = assemble(projectRoot, treePrinter.printTree(projectRoot),
+                selectedFiles == null ? 0 : selectedFiles.size(), userPrompt, chatHistoryAddon, fileSections);
+
+        if (ev.shouldCommit()) {
+            ev.files = selectedFiles == null ? 0 : selectedFiles.size();
+            ev.filesRead = fileSections.size();
+            ev.treeRebuilt = true;
+            ev.chars = pack.length();
+            ev.commit();
+        }
+        return pack;
+    }
+
+    // ---- Sections (PackPrebuilder caches these individually; build() must stay equal to assembling them) ----
+
+    public String printTree(Path projectRoot) throws IOException {
+        return treePrinter.printTree(projectRoot);
+    }
+
+    // "--- FILE: rel ---" header plus content; null when the file is gone
+    public String fileSection(Path projectRoot, Path f) {
+        if (f == null) return null;
+        if (!Files.exists(f) || !Files.isRegularFile(f)) return null;
+
         StringBuilder sb = new StringBuilder();
+        String rel = projectRoot.relativize(f).toString().replace('\\', '/');
+        sb.append("\n--- FILE: ").append(rel).append(" ---\n");
+
+        try {
+            String content = fileTextReader.readUtf8(f);
+            sb.append(content);
+            if (!content.endsWith("\n")) sb.append("\n");
+        } catch (Exception ex) {
+            sb.append("[[ERROR reading file: ").append(ex.getMessage()).append("]]\n");
+        }
+        return sb.toString();
+    }
+
+    public String assemble(Path projectRoot, String treeText, int selectedCount, String userPrompt,
+                           String chatHistoryAddon, List<String> fileSections) {
+        int size = 512 + treeText.length() + (userPrompt == null ? 0 : userPrompt.length())
+                + (chatHistoryAddon == null ? 0 : chatHistoryAddon.length());
+        for (String fs : fileSections) size += fs.length();
+        StringBuilder sb = new StringBuilder(size);
 
         sb.append("=== GPT-Agent Context Pack ===\n");
         sb.append("generated_at: ").append(TS.format(OffsetDateTime.now())).append("\n");
         sb.append("project_root: ").append(projectRoot.toAbsolutePath()).append("\n");
-        sb.append("selected_files_count: ").append(selectedFiles == null ? 0 : selectedFiles.size()).append("\n");
+        sb.append("selected_files_count: ").append(selectedCount).append("\n");
         sb.append("\n");
 
         sb.append("=== Project Tree (paths only) ===\n");
-        sb.append(treePrinter.printTree(projectRoot));
+        sb.append(treeText);
         sb.append("\n");
 
         if (chatHistoryAddon != null && !chatHistoryAddon.isBlank()) {
@@ -53,23 +107,7 @@ public class ContextPackBuilder {
         sb.append("\n\n");
 
         sb.append("=== Selected Files Content (UTF-8) ===\n");
-        if (selectedFiles != null) {
-            for (Path f : selectedFiles) {
-                if (f == null) continue;
-                if (!Files.exists(f) || !Files.isRegularFile(f)) continue;
-
-                String rel = projectRoot.relativize(f).toString().replace('\\', '/');
-                sb.append("\n--- FILE: ").append(rel).append(" ---\n");
-
-                try {
-                    String content = fileTextReader.readUtf8(f);
-                    sb.append(content);
-                    if (!content.endsWith("\n")) sb.append("\n");
-                } catch (Exception ex) {
-                    sb.append("[[ERROR reading file: ").append(ex.getMessage()).append("]]\n");
-                }
-            }
-        }
+        for (String fs : fileSections) sb.append(fs);
 
         sb.append("\n=== End Context Pack ===\n");
         return sb.toString();
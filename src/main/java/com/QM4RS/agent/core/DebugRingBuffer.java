@@ -0,0 +1,83 @@
+package com.QM4RS.agent.core;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps only the last `capacity` bytes of a stream for the Debug tab,
+ * so raw response bodies never live on the heap in full.
+ */
+public class DebugRingBuffer {
+
+    private final byte[] ring;
+    private long total = 0;
+
+    public DebugRingBuffer(int capacity) {
+        this.ring = new byte[Math.max(1024, capacity)];
+    }
+
+    public synchronized void write(byte[] b, int off, int len) {
+        if (len > ring.length) {
+            // only the tail survives
+            off += len - ring.length;
+            total += len - ring.length;
+            len = ring.length;
+        }
+        // byte at absolute offset k always lives at ring[k % capacity]
+        int pos = (int) (total % ring.length);
+        total += len;
+        int first = Math.min(len, ring.length - pos);
+        System.arraycopy(b, off, ring, pos, first);
+        if (first < len) System.arraycopy(b, off + first, ring, 0, len - first);
+    }
+
+    public synchronized long totalBytes() {
+        return total;
+    }
+
+    public synchronized boolean truncated() {
+        return total > ring.length;
+    }
+
+    /**
+     * Retained bytes as text (a multi-byte char cut at the start shows up as U+FFFD).
+     */
+    public synchronized String text() {
+        int n = (int) Math.min(total, ring.length);
+        byte[] out = new byte[n];
+        if (total <= ring.length) {
+            System.arraycopy(ring, 0, out, 0, n);
+        } else {
+            int start = (int) (total % ring.length);
+            int first = ring.length - start;
+            System.arraycopy(ring, start, out, 0, first);
+            System.arraycopy(ring, 0, out, first, start);
+        }
+        String s = new String(out, StandardCharsets.UTF_8);
+        if (truncated()) {
+            return "[[DEBUG: showing last " + n + " of " + total + " bytes]]\n" + s;
+        }
+        return s;
+    }
+
+    // Everything read from the returned stream is also recorded here
+    public InputStream tee(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) write(new byte[]{(byte) b}, 0, 1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) write(b, off, n);
+                return n;
+            }
+        };
+    }
+}
@@ -0,0 +1,86 @@
+package com.QM4RS.agent.core;
+
+import com.QM4RS.agent.core.OpenAIService.OpenAIResult;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sends one context pack to several models at once. The pack is serialized a single time
+ * (RequestBodyWriter.encode) and every request copies those bytes, so N models cost one
+ * serialization pass instead of N. One model failing does not cancel the others.
+ */
+public class FanOutSender {
+
+    // result is null when the call failed; error is the first line of its message
+    public record Outcome(String model, OpenAIResult result, String error, long millis) {
+        public boolean ok() {
+            return result != null;
+        }
+    }
+
+    public record Report(List<Outcome> outcomes, long serializeMs, long encodedBytes, long millis) {}
+
+    private final LlmProvider provider;
+
+    public FanOutSender(LlmProvider provider) {
+        this.provider = provider;
+    }
+
+    // Outcomes come back in the order of `models` (duplicates dropped)
+    public Report send(List<String> models, List<? extends CharSequence> inputParts) throws IOException, InterruptedException {
+        List<String> list = new ArrayList<>(new LinkedHashSet<>(models == null ? List.<String>of() : models));
+        list.removeIf(m -> m == null || m.isBlank());
+        if (list.isEmpty()) throw new IllegalArgumentException("No models to compare.");
+
+        long t0 = System.nanoTime();
+        RequestBodyWriter.EncodedInput input = RequestBodyWriter.encode(inputParts);
+        long serializeMs = RequestTimings.millisBetween(t0, System.nanoTime());
+
+        ExecutorService pool = Executors.newFixedThreadPool(list.size(), r -> {
+            Thread t = new Thread(r, "fan-out");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Outcome>> futures = new ArrayList<>();
+            for (String model : list) {
+                futures.add(pool.submit(() -> call(model, input)));
+            }
+            List<Outcome> out = new ArrayList<>();
+            for (Future<Outcome> f : futures) {
+                try {
+                    out.add(f.get());
+                } catch (ExecutionException ex) {
+                    // call() catches everything it can; this is an Error escaping
+                    Throwable c = ex.getCause();
+                    throw new IOException(c.getMessage(), c);
+                }
+            }
+            return new Report(out, serializeMs, input.encodedBytes(),
+                    RequestTimings.millisBetween(t0, System.nanoTime()));
+        } finally {
+            // also interrupts calls still running when the caller was cancelled
+            pool.shutdownNow();
+        }
+    }
+
+    private Outcome call(String model, RequestBodyWriter.EncodedInput input) throws InterruptedException {
+        long t0 = System.nanoTime();
+        try {
+            OpenAIResult r = provider.generateDiff(model, input);
+            return new Outcome(model, r, null, RequestTimings.millisBetween(t0, System.nanoTime()));
+        } catch (IOException | RuntimeException ex) {
+            String msg = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+            int nl = msg.indexOf('\n');
+            return new Outcome(model, null, nl < 0 ? msg : msg.substring(0, nl),
+                    RequestTimings.millisBetween(t0, System.nanoTime()));
+        }
+    }
+}
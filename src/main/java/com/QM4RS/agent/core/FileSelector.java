@@ -0,0 +1,66 @@
+package com.QM4RS.agent.core;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Non-interactive file selection: glob patterns on the project-relative path
+ * (e.g. "*.java", "src/main/**") and an optional content regex.
+ */
+public class FileSelector {
+
+    private final List<PathMatcher> globs = new ArrayList<>();
+    private final Pattern contentPattern;
+    private final FileTextReader reader;
+
+    public FileSelector(List<String> globPatterns, String contentRegex, FileTextReader reader) {
+        if (globPatterns != null) {
+            for (String g : globPatterns) {
+                if (g == null || g.isBlank()) continue;
+                globs.add(FileSystems.getDefault().getPathMatcher("glob:" + g.trim()));
+            }
+        }
+        this.contentPattern = (contentRegex == null || contentRegex.isBlank()) ? null : Pattern.compile(contentRegex);
+        this.reader = reader;
+    }
+
+    public List<Path> select(Path projectRoot, List<Path> candidates) {
+        List<Path> out = new ArrayList<>();
+        if (candidates == null) return out;
+
+        for (Path p : candidates) {
+            if (p == null) continue;
+            if (!matchesGlob(projectRoot.relativize(p))) continue;
+            if (contentPattern != null && !matchesContent(p)) continue;
+            out.add(p);
+        }
+
+        // same order as SelectionModel so packs are identical to the UI's
+        out.sort(Comparator.comparing(Path::toString, String.CASE_INSENSITIVE_ORDER));
+        return out;
+    }
+
+    private boolean matchesGlob(Path rel) {
+        if (globs.isEmpty()) return true;
+        // match both the relative path and the bare file name, so "*.java" works at any depth
+        Path name = rel.getFileName();
+        for (PathMatcher m : globs) {
+            if (m.matches(rel) || (name != null && m.matches(name))) return true;
+        }
+        return false;
+    }
+
+    private boolean matchesContent(Path p) {
+        try {
+            return contentPattern.matcher(reader.readUtf8(p)).find();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
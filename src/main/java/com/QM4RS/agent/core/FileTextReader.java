@@ -15,11 +15,27 @@ public class FileTextReader {
     }
 
     public String readUtf8(Path file) throws IOException {
+        PipelineEvents.FileRead ev = new PipelineEvents.FileRead();
+        ev.begin();
+        try {
+            return read(file, ev);
+        } finally {
+            if (ev.shouldCommit()) {
+                ev.path = String.valueOf(file);
+                ev.commit();
+            }
+        }
+    }
+
+    private String read(Path file, PipelineEvents.FileRead ev) throws IOException {
         long size = Files.size(file);
+        ev.size = size;
 
         // Read a small probe first to detect binary safely
         byte[] probe = readHeadBytes(file, (int) Math.min(4096, size));
         if (looksBinary(probe)) {
+            ev.binary = true;
+            ev.bytesRead = probe.length;
             return "[[BINARY FILE SKIPPED: " + safeName(file) + " (" + size + " bytes)]]\n";
         }
 
@@ -27,6 +43,8 @@ public class FileTextReader {
         int toRead = (int) Math.min(size, maxBytesPerFile);
 
         byte[] bytes = readHeadBytes(file, toRead);
+        ev.bytesRead = bytes.length;
+        ev.truncated = truncated;
         if (size > 0 && bytes.length == 0) {
             return "[[READ_WARNING: file had size=" + size +
                     " but 0 bytes were read. Possibly locked or mid-write: "
@@ -0,0 +1,169 @@
+package com.QM4RS.agent.core;
+
+import com.QM4RS.agent.core.ChatStore.ChatRevision;
+
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Builds the chat-history add-on locally (no model call) within a token budget. Per revision it keeps the
+ * prompt and the headers of the parsed blocks (FILE / OPERATION / ANCHOR...); block code is only kept for
+ * files that are selected now, since code for other files is stale context. Responses without blocks are
+ * cut to a short excerpt. Newest revisions are kept first; when one does not fit with its code it is tried
+ * without, and the walk stops at the first one that does not fit at all.
+ */
+public class HistoryCompactor {
+
+    // revisions looked at, newest first (the budget usually stops earlier)
+    private static final int MAX_REVISIONS = 20;
+    private static final int EXCERPT_CHARS = 600;
+
+    private static final DateTimeFormatter AT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss XXX");
+
+    /**
+     * fullTokens is what the same revisions cost pasted verbatim (prompt + whole response), tokens what the
+     * add-on costs; both use RateLimitController.estimateTokens.
+     */
+    public record Result(String text, int revisions, int blocks, int blocksWithCode, long fullTokens, long tokens) {
+        public long savedTokens() {
+            return Math.max(0, fullTokens - tokens);
+        }
+
+        public String toDebugLine() {
+            return String.format(Locale.ROOT, "History: revisions=%d blocks=%d (code for %d) estTokens≈%d of %d verbatim (saved %d)",
+                    revisions, blocks, blocksWithCode, tokens, fullTokens, savedTokens());
+        }
+    }
+
+    private final OutputParser parser;
+
+    public HistoryCompactor(OutputParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * @param selectedFiles project-relative paths ('/' separators) of the files in the current selection
+     * @param tokenBudget   upper bound for the returned text (estimated tokens)
+     */
+    public Result compact(List<ChatRevision> revisions, Collection<String> selectedFiles, long tokenBudget) {
+        if (revisions == null || revisions.isEmpty()) return new Result("", 0, 0, 0, 0, 0);
+        Set<String> selected = new HashSet<>();
+        if (selectedFiles != null) {
+            for (String f : selectedFiles) selected.add(normalize(f));
+        }
+
+        int n = revisions.size();
+        int from = Math.max(0, n - MAX_REVISIONS);
+        List<String> kept = new ArrayList<>(); // newest first
+        long chars = 0;
+        long fullChars = 0;
+        int blocks = 0;
+        int withCode = 0;
+
+        for (int i = n - 1; i >= from; i--) {
+            ChatRevision r = revisions.get(i);
+            if (r == null) continue;
+            List<OutputBlock> parsed = parser.parse(r.responseText);
+
+            String full = render(r, i, n, parsed, selected, true);
+            String entry = full;
+            int entryCode = countCode(parsed, selected);
+            if (tokens(chars + entry.length()) > tokenBudget && entryCode > 0) {
+                entry = render(r, i, n, parsed, selected, false);
+                entryCode = 0;
+            }
+            if (tokens(chars + entry.length()) > tokenBudget) break;
+
+            kept.add(entry);
+            chars += entry.length();
+            blocks += parsed.size();
+            withCode += entryCode;
+            fullChars += verbatimLength(r, i, n);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int k = kept.size() - 1; k >= 0; k--) sb.append(kept.get(k));
+        String text = sb.toString().strip();
+        return new Result(text, kept.size(), blocks, withCode,
+                RateLimitController.estimateTokens(fullChars), RateLimitController.estimateTokens(text.length()));
+    }
+
+    private static String render(ChatRevision r, int i, int n, List<OutputBlock> parsed, Set<String> selected, boolean code) {
+        StringBuilder sb = new StringBuilder();
+        header(sb, r, i, n);
+        if (parsed.isEmpty()) {
+            String t = r.responseText == null ? "" : r.responseText.strip();
+            sb.append("ai_output:\n");
+            if (t.length() > EXCERPT_CHARS) {
+                sb.append(t, 0, EXCERPT_CHARS).append("\n[… ").append(t.length() - EXCERPT_CHARS).append(" chars omitted]\n");
+            } else {
+                sb.append(t).append('\n');
+            }
+            return sb.append('\n').toString();
+        }
+
+        sb.append("ai_changes:\n");
+        for (OutputBlock b : parsed) {
+            sb.append("- FILE: ").append(b.file == null ? "?" : b.file);
+            sb.append(" | OPERATION: ").append(b.action == null ? "?" : b.action);
+            if (b.range != null && !b.range.isBlank()) sb.append(" | RANGE: ").append(b.range);
+            if (b.target != null && !b.target.isBlank()) sb.append(" | TARGET: ").append(b.target);
+            if (b.anchor != null && !b.anchor.isBlank()) sb.append(" | ANCHOR: ").append(b.anchor);
+            sb.append('\n');
+            if (b.note != null && !b.note.isBlank()) sb.append("  note: ").append(b.note.strip()).append('\n');
+            if (code && hasCode(b, selected)) {
+                sb.append("  code:\n").append(b.code().stripTrailing()).append('\n');
+            }
+        }
+        return sb.append('\n').toString();
+    }
+
+    private static void header(StringBuilder sb, ChatRevision r, int i, int n) {
+        sb.append("---- REVISION ").append(i + 1).append('/').append(n).append(" ----\n");
+        if (r.at != null) sb.append("at: ").append(AT.format(r.at)).append('\n');
+        sb.append("model: ").append(r.model == null ? "" : r.model).append('\n');
+        sb.append("prompt: ").append(r.userPrompt == null ? "" : r.userPrompt.strip()).append('\n');
+    }
+
+    // what the old add-on pasted for this revision
+    private static long verbatimLength(ChatRevision r, int i, int n) {
+        StringBuilder sb = new StringBuilder();
+        header(sb, r, i, n);
+        return sb.length() + "ai_output:\n".length() + (r.responseText == null ? 0 : r.responseText.strip().length()) + 2;
+    }
+
+    private static int countCode(List<OutputBlock> parsed, Set<String> selected) {
+        int c = 0;
+        for (OutputBlock b : parsed) {
+            if (hasCode(b, selected)) c++;
+        }
+        return c;
+    }
+
+    private static boolean hasCode(OutputBlock b, Set<String> selected) {
+        if (b.file == null || b.code() == null || b.code().isBlank()) return false;
+        String f = normalize(b.file);
+        if (selected.contains(f)) return true;
+        // models sometimes shorten or prefix paths
+        for (String s : selected) {
+            if (s.endsWith("/" + f) || f.endsWith("/" + s)) return true;
+        }
+        return false;
+    }
+
+    private static String normalize(String path) {
+        String p = path.strip().replace('\\', '/');
+        while (p.startsWith("./")) p = p.substring(2);
+        while (p.startsWith("/")) p = p.substring(1);
+        return p;
+    }
+
+    private static long tokens(long chars) {
+        return RateLimitController.estimateTokens(chars);
+    }
+}
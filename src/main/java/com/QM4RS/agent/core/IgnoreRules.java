@@ -24,28 +24,42 @@ public class IgnoreRules {
     );
 
     public boolean shouldIgnore(Path path, Path projectRoot) {
-        if (path == null || projectRoot == null) return true;
+        String rule = matchingRule(path, projectRoot);
+
+        PipelineEvents.IgnoreCheck ev = new PipelineEvents.IgnoreCheck();
+        if (ev.isEnabled()) {
+            ev.path = String.valueOf(path);
+            ev.ignored = rule != null;
+            ev.rule = rule;
+            ev.commit();
+        }
+        return rule != null;
+    }
+
+    // The rule that ignores `path`, or null when it is kept
+    private String matchingRule(Path path, Path projectRoot) {
+        if (path == null || projectRoot == null) return "null path";
 
         // ignore by any segment name
         Path rel;
         try {
             rel = projectRoot.relativize(path);
         } catch (Exception e) {
-            return false;
+            return null;
         }
 
         for (Path part : rel) {
             String name = part.toString();
-            if (ignoredDirNames.contains(name)) return true;
+            if (ignoredDirNames.contains(name)) return "dir " + name;
         }
 
         // ignore extensions for files
         String name = path.getFileName() == null ? path.toString() : path.getFileName().toString();
         String lower = name.toLowerCase();
         for (String ext : ignoredExtensions) {
-            if (lower.endsWith(ext)) return true;
+            if (lower.endsWith(ext)) return "extension " + ext;
         }
 
-        return false;
+        return null;
     }
 }
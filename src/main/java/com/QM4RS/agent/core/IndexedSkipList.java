@@ -0,0 +1,161 @@
+package com.QM4RS.agent.core;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Sorted list with O(log n) insert, remove, position lookup and access by position: a skip list whose
+ * links also store how many elements they skip (their width), so ranks add up along the search path.
+ * Keys must be unique under the comparator; values ride along with their key.
+ */
+public class IndexedSkipList<K, V> {
+
+    private static final int MAX_LEVEL = 32;
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final Node<K, V>[] next;
+        final int[] width; // elements passed when following next[i] (the remaining count when next[i] is null)
+
+        @SuppressWarnings("unchecked")
+        Node(K key, V value, int level) {
+            this.key = key;
+            this.value = value;
+            this.next = (Node<K, V>[]) new Node<?, ?>[level];
+            this.width = new int[level];
+        }
+    }
+
+    private final Comparator<? super K> cmp;
+    private final Node<K, V> head = new Node<>(null, null, MAX_LEVEL);
+    private final SplittableRandom rnd = new SplittableRandom(0x5EED);
+    private int level = 1;
+    private int size;
+
+    public IndexedSkipList(Comparator<? super K> cmp) {
+        this.cmp = cmp;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Inserts the key and returns its position. */
+    @SuppressWarnings("unchecked")
+    public int insert(K key, V value) {
+        Node<K, V>[] update = (Node<K, V>[]) new Node<?, ?>[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node<K, V> x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.next[i] != null && cmp.compare(x.next[i].key, key) < 0) {
+                rank[i] += x.width[i];
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+
+        int lvl = randomLevel();
+        if (lvl > level) {
+            for (int i = level; i < lvl; i++) {
+                rank[i] = 0;
+                update[i] = head;
+                head.width[i] = size;
+            }
+            level = lvl;
+        }
+
+        Node<K, V> n = new Node<>(key, value, lvl);
+        for (int i = 0; i < lvl; i++) {
+            n.next[i] = update[i].next[i];
+            update[i].next[i] = n;
+            n.width[i] = update[i].width[i] - (rank[0] - rank[i]);
+            update[i].width[i] = rank[0] - rank[i] + 1;
+        }
+        for (int i = lvl; i < level; i++) update[i].width[i]++;
+        size++;
+        return rank[0];
+    }
+
+    /** Removes the key; returns the position it had, or -1 when it is not in the list. */
+    @SuppressWarnings("unchecked")
+    public int remove(K key) {
+        Node<K, V>[] update = (Node<K, V>[]) new Node<?, ?>[MAX_LEVEL];
+        int rank = 0;
+        Node<K, V> x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && cmp.compare(x.next[i].key, key) < 0) {
+                rank += x.width[i];
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+        x = x.next[0];
+        if (x == null || cmp.compare(x.key, key) != 0) return -1;
+
+        for (int i = 0; i < level; i++) {
+            if (update[i].next[i] == x) {
+                update[i].width[i] += x.width[i] - 1;
+                update[i].next[i] = x.next[i];
+            } else {
+                update[i].width[i]--;
+            }
+        }
+        while (level > 1 && head.next[level - 1] == null) level--;
+        size--;
+        return rank;
+    }
+
+    /** Position of the key, or -1. */
+    public int indexOf(K key) {
+        int rank = 0;
+        Node<K, V> x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && cmp.compare(x.next[i].key, key) <= 0) {
+                rank += x.width[i];
+                x = x.next[i];
+            }
+            if (x != head && cmp.compare(x.key, key) == 0) return rank - 1;
+        }
+        return -1;
+    }
+
+    public V get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        int target = index + 1;
+        int traversed = 0;
+        Node<K, V> x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && traversed + x.width[i] <= target) {
+                traversed += x.width[i];
+                x = x.next[i];
+            }
+            if (traversed == target) return x.value;
+        }
+        throw new IllegalStateException("Skip list widths are inconsistent.");
+    }
+
+    public List<V> values() {
+        List<V> out = new ArrayList<>(size);
+        for (Node<K, V> x = head.next[0]; x != null; x = x.next[0]) out.add(x.value);
+        return out;
+    }
+
+    public void clear() {
+        for (int i = 0; i < MAX_LEVEL; i++) {
+            head.next[i] = null;
+            head.width[i] = 0;
+        }
+        level = 1;
+        size = 0;
+    }
+
+    private int randomLevel() {
+        int lvl = 1;
+        while (lvl < MAX_LEVEL && (rnd.nextInt() & 3) == 0) lvl++; // p = 1/4
+        return lvl;
+    }
+}
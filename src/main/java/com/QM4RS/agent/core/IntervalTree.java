@@ -0,0 +1,72 @@
+package com.QM4RS.agent.core;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Static interval tree over half-open int intervals [start, end), identified by their index in the
+ * arrays given to the constructor. Intervals are kept sorted by start in an implicit balanced tree
+ * (the middle of each range is its root) where every node knows the largest end below it, so a query
+ * visits O(log n + k) nodes. An empty interval [p, p) is a point: it overlaps [s, e) when s &lt; p &lt; e.
+ */
+public final class IntervalTree {
+
+    private final int[] start;
+    private final int[] end;
+    private final int[] id;
+    private final int[] maxEnd;
+
+    public IntervalTree(int[] starts, int[] ends) {
+        if (starts.length != ends.length) throw new IllegalArgumentException("starts and ends differ in length");
+        int n = starts.length;
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (starts[i] < 0 || ends[i] < starts[i]) {
+                throw new IllegalArgumentException("Bad interval #" + i + ": [" + starts[i] + ", " + ends[i] + ")");
+            }
+            keys[i] = ((long) starts[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        this.start = new int[n];
+        this.end = new int[n];
+        this.id = new int[n];
+        this.maxEnd = new int[n];
+        for (int k = 0; k < n; k++) {
+            int i = (int) keys[k];
+            start[k] = starts[i];
+            end[k] = ends[i];
+            id[k] = i;
+        }
+        fill(0, n);
+    }
+
+    public int size() {
+        return id.length;
+    }
+
+    /** Calls action with the index of every interval overlapping [from, to), in order of start. */
+    public void forEachOverlap(int from, int to, IntConsumer action) {
+        visit(0, id.length, from, to, action);
+    }
+
+    // maxEnd of the subtree over [lo, hi); returns it (Integer.MIN_VALUE when empty)
+    private int fill(int lo, int hi) {
+        if (lo >= hi) return Integer.MIN_VALUE;
+        int mid = (lo + hi) >>> 1;
+        int m = Math.max(end[mid], Math.max(fill(lo, mid), fill(mid + 1, hi)));
+        maxEnd[mid] = m;
+        return m;
+    }
+
+    private void visit(int lo, int hi, int from, int to, IntConsumer action) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (maxEnd[mid] <= from) return; // everything below ends too early
+            visit(lo, mid, from, to, action);
+            if (start[mid] >= to) return;    // this and everything right of it starts too late
+            if (end[mid] > from) action.accept(id[mid]);
+            lo = mid + 1;
+        }
+    }
+}
@@ -0,0 +1,525 @@
+package com.QM4RS.agent.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Declarations of a Java source (types, methods, constructors) with their exact extent, found by a
+ * lexer plus a brace-structure walk instead of a parser: comments, strings, char literals and text
+ * blocks are skipped by the lexer, so braces inside them do not count. Each declaration knows where its
+ * leading comments (Javadoc) and annotations start, the owner chain it sits in (Outer.Inner) and, for
+ * methods, its parameter types for telling overloads apart.
+ *
+ * Built once per file version (ApplyEngine caches them); lookups by name are a map access.
+ */
+public final class JavaStructure {
+
+    public enum Kind { TYPE, METHOD }
+
+    /**
+     * Offsets into the text. commentStart is -1 without leading comments; annotationStart == start
+     * without annotations; bodyStart is the '{' (or the ';' of a bodiless method); end is exclusive (after
+     * the closing '}' or ';'). params are the erased parameter types ("int,List,String..."), null for types.
+     */
+    public record Decl(Kind kind, String name, String params, String owner,
+                       int commentStart, int annotationStart, int start, int bodyStart, int end) {
+        public int prefixStart() {
+            return commentStart >= 0 ? commentStart : annotationStart;
+        }
+
+        /** Modifiers, type and signature up to the body, whitespace-normalized. */
+        public String header(CharSequence text) {
+            return LineIndex.normalize(text.subSequence(start, bodyStart).toString());
+        }
+    }
+
+    private static final byte IDENT = 0;
+    private static final byte SYM = 1;
+    private static final byte LIT = 2;
+
+    private final CharSequence text;
+    private final int[] lineStarts;
+    private final List<Decl> decls = new ArrayList<>();
+    private final Map<String, List<Decl>> byName = new HashMap<>();
+
+    // tokens (parallel arrays) and comment spans from the lexer
+    private int[] tStart = new int[256];
+    private int[] tEnd = new int[256];
+    private byte[] tKind = new byte[256];
+    private int n;
+    private int[] cStart = new int[32];
+    private int[] cEnd = new int[32];
+    private int comments;
+
+    private JavaStructure(CharSequence text) {
+        this.text = text;
+        this.lineStarts = lineStarts(text);
+    }
+
+    /** Structure of a compilation unit (types at the top level). */
+    public static JavaStructure of(CharSequence text) {
+        JavaStructure s = new JavaStructure(text);
+        s.lex();
+        s.walk(false);
+        return s;
+    }
+
+    /**
+     * First top-level declaration of a snippet that may hold a type or bare members (a method pasted on
+     * its own), or null.
+     */
+    public static Decl firstDeclaration(CharSequence snippet) {
+        JavaStructure s = new JavaStructure(snippet);
+        s.lex();
+        s.walk(true);
+        Decl first = null;
+        for (Decl d : s.decls) {
+            if (d.owner().isEmpty() && (first == null || d.start() < first.start())) first = d;
+        }
+        return first;
+    }
+
+    public List<Decl> declarations() {
+        return decls;
+    }
+
+    public List<Decl> find(Kind kind, String name) {
+        List<Decl> all = byName.get(name);
+        if (all == null) return List.of();
+        List<Decl> out = new ArrayList<>(all.size());
+        for (Decl d : all) if (d.kind() == kind) out.add(d);
+        return out;
+    }
+
+    /** Name of the package declaration ("" in the default package). */
+    public String packageName() {
+        int i = 0;
+        while (isSym(i, '@')) i = skipAnnotation(i);
+        if (!isWord(i, "package")) return "";
+        StringBuilder sb = new StringBuilder();
+        for (int j = i + 1; j < n && !isSym(j, ';'); j++) sb.append(text(j));
+        return sb.toString();
+    }
+
+    /** Every identifier in the code (comments and literals excluded), keywords included. */
+    public Set<String> identifiers() {
+        Set<String> out = new HashSet<>();
+        for (int i = 0; i < n; i++) {
+            if (tKind[i] == IDENT) out.add(text(i));
+        }
+        return out;
+    }
+
+    /** 0-based line of an offset. */
+    public int lineOf(int offset) {
+        int i = Arrays.binarySearch(lineStarts, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    // ---------------- lexer ----------------
+
+    private void lex() {
+        int len = text.length();
+        int i = 0;
+        while (i < len) {
+            char c = text.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+                i++;
+            } else if (c == '/' && i + 1 < len && text.charAt(i + 1) == '/') {
+                int e = i + 2;
+                while (e < len && text.charAt(e) != '\n') e++;
+                comment(i, e);
+                i = e;
+            } else if (c == '/' && i + 1 < len && text.charAt(i + 1) == '*') {
+                int e = i + 2;
+                while (e < len && !(text.charAt(e) == '*' && e + 1 < len && text.charAt(e + 1) == '/')) e++;
+                e = Math.min(len, e + 2);
+                comment(i, e);
+                i = e;
+            } else if (c == '"') {
+                int e;
+                if (i + 2 < len && text.charAt(i + 1) == '"' && text.charAt(i + 2) == '"') {
+                    e = i + 3; // text block: up to the next unescaped """
+                    while (e < len && !(text.charAt(e) == '"' && e + 2 < len && text.charAt(e + 1) == '"' && text.charAt(e + 2) == '"')) {
+                        e += text.charAt(e) == '\\' ? 2 : 1;
+                    }
+                    e = Math.min(len, e + 3);
+                } else {
+                    e = quoted(i, '"');
+                }
+                token(LIT, i, e);
+                i = e;
+            } else if (c == '\'') {
+                int e = quoted(i, '\'');
+                token(LIT, i, e);
+                i = e;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int e = i + 1;
+                while (e < len && Character.isJavaIdentifierPart(text.charAt(e))) e++;
+                token(IDENT, i, e);
+                i = e;
+            } else if (c >= '0' && c <= '9') {
+                int e = i + 1;
+                while (e < len && (Character.isLetterOrDigit(text.charAt(e)) || text.charAt(e) == '_'
+                        || (text.charAt(e) == '.' && e + 1 < len && Character.isDigit(text.charAt(e + 1))))) e++;
+                token(LIT, i, e);
+                i = e;
+            } else {
+                token(SYM, i, i + 1);
+                i++;
+            }
+        }
+    }
+
+    // end (exclusive) of a string or char literal; stops at the line end when unterminated
+    private int quoted(int open, char q) {
+        int len = text.length();
+        int e = open + 1;
+        while (e < len) {
+            char c = text.charAt(e);
+            if (c == '\\') {
+                e += 2;
+            } else if (c == q) {
+                return e + 1;
+            } else if (c == '\n') {
+                return e;
+            } else {
+                e++;
+            }
+        }
+        return len;
+    }
+
+    private void token(byte kind, int s, int e) {
+        if (n == tStart.length) {
+            tStart = Arrays.copyOf(tStart, n * 2);
+            tEnd = Arrays.copyOf(tEnd, n * 2);
+            tKind = Arrays.copyOf(tKind, n * 2);
+        }
+        tStart[n] = s;
+        tEnd[n] = e;
+        tKind[n] = kind;
+        n++;
+    }
+
+    private void comment(int s, int e) {
+        if (comments == cStart.length) {
+            cStart = Arrays.copyOf(cStart, comments * 2);
+            cEnd = Arrays.copyOf(cEnd, comments * 2);
+        }
+        cStart[comments] = s;
+        cEnd[comments] = e;
+        comments++;
+    }
+
+    // ---------------- structure ----------------
+
+    // One open '{': a type body (members are declarations) or any other block
+    private static final class Frame {
+        final boolean typeBody;
+        boolean enumConstants;    // an enum body before its first ';'
+        final String owner;       // owner chain of the declarations inside
+        final Kind kind;          // declaration this brace closes, or null
+        final String name;
+        final String params;
+        final int annotationStart;
+        final int start;
+        final int bodyStart;
+
+        Frame(boolean typeBody, boolean enumConstants, String owner, Kind kind, String name, String params,
+              int annotationStart, int start, int bodyStart) {
+            this.typeBody = typeBody;
+            this.enumConstants = enumConstants;
+            this.owner = owner;
+            this.kind = kind;
+            this.name = name;
+            this.params = params;
+            this.annotationStart = annotationStart;
+            this.start = start;
+            this.bodyStart = bodyStart;
+        }
+    }
+
+    private void walk(boolean membersAtTop) {
+        List<Frame> stack = new ArrayList<>();
+        int memberFirst = -1;   // first token of the member being read (annotations included)
+        int memberStart = -1;   // first token after its annotations
+        boolean assigned = false;
+
+        int i = 0;
+        while (i < n) {
+            Frame top = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+            boolean memberLevel = top == null ? true : top.typeBody;
+            boolean methodsHere = top == null ? membersAtTop : top.typeBody && !top.enumConstants;
+            String owner = top == null ? "" : top.owner;
+
+            if (isSym(i, '{')) {
+                // a block that is not a declaration body: initializer, lambda, array init, anonymous class
+                stack.add(new Frame(false, false, owner, null, null, null, -1, -1, -1));
+                memberFirst = memberStart = -1;
+                i++;
+                continue;
+            }
+            if (isSym(i, '}')) {
+                if (top != null) {
+                    stack.remove(stack.size() - 1);
+                    if (top.kind != null) add(top.kind, top.name, top.params, parentOf(top), top.annotationStart, top.start, top.bodyStart, tEnd[i]);
+                }
+                memberFirst = memberStart = -1;
+                assigned = false;
+                i++;
+                continue;
+            }
+            if (isSym(i, ';')) {
+                memberFirst = memberStart = -1;
+                assigned = false;
+                if (top != null) top.enumConstants = false;
+                i++;
+                continue;
+            }
+
+            if (memberLevel) {
+                if (isSym(i, '@') && i + 1 < n && !isWord(i + 1, "interface")) {
+                    if (memberFirst < 0) memberFirst = i;
+                    i = skipAnnotation(i);
+                    continue;
+                }
+                if (memberFirst < 0) memberFirst = i;
+                if (memberStart < 0) memberStart = i;
+                if (isSym(i, '=')) assigned = true;
+            }
+
+            // type declaration (anywhere: members, local classes)
+            if (tKind[i] == IDENT && isTypeKeyword(i) && i + 1 < n && tKind[i + 1] == IDENT && !isSym(i - 1, '.')) {
+                // 'record' is only a keyword in front of a header
+                if (!isWord(i, "record") || isSym(i + 2, '(') || isSym(i + 2, '<')) {
+                    int open = findOpenBrace(i + 2);
+                    if (open > 0) {
+                        String name = text(i + 1);
+                        int aStart = memberLevel && memberFirst >= 0 ? tStart[memberFirst] : tStart[declStart(i)];
+                        int start = memberLevel && memberStart >= 0 ? tStart[memberStart] : tStart[declStart(i)];
+                        String inner = owner.isEmpty() ? name : owner + "." + name;
+                        stack.add(new Frame(true, isWord(i, "enum"), inner, Kind.TYPE, name, null, aStart, start, tStart[open]));
+                        memberFirst = memberStart = -1;
+                        assigned = false;
+                        i = open + 1;
+                        continue;
+                    }
+                }
+            }
+
+            // method / constructor: name(params) [throws ...] { or ;  -- only directly in a type body
+            if (methodsHere && memberLevel && !assigned && tKind[i] == IDENT && isSym(i + 1, '(') && !isStatementWord(i)) {
+                int close = matching(i + 1, '(', ')');
+                if (close > 0) {
+                    int j = close + 1;
+                    while (j < n && !isSym(j, '{') && !isSym(j, ';') && !isSym(j, '=') && !isSym(j, '}')) j++;
+                    if (j < n && (isSym(j, '{') || isSym(j, ';'))) {
+                        String name = text(i);
+                        String params = paramTypes(i + 2, close);
+                        int aStart = tStart[memberFirst >= 0 ? memberFirst : i];
+                        int start = tStart[memberStart >= 0 ? memberStart : i];
+                        if (isSym(j, ';')) {
+                            add(Kind.METHOD, name, params, owner, aStart, start, tStart[j], tEnd[j]); // abstract / interface
+                        } else {
+                            stack.add(new Frame(false, false, owner, Kind.METHOD, name, params, aStart, start, tStart[j]));
+                        }
+                        memberFirst = memberStart = -1;
+                        i = j + 1;
+                        continue;
+                    }
+                }
+            }
+            i++;
+        }
+    }
+
+    private static String parentOf(Frame f) {
+        if (f.kind != Kind.TYPE) return f.owner;
+        int dot = f.owner.lastIndexOf('.');
+        return dot < 0 ? "" : f.owner.substring(0, dot);
+    }
+
+    private void add(Kind kind, String name, String params, String owner, int annotationStart, int start, int bodyStart, int end) {
+        Decl d = new Decl(kind, name, params, owner, leadingComments(annotationStart), annotationStart, start, bodyStart, end);
+        decls.add(d);
+        byName.computeIfAbsent(name, k -> new ArrayList<>(1)).add(d);
+    }
+
+    // start of the comments directly above an offset (only whitespace between), or -1
+    private int leadingComments(int offset) {
+        int first = -1;
+        int at = offset;
+        int k = upperComment(at);
+        while (k >= 0) {
+            int e = cEnd[k];
+            boolean onlySpace = true;
+            for (int p = e; p < at && onlySpace; p++) onlySpace = Character.isWhitespace(text.charAt(p));
+            if (!onlySpace) break;
+            // a comment sharing its line with code before it belongs to that code
+            int ls = lineStarts[lineOf(cStart[k])];
+            boolean ownLine = true;
+            for (int p = ls; p < cStart[k] && ownLine; p++) ownLine = Character.isWhitespace(text.charAt(p));
+            if (!ownLine) break;
+            first = cStart[k];
+            at = cStart[k];
+            k--;
+        }
+        return first;
+    }
+
+    // index of the last comment ending at or before offset, or -1
+    private int upperComment(int offset) {
+        int lo = 0;
+        int hi = comments - 1;
+        int best = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cEnd[mid] <= offset) {
+                best = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return best;
+    }
+
+    // first modifier/annotation token of a local type declaration at i (walks back over modifiers)
+    private int declStart(int i) {
+        int s = i;
+        while (s > 0 && tKind[s - 1] == IDENT && isModifier(s - 1)) s--;
+        return s;
+    }
+
+    // '{' opening the body of the type declared at i (skips type parameters, record header, extends...)
+    private int findOpenBrace(int from) {
+        int depth = 0;
+        for (int j = from; j < n; j++) {
+            if (isSym(j, '(')) depth++;
+            else if (isSym(j, ')')) depth--;
+            else if (depth == 0 && isSym(j, '{')) return j;
+            else if (depth == 0 && (isSym(j, ';') || isSym(j, '}'))) return -1;
+        }
+        return -1;
+    }
+
+    private int matching(int open, char o, char c) {
+        int depth = 0;
+        for (int j = open; j < n; j++) {
+            if (isSym(j, o)) depth++;
+            else if (isSym(j, c) && --depth == 0) return j;
+        }
+        return -1;
+    }
+
+    private int skipAnnotation(int at) {
+        int j = at + 1;
+        if (j < n && tKind[j] == IDENT) j++; // qualified name: a.b.C
+        while (isSym(j, '.') && j + 1 < n && tKind[j + 1] == IDENT) j += 2;
+        if (isSym(j, '(')) {
+            int close = matching(j, '(', ')');
+            return close < 0 ? n : close + 1;
+        }
+        return j;
+    }
+
+    // erased parameter types between the parens: annotations, 'final', names, generics, qualifiers dropped
+    private String paramTypes(int from, int close) {
+        StringBuilder out = new StringBuilder();
+        StringBuilder type = new StringBuilder();
+        int angle = 0;
+        int lastIdentLen = -1; // length of type before the last identifier was appended
+        boolean any = false;
+        for (int j = from; j <= close; j++) {
+            if (j == close || (angle == 0 && isSym(j, ','))) {
+                if (lastIdentLen >= 0) type.setLength(lastIdentLen); // drop the parameter name
+                if (type.length() > 0) {
+                    if (any) out.append(',');
+                    out.append(type);
+                    any = true;
+                }
+                type.setLength(0);
+                lastIdentLen = -1;
+                continue;
+            }
+            if (isSym(j, '@')) {
+                j = skipAnnotation(j) - 1;
+                continue;
+            }
+            if (isSym(j, '<')) {
+                angle++;
+                continue;
+            }
+            if (isSym(j, '>')) {
+                angle--;
+                continue;
+            }
+            if (angle > 0) continue;
+            if (isSym(j, '.') && !(isSym(j + 1, '.') || isSym(j - 1, '.'))) {
+                // qualifier: keep only the simple name
+                type.setLength(0);
+                lastIdentLen = -1;
+                continue;
+            }
+            if (tKind[j] == IDENT) {
+                if (isWord(j, "final")) continue;
+                lastIdentLen = type.length();
+                type.append(text, tStart[j], tEnd[j]);
+            } else {
+                type.append(text, tStart[j], tEnd[j]);
+                if (!isSym(j, '.')) lastIdentLen = -1;
+            }
+        }
+        return out.toString();
+    }
+
+    private boolean isSym(int i, char c) {
+        return i >= 0 && i < n && tKind[i] == SYM && text.charAt(tStart[i]) == c;
+    }
+
+    private boolean isWord(int i, String w) {
+        if (i < 0 || i >= n || tKind[i] != IDENT || tEnd[i] - tStart[i] != w.length()) return false;
+        for (int k = 0; k < w.length(); k++) {
+            if (text.charAt(tStart[i] + k) != w.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    private String text(int i) {
+        return text.subSequence(tStart[i], tEnd[i]).toString();
+    }
+
+    private boolean isTypeKeyword(int i) {
+        return isWord(i, "class") || isWord(i, "interface") || isWord(i, "enum") || isWord(i, "record");
+    }
+
+    private boolean isModifier(int i) {
+        return isWord(i, "public") || isWord(i, "protected") || isWord(i, "private") || isWord(i, "static")
+                || isWord(i, "final") || isWord(i, "abstract") || isWord(i, "sealed") || isWord(i, "strictfp");
+    }
+
+    // words that are followed by '(' without being a declaration
+    private boolean isStatementWord(int i) {
+        return isWord(i, "if") || isWord(i, "for") || isWord(i, "while") || isWord(i, "switch") || isWord(i, "catch")
+                || isWord(i, "synchronized") || isWord(i, "return") || isWord(i, "new") || isWord(i, "throw")
+                || isWord(i, "super") || isWord(i, "this") || isWord(i, "try");
+    }
+
+    private static int[] lineStarts(CharSequence text) {
+        int[] starts = new int[64];
+        int count = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+                starts[count++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+}
@@ -0,0 +1,77 @@
+package com.QM4RS.agent.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * p50/p95/p99 of every RequestTimings phase, per model, over the whole chat history.
+ * Revisions without timings (older ones) and phases that were not measured are skipped.
+ */
+public class LatencyReport {
+
+    public record Row(String model, String metric, int samples, double p50, double p95, double p99) {}
+
+    private static final Map<String, Function<RequestTimings, Number>> METRICS = new LinkedHashMap<>();
+
+    static {
+        METRICS.put("total ms", t -> t.totalMs);
+        METRICS.put("pack ms", t -> t.packMs);
+        METRICS.put("serialize ms", t -> t.serializeMs);
+        METRICS.put("queue ms", t -> t.queueMs);
+        METRICS.put("connect ms", t -> t.connectMs);
+        METRICS.put("upload ms", t -> t.uploadMs);
+        METRICS.put("ttfb ms", t -> t.ttfbMs);
+        METRICS.put("stream ms", t -> t.streamMs);
+        METRICS.put("parse ms", t -> t.parseMs);
+        METRICS.put("render ms", t -> t.renderMs);
+        METRICS.put("KB up", t -> t.bytesUp == null ? null : t.bytesUp / 1024.0);
+        METRICS.put("KB down", t -> t.bytesDown == null ? null : t.bytesDown / 1024.0);
+        METRICS.put("tokens/s", t -> t.tokensPerSec);
+    }
+
+    // Every stored revision, streamed from the store without loading all chats at once
+    public static List<Row> compute(ChatStore store) throws IOException {
+        // model -> metric -> samples
+        Map<String, Map<String, List<Double>>> byModel = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        store.forEachTimings((model, timings) -> add(byModel, model, timings));
+        return rows(byModel);
+    }
+
+    private static void add(Map<String, Map<String, List<Double>>> byModel, String model, RequestTimings timings) {
+        if (timings == null) return;
+        if (model == null || model.isBlank()) model = "(unknown)";
+        Map<String, List<Double>> m = byModel.computeIfAbsent(model, k -> new LinkedHashMap<>());
+        for (var e : METRICS.entrySet()) {
+            Number v = e.getValue().apply(timings);
+            if (v != null) m.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(v.doubleValue());
+        }
+    }
+
+    private static List<Row> rows(Map<String, Map<String, List<Double>>> byModel) {
+
+        List<Row> out = new ArrayList<>();
+        for (var me : byModel.entrySet()) {
+            for (String metric : METRICS.keySet()) {
+                List<Double> values = me.getValue().get(metric);
+                if (values == null || values.isEmpty()) continue;
+                double[] v = values.stream().mapToDouble(Double::doubleValue).toArray();
+                Arrays.sort(v);
+                out.add(new Row(me.getKey(), metric, v.length,
+                        percentile(v, 50), percentile(v, 95), percentile(v, 99)));
+            }
+        }
+        return out;
+    }
+
+    // nearest-rank on sorted values
+    static double percentile(double[] sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
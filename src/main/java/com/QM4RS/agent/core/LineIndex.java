@@ -0,0 +1,107 @@
+package com.QM4RS.agent.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lines of one file plus a hash index of their whitespace-normalized form (trimmed, inner runs of
+ * whitespace collapsed to one space), so an anchor of k lines is found with one map lookup and k
+ * comparisons per candidate instead of a scan of the file. Matching ignores indentation, as the
+ * prompt promises the model.
+ */
+public class LineIndex {
+
+    private final List<String> lines;
+    private final String[] normalized;
+    // normalized line -> [count, line numbers ascending..., spare capacity]
+    private final Map<String, int[]> positions;
+
+    public LineIndex(List<String> lines) {
+        this.lines = lines;
+        this.normalized = new String[lines.size()];
+        this.positions = new HashMap<>(Math.max(16, lines.size() * 4 / 3));
+        for (int i = 0; i < normalized.length; i++) {
+            String n = normalize(lines.get(i));
+            normalized[i] = n;
+            int[] at = positions.get(n);
+            if (at == null) {
+                positions.put(n, new int[]{1, i});
+            } else {
+                if (at[0] + 1 == at.length) positions.put(n, at = Arrays.copyOf(at, at.length * 2));
+                at[++at[0]] = i;
+            }
+        }
+    }
+
+    public List<String> lines() {
+        return lines;
+    }
+
+    public int size() {
+        return lines.size();
+    }
+
+    public String normalizedLine(int i) {
+        return normalized[i];
+    }
+
+    /**
+     * Start lines of every occurrence of the given lines (compared normalized). Blank lines at the ends
+     * of the needle are ignored; an empty needle matches nothing.
+     */
+    public List<Integer> find(List<String> needle) {
+        List<String> n = new ArrayList<>(needle.size());
+        for (String s : needle) n.add(normalize(s));
+        while (!n.isEmpty() && n.get(0).isEmpty()) n.remove(0);
+        while (!n.isEmpty() && n.get(n.size() - 1).isEmpty()) n.remove(n.size() - 1);
+        if (n.isEmpty()) return List.of();
+
+        int[] starts = positions.get(n.get(0));
+        if (starts == null) return List.of();
+        List<Integer> out = new ArrayList<>(1);
+        for (int k0 = 1; k0 <= starts[0]; k0++) {
+            int start = starts[k0];
+            if (start + n.size() > normalized.length) break;
+            boolean ok = true;
+            for (int k = 1; k < n.size() && ok; k++) ok = normalized[start + k].equals(n.get(k));
+            if (ok) out.add(start);
+        }
+        return out;
+    }
+
+    /** Number of lines find() compares for the needle (blank lines at its ends dropped). */
+    public static int effectiveLength(List<String> needle) {
+        int from = 0;
+        int to = needle.size();
+        while (from < to && needle.get(from).isBlank()) from++;
+        while (to > from && needle.get(to - 1).isBlank()) to--;
+        return to - from;
+    }
+
+    public static String normalize(String line) {
+        String t = line.strip();
+        if (t.isEmpty()) return t;
+        StringBuilder sb = null;
+        boolean ws = false;
+        for (int i = 0; i < t.length(); i++) {
+            char c = t.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (sb == null) {
+                    sb = new StringBuilder(t.length());
+                    sb.append(t, 0, i);
+                }
+                ws = true;
+                continue;
+            }
+            if (sb != null) {
+                if (ws) sb.append(' ');
+                sb.append(c);
+            }
+            ws = false;
+        }
+        return sb == null ? t : sb.toString();
+    }
+}
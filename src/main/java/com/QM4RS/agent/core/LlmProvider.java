@@ -0,0 +1,52 @@
+package com.QM4RS.agent.core;
+
+import com.QM4RS.agent.core.OpenAIService.OpenAIResult;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A backend that turns a request (instruction + context pack) into model output.
+ * OpenAIService talks to the real Responses API; MockLlmProvider to a local fake of it.
+ */
+public interface LlmProvider {
+
+    String id();
+
+    void configure(String apiKey);
+
+    // Whether Send needs an API key for this provider
+    default boolean requiresApiKey() {
+        return true;
+    }
+
+    OpenAIResult generateDiff(String model, List<? extends CharSequence> inputParts) throws IOException, InterruptedException;
+
+    default OpenAIResult generateDiff(String model, String input) throws IOException, InterruptedException {
+        return generateDiff(model, List.of(input == null ? "" : input));
+    }
+
+    // Same request with an input that is already serialized (see RequestBodyWriter.encode)
+    OpenAIResult generateDiff(String model, RequestBodyWriter.EncodedInput input) throws IOException, InterruptedException;
+
+    void setResponseCache(ResponseCache cache);
+
+    RateLimitController.Stats getRateLimitStats();
+
+    static LlmProvider fromConfig(AppConfig cfg) throws IOException {
+        if (cfg != null && cfg.isMockProvider()) {
+            String dir = cfg.getMockOutputsDir();
+            return new MockLlmProvider(new MockLlmServer.Options(
+                    cfg.getMockLatencyMs(),
+                    cfg.getMockBytesPerSecond(),
+                    cfg.getMockErrorRate(),
+                    cfg.getMockRateLimitRate(),
+                    1,
+                    cfg.getMockSeed(),
+                    dir == null || dir.isBlank() ? null : Path.of(dir)
+            ));
+        }
+        return new OpenAIService();
+    }
+}
@@ -0,0 +1,80 @@
+package com.QM4RS.agent.core;
+
+import com.QM4RS.agent.core.OpenAIService.OpenAIResult;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Provider backed by an in-process MockLlmServer. Requests still go through OpenAIService over
+ * real HTTP, so rate limiting, retries, streaming and parsing are exercised exactly as in production.
+ */
+public class MockLlmProvider implements LlmProvider, AutoCloseable {
+
+    private final MockLlmServer server;
+    private OpenAIService client;
+    private ResponseCache cache;
+
+    public MockLlmProvider(MockLlmServer.Options options) throws IOException {
+        this.server = new MockLlmServer(options);
+    }
+
+    @Override
+    public String id() {
+        return "mock";
+    }
+
+    @Override
+    public boolean requiresApiKey() {
+        return false;
+    }
+
+    @Override
+    public void configure(String apiKey) {
+        // the mock accepts any key
+        client().configure(apiKey == null || apiKey.isBlank() ? "mock" : apiKey);
+    }
+
+    @Override
+    public OpenAIResult generateDiff(String model, List<? extends CharSequence> inputParts) throws IOException, InterruptedException {
+        return client().generateDiff(model, inputParts);
+    }
+
+    @Override
+    public OpenAIResult generateDiff(String model, RequestBodyWriter.EncodedInput input) throws IOException, InterruptedException {
+        return client().generateDiff(model, input);
+    }
+
+    @Override
+    public synchronized void setResponseCache(ResponseCache cache) {
+        this.cache = cache;
+        if (client != null) client.setResponseCache(cache);
+    }
+
+    @Override
+    public RateLimitController.Stats getRateLimitStats() {
+        return client().getRateLimitStats();
+    }
+
+    public MockLlmServer getServer() {
+        return server;
+    }
+
+    @Override
+    public void close() {
+        server.close();
+    }
+
+    private synchronized OpenAIService client() {
+        if (client == null) {
+            try {
+                client = new OpenAIService(server.start());
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not start mock LLM server: " + e.getMessage(), e);
+            }
+            client.configure("mock");
+            client.setResponseCache(cache);
+        }
+        return client;
+    }
+}
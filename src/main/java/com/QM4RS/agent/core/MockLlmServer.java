@@ -0,0 +1,285 @@
+package com.QM4RS.agent.core;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Embedded HTTP server that speaks the Responses API shape (POST /v1/responses) for offline
+ * load and regression testing. Latency, streaming speed, 5xx and 429 injection are configurable;
+ * outputs are canned snippets. Request n always behaves the same for a given seed.
+ */
+public class MockLlmServer implements AutoCloseable {
+
+    public record Options(
+            long latencyMs,          // delay before response headers
+            long bytesPerSecond,     // body streaming speed, 0 = unthrottled
+            double errorRate,        // share of requests answered with 500
+            double rateLimitRate,    // share of requests answered with 429
+            int retryAfterSeconds,   // retry-after sent with injected 429s
+            long seed,
+            Path outputsDir          // *.txt files used as canned outputs (null = built-in)
+    ) {
+        public static Options defaults() {
+            return new Options(300, 0, 0.0, 0.0, 1, 42L, null);
+        }
+    }
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final long RPM_LIMIT = 10_000;
+    private static final long TPM_LIMIT = 2_000_000;
+
+    private final Options options;
+    private final List<String> outputs;
+    private final AtomicLong requestSeq = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public MockLlmServer(Options options) throws IOException {
+        this.options = options == null ? Options.defaults() : options;
+        this.outputs = loadOutputs(this.options.outputsDir());
+    }
+
+    public synchronized URI start() throws IOException {
+        if (server == null) {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/v1/responses", this::handle);
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "mock-llm");
+                t.setDaemon(true);
+                return t;
+            });
+            server.setExecutor(executor);
+            server.start();
+        }
+        return getResponsesUri();
+    }
+
+    public synchronized URI getResponsesUri() {
+        if (server == null) throw new IllegalStateException("Mock server is not started.");
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/v1/responses");
+    }
+
+    public long requestCount() {
+        return requestSeq.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+                sendError(ex, 405, "method_not_allowed", "Use POST.");
+                return;
+            }
+
+            long n = requestSeq.incrementAndGet();
+            // SplittableRandom mixes its seed; java.util.Random's first draw barely moves for seed+1
+            SplittableRandom rnd = new SplittableRandom(options.seed() * 31 + n);
+
+            long inBytes;
+            try (InputStream in = ex.getRequestBody()) {
+                inBytes = in.transferTo(OutputStream.nullOutputStream());
+            }
+
+            sleepIo(options.latencyMs());
+
+            double roll = rnd.nextDouble();
+            if (roll < options.rateLimitRate()) {
+                ex.getResponseHeaders().add("retry-after", Integer.toString(options.retryAfterSeconds()));
+                addRateLimitHeaders(ex, 0, 0);
+                sendError(ex, 429, "rate_limit_exceeded", "Mock rate limit (injected).");
+                return;
+            }
+            if (roll < options.rateLimitRate() + options.errorRate()) {
+                sendError(ex, 500, "server_error", "Mock server error (injected).");
+                return;
+            }
+
+            String text = outputs.get((int) ((n - 1) % outputs.size()));
+            int inTok = (int) RateLimitController.estimateTokens(inBytes);
+            int outTok = (int) RateLimitController.estimateTokens(text.length());
+
+            addRateLimitHeaders(ex, RPM_LIMIT - 1, TPM_LIMIT - inTok);
+            ex.getResponseHeaders().add("Content-Type", "application/json");
+            ex.sendResponseHeaders(200, 0); // chunked
+
+            try (OutputStream out = throttled(ex.getResponseBody());
+                 JsonGenerator g = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+                g.writeStartObject();
+                g.writeStringField("id", "resp_mock_" + n);
+                g.writeStringField("object", "response");
+                g.writeStringField("status", "completed");
+                g.writeArrayFieldStart("output");
+                g.writeStartObject();
+                g.writeStringField("type", "message");
+                g.writeStringField("role", "assistant");
+                g.writeArrayFieldStart("content");
+                g.writeStartObject();
+                g.writeStringField("type", "output_text");
+                g.writeStringField("text", text);
+                g.writeEndObject();
+                g.writeEndArray();
+                g.writeEndObject();
+                g.writeEndArray();
+                g.writeObjectFieldStart("usage");
+                g.writeNumberField("input_tokens", inTok);
+                g.writeNumberField("output_tokens", outTok);
+                g.writeNumberField("total_tokens", inTok + outTok);
+                g.writeEndObject();
+                g.writeEndObject();
+            }
+        }
+    }
+
+    private void sendError(HttpExchange ex, int code, String type, String message) throws IOException {
+        byte[] body = ("{\"error\":{\"type\":\"" + type + "\",\"message\":\"" + message + "\"}}")
+                .getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().add("Content-Type", "application/json");
+        ex.sendResponseHeaders(code, body.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void addRateLimitHeaders(HttpExchange ex, long reqRemaining, long tokRemaining) {
+        var h = ex.getResponseHeaders();
+        h.add("x-ratelimit-limit-requests", Long.toString(RPM_LIMIT));
+        h.add("x-ratelimit-remaining-requests", Long.toString(Math.max(0, reqRemaining)));
+        h.add("x-ratelimit-reset-requests", "6ms");
+        h.add("x-ratelimit-limit-tokens", Long.toString(TPM_LIMIT));
+        h.add("x-ratelimit-remaining-tokens", Long.toString(Math.max(0, tokRemaining)));
+        h.add("x-ratelimit-reset-tokens", "1s");
+    }
+
+    // Paces writes to options.bytesPerSecond to mimic a slow stream
+    private OutputStream throttled(OutputStream out) {
+        long bps = options.bytesPerSecond();
+        if (bps <= 0) return out;
+        long startNanos = System.nanoTime();
+        return new FilterOutputStream(out) {
+            private long written = 0;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                int step = (int) Math.max(1, Math.min(len, bps / 20)); // ~50ms slices
+                for (int i = 0; i < len; i += step) {
+                    int c = Math.min(step, len - i);
+                    out.write(b, off + i, c);
+                    out.flush();
+                    written += c;
+                    long dueNanos = startNanos + written * 1_000_000_000L / bps;
+                    long ahead = dueNanos - System.nanoTime();
+                    if (ahead > 0) sleepIo(ahead / 1_000_000L);
+                }
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+        };
+    }
+
+    private static void sleepIo(long ms) throws IOException {
+        if (ms <= 0) return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static List<String> loadOutputs(Path dir) throws IOException {
+        List<String> out = new ArrayList<>();
+        if (dir != null && Files.isDirectory(dir)) {
+            try (Stream<Path> s = Files.list(dir)) {
+                for (Path p : s.filter(f -> f.toString().endsWith(".txt")).sorted().toList()) {
+                    out.add(Files.readString(p));
+                }
+            }
+        }
+        if (out.isEmpty()) out.addAll(BUILT_IN_OUTPUTS);
+        return out;
+    }
+
+    private static final List<String> BUILT_IN_OUTPUTS = List.of(
+            """
+            // FILE: src/main/java/com/example/Greeter.java
+            // OPERATION: REPLACE_METHOD
+            // ANCHOR: public String greet(String name) {
+            // LANGUAGE: java
+            public String greet(String name) {
+                if (name == null || name.isBlank()) return "Hello!";
+                return "Hello, " + name.trim() + "!";
+            }""",
+            """
+            // FILE: src/main/java/com/example/Greeter.java
+            // OPERATION: INSERT_AFTER_ANCHOR
+            // ANCHOR: public class Greeter {
+            // LANGUAGE: java
+                private static final String DEFAULT_NAME = "world";
+
+            // FILE: src/main/java/com/example/GreeterTest.java
+            // OPERATION: CREATE_FILE
+            // LANGUAGE: java
+            package com.example;
+
+            class GreeterTest {
+            }""",
+            """
+            # FILE: scripts/build.sh
+            # OPERATION: REPLACE_ANCHOR
+            # ANCHOR: ./gradlew build
+            # LANGUAGE: plaintext
+            ./gradlew build --parallel"""
+    );
+
+    // Standalone: point any Responses API client at the printed URL
+    public static void main(String[] args) throws Exception {
+        Options d = Options.defaults();
+        Options o = new Options(
+                Long.getLong("mock.latencyMs", d.latencyMs()),
+                Long.getLong("mock.bytesPerSecond", d.bytesPerSecond()),
+                Double.parseDouble(System.getProperty("mock.errorRate", "0")),
+                Double.parseDouble(System.getProperty("mock.rateLimitRate", "0")),
+                Integer.getInteger("mock.retryAfterSeconds", d.retryAfterSeconds()),
+                Long.getLong("mock.seed", d.seed()),
+                System.getProperty("mock.outputsDir") == null ? null : Path.of(System.getProperty("mock.outputsDir"))
+        );
+        MockLlmServer server = new MockLlmServer(o);
+        System.out.println("Mock Responses API at " + server.start());
+        Thread.currentThread().join();
+    }
+}
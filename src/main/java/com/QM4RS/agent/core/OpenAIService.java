@@ -1,35 +1,69 @@
 package com.QM4RS.agent.core;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
-public class OpenAIService {
+public class OpenAIService implements LlmProvider {
 
     public record OpenAIResult(
             String diffText,
             String rawText,
             Integer inputTokens,
             Integer outputTokens,
-            Integer totalTokens
+            Integer totalTokens,
+            boolean cached,
+            RequestTimings timings   // may be shared by coalesced callers: copy before changing
     ) {}
 
-    private static final URI RESPONSES_URI = URI.create("https://api.openai.com/v1/responses");
+    public static final URI RESPONSES_URI = URI.create("https://api.openai.com/v1/responses");
 
     private final HttpClient http = HttpClient.newBuilder()
             .connectTimeout(Duration.ofSeconds(20))
             .build();
 
-    private final ObjectMapper om = new ObjectMapper();
+    private static final int MAX_ATTEMPTS = 5;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(2);
+
+    private static final int DEBUG_RAW_BYTES = 64 * 1024;
+
+    private final ResponseStreamParser responseParser = new ResponseStreamParser();
+
+    private final RateLimitController rateLimiter = new RateLimitController();
+
+    private final ConcurrentHashMap<String, CompletableFuture<OpenAIResult>> inFlight = new ConcurrentHashMap<>();
+
+    private volatile ResponseCache responseCache;
+
+    private final URI responsesUri;
 
     private String apiKey;
 
+    public OpenAIService() {
+        this(RESPONSES_URI);
+    }
+
+    // Any endpoint speaking the Responses API shape (e.g. MockLlmServer)
+    public OpenAIService(URI responsesUri) {
+        this.responsesUri = responsesUri == null ? RESPONSES_URI : responsesUri;
+    }
+
+    @Override
+    public String id() {
+        return "openai";
+    }
+
+    @Override
     public void configure(String apiKey) {
         if (apiKey == null || apiKey.isBlank()) {
             throw new IllegalArgumentException("API Key is empty.");
@@ -37,90 +71,196 @@ public class OpenAIService {
         this.apiKey = apiKey.trim();
     }
 
-    public OpenAIResult generateDiff(String model, String input) throws IOException, InterruptedException {
+    // inputParts are streamed into the body in order (e.g. instruction + pack) without being concatenated
+    @Override
+    public OpenAIResult generateDiff(String model, List<? extends CharSequence> inputParts) throws IOException, InterruptedException {
+        model = checkModel(model);
+        return call(model, new RequestBodyWriter(model, inputParts));
+    }
+
+    // Fan-out: the input was serialized once and is shared by several calls in parallel
+    @Override
+    public OpenAIResult generateDiff(String model, RequestBodyWriter.EncodedInput input) throws IOException, InterruptedException {
+        model = checkModel(model);
+        return call(model, new RequestBodyWriter(model, input));
+    }
+
+    private String checkModel(String model) {
         if (apiKey == null || apiKey.isBlank()) throw new IllegalStateException("OpenAI client is not configured.");
-        if (model == null || model.isBlank()) model = "gpt-4.1";
+        return model == null || model.isBlank() ? "gpt-4.1" : model;
+    }
 
-        String bodyJson = """
-        {
-          "model": %s,
-          "input": %s
+    private OpenAIResult call(String model, RequestBodyWriter body) throws IOException, InterruptedException {
+        PipelineEvents.LlmCall ev = new PipelineEvents.LlmCall();
+        ev.begin();
+        try {
+            OpenAIResult r = generate(model, body, ev);
+            if (ev.shouldCommit()) {
+                ev.cacheHit = r.cached();
+                if (r.inputTokens() != null) ev.inputTokens = r.inputTokens();
+                if (r.outputTokens() != null) ev.outputTokens = r.outputTokens();
+                RequestTimings t = r.timings();
+                if (t != null && !ev.coalesced) {
+                    if (t.bytesUp != null) ev.bytesUp = t.bytesUp;
+                    if (t.bytesDown != null) ev.bytesDown = t.bytesDown;
+                    if (t.attempts != null) ev.attempts = t.attempts;
+                }
+            }
+            return r;
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            ev.error = ex.getClass().getSimpleName() + ": " + ex.getMessage();
+            throw ex;
+        } finally {
+            if (ev.shouldCommit()) {
+                ev.model = model;
+                ev.endpoint = responsesUri.toString();
+                ev.commit();
+            }
         }
-        """.formatted(
-                encouragesJsonString(model),
-                encouragesJsonString(input)
-        );
+    }
 
+    private OpenAIResult generate(String model, RequestBodyWriter body, PipelineEvents.LlmCall ev)
+            throws IOException, InterruptedException {
+        ev.inputChars = body.inputChars();
+        long estTokens = RateLimitController.estimateTokens(body.inputChars());
+
+        // Same request => same answer: serve from cache, or piggyback on an identical call in flight
+        long s0 = System.nanoTime();
+        String key = body.cacheKey(id() + " " + responsesUri);
+        long serializeMs = RequestTimings.millisBetween(s0, System.nanoTime());
+        ResponseCache cache = responseCache;
+        if (cache != null) {
+            Optional<OpenAIResult> hit = cache.get(key);
+            if (hit.isPresent()) {
+                OpenAIResult h = hit.get();
+                RequestTimings t = new RequestTimings();
+                t.serializeMs = serializeMs;
+                return new OpenAIResult(h.diffText(), h.rawText(), h.inputTokens(), h.outputTokens(),
+                        h.totalTokens(), true, t);
+            }
+        }
+
+        CompletableFuture<OpenAIResult> mine = new CompletableFuture<>();
+        CompletableFuture<OpenAIResult> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            ev.coalesced = true;
+            return awaitInFlight(existing);
+        }
+
+        try {
+            OpenAIResult r = send(body, estTokens, serializeMs);
+            if (cache != null) {
+                try {
+                    cache.put(key, model, r);
+                } catch (IOException ignored) {
+                    // cache is best-effort
+                }
+            }
+            mine.complete(r);
+            return r;
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private OpenAIResult send(RequestBodyWriter body, long estTokens, long serializeMs) throws IOException, InterruptedException {
+        RequestBodyWriter.UploadProbe probe = new RequestBodyWriter.UploadProbe();
         HttpRequest req = HttpRequest.newBuilder()
-                .uri(RESPONSES_URI)
-                .timeout(Duration.ofMinutes(2))
+                .uri(responsesUri)
+                .timeout(REQUEST_TIMEOUT)
                 .header("Authorization", "Bearer " + apiKey)
                 .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(bodyJson))
+                .POST(body.publisher(REQUEST_TIMEOUT, probe))
                 .build();
 
-        HttpResponse<String> resp = http.send(req, HttpResponse.BodyHandlers.ofString());
-        String raw = resp.body() == null ? "" : resp.body();
+        long queueNanos = 0;
+        for (int attempt = 1; ; attempt++) {
+            long q0 = System.nanoTime();
+            rateLimiter.acquire(estTokens);
+            long sendStart = System.nanoTime();
+            queueNanos += sendStart - q0;
 
-        if (resp.statusCode() < 200 || resp.statusCode() >= 300) {
-            throw new IOException("OpenAI HTTP " + resp.statusCode() + ": " + raw);
-        }
+            HttpResponse<InputStream> resp = http.send(req, HttpResponse.BodyHandlers.ofInputStream());
+            long headersAt = System.nanoTime();
+            rateLimiter.onResponse(resp.statusCode(), resp.headers());
 
-        JsonNode root = om.readTree(raw);
+            // Raw bytes only ever land in a bounded ring for the Debug tab
+            DebugRingBuffer raw = new DebugRingBuffer(DEBUG_RAW_BYTES);
+            try (InputStream in = raw.tee(resp.body())) {
+                int code = resp.statusCode();
+                if (code >= 200 && code < 300) {
+                    ResponseStreamParser.Parsed parsed = responseParser.parse(in);
+                    in.transferTo(OutputStream.nullOutputStream());
+                    long doneAt = System.nanoTime();
 
-        String outText = extractOutputText(root);
-        Integer inTok = intOrNull(root.at("/usage/input_tokens"));
-        Integer outTok = intOrNull(root.at("/usage/output_tokens"));
-        Integer totalTok = intOrNull(root.at("/usage/total_tokens"));
+                    RequestTimings t = new RequestTimings();
+                    t.serializeMs = serializeMs;
+                    t.queueMs = queueNanos / 1_000_000L;
+                    t.attempts = attempt;
+                    long subscribed = probe.subscribedNanos();
+                    long uploaded = probe.completedNanos();
+                    if (subscribed >= sendStart) t.connectMs = RequestTimings.millisBetween(sendStart, subscribed);
+                    if (uploaded >= subscribed && uploaded > 0 && subscribed >= sendStart) {
+                        t.uploadMs = RequestTimings.millisBetween(subscribed, uploaded);
+                    }
+                    t.ttfbMs = RequestTimings.millisBetween(uploaded >= sendStart ? uploaded : sendStart, headersAt);
+                    t.streamMs = RequestTimings.millisBetween(headersAt, doneAt);
+                    t.bytesUp = probe.bytes();
+                    t.bytesDown = raw.totalBytes();
+                    long genMs = t.ttfbMs + t.streamMs;
+                    if (parsed.outputTokens() != null && genMs > 0) {
+                        t.tokensPerSec = parsed.outputTokens() * 1000.0 / genMs;
+                    }
 
-        return new OpenAIResult(outText, raw, inTok, outTok, totalTok);
-    }
+                    return new OpenAIResult(parsed.outputText(), raw.text(),
+                            parsed.inputTokens(), parsed.outputTokens(), parsed.totalTokens(), false, t);
+                }
 
-    private static String extractOutputText(JsonNode root) {
-        if (root == null) return "";
-
-        StringBuilder sb = new StringBuilder();
-        JsonNode output = root.get("output");
-        if (output != null && output.isArray()) {
-            for (JsonNode item : output) {
-                JsonNode content = item.get("content");
-                if (content != null && content.isArray()) {
-                    for (JsonNode c : content) {
-                        String type = textOrEmpty(c.get("type"));
-                        if ("output_text".equals(type)) {
-                            String t = textOrEmpty(c.get("text"));
-                            if (!t.isBlank()) {
-                                if (sb.length() > 0) sb.append("\n");
-                                sb.append(t);
-                            }
-                        }
-                    }
+                in.transferTo(OutputStream.nullOutputStream());
+                String errorText = raw.text();
+                if (!isRetryable(code, errorText) || attempt >= MAX_ATTEMPTS) {
+                    throw new IOException("OpenAI HTTP " + code + ": " + errorText);
                 }
             }
-        }
 
-        if (sb.isEmpty()) {
-            String maybe = textOrEmpty(root.get("output_text"));
-            if (!maybe.isBlank()) return maybe;
+            rateLimiter.onRetry();
+            long backoff = rateLimiter.backoffMillis(attempt, resp.headers());
+            Thread.sleep(backoff);
+            queueNanos += backoff * 1_000_000L;
         }
+    }
 
-        return sb.toString().trim();
+    private static OpenAIResult awaitInFlight(CompletableFuture<OpenAIResult> f) throws IOException, InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            Throwable c = ex.getCause();
+            if (c instanceof IOException io) throw io;
+            if (c instanceof InterruptedException ie) throw new IOException("Coalesced request was cancelled.", ie);
+            if (c instanceof RuntimeException re) throw re;
+            throw new IOException(c);
+        }
     }
 
-    private static Integer intOrNull(JsonNode n) {
-        if (n == null || n.isMissingNode() || n.isNull()) return null;
-        if (n.isInt()) return n.intValue();
-        if (n.isNumber()) return n.numberValue().intValue();
-        try { return Integer.parseInt(n.asText()); } catch (Exception ignored) { return null; }
+    // null disables caching (in-flight de-duplication stays on)
+    @Override
+    public void setResponseCache(ResponseCache cache) {
+        this.responseCache = cache;
     }
 
-    private static String textOrEmpty(JsonNode n) {
-        if (n == null || n.isMissingNode() || n.isNull()) return "";
-        return n.asText("");
+    @Override
+    public RateLimitController.Stats getRateLimitStats() {
+        return rateLimiter.snapshot();
     }
 
-    // json-escape string safely using ObjectMapper
-    private String encouragesJsonString(String s) throws IOException {
-        return om.writeValueAsString(s == null ? "" : s);
+    // 429 and transient 5xx are retried; a 429 for exhausted quota never recovers by waiting.
+    private static boolean isRetryable(int code, String body) {
+        if (code == 429) {
+            return body == null || !body.contains("insufficient_quota");
+        }
+        return code == 500 || code == 502 || code == 503 || code == 504;
     }
 }
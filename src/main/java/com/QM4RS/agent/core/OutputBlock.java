@@ -7,7 +7,47 @@ public class OutputBlock {
     public String target;     // FQCN or FQCN#method
     public String anchor;     // "after line N"
     public String note;
-    public String code;       // raw code
+
+    private String code;      // raw code
+    private String body;      // code without snippet header comments (what gets applied)
+
+    // set by OutputParser: code and body are cut from the response on first use
+    private CharSequence source;
+    private int codeStart;
+    private int codeEnd;
+    private int bodyStart;
+    private boolean legacy;
+
+    public String code() {
+        String c = code;
+        if (c == null && source != null) code = c = OutputParser.cut(source, codeStart, codeEnd, legacy, 1);
+        return c;
+    }
+
+    public String body() {
+        String b = body;
+        if (b != null) return b;
+        if (source == null || legacy) return code();
+        body = b = OutputParser.cut(source, bodyStart, codeEnd, false, 2);
+        return b;
+    }
+
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    public void setBody(String body) {
+        this.body = body;
+    }
+
+    // legacy blocks: body is the code, lines starting with "code:" are left out
+    void setRange(CharSequence source, int codeStart, int codeEnd, int bodyStart, boolean legacy) {
+        this.source = source;
+        this.codeStart = codeStart;
+        this.codeEnd = codeEnd;
+        this.bodyStart = bodyStart;
+        this.legacy = legacy;
+    }
 
     @Override
     public String toString() {
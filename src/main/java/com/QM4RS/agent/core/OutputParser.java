@@ -4,210 +4,311 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
+/**
+ * Splits a model response into OutputBlocks (legacy CHANGE:/code: format, else comment-header snippets).
+ *
+ * One pass over the lines of the original text, feeding both formats; nothing is copied while
+ * scanning: blocks record where their code and body start and end, and OutputBlock cuts those strings
+ * on first use (with "\r\n" read as "\n"). Only header lines are turned into strings.
+ */
 public class OutputParser {
 
-    public List<OutputBlock> parse(String text) {
+    // blocks keep a reference to text: it must not change afterwards
+    public List<OutputBlock> parse(CharSequence text) {
+        PipelineEvents.OutputParse ev = new PipelineEvents.OutputParse();
+        ev.begin();
+        List<OutputBlock> blocks = parseFormats(text, ev);
+        if (ev.shouldCommit()) {
+            ev.chars = text == null ? 0 : text.length();
+            ev.blocks = blocks.size();
+            ev.commit();
+        }
+        return blocks;
+    }
+
+    private List<OutputBlock> parseFormats(CharSequence text, PipelineEvents.OutputParse ev) {
         List<OutputBlock> blocks = new ArrayList<>();
-        if (text == null || text.isBlank()) return blocks;
+        ev.format = "none";
+        if (text == null || isBlank(text, 0, text.length())) return blocks;
 
-        String normalized = text.replace("\r\n", "\n");
+        Scan scan = new Scan(text);
+        scan.run();
 
-        // 1) Try legacy format first (CHANGE:/code:)
-        List<OutputBlock> legacy = parseLegacy(normalized);
-        if (!legacy.isEmpty()) return legacy;
+        // 1) Legacy format first (CHANGE:/code:)
+        if (scan.legacyHasAction) {
+            ev.format = "legacy";
+            return scan.legacy;
+        }
 
-        // 2) Try snippet format (PromptTemplates headers in comments)
-        List<OutputBlock> snippets = parseSnippets(normalized);
-        if (!snippets.isEmpty()) return snippets;
+        // 2) Snippet format (PromptTemplates headers in comments)
+        if (!scan.snippets.isEmpty()) {
+            ev.format = "snippet";
+            return scan.snippets;
+        }
 
         return blocks;
     }
 
-    // ---------------- Legacy format: CHANGE: ... code: ----------------
+    /**
+     * Code of a block: text[start, end) with "\r\n" as "\n", trailing whitespace stripped. Legacy ranges
+     * leave out lines starting with "code:" (a repeated marker inside the code). Snippet bodies drop up to
+     * two '\r' before a newline, as the split used to normalize them twice.
+     */
+    static String cut(CharSequence text, int start, int end, boolean skipCodeMarkers, int maxCr) {
+        if (start >= end) return "";
+        StringBuilder sb = new StringBuilder(end - start);
+        int ls = start;
+        while (ls < end) {
+            int nl = indexOf(text, '\n', ls, end);
+            int next = nl < 0 ? end : nl + 1;
+            int le = nl < 0 ? end : nl;
+            for (int k = 0; k < maxCr && le > ls && text.charAt(le - 1) == '\r'; k++) le--;
+            if (!(skipCodeMarkers && startsWith(text, ls, le, "code:"))) {
+                sb.append(text, ls, le);
+                if (nl >= 0) sb.append('\n');
+            }
+            ls = next;
+        }
+        int e = sb.length();
+        while (e > 0 && Character.isWhitespace(sb.charAt(e - 1))) e--;
+        sb.setLength(e);
+        return sb.toString();
+    }
 
-    private List<OutputBlock> parseLegacy(String text) {
-        List<OutputBlock> blocks = new ArrayList<>();
-        String[] lines = text.split("\n", -1);
+    // One walk over the lines, driving the legacy and the snippet state machines side by side
+    private final class Scan {
+        final CharSequence text;
+        final int len;
+
+        // legacy
+        final List<OutputBlock> legacy = new ArrayList<>();
+        boolean legacyHasAction;
+        OutputBlock cur;
+        boolean inCode;
+        int codeStart = -1;
+
+        // snippets
+        final List<OutputBlock> snippets = new ArrayList<>();
+        int snippetStart;
+        // start of the next non-blank line after a blank run (len + 1: none), looked up once per run
+        int peekStart = -1;
+        boolean peekIsHeader;
+
+        Scan(CharSequence text) {
+            this.text = text;
+            this.len = text.length();
+        }
 
-        OutputBlock cur = null;
-        boolean inCode = false;
-        StringBuilder code = new StringBuilder();
+        void run() {
+            int ls = 0;
+            while (true) {
+                int nl = indexOf(text, '\n', ls, len);
+                int le = lineEnd(ls, nl);
+                int next = nl < 0 ? len : nl + 1;
 
-        for (String line : lines) {
-            if (line.equals("CHANGE:")) {
-                if (cur != null) {
-                    cur.code = code.toString().stripTrailing();
-                    blocks.add(cur);
-                }
-                cur = new OutputBlock();
-                inCode = false;
-                code.setLength(0);
-                continue;
+                legacyLine(ls, le);
+                snippetLine(ls, le, next);
+
+                if (nl < 0) break;
+                ls = next;
             }
+            finishLegacy(len);
+            int s = snippetStart;
+            int e = len;
+            while (s < e && Character.isWhitespace(text.charAt(s))) s++;
+            while (e > s && Character.isWhitespace(text.charAt(e - 1))) e--;
+            if (s < e) addSnippet(s, e);
+        }
 
-            if (cur == null) continue;
+        private int lineEnd(int ls, int nl) {
+            if (nl < 0) return len;
+            return nl > ls && text.charAt(nl - 1) == '\r' ? nl - 1 : nl;
+        }
 
-            if (line.startsWith("code:")) {
-                inCode = true;
-                continue;
-            }
+        // ---------------- legacy: CHANGE: ... code: ----------------
 
-            if (inCode) {
-                code.append(line).append("\n");
-                continue;
+        private void legacyLine(int ls, int le) {
+            if (le - ls == 7 && startsWith(text, ls, le, "CHANGE:")) {
+                finishLegacy(ls);
+                cur = new OutputBlock();
+                inCode = false;
+                codeStart = -1;
+                return;
             }
+            if (cur == null) return;
 
-            if (line.startsWith("file:")) cur.file = line.substring("file:".length()).trim();
-            else if (line.startsWith("action:")) cur.action = line.substring("action:".length()).trim();
-            else if (line.startsWith("range:")) cur.range = line.substring("range:".length()).trim();
-            else if (line.startsWith("target:")) cur.target = line.substring("target:".length()).trim();
-            else if (line.startsWith("anchor:")) cur.anchor = line.substring("anchor:".length()).trim();
-            else if (line.startsWith("note:")) cur.note = line.substring("note:".length()).trim();
+            if (startsWith(text, ls, le, "code:")) {
+                if (!inCode) codeStart = nextLineStart(le);
+                inCode = true;
+                return;
+            }
+            if (inCode) return;
+
+            if (startsWith(text, ls, le, "file:")) cur.file = value(ls, le, "file:");
+            else if (startsWith(text, ls, le, "action:")) cur.action = value(ls, le, "action:");
+            else if (startsWith(text, ls, le, "range:")) cur.range = value(ls, le, "range:");
+            else if (startsWith(text, ls, le, "target:")) cur.target = value(ls, le, "target:");
+            else if (startsWith(text, ls, le, "anchor:")) cur.anchor = value(ls, le, "anchor:");
+            else if (startsWith(text, ls, le, "note:")) cur.note = value(ls, le, "note:");
         }
 
-        if (cur != null) {
-            cur.code = code.toString().stripTrailing();
-            blocks.add(cur);
+        private void finishLegacy(int end) {
+            if (cur == null) return;
+            int s = codeStart < 0 ? end : Math.min(codeStart, end);
+            cur.setRange(text, s, end, s, true);
+            legacy.add(cur);
+            if (cur.action != null) legacyHasAction = true;
+            cur = null;
         }
 
-        // If we saw no CHANGE:, treat as not legacy
-        boolean hasAnyNonRaw = blocks.stream().anyMatch(b -> b != null && b.action != null);
-        return hasAnyNonRaw ? blocks : new ArrayList<>();
-    }
-
-    // ---------------- Snippet format: comment headers + code ----------------
-    //
-    // Rules we implement:
-    // - Snippets are separated by ONE blank line (we accept 1+ blank lines to be tolerant)
-    // - Header lines can be in //, #, or <!-- --> comments
-    // - Header keys: FILE:, OPERATION:, ANCHOR:, LANGUAGE:
-    // - After headers, remaining lines are code to paste
-    //
-    // We store:
-    // - block.file  <- FILE
-    // - block.action <- OPERATION (mapped to your action field)
-    // - block.anchor <- ANCHOR
-    // - block.code <- full snippet text (headers + code) to keep display-friendly
-    //
-    private List<OutputBlock> parseSnippets(String text) {
-        List<String> rawSnippets = splitIntoSnippets(text);
-        List<OutputBlock> out = new ArrayList<>();
-
-        for (String snippet : rawSnippets) {
-            OutputBlock b = parseOneSnippet(snippet);
-            if (b != null) out.add(b);
+        private int nextLineStart(int le) {
+            int nl = indexOf(text, '\n', le, len);
+            return nl < 0 ? len : nl + 1;
         }
 
-        // if nothing parseable, return empty (caller will fallback to RAW)
-        return out;
-    }
-
-    private List<String> splitIntoSnippets(String text) {
-        List<String> snippets = new ArrayList<>();
-        String[] lines = text.split("\n", -1);
-
-        StringBuilder cur = new StringBuilder();
-        int blankRun = 0;
-
-        for (int i = 0; i < lines.length; i++) {
-            String line = lines[i];
+        private String value(int ls, int le, String key) {
+            return text.subSequence(ls + key.length(), le).toString().trim();
+        }
 
-            boolean blank = line.trim().isEmpty();
-            if (blank) {
-                blankRun++;
-            } else {
-                blankRun = 0;
-            }
+        // ---------------- snippets: comment headers + code ----------------
+        //
+        // - Snippets are separated by ONE blank line (1+ accepted) followed by a header line
+        // - Header lines can be in //, #, or <!-- --> comments
+        // - Header keys: FILE:, OPERATION:, ANCHOR:, LANGUAGE:
+        // - block.code is the whole snippet (headers + code, display-friendly), block.body the code after
+        //   the headers
+        //
+        // A blank line ends the snippet only when the next non-blank line is a header; the blank line
+        // itself belongs to neither snippet, and the next snippet starts on the line after it.
+
+        private void snippetLine(int ls, int le, int next) {
+            if (ls <= snippetStart || !isBlank(text, ls, le)) return;
+            if (peekStart <= ls) peek(next);
+            if (peekStart > len || !peekIsHeader) return;
+
+            int e = ls;
+            while (e > snippetStart && Character.isWhitespace(text.charAt(e - 1))) e--;
+            if (e > snippetStart) addSnippet(snippetStart, e);
+            snippetStart = next;
+        }
 
-            // We consider a snippet boundary if we had at least 1 blank line AND
-            // next non-blank appears to start a header (FILE/OPERATION/LANGUAGE/ANCHOR in comment)
-            // This prevents splitting inside code where blank lines are common.
-            if (blank && cur.length() > 0) {
-                // peek ahead to next non-blank
-                int j = i + 1;
-                while (j < lines.length && lines[j].trim().isEmpty()) j++;
-                if (j < lines.length) {
-                    String next = lines[j];
-                    if (looksLikeHeaderLine(next)) {
-                        // flush current snippet
-                        snippets.add(cur.toString().stripTrailing());
-                        cur.setLength(0);
-                        continue;
-                    }
+        private void peek(int from) {
+            int ls = from;
+            while (ls < len) {
+                int nl = indexOf(text, '\n', ls, len);
+                int le = lineEnd(ls, nl);
+                if (!isBlank(text, ls, le)) {
+                    peekStart = ls;
+                    peekIsHeader = mayBeComment(ls, le) && looksLikeHeaderLine(text.subSequence(ls, le).toString());
+                    return;
                 }
+                if (nl < 0) break;
+                ls = nl + 1;
             }
-
-            cur.append(line);
-            if (i < lines.length - 1) cur.append("\n");
+            peekStart = len + 1;
+            peekIsHeader = false;
         }
 
-        String last = cur.toString().strip();
-        if (!last.isEmpty()) snippets.add(last);
-
-        return snippets;
-    }
-
-    private OutputBlock parseOneSnippet(String snippet) {
-        if (snippet == null || snippet.isBlank()) return null;
+        private boolean mayBeComment(int ls, int le) {
+            int i = ls;
+            while (i < le && text.charAt(i) <= ' ') i++;
+            if (i == le) return false;
+            char c = text.charAt(i);
+            return c == '/' || c == '#' || c == '<';
+        }
 
-        String[] lines = snippet.replace("\r\n", "\n").split("\n", -1);
+        // [s, e): one snippet, trailing whitespace already stripped
+        private void addSnippet(int s, int e) {
+            String file = null;
+            String op = null;
+            String anchor = null;
+            String lang = null;
+
+            int bodyStart = e;
+            boolean sawAnyHeader = false;
+
+            int ls = s;
+            while (ls < e) {
+                int nl = indexOf(text, '\n', ls, e);
+                int le = nl < 0 ? e : lineEnd(ls, nl);
+                int next = nl < 0 ? e : nl + 1;
+
+                String raw = mayBeComment(ls, le) ? text.subSequence(ls, le).toString() : null;
+                String header = raw == null ? null : extractHeaderFromCommentLine(raw);
+                if (header == null) {
+                    // stop header scan at first non-header (after having seen at least one header)
+                    if (sawAnyHeader) {
+                        bodyStart = ls;
+                        break;
+                    }
+                    // If we haven't seen any header yet, we keep scanning only if this is blank/comment noise
+                    // but if it's real code, stop early.
+                    if (!isBlank(text, ls, le) && (raw == null || !isCommentLine(raw))) {
+                        return; // doesn't look like a snippet at all
+                    }
+                    ls = next;
+                    if (nl < 0) break;
+                    continue;
+                }
 
-        String file = null;
-        String op = null;
-        String anchor = null;
-        String lang = null;
+                sawAnyHeader = true;
+                bodyStart = next;
 
-        int headerEndExclusive = 0;
-        boolean sawAnyHeader = false;
+                String h = header.trim();
+                int colon = h.indexOf(':');
+                if (colon > 0) {
+                    String key = h.substring(0, colon).trim().toUpperCase(Locale.ROOT);
+                    String val = h.substring(colon + 1).trim();
 
-        for (int i = 0; i < lines.length; i++) {
-            String raw = lines[i];
-            String header = extractHeaderFromCommentLine(raw);
-            if (header == null) {
-                // stop header scan at first non-header (after having seen at least one header)
-                if (sawAnyHeader) {
-                    headerEndExclusive = i;
-                    break;
-                }
-                // If we haven't seen any header yet, we keep scanning only if this is blank/comment noise
-                // but if it's real code, stop early.
-                if (!raw.trim().isEmpty() && !isCommentLine(raw)) {
-                    return null; // doesn't look like a snippet at all
+                    switch (key) {
+                        case "FILE" -> file = val;
+                        case "OPERATION" -> op = val;
+                        case "ANCHOR" -> anchor = anchor == null ? val : anchor + "\n" + val; // one header line per anchor line
+                        case "LANGUAGE" -> lang = val;
+                    }
                 }
-                continue;
+                if (nl < 0) break;
+                ls = next;
             }
 
-            sawAnyHeader = true;
-            headerEndExclusive = i + 1;
-
-            String h = header.trim();
-            int colon = h.indexOf(':');
-            if (colon <= 0) continue;
-
-            String key = h.substring(0, colon).trim().toUpperCase(Locale.ROOT);
-            String val = h.substring(colon + 1).trim();
-
-            switch (key) {
-                case "FILE" -> file = val;
-                case "OPERATION" -> op = val;
-                case "ANCHOR" -> anchor = val;
-                case "LANGUAGE" -> lang = val;
-            }
+            if (!sawAnyHeader) return;
+            if (file == null || file.isBlank()) return;
+            if (op == null || op.isBlank()) return;
+
+            OutputBlock b = new OutputBlock();
+            b.file = file;
+            b.action = normalizeOperation(op); // stored in action field
+            b.anchor = anchor;
+            b.note = (lang == null || lang.isBlank()) ? null : ("LANGUAGE=" + lang);
+            b.setRange(text, s, e, Math.min(bodyStart, e), false);
+            snippets.add(b);
         }
+    }
 
-        if (!sawAnyHeader) return null;
-        if (file == null || file.isBlank()) return null;
-        if (op == null || op.isBlank()) return null;
+    private static boolean isBlank(CharSequence text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) > ' ') return false;
+        }
+        return true;
+    }
 
-        OutputBlock b = new OutputBlock();
-        b.file = file;
-        b.action = normalizeOperation(op); // stored in action field
-        b.anchor = anchor;
-        b.note = (lang == null || lang.isBlank()) ? null : ("LANGUAGE=" + lang);
+    private static boolean startsWith(CharSequence text, int from, int to, String prefix) {
+        if (to - from < prefix.length()) return false;
+        for (int k = 0; k < prefix.length(); k++) {
+            if (text.charAt(from + k) != prefix.charAt(k)) return false;
+        }
+        return true;
+    }
 
-        // For display friendliness, keep the snippet as-is (headers + code)
-        b.code = snippet.stripTrailing();
-        return b;
+    private static int indexOf(CharSequence text, char c, int from, int to) {
+        if (text instanceof String s) {
+            int i = s.indexOf(c, from);
+            return i < 0 || i >= to ? -1 : i;
+        }
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == c) return i;
+        }
+        return -1;
     }
 
     private String normalizeOperation(String op) {
@@ -0,0 +1,197 @@
+package com.QM4RS.agent.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a speculative context pack warm while the user edits selection, prompt or history.
+ * A debounced job on a single background thread rebuilds only what changed: the project tree is
+ * cached until invalidated and each file section is cached by (size, mtime). Send and
+ * "Build Context" call getOrBuild(), which returns the warm pack when its inputs still match.
+ */
+public class PackPrebuilder {
+
+    // Everything a pack depends on (besides file contents and the tree)
+    public record Inputs(Path root, List<Path> files, String prompt, String history) {}
+
+    public record Warm(Inputs inputs, String pack, long buildMillis, int filesRead, int filesReused) {}
+
+    private record FileSection(long size, long mtime, String text) {}
+
+    private final ContextPackBuilder builder;
+    private final long debounceMs;
+
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pack-prebuild");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // owned by the worker thread
+    private final Map<Path, FileSection> sections = new HashMap<>();
+    private Path treeRoot;
+    private String treeText;
+
+    private volatile Warm warm;
+    private volatile boolean treeStale = true;
+    private ScheduledFuture<?> pending;
+    private Consumer<Warm> listener;
+
+    public PackPrebuilder(ContextPackBuilder builder, long debounceMs) {
+        this.builder = builder;
+        this.debounceMs = Math.max(0, debounceMs);
+    }
+
+    // Called on every UI thread change; fires at most once per quiet period
+    public synchronized void request(Inputs inputs) {
+        if (inputs == null || inputs.root() == null) return;
+        if (pending != null) pending.cancel(false);
+        pending = worker.schedule(() -> {
+            try {
+                Warm w = buildNow(inputs, true);
+                Consumer<Warm> l;
+                synchronized (this) {
+                    l = listener;
+                }
+                if (l != null) l.accept(w);
+            } catch (Exception ignored) {
+                // speculative only; Send rebuilds and reports errors
+            }
+        }, debounceMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Project was rescanned: the tree (and maybe files) changed
+    public void invalidateTree() {
+        treeStale = true;
+        warm = null;
+    }
+
+    public synchronized void setListener(Consumer<Warm> listener) {
+        this.listener = listener;
+    }
+
+    public Warm current() {
+        return warm;
+    }
+
+    /**
+     * Warm pack if its inputs match and no selected file changed on disk since; otherwise builds now
+     * (reusing every cached section). Runs on the worker, so it never races a speculative build.
+     */
+    public Warm getOrBuild(Inputs inputs) throws IOException, InterruptedException {
+        synchronized (this) {
+            if (pending != null) pending.cancel(false);
+        }
+        try {
+            return worker.submit(() -> buildNow(inputs, false)).get();
+        } catch (ExecutionException ex) {
+            Throwable c = ex.getCause();
+            if (c instanceof IOException io) throw io;
+            if (c instanceof RuntimeException re) throw re;
+            throw new IOException(c);
+        }
+    }
+
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+
+    // ---------------- worker thread only ----------------
+
+    private Warm buildNow(Inputs in, boolean speculative) throws IOException {
+        Warm w = warm;
+        if (w != null && w.inputs().equals(in) && !treeStale && filesUnchanged(in.files())) {
+            return w;
+        }
+
+        PipelineEvents.PackBuild ev = new PipelineEvents.PackBuild();
+        ev.begin();
+        long t0 = System.nanoTime();
+        boolean treeRebuilt = treeStale || treeText == null || !Objects.equals(treeRoot, in.root());
+        if (treeRebuilt) {
+            treeStale = false;
+            treeText = builder.printTree(in.root());
+            treeRoot = in.root();
+            sections.clear();
+        }
+
+        int read = 0, reused = 0;
+        List<String> fileSections = new ArrayList<>();
+        Set<Path> keep = new HashSet<>();
+        for (Path f : in.files()) {
+            if (f == null) continue;
+            keep.add(f);
+
+            BasicFileAttributes a = attrs(f);
+            if (a == null || !a.isRegularFile()) {
+                sections.remove(f);
+                continue;
+            }
+            FileSection fs = sections.get(f);
+            if (fs != null && fs.size() == a.size() && fs.mtime() == a.lastModifiedTime().toMillis()) {
+                reused++;
+            } else {
+                String text = builder.fileSection(in.root(), f);
+                if (text == null) continue;
+                fs = new FileSection(a.size(), a.lastModifiedTime().toMillis(), text);
+                sections.put(f, fs);
+                read++;
+            }
+            fileSections.add(fs.text());
+        }
+        // only the current selection is kept; a deselected file is re-read if selected again
+        sections.keySet().retainAll(keep);
+
+        String pack = builder.assemble(in.root(), treeText, in.files().size(), in.prompt(), in.history(), fileSections);
+        w = new Warm(in, pack, (System.nanoTime() - t0) / 1_000_000L, read, reused);
+        warm = w;
+
+        if (ev.shouldCommit()) {
+            ev.files = in.files().size();
+            ev.filesRead = read;
+            ev.filesReused = reused;
+            ev.treeRebuilt = treeRebuilt;
+            ev.chars = pack.length();
+            ev.speculative = speculative;
+            ev.commit();
+        }
+        return w;
+    }
+
+    private boolean filesUnchanged(List<Path> files) {
+        for (Path f : files) {
+            FileSection fs = sections.get(f);
+            BasicFileAttributes a = attrs(f);
+            boolean present = a != null && a.isRegularFile();
+            if (fs == null) {
+                if (present) return false;
+                continue;
+            }
+            if (!present || fs.size() != a.size() || fs.mtime() != a.lastModifiedTime().toMillis()) return false;
+        }
+        return true;
+    }
+
+    private static BasicFileAttributes attrs(Path f) {
+        try {
+            return Files.readAttributes(f, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
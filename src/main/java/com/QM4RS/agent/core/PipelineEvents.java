@@ -0,0 +1,163 @@
+package com.QM4RS.agent.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for the whole pipeline (scan -> pack -> call -> parse -> store -> render).
+ * They cost next to nothing unless a recording is running (ProfileRecorder, or JFR started via -XX:StartFlightRecording).
+ */
+public final class PipelineEvents {
+
+    private PipelineEvents() {}
+
+    @Name("gptagent.ProjectScan")
+    @Label("Project Scan")
+    @Category({"GPT-Agent", "Project"})
+    @StackTrace(false)
+    public static class ProjectScan extends Event {
+        @Label("Root")
+        public String root;
+        @Label("Files")
+        public int files;
+        @Label("Directories")
+        public int directories;
+        @Label("Ignored Entries")
+        public int ignored;
+    }
+
+    // one per path check: far too many for a default recording, so opt-in
+    @Name("gptagent.IgnoreCheck")
+    @Label("Ignore Rule Check")
+    @Category({"GPT-Agent", "Project"})
+    @Description("Why a path was skipped (enable explicitly; emitted per path)")
+    @Enabled(false)
+    @StackTrace(false)
+    public static class IgnoreCheck extends Event {
+        @Label("Path")
+        public String path;
+        @Label("Ignored")
+        public boolean ignored;
+        @Label("Rule")
+        public String rule;
+    }
+
+    @Name("gptagent.FileRead")
+    @Label("File Read")
+    @Category({"GPT-Agent", "Context"})
+    @StackTrace(false)
+    public static class FileRead extends Event {
+        @Label("Path")
+        public String path;
+        @Label("File Size")
+        @DataAmount
+        public long size;
+        @Label("Bytes Read")
+        @DataAmount
+        public long bytesRead;
+        @Label("Truncated")
+        public boolean truncated;
+        @Label("Binary")
+        public boolean binary;
+    }
+
+    @Name("gptagent.PackBuild")
+    @Label("Context Pack Build")
+    @Category({"GPT-Agent", "Context"})
+    @StackTrace(false)
+    public static class PackBuild extends Event {
+        @Label("Selected Files")
+        public int files;
+        @Label("Files Read")
+        public int filesRead;
+        @Label("Files Reused")
+        public int filesReused;
+        @Label("Tree Rebuilt")
+        public boolean treeRebuilt;
+        @Label("Pack Chars")
+        public long chars;
+        @Label("Speculative")
+        public boolean speculative;
+    }
+
+    @Name("gptagent.LlmCall")
+    @Label("LLM Call")
+    @Category({"GPT-Agent", "Network"})
+    @StackTrace(false)
+    public static class LlmCall extends Event {
+        @Label("Model")
+        public String model;
+        @Label("Endpoint")
+        public String endpoint;
+        @Label("Input Chars")
+        public long inputChars;
+        @Label("Bytes Up")
+        @DataAmount
+        public long bytesUp;
+        @Label("Bytes Down")
+        @DataAmount
+        public long bytesDown;
+        @Label("Attempts")
+        public int attempts;
+        @Label("Input Tokens")
+        public int inputTokens;
+        @Label("Output Tokens")
+        public int outputTokens;
+        @Label("Cache Hit")
+        public boolean cacheHit;
+        @Label("Coalesced")
+        public boolean coalesced;
+        @Label("Error")
+        public String error;
+    }
+
+    @Name("gptagent.OutputParse")
+    @Label("Output Parse")
+    @Category({"GPT-Agent", "Output"})
+    @StackTrace(false)
+    public static class OutputParse extends Event {
+        @Label("Chars")
+        public long chars;
+        @Label("Blocks")
+        public int blocks;
+        @Label("Format")
+        public String format;
+    }
+
+    @Name("gptagent.ChatStoreIO")
+    @Label("Chat Store I/O")
+    @Category({"GPT-Agent", "Storage"})
+    @StackTrace(false)
+    public static class ChatStoreIO extends Event {
+        @Label("Operation")
+        public String operation;
+        @Label("Sessions")
+        public int sessions;
+        @Label("Revisions")
+        public int revisions;
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+        @Label("Error")
+        public String error;
+    }
+
+    @Name("gptagent.EditorUpdate")
+    @Label("Editor Update")
+    @Category({"GPT-Agent", "UI"})
+    @StackTrace(false)
+    public static class EditorUpdate extends Event {
+        @Label("Operation")
+        public String operation;
+        @Label("Chars")
+        public long chars;
+        @Label("Language")
+        public String language;
+    }
+}
@@ -0,0 +1,103 @@
+package com.QM4RS.agent.core;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.function.Consumer;
+
+/**
+ * One-click JFR profile: JDK "profile" settings plus the PipelineEvents, written as a .jfr file
+ * under ~/.gpt-agent/profiles (open it in JDK Mission Control or with `jfr print`).
+ */
+public class ProfileRecorder {
+
+    private static final DateTimeFormatter FILE_TS = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final Path dir;
+
+    private Recording recording;
+    private Path file;
+    private Thread timer;
+
+    public ProfileRecorder() {
+        this(Path.of(System.getProperty("user.home"), ".gpt-agent", "profiles"));
+    }
+
+    public ProfileRecorder(Path dir) {
+        this.dir = dir;
+    }
+
+    public synchronized boolean isRecording() {
+        return recording != null;
+    }
+
+    /**
+     * Starts recording; after `duration` the file is written and onDone gets its path (on a background thread).
+     * Returns the path the recording will be written to.
+     */
+    public synchronized Path start(Duration duration, Consumer<Path> onDone) throws IOException {
+        if (recording != null) throw new IllegalStateException("A profile is already being recorded.");
+        Files.createDirectories(dir);
+
+        Recording r;
+        try {
+            r = new Recording(Configuration.getConfiguration("profile"));
+        } catch (ParseException ex) {
+            throw new IOException("JFR profile settings could not be read: " + ex.getMessage(), ex);
+        }
+        r.setName("gpt-agent");
+        r.setToDisk(true);
+
+        Path out = dir.resolve("gpt-agent-" + FILE_TS.format(LocalDateTime.now()) + ".jfr");
+        r.setDestination(out);
+        r.start();
+
+        recording = r;
+        file = out;
+
+        if (duration != null) {
+            long ms = duration.toMillis();
+            timer = new Thread(() -> {
+                try {
+                    Thread.sleep(ms);
+                } catch (InterruptedException e) {
+                    return; // stopped early
+                }
+                try {
+                    Path done = stop();
+                    if (onDone != null && done != null) onDone.accept(done);
+                } catch (IOException ignored) {
+                }
+            }, "jfr-profile");
+            timer.setDaemon(true);
+            timer.start();
+        }
+        return out;
+    }
+
+    // Stops now and writes the file; null when nothing was recording
+    public synchronized Path stop() throws IOException {
+        if (recording == null) return null;
+        Recording r = recording;
+        Path out = file;
+        recording = null;
+        file = null;
+        if (timer != null && timer != Thread.currentThread()) timer.interrupt();
+        timer = null;
+
+        try {
+            r.stop(); // writes to the destination
+        } finally {
+            r.close();
+        }
+        if (!Files.isRegularFile(out)) throw new IOException("JFR recording was not written: " + out);
+        return out;
+    }
+}
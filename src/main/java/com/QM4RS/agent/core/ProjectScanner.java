@@ -1,7 +1,5 @@
 package com.QM4RS.agent.core;
 
-import javafx.scene.control.CheckBoxTreeItem;
-
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -9,7 +7,15 @@ import java.util.*;
 
 public class ProjectScanner {
 
-    public record ScanResult(CheckBoxTreeItem<Path> rootItem, List<Path> allFiles) {}
+    // Plain tree (no JavaFX) so the core also works headless; the UI maps it to tree items
+    public record FileNode(Path path, boolean directory, List<FileNode> children) {}
+
+    public record ScanResult(FileNode root, List<Path> allFiles) {}
+
+    private static final Comparator<FileNode> DIRS_FIRST_BY_NAME = (a, b) -> {
+        if (a.directory() != b.directory()) return a.directory() ? -1 : 1;
+        return name(a.path()).compareToIgnoreCase(name(b.path()));
+    };
 
     private final IgnoreRules ignoreRules;
 
@@ -22,13 +28,17 @@ public class ProjectScanner {
             throw new IllegalArgumentException("Project root is not a directory: " + projectRoot);
         }
 
-        // Root item
-        CheckBoxTreeItem<Path> root = new CheckBoxTreeItem<>(projectRoot);
-        root.setExpanded(true);
+        PipelineEvents.ProjectScan ev = new PipelineEvents.ProjectScan();
+        ev.begin();
+        int[] dirs = {0};
+        int[] ignored = {0};
+
+        // Root node
+        FileNode root = new FileNode(projectRoot, true, new ArrayList<>());
 
         // We need fast parent->child building
-        Map<Path, CheckBoxTreeItem<Path>> itemByPath = new HashMap<>();
-        itemByPath.put(projectRoot, root);
+        Map<Path, FileNode> nodeByPath = new HashMap<>();
+        nodeByPath.put(projectRoot, root);
 
         List<Path> allFiles = new ArrayList<>();
 
@@ -38,16 +48,17 @@ public class ProjectScanner {
                     @Override
                     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
                         if (ignoreRules.shouldIgnore(dir, projectRoot)) {
+                            ignored[0]++;
                             return FileVisitResult.SKIP_SUBTREE;
                         }
 
+                        dirs[0]++;
                         if (!dir.equals(projectRoot)) {
-                            CheckBoxTreeItem<Path> parentItem = itemByPath.get(dir.getParent());
-                            if (parentItem != null) {
-                                CheckBoxTreeItem<Path> dirItem = new CheckBoxTreeItem<>(dir);
-                                dirItem.setExpanded(false);
-                                parentItem.getChildren().add(dirItem);
-                                itemByPath.put(dir, dirItem);
+                            FileNode parent = nodeByPath.get(dir.getParent());
+                            if (parent != null) {
+                                FileNode dirNode = new FileNode(dir, true, new ArrayList<>());
+                                parent.children().add(dirNode);
+                                nodeByPath.put(dir, dirNode);
                             }
                         }
 
@@ -57,6 +68,7 @@ public class ProjectScanner {
                     @Override
                     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
                         if (ignoreRules.shouldIgnore(file, projectRoot)) {
+                            ignored[0]++;
                             return FileVisitResult.CONTINUE;
                         }
                         if (!Files.isRegularFile(file)) {
@@ -65,11 +77,9 @@ public class ProjectScanner {
 
                         allFiles.add(file);
 
-                        CheckBoxTreeItem<Path> parentItem = itemByPath.get(file.getParent());
-                        if (parentItem != null) {
-                            CheckBoxTreeItem<Path> fileItem = new CheckBoxTreeItem<>(file);
-                            parentItem.getChildren().add(fileItem);
-                            itemByPath.put(file, fileItem);
+                        FileNode parent = nodeByPath.get(file.getParent());
+                        if (parent != null) {
+                            parent.children().add(new FileNode(file, false, List.of()));
                         }
 
                         return FileVisitResult.CONTINUE;
@@ -79,30 +89,32 @@ public class ProjectScanner {
         // Sort children alphabetically: directories first then files
         sortTree(root);
 
+        if (ev.shouldCommit()) {
+            ev.root = projectRoot.toString();
+            ev.files = allFiles.size();
+            ev.directories = dirs[0];
+            ev.ignored = ignored[0];
+            ev.commit();
+        }
         return new ScanResult(root, allFiles);
     }
 
-    private void sortTree(CheckBoxTreeItem<Path> root) {
-        Deque<CheckBoxTreeItem<Path>> stack = new ArrayDeque<>();
+    private void sortTree(FileNode root) {
+        Deque<FileNode> stack = new ArrayDeque<>();
         stack.push(root);
 
         while (!stack.isEmpty()) {
-            CheckBoxTreeItem<Path> node = stack.pop();
-
-            node.getChildren().sort((a, b) -> {
-                Path pa = a.getValue();
-                Path pb = b.getValue();
-                boolean da = Files.isDirectory(pa);
-                boolean db = Files.isDirectory(pb);
-                if (da != db) return da ? -1 : 1;
-                String na = pa.getFileName() == null ? pa.toString() : pa.getFileName().toString();
-                String nb = pb.getFileName() == null ? pb.toString() : pb.getFileName().toString();
-                return na.compareToIgnoreCase(nb);
-            });
-
-            for (var child : node.getChildren()) {
-                stack.push((CheckBoxTreeItem<Path>) child);
+            FileNode node = stack.pop();
+            if (!node.directory()) continue;
+
+            node.children().sort(DIRS_FIRST_BY_NAME);
+            for (FileNode child : node.children()) {
+                stack.push(child);
             }
         }
     }
+
+    private static String name(Path p) {
+        return p.getFileName() == null ? p.toString() : p.getFileName().toString();
+    }
 }
@@ -1,5 +1,7 @@
 package com.QM4RS.agent.core;
 
+import java.util.List;
+
 public class PromptTemplates {
 
     public static String buildInstruction() {
@@ -79,6 +81,16 @@ public class PromptTemplates {
                 """;
     }
 
+    // Same text as buildRequest(), as parts the request writer can stream without concatenating
+    public static List<CharSequence> buildRequestParts(String contextPack) {
+        return List.of(
+                buildInstruction(),
+                "\n\n=== CONTEXT PACK ===\n",
+                contextPack == null ? "" : contextPack,
+                "\n=== END ===\n"
+        );
+    }
+
     public static String buildRequest(String contextPack) {
         return buildInstruction()
                 + "\n\n=== CONTEXT PACK ===\n"
@@ -0,0 +1,259 @@
+package com.QM4RS.agent.core;
+
+import java.net.http.HttpHeaders;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.OptionalLong;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Client-side admission control for the Responses API.
+ * Keeps two token buckets (requests/min and tokens/min) that are re-synced from the
+ * x-ratelimit-* headers of every response, and computes jittered backoff for retries.
+ */
+public class RateLimitController {
+
+    public record Stats(
+            long requests,
+            long retries,
+            long rateLimited,
+            long serverErrors,
+            long throttled,
+            long throttledMillis,
+            long requestLimit,
+            long requestsRemaining,
+            long tokenLimit,
+            long tokensRemaining
+    ) {
+        public String toDebugLine() {
+            return "RateLimit: sent=" + requests
+                    + " retries=" + retries
+                    + " 429=" + rateLimited
+                    + " 5xx=" + serverErrors
+                    + " throttled=" + throttled + " (" + throttledMillis + " ms)"
+                    + " • rpm " + budget(requestsRemaining, requestLimit)
+                    + " • tpm " + budget(tokensRemaining, tokenLimit);
+        }
+
+        private static String budget(long remaining, long limit) {
+            if (limit <= 0) return "?";
+            return remaining + "/" + limit;
+        }
+    }
+
+    // Simple bucket: capacity = limit per minute, refilled linearly, level re-synced from headers
+    private static final class Bucket {
+        long limit = -1;       // unknown until the first response
+        double level = 0;
+        long lastRefillNanos = System.nanoTime();
+
+        boolean known() {
+            return limit > 0;
+        }
+
+        void refill(long now) {
+            if (!known()) return;
+            double perNano = limit / 60_000_000_000.0;
+            level = Math.min(limit, level + (now - lastRefillNanos) * perNano);
+            lastRefillNanos = now;
+        }
+
+        void sync(long newLimit, long remaining, long now) {
+            if (newLimit > 0) limit = newLimit;
+            if (!known()) return;
+            level = Math.max(0, Math.min(limit, remaining));
+            lastRefillNanos = now;
+        }
+
+        // nanos until `amount` is available (amount is capped to capacity so big requests can't starve)
+        long nanosUntil(double amount) {
+            if (!known()) return 0;
+            double need = Math.min(amount, limit) - level;
+            if (need <= 0) return 0;
+            double perNano = limit / 60_000_000_000.0;
+            return (long) Math.ceil(need / perNano);
+        }
+
+        void take(double amount) {
+            if (!known()) return;
+            level = Math.max(0, level - amount);
+        }
+    }
+
+    private static final long MAX_SINGLE_WAIT_NANOS = 60_000_000_000L;
+    private static final long BACKOFF_BASE_MS = 1_000;
+    private static final long BACKOFF_CAP_MS = 30_000;
+
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    private final Bucket requestBucket = new Bucket();
+    private final Bucket tokenBucket = new Bucket();
+
+    private long requests;
+    private long retries;
+    private long rateLimited;
+    private long serverErrors;
+    private long throttled;
+    private long throttledMillis;
+
+    /**
+     * Blocks until both buckets can admit one request costing estTokens.
+     * Interruptible so a cancelled Task stops waiting immediately.
+     */
+    public void acquire(long estTokens) throws InterruptedException {
+        long waitedNanos = 0;
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                requestBucket.refill(now);
+                tokenBucket.refill(now);
+
+                waitNanos = Math.max(requestBucket.nanosUntil(1), tokenBucket.nanosUntil(estTokens));
+                if (waitNanos <= 0) {
+                    requestBucket.take(1);
+                    tokenBucket.take(estTokens);
+                    requests++;
+                    if (waitedNanos > 0) {
+                        throttled++;
+                        throttledMillis += waitedNanos / 1_000_000L;
+                    }
+                    return;
+                }
+            }
+
+            long sleepNanos = Math.min(waitNanos, MAX_SINGLE_WAIT_NANOS);
+            Thread.sleep(Math.max(1, sleepNanos / 1_000_000L));
+            waitedNanos += sleepNanos;
+        }
+    }
+
+    /**
+     * Re-sync both buckets from x-ratelimit-* headers (present on success and on 429).
+     */
+    public synchronized void onResponse(int status, HttpHeaders headers) {
+        long now = System.nanoTime();
+
+        long reqLimit = headerLong(headers, "x-ratelimit-limit-requests");
+        long reqRemaining = headerLong(headers, "x-ratelimit-remaining-requests");
+        long tokLimit = headerLong(headers, "x-ratelimit-limit-tokens");
+        long tokRemaining = headerLong(headers, "x-ratelimit-remaining-tokens");
+
+        if (reqRemaining >= 0) requestBucket.sync(reqLimit, reqRemaining, now);
+        if (tokRemaining >= 0) tokenBucket.sync(tokLimit, tokRemaining, now);
+
+        if (status == 429) {
+            rateLimited++;
+            // If the server says we're out but gave no numbers, drain what we think we have.
+            if (reqRemaining < 0) requestBucket.level = 0;
+            if (tokRemaining < 0) tokenBucket.level = 0;
+        } else if (status >= 500) {
+            serverErrors++;
+        }
+    }
+
+    public synchronized void onRetry() {
+        retries++;
+    }
+
+    /**
+     * Delay before retry number `attempt` (1-based). retry-after-ms / retry-after (seconds or an
+     * HTTP-date) win when present, clamped to BACKOFF_CAP_MS so a bad header can't park the worker;
+     * otherwise equal-jitter exponential backoff (a random delay in [cap/2, cap]).
+     */
+    public long backoffMillis(int attempt, HttpHeaders headers) {
+        long jitter = ThreadLocalRandom.current().nextLong(0, 250);
+
+        if (headers != null) {
+            OptionalLong ms = parseLong(headers.firstValue("retry-after-ms").orElse(null));
+            if (ms.isPresent()) return capped(ms.getAsLong()) + jitter;
+
+            String ra = headers.firstValue("retry-after").orElse(null);
+            OptionalLong secs = parseLong(ra);
+            if (secs.isPresent()) {
+                long s = secs.getAsLong();
+                return (s > BACKOFF_CAP_MS / 1000 ? BACKOFF_CAP_MS : capped(s * 1000L)) + jitter;
+            }
+            OptionalLong until = parseHttpDateMillis(ra);
+            if (until.isPresent()) return capped(until.getAsLong() - System.currentTimeMillis()) + jitter;
+
+            long reset = Math.max(
+                    parseDurationMillis(headers.firstValue("x-ratelimit-reset-requests").orElse(null)),
+                    parseDurationMillis(headers.firstValue("x-ratelimit-reset-tokens").orElse(null))
+            );
+            if (reset > 0) return Math.min(BACKOFF_CAP_MS, reset) + jitter;
+        }
+
+        long exp = BACKOFF_BASE_MS << Math.min(10, Math.max(0, attempt - 1));
+        long cap = Math.min(BACKOFF_CAP_MS, exp);
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    public synchronized Stats snapshot() {
+        long now = System.nanoTime();
+        requestBucket.refill(now);
+        tokenBucket.refill(now);
+        return new Stats(
+                requests, retries, rateLimited, serverErrors, throttled, throttledMillis,
+                requestBucket.limit, (long) requestBucket.level,
+                tokenBucket.limit, (long) tokenBucket.level
+        );
+    }
+
+    // Same rough heuristic the UI uses for "estTokens"
+    public static long estimateTokens(long chars) {
+        if (chars <= 0) return 0;
+        return (chars + 3L) / 4L;
+    }
+
+    private static long headerLong(HttpHeaders headers, String name) {
+        if (headers == null) return -1;
+        return parseLong(headers.firstValue(name).orElse(null)).orElse(-1);
+    }
+
+    private static long capped(long ms) {
+        return Math.max(0, Math.min(BACKOFF_CAP_MS, ms));
+    }
+
+    // "Wed, 21 Oct 2015 07:28:00 GMT" -> epoch millis
+    static OptionalLong parseHttpDateMillis(String s) {
+        if (s == null || s.isBlank()) return OptionalLong.empty();
+        try {
+            return OptionalLong.of(ZonedDateTime.parse(s.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli());
+        } catch (DateTimeParseException ignored) {
+            return OptionalLong.empty();
+        }
+    }
+
+    private static OptionalLong parseLong(String s) {
+        if (s == null || s.isBlank()) return OptionalLong.empty();
+        try {
+            return OptionalLong.of((long) Math.ceil(Double.parseDouble(s.trim())));
+        } catch (NumberFormatException ignored) {
+            return OptionalLong.empty();
+        }
+    }
+
+    // "1s", "6m0s", "20ms", "1h2m3.5s" -> millis; -1 if unparseable
+    static long parseDurationMillis(String s) {
+        if (s == null || s.isBlank()) return -1;
+        Matcher m = DURATION_PART.matcher(s.trim().toLowerCase(Locale.ROOT));
+        double total = 0;
+        boolean any = false;
+        while (m.find()) {
+            any = true;
+            double v = Double.parseDouble(m.group(1));
+            switch (m.group(2)) {
+                case "h" -> total += v * 3_600_000;
+                case "m" -> total += v * 60_000;
+                case "s" -> total += v * 1_000;
+                case "ms" -> total += v;
+            }
+        }
+        return any ? (long) Math.ceil(total) : -1;
+    }
+}
@@ -0,0 +1,450 @@
+package com.QM4RS.agent.core;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a Responses API request body ({"model": ..., "input": ...}) with a Jackson JsonGenerator,
+ * streaming the input straight from its source parts. No escaped copy of the input and no full-size
+ * UTF-8 byte[] is ever built: the HTTP client pulls the body through a small pool of reusable buffers.
+ */
+public class RequestBodyWriter {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final int CHUNK_BYTES = 16 * 1024;
+    private static final int CHUNKS_IN_FLIGHT = 4;
+
+    /**
+     * The "input" value already escaped and UTF-8 encoded (quotes included), for sending one input
+     * to several models: it is serialized once and every body just copies the bytes.
+     */
+    public static final class EncodedInput {
+        private final byte[] json;
+        private final long chars;
+        private final byte[] keyDigest;
+
+        private EncodedInput(byte[] json, long chars, byte[] keyDigest) {
+            this.json = json;
+            this.chars = chars;
+            this.keyDigest = keyDigest;
+        }
+
+        public long chars() {
+            return chars;
+        }
+
+        public int encodedBytes() {
+            return json.length;
+        }
+    }
+
+    private final String model;
+    private final List<? extends CharSequence> inputParts;
+    private final EncodedInput encoded;
+
+    public RequestBodyWriter(String model, List<? extends CharSequence> inputParts) {
+        this.model = model == null ? "" : model;
+        this.inputParts = inputParts == null ? List.of() : inputParts;
+        this.encoded = null;
+    }
+
+    public RequestBodyWriter(String model, EncodedInput input) {
+        this.model = model == null ? "" : model;
+        this.inputParts = List.of();
+        this.encoded = input;
+    }
+
+    // Same escaping as writeBody(), so both forms produce identical bodies (and cache keys)
+    public static EncodedInput encode(List<? extends CharSequence> inputParts) throws IOException {
+        List<? extends CharSequence> parts = inputParts == null ? List.of() : inputParts;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (JsonGenerator g = JSON.createGenerator(buf, JsonEncoding.UTF8)) {
+            g.writeString(new CharSequencesReader(parts), -1);
+        }
+        long chars = 0;
+        for (CharSequence cs : parts) {
+            if (cs != null) chars += cs.length();
+        }
+        return new EncodedInput(buf.toByteArray(), chars, inputDigest(parts));
+    }
+
+    public long inputChars() {
+        if (encoded != null) return encoded.chars;
+        long n = 0;
+        for (CharSequence cs : inputParts) {
+            if (cs != null) n += cs.length();
+        }
+        return n;
+    }
+
+    // Does not close `out`, so a failed write can be told apart from a complete one.
+    public void writeTo(OutputStream out) throws IOException {
+        if (encoded != null) {
+            // {"model":<model>,"input":<pre-encoded>} - byte-for-byte what the generator writes
+            out.write(PREFIX_MODEL);
+            out.write(JsonStringEncoder.getInstance().quoteAsUTF8(model));
+            out.write(PREFIX_INPUT);
+            out.write(encoded.json);
+            out.write('}');
+            return;
+        }
+        try (JsonGenerator g = JSON.createGenerator(out, JsonEncoding.UTF8)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+            writeBody(g);
+        }
+    }
+
+    private static final byte[] PREFIX_MODEL = "{\"model\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PREFIX_INPUT = "\",\"input\":".getBytes(StandardCharsets.UTF_8);
+
+    // Writes the body object into an existing generator (e.g. as the "body" of a Batch API line)
+    public void writeBody(JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("model", model);
+        g.writeFieldName("input");
+        if (encoded != null) {
+            g.writeRawValue(new String(encoded.json, StandardCharsets.UTF_8));
+        } else {
+            g.writeString(new CharSequencesReader(inputParts), -1);
+        }
+        g.writeEndObject();
+    }
+
+    // SHA-256 of the exact bytes writeTo() produces (one extra pass, nothing retained)
+    public String sha256Hex() throws IOException {
+        MessageDigest md = sha256();
+        writeTo(new DigestOutputStream(OutputStream.nullOutputStream(), md));
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    /**
+     * Response cache key: SHA-256 over the model and the input with the context pack's
+     * "generated_at:" line left out, so re-sending the same prompt and files hits the cache
+     * (also after a restart) even though every pack carries a fresh timestamp. scope names who
+     * answers (provider + endpoint), so one backend's answers are never served for another's.
+     */
+    public String cacheKey(String scope) throws IOException {
+        MessageDigest md = sha256();
+        md.update((scope == null ? "" : scope).getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(model.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(encoded != null ? encoded.keyDigest : inputDigest(inputParts));
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    private static final String VOLATILE_LINE = "generated_at: ";
+
+    // Digest of the input text minus its first line starting with VOLATILE_LINE
+    private static byte[] inputDigest(List<? extends CharSequence> parts) throws IOException {
+        MessageDigest md = sha256();
+        Reader in = new CharSequencesReader(parts);
+        Writer out = new OutputStreamWriter(new DigestOutputStream(OutputStream.nullOutputStream(), md), StandardCharsets.UTF_8);
+        char[] buf = new char[8192];
+        char[] kept = new char[8192];
+        boolean lineStart = true;
+        boolean skipping = false;
+        boolean stripped = false;
+        int matched = 0;
+        for (int n; (n = in.read(buf, 0, buf.length)) > 0; ) {
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                char c = buf[i];
+                if (skipping) {
+                    if (c == '\n') {
+                        skipping = false;
+                        lineStart = true;
+                    }
+                    continue;
+                }
+                if (!stripped && (lineStart || matched > 0)) {
+                    if (c == VOLATILE_LINE.charAt(matched)) {
+                        lineStart = false;
+                        if (++matched == VOLATILE_LINE.length()) {
+                            matched = 0;
+                            skipping = true;
+                            stripped = true;
+                        }
+                        continue;
+                    }
+                    if (matched > 0) {
+                        out.write(kept, 0, k);
+                        k = 0;
+                        out.write(VOLATILE_LINE, 0, matched);
+                        matched = 0;
+                    }
+                }
+                kept[k++] = c;
+                lineStart = c == '\n';
+            }
+            out.write(kept, 0, k);
+        }
+        if (matched > 0) out.write(VOLATILE_LINE, 0, matched);
+        out.flush();
+        return md.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * When the HTTP client subscribed to the body (~connection ready), when it pulled the last byte,
+     * and how many bytes it pulled. Reset on every subscription, so it describes the latest attempt.
+     */
+    public static final class UploadProbe {
+        private volatile long subscribedNanos;
+        private volatile long completedNanos;
+        private volatile long bytes;
+
+        public long subscribedNanos() {
+            return subscribedNanos;
+        }
+
+        // 0 until the whole body was pulled
+        public long completedNanos() {
+            return completedNanos;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+    }
+
+    public HttpRequest.BodyPublisher publisher(Duration stallTimeout) {
+        return publisher(stallTimeout, null);
+    }
+
+    /**
+     * Each subscription (first send and every retry) re-serializes on a short-lived writer thread.
+     * If the client stops pulling for longer than stallTimeout the writer gives up.
+     */
+    public HttpRequest.BodyPublisher publisher(Duration stallTimeout, UploadProbe probe) {
+        long stallNanos = stallTimeout.toNanos();
+        return HttpRequest.BodyPublishers.ofInputStream(() -> {
+            if (probe != null) {
+                probe.subscribedNanos = System.nanoTime();
+                probe.completedNanos = 0;
+                probe.bytes = 0;
+            }
+            BodyPipe pipe = new BodyPipe(stallNanos, probe);
+            Thread t = new Thread(() -> {
+                OutputStream sink = pipe.sink();
+                try {
+                    writeTo(sink);
+                    sink.close();
+                } catch (IOException ex) {
+                    pipe.fail(ex);
+                }
+            }, "openai-body-writer");
+            t.setDaemon(true);
+            t.start();
+            return pipe;
+        });
+    }
+
+    // ---------------- Reader over several CharSequences (no concatenation) ----------------
+
+    private static final class CharSequencesReader extends Reader {
+        private final List<? extends CharSequence> parts;
+        private int part = 0;
+        private int pos = 0;
+
+        CharSequencesReader(List<? extends CharSequence> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0) return 0;
+            while (part < parts.size()) {
+                CharSequence cs = parts.get(part);
+                int remaining = cs == null ? 0 : cs.length() - pos;
+                if (remaining <= 0) {
+                    part++;
+                    pos = 0;
+                    continue;
+                }
+                int n = Math.min(len, remaining);
+                if (cs instanceof String s) {
+                    s.getChars(pos, pos + n, cbuf, off);
+                } else {
+                    for (int i = 0; i < n; i++) cbuf[off + i] = cs.charAt(pos + i);
+                }
+                pos += n;
+                return n;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // ---------------- Bounded producer/consumer pipe with recycled buffers ----------------
+
+    private static final class BodyPipe extends InputStream {
+        private record Chunk(byte[] buf, int len) {}
+
+        private static final Chunk EOF = new Chunk(new byte[0], 0);
+
+        private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT + 1);
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT);
+        private final long stallNanos;
+        private final UploadProbe probe;
+
+        private volatile boolean closed = false;
+        private volatile IOException failure;
+
+        private Chunk cur;
+        private int pos;
+
+        BodyPipe(long stallNanos, UploadProbe probe) {
+            this.stallNanos = stallNanos;
+            this.probe = probe;
+            for (int i = 0; i < CHUNKS_IN_FLIGHT; i++) free.add(new byte[CHUNK_BYTES]);
+        }
+
+        // only CHUNKS_IN_FLIGHT buffers exist, so there is always room for EOF
+        void fail(IOException ex) {
+            failure = ex;
+            filled.offer(EOF);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : (one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (cur == null || pos >= cur.len()) {
+                if (cur == EOF) return finish();
+                if (cur != null) free.offer(cur.buf());
+                try {
+                    cur = filled.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Request body streaming interrupted.");
+                }
+                pos = 0;
+            }
+            int n = Math.min(len, cur.len() - pos);
+            System.arraycopy(cur.buf(), pos, b, off, n);
+            pos += n;
+            if (probe != null) probe.bytes += n; // single reader thread
+            return n;
+        }
+
+        private int finish() throws IOException {
+            if (failure != null) throw new IOException("Request body serialization failed: " + failure.getMessage(), failure);
+            if (probe != null && probe.completedNanos == 0) probe.completedNanos = System.nanoTime();
+            return -1;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            filled.clear();
+        }
+
+        OutputStream sink() {
+            return new OutputStream() {
+                private byte[] buf;
+                private int len;
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int n) throws IOException {
+                    while (n > 0) {
+                        if (buf == null) {
+                            buf = await(free);
+                            len = 0;
+                        }
+                        int c = Math.min(n, buf.length - len);
+                        System.arraycopy(b, off, buf, len, c);
+                        len += c;
+                        off += c;
+                        n -= c;
+                        if (len == buf.length) handOff();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (buf != null && len > 0) handOff();
+                    put(EOF);
+                }
+
+                private void handOff() throws IOException {
+                    put(new Chunk(buf, len));
+                    buf = null;
+                }
+            };
+        }
+
+        private <T> T await(BlockingQueue<T> q) throws IOException {
+            long deadline = System.nanoTime() + stallNanos;
+            try {
+                while (!closed) {
+                    T v = q.poll(200, TimeUnit.MILLISECONDS);
+                    if (v != null) return v;
+                    if (System.nanoTime() > deadline) throw new IOException("HTTP client stopped reading request body.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            throw new IOException("Request body stream closed.");
+        }
+
+        private void put(Chunk c) throws IOException {
+            long deadline = System.nanoTime() + stallNanos;
+            try {
+                while (!closed) {
+                    if (filled.offer(c, 200, TimeUnit.MILLISECONDS)) return;
+                    if (System.nanoTime() > deadline) throw new IOException("HTTP client stopped reading request body.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            throw new IOException("Request body stream closed.");
+        }
+    }
+}
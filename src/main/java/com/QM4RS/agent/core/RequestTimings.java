@@ -0,0 +1,75 @@
+package com.QM4RS.agent.core;
+
+import java.util.Locale;
+
+/**
+ * Per-phase timings of one Send, persisted on ChatRevision (null = not measured, e.g. on a cache hit).
+ * Network phases come from OpenAIService (last attempt only); pack, parse and render from the UI.
+ */
+public class RequestTimings {
+
+    public Long packMs;          // waiting for the context pack on Send
+    public Boolean packWarm;     // pack came from PackPrebuilder without rebuilding
+    public Long serializeMs;     // one full request serialization pass (the cache-key hash)
+    public Long queueMs;         // rate-limit waits + retry backoff, all attempts
+    public Long connectMs;       // send -> body subscribed (connect/TLS; ~0 on a reused connection)
+    public Long uploadMs;        // body subscribed -> last byte pulled by the client
+    public Long ttfbMs;          // body sent -> response headers
+    public Long streamMs;        // headers -> body fully read (JSON is parsed as it streams)
+    public Long parseMs;         // OutputParser
+    public Long renderMs;        // block list + editor update
+    public Long totalMs;         // Send click -> rendered
+
+    public Long bytesUp;
+    public Long bytesDown;
+    public Integer attempts;
+    public Double tokensPerSec;  // output tokens / (ttfb + stream)
+
+    public RequestTimings copy() {
+        RequestTimings t = new RequestTimings();
+        t.packMs = packMs;
+        t.packWarm = packWarm;
+        t.serializeMs = serializeMs;
+        t.queueMs = queueMs;
+        t.connectMs = connectMs;
+        t.uploadMs = uploadMs;
+        t.ttfbMs = ttfbMs;
+        t.streamMs = streamMs;
+        t.parseMs = parseMs;
+        t.renderMs = renderMs;
+        t.totalMs = totalMs;
+        t.bytesUp = bytesUp;
+        t.bytesDown = bytesDown;
+        t.attempts = attempts;
+        t.tokensPerSec = tokensPerSec;
+        return t;
+    }
+
+    public String toDebugLine() {
+        StringBuilder sb = new StringBuilder("Timings(ms):");
+        append(sb, "pack", packMs);
+        if (Boolean.TRUE.equals(packWarm)) sb.append("(warm)");
+        append(sb, "ser", serializeMs);
+        append(sb, "queue", queueMs);
+        append(sb, "connect", connectMs);
+        append(sb, "upload", uploadMs);
+        append(sb, "ttfb", ttfbMs);
+        append(sb, "stream", streamMs);
+        append(sb, "parse", parseMs);
+        append(sb, "render", renderMs);
+        append(sb, "total", totalMs);
+        append(sb, "up", bytesUp);
+        append(sb, "down", bytesDown);
+        if (attempts != null && attempts > 1) append(sb, "attempts", attempts.longValue());
+        if (tokensPerSec != null) sb.append(String.format(Locale.ROOT, " tok/s=%.1f", tokensPerSec));
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String name, Long v) {
+        if (v != null) sb.append(' ').append(name).append('=').append(v);
+    }
+
+    static long millisBetween(long fromNanos, long toNanos) {
+        return Math.max(0, (toNanos - fromNanos) / 1_000_000L);
+    }
+}
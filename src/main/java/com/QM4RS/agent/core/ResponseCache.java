@@ -0,0 +1,148 @@
+package com.QM4RS.agent.core;
+
+import com.QM4RS.agent.core.OpenAIService.OpenAIResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed on-disk cache of model responses.
+ * Key = SHA-256 of provider + endpoint + model + input without the pack timestamp (RequestBodyWriter#cacheKey);
+ * entries expire after a TTL and the directory is trimmed (least recently used first) to a size cap.
+ */
+public class ResponseCache {
+
+    // On-disk entry (kept small: no raw response JSON)
+    public static class Entry {
+        public long createdAtMillis;
+        public String model;
+        public String diffText;
+        public Integer inputTokens;
+        public Integer outputTokens;
+        public Integer totalTokens;
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+    private final Duration ttl;
+    private final ObjectMapper om = new ObjectMapper();
+
+    public ResponseCache(long maxBytes, Duration ttl) {
+        this(defaultDir(), maxBytes, ttl);
+    }
+
+    // Each provider gets its own directory under the default one (size cap and eviction included)
+    public ResponseCache(String providerId, long maxBytes, Duration ttl) {
+        this(defaultDir().resolve(providerId), maxBytes, ttl);
+    }
+
+    private static Path defaultDir() {
+        return Path.of(System.getProperty("user.home"), ".gpt-agent", "cache", "responses");
+    }
+
+    public ResponseCache(Path dir, long maxBytes, Duration ttl) {
+        this.dir = dir;
+        this.maxBytes = Math.max(1024 * 1024, maxBytes);
+        this.ttl = ttl == null ? Duration.ofDays(3) : ttl;
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    public Optional<OpenAIResult> get(String key) {
+        Path f = fileFor(key);
+        if (!Files.isRegularFile(f)) return Optional.empty();
+        try {
+            Entry e = om.readValue(f.toFile(), Entry.class);
+            if (e == null || System.currentTimeMillis() - e.createdAtMillis > ttl.toMillis()) {
+                Files.deleteIfExists(f);
+                return Optional.empty();
+            }
+            // LRU: last access is tracked by mtime
+            Files.setLastModifiedTime(f, FileTime.fromMillis(System.currentTimeMillis()));
+            return Optional.of(new OpenAIResult(
+                    e.diffText, "", e.inputTokens, e.outputTokens, e.totalTokens, true, null
+            ));
+        } catch (Exception ex) {
+            // corrupt entry -> treat as miss
+            try { Files.deleteIfExists(f); } catch (IOException ignored) {}
+            return Optional.empty();
+        }
+    }
+
+    public void put(String key, String model, OpenAIResult r) throws IOException {
+        if (r == null) return;
+        Files.createDirectories(dir);
+
+        Entry e = new Entry();
+        e.createdAtMillis = System.currentTimeMillis();
+        e.model = model;
+        e.diffText = r.diffText();
+        e.inputTokens = r.inputTokens();
+        e.outputTokens = r.outputTokens();
+        e.totalTokens = r.totalTokens();
+
+        Path f = fileFor(key);
+        Path tmp = dir.resolve(key + ".tmp");
+        om.writeValue(tmp.toFile(), e);
+        Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        trim();
+    }
+
+    private void trim() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> s = Files.list(dir)) {
+            s.filter(p -> p.getFileName().toString().endsWith(".json")).forEach(files::add);
+        }
+
+        long now = System.currentTimeMillis();
+        long total = 0;
+        List<Path> live = new ArrayList<>();
+        for (Path p : files) {
+            try {
+                // mtime is last access; anything untouched for longer than the TTL is dead anyway
+                if (now - Files.getLastModifiedTime(p).toMillis() > ttl.toMillis()) {
+                    Files.deleteIfExists(p);
+                    continue;
+                }
+                total += Files.size(p);
+                live.add(p);
+            } catch (IOException ignored) {
+            }
+        }
+        if (total <= maxBytes) return;
+
+        live.sort(Comparator.comparingLong(ResponseCache::mtimeOrZero));
+        for (Path p : live) {
+            if (total <= maxBytes) break;
+            try {
+                long size = Files.size(p);
+                Files.deleteIfExists(p);
+                total -= size;
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Path fileFor(String key) {
+        return dir.resolve(key + ".json");
+    }
+
+    private static long mtimeOrZero(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
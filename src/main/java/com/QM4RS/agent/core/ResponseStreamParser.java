@@ -0,0 +1,149 @@
+package com.QM4RS.agent.core;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pulls only what the app needs out of a Responses API body with a streaming JsonParser:
+ * the output[].content[] parts of type "output_text", the top-level "output_text" fallback and usage.
+ * Everything else is skipped token by token, so no JSON tree is ever built.
+ */
+public class ResponseStreamParser {
+
+    public record Parsed(String outputText, Integer inputTokens, Integer outputTokens, Integer totalTokens) {}
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    public Parsed parse(InputStream in) throws IOException {
+        // caller owns `in` (it drains the rest of the body after us)
+        try (JsonParser p = JSON.createParser(in).disable(JsonParser.Feature.AUTO_CLOSE_SOURCE)) {
+            p.nextToken();
+            return parse(p);
+        }
+    }
+
+    /**
+     * Reads one response object from a parser positioned on its START_OBJECT
+     * (e.g. the "body" of a Batch API result line) and leaves it on the matching END_OBJECT.
+     */
+    public Parsed parse(JsonParser p) throws IOException {
+        if (p.currentToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Unexpected response: not a JSON object.");
+        }
+
+        List<String> parts = new ArrayList<>();
+        String fallback = null;
+        Integer inTok = null, outTok = null, totalTok = null;
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            JsonToken t = p.nextToken();
+
+            switch (field) {
+                case "output" -> {
+                    if (t == JsonToken.START_ARRAY) readOutputArray(p, parts);
+                    else p.skipChildren();
+                }
+                case "usage" -> {
+                    if (t == JsonToken.START_OBJECT) {
+                        while (p.nextToken() == JsonToken.FIELD_NAME) {
+                            String k = p.currentName();
+                            p.nextToken();
+                            switch (k) {
+                                case "input_tokens" -> inTok = intOrNull(p);
+                                case "output_tokens" -> outTok = intOrNull(p);
+                                case "total_tokens" -> totalTok = intOrNull(p);
+                                default -> p.skipChildren();
+                            }
+                        }
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+                case "output_text" -> {
+                    if (t == JsonToken.VALUE_STRING) fallback = p.getText();
+                    else p.skipChildren();
+                }
+                default -> p.skipChildren();
+            }
+        }
+
+        return new Parsed(joinParts(parts, fallback), inTok, outTok, totalTok);
+    }
+
+    private static void readOutputArray(JsonParser p, List<String> parts) throws IOException {
+        while (p.nextToken() != JsonToken.END_ARRAY) {
+            if (p.currentToken() != JsonToken.START_OBJECT) {
+                p.skipChildren();
+                continue;
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                JsonToken t = p.nextToken();
+                if ("content".equals(field) && t == JsonToken.START_ARRAY) {
+                    readContentArray(p, parts);
+                } else {
+                    p.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static void readContentArray(JsonParser p, List<String> parts) throws IOException {
+        while (p.nextToken() != JsonToken.END_ARRAY) {
+            if (p.currentToken() != JsonToken.START_OBJECT) {
+                p.skipChildren();
+                continue;
+            }
+            // "type" may come after "text", so hold the text until the object closes
+            String type = null;
+            String text = null;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                JsonToken t = p.nextToken();
+                if ("type".equals(field) && t == JsonToken.VALUE_STRING) type = p.getText();
+                else if ("text".equals(field) && t == JsonToken.VALUE_STRING) text = p.getText();
+                else p.skipChildren();
+            }
+            if ("output_text".equals(type) && text != null && !text.isBlank()) parts.add(text);
+        }
+    }
+
+    // Same rules as the old tree-based extractor: parts joined by "\n", trimmed; fallback only when empty
+    private static String joinParts(List<String> parts, String fallback) {
+        if (parts.isEmpty()) {
+            if (fallback != null && !fallback.isBlank()) return fallback;
+            return "";
+        }
+        if (parts.size() == 1) return parts.get(0).trim();
+
+        int len = parts.size() - 1;
+        for (String s : parts) len += s.length();
+        StringBuilder sb = new StringBuilder(len);
+        for (String s : parts) {
+            if (sb.length() > 0) sb.append("\n");
+            sb.append(s);
+        }
+        return sb.toString().trim();
+    }
+
+    private static Integer intOrNull(JsonParser p) throws IOException {
+        JsonToken t = p.currentToken();
+        if (t == JsonToken.VALUE_NUMBER_INT || t == JsonToken.VALUE_NUMBER_FLOAT) return p.getValueAsInt();
+        if (t == JsonToken.VALUE_STRING) {
+            try {
+                return Integer.parseInt(p.getText().trim());
+            } catch (NumberFormatException ignored) {
+                return null;
+            }
+        }
+        p.skipChildren();
+        return null;
+    }
+}
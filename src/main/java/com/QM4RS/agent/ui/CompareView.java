@@ -0,0 +1,138 @@
+package com.QM4RS.agent.ui;
+
+import com.QM4RS.agent.core.ChatStore.ChatRevision;
+import com.QM4RS.agent.core.OutputBlock;
+import com.QM4RS.agent.core.RequestTimings;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Node;
+import javafx.scene.control.*;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
+import javafx.scene.layout.VBox;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * "Compare" tab: one column per model of a fan-out send, each with latency/token stats,
+ * its block list and the selected block's code.
+ */
+public class CompareView {
+
+    // rev is null when the call for this model failed (error is set instead)
+    public record Column(String model, ChatRevision rev, List<OutputBlock> blocks, String error) {}
+
+    private final HBox columns = new HBox(10);
+    private final ScrollPane scroll = new ScrollPane(columns);
+    private final Label placeholder = new Label("Set \"Compare models\" in Settings, then press Compare.");
+    private final VBox root = new VBox(scroll);
+
+    private Consumer<ChatRevision> onOpen;
+
+    public CompareView() {
+        columns.setPadding(new Insets(10));
+        scroll.setFitToHeight(true);
+        scroll.setFitToWidth(true);
+        VBox.setVgrow(scroll, Priority.ALWAYS);
+        placeholder.getStyleClass().add("hint");
+        showPlaceholder();
+    }
+
+    public Node getNode() {
+        return root;
+    }
+
+    // "Open" on a column makes that revision current in the Output tab
+    public void setOnOpen(Consumer<ChatRevision> onOpen) {
+        this.onOpen = onOpen;
+    }
+
+    public void show(List<Column> cols) {
+        if (cols == null || cols.isEmpty()) {
+            showPlaceholder();
+            return;
+        }
+        columns.getChildren().clear();
+        for (Column c : cols) {
+            VBox col = buildColumn(c);
+            HBox.setHgrow(col, Priority.ALWAYS);
+            columns.getChildren().add(col);
+        }
+    }
+
+    private void showPlaceholder() {
+        columns.getChildren().setAll(placeholder);
+    }
+
+    private VBox buildColumn(Column c) {
+        Label title = new Label(c.model() == null ? "?" : c.model());
+        title.getStyleClass().add("section-title");
+
+        Label stats = new Label(c.rev() == null ? "Failed: " + c.error() : statsText(c.rev(), c.blocks().size()));
+        stats.getStyleClass().addAll("hint", "mono");
+        stats.setWrapText(true);
+
+        Button openBtn = new Button("Open");
+        openBtn.getStyleClass().add("btn-secondary");
+        openBtn.setDisable(c.rev() == null);
+        openBtn.setOnAction(e -> {
+            if (onOpen != null && c.rev() != null) onOpen.accept(c.rev());
+        });
+
+        HBox header = new HBox(10, title, new Region(), openBtn);
+        HBox.setHgrow(header.getChildren().get(1), Priority.ALWAYS);
+        header.setAlignment(Pos.CENTER_LEFT);
+
+        ListView<OutputBlock> list = new ListView<>();
+        list.getStyleClass().add("block-list");
+        list.getItems().setAll(c.blocks());
+        list.setPlaceholder(new Label(c.rev() == null ? "No output" : "No change blocks"));
+        list.setCellFactory(lv -> new ListCell<>() {
+            @Override
+            protected void updateItem(OutputBlock item, boolean empty) {
+                super.updateItem(item, empty);
+                if (empty || item == null) {
+                    setText(null);
+                    return;
+                }
+                String action = item.action == null ? "CHANGE" : item.action;
+                setText(action + "\n" + (item.file == null ? "" : item.file));
+            }
+        });
+
+        TextArea code = new TextArea();
+        code.setEditable(false);
+        code.setWrapText(false);
+        code.getStyleClass().add("mono");
+        list.getSelectionModel().selectedItemProperty().addListener((obs, oldV, newV) ->
+                code.setText(newV == null || newV.code() == null ? "" : newV.code()));
+        if (!c.blocks().isEmpty()) list.getSelectionModel().select(0);
+
+        SplitPane split = new SplitPane(list, code);
+        split.setOrientation(javafx.geometry.Orientation.VERTICAL);
+        split.setDividerPositions(0.4);
+        VBox.setVgrow(split, Priority.ALWAYS);
+
+        VBox col = new VBox(8, header, stats, split);
+        col.setPadding(new Insets(8));
+        col.setMinWidth(280);
+        col.getStyleClass().add("panel-subtle");
+        return col;
+    }
+
+    private static String statsText(ChatRevision rev, int blocks) {
+        RequestTimings t = rev.timings;
+        StringBuilder sb = new StringBuilder();
+        if (Boolean.TRUE.equals(rev.cached)) sb.append("cache hit  ");
+        if (t != null && t.totalMs != null) sb.append("total ").append(t.totalMs).append(" ms  ");
+        if (t != null && t.ttfbMs != null) sb.append("ttfb ").append(t.ttfbMs).append(" ms");
+        sb.append("\ntokens in=").append(rev.inputTokens == null ? "?" : rev.inputTokens)
+                .append(" out=").append(rev.outputTokens == null ? "?" : rev.outputTokens);
+        if (t != null && t.tokensPerSec != null) sb.append(String.format(Locale.ROOT, "  %.1f tok/s", t.tokensPerSec));
+        sb.append("\nblocks: ").append(blocks);
+        return sb.toString();
+    }
+}
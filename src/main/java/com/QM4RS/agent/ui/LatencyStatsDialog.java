@@ -0,0 +1,60 @@
+package com.QM4RS.agent.ui;
+
+import com.QM4RS.agent.core.LatencyReport;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.geometry.Insets;
+import javafx.scene.control.*;
+import javafx.scene.layout.VBox;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.function.ToDoubleFunction;
+
+public class LatencyStatsDialog {
+
+    public void show(List<LatencyReport.Row> rows) {
+        Dialog<Void> dialog = new Dialog<>();
+        dialog.setTitle("Latency");
+        dialog.setHeaderText("Per-phase latency by model (all chats)");
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.CLOSE);
+
+        TableView<LatencyReport.Row> table = new TableView<>();
+        table.setPlaceholder(new Label("No timed revisions yet. Send a request first."));
+        table.getItems().setAll(rows);
+        table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY_FLEX_LAST_COLUMN);
+
+        TableColumn<LatencyReport.Row, String> model = new TableColumn<>("Model");
+        model.setCellValueFactory(c -> new ReadOnlyStringWrapper(c.getValue().model()));
+        TableColumn<LatencyReport.Row, String> metric = new TableColumn<>("Metric");
+        metric.setCellValueFactory(c -> new ReadOnlyStringWrapper(c.getValue().metric()));
+        TableColumn<LatencyReport.Row, Integer> n = new TableColumn<>("n");
+        n.setCellValueFactory(c -> new ReadOnlyObjectWrapper<>(c.getValue().samples()));
+
+        table.getColumns().add(model);
+        table.getColumns().add(metric);
+        table.getColumns().add(n);
+        table.getColumns().add(numberColumn("p50", LatencyReport.Row::p50));
+        table.getColumns().add(numberColumn("p95", LatencyReport.Row::p95));
+        table.getColumns().add(numberColumn("p99", LatencyReport.Row::p99));
+
+        VBox box = new VBox(table);
+        box.setPadding(new Insets(12));
+        box.setPrefSize(640, 460);
+
+        dialog.getDialogPane().setContent(box);
+        dialog.setResizable(true);
+        dialog.showAndWait();
+    }
+
+    private static TableColumn<LatencyReport.Row, String> numberColumn(
+            String title, ToDoubleFunction<LatencyReport.Row> f) {
+        TableColumn<LatencyReport.Row, String> c = new TableColumn<>(title);
+        c.setCellValueFactory(cd -> {
+            double v = f.applyAsDouble(cd.getValue());
+            String s = v == Math.rint(v) ? Long.toString((long) v) : String.format(Locale.ROOT, "%.1f", v);
+            return new ReadOnlyStringWrapper(s);
+        });
+        return c;
+    }
+}
@@ -30,16 +30,28 @@ import javafx.stage.Screen;
 import javafx.stage.Stage;
 
 import java.io.File;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 public class MainWindow {
@@ -85,11 +97,17 @@ public class MainWindow {
                     new FileTextReader(512L * 1024)
             );
 
+    // Keeps the pack for the current selection/prompt/history warm so Send can upload right away
+    private final PackPrebuilder packPrebuilder = new PackPrebuilder(contextPackBuilder, 350);
+
     private final ConfigStore configStore = new ConfigStore();
     private AppConfig config = configStore.load();
 
-    private final OpenAIService openAIService = new OpenAIService();
+    private LlmProvider llm = new OpenAIService();
     private final OutputParser outputParser = new OutputParser();
+    private final HistoryCompactor historyCompactor = new HistoryCompactor(outputParser);
+    private final ApplyEngine applyEngine = new ApplyEngine();
+    private final CompileCheck compileCheck = new CompileCheck(ignoreRules);
 
     private Path currentProjectRoot;
 
@@ -97,7 +115,13 @@ public class MainWindow {
     private final IntegerProperty selectedCount = new SimpleIntegerProperty(0);
     private final BooleanProperty isRunning = new SimpleBooleanProperty(false);
 
-    private Task<OpenAIResult> runningTask;
+    private Task<?> runningTask;
+
+    // Compare (fan-out to the models in Settings)
+    private final BooleanProperty compareModelsMissing = new SimpleBooleanProperty(true);
+    private final CompareView compareView = new CompareView();
+    private TabPane outputTabs;
+    private Tab compareTab;
 
     // Keep original tree for filter rebuild
     private CheckBoxTreeItem<Path> originalRootItem;
@@ -116,10 +140,18 @@ public class MainWindow {
 
     // Debug/state snapshots
     private String lastBuiltContext = "";
-    private String lastRequestText = "";
+    private List<CharSequence> lastRequestParts = List.of();
     private String lastResponseText = "";
+    private String lastRawResponse = "";    // bounded tail of the raw HTTP body
     private String lastModelUsed = "";
     private String lastErrorText = "";
+    private RequestTimings lastTimings;
+    // last compacted history add-on and what it was built from (rebuilt only when one of those changes)
+    private HistoryCompactor.Result lastHistory;
+    private List<Object> lastHistoryKey;
+
+    private final ProfileRecorder profileRecorder = new ProfileRecorder();
+    private final BooleanProperty profiling = new SimpleBooleanProperty(false);
 
     // Status pseudo classes
     private static final PseudoClass PC_OK = PseudoClass.getPseudoClass("ok");
@@ -131,8 +163,14 @@ public class MainWindow {
 
     // ================== Chats ==================
     private final ChatStore chatStore = new ChatStore();
+    // every chat edit goes through here: snapshot on the FX thread, journal write in the background
+    private final ChatPersister chatPersister = new ChatPersister(chatStore, 400);
     private final ObservableList<ChatSession> chatItems = FXCollections.observableArrayList();
     private final ListView<ChatSession> chatListView = new ListView<>(chatItems);
+    // full-text search over all chats; kept current by chatPersister
+    private final ChatSearchIndex chatSearchIndex = new ChatSearchIndex();
+    private final TextField chatSearchField = new TextField();
+    private final ListView<ChatSearchIndex.Hit> chatSearchResults = new ListView<>();
     private final Button newChatBtn = new Button("+ New Chat");
     private final CheckBox includeHistoryCheck = new CheckBox("History");
 
@@ -145,26 +183,65 @@ public class MainWindow {
 
     private int currentBlockIndex = 0;
 
+    // Dry-run checks of the shown blocks (badges in the block list), filled in by validateBlocks()
+    private final Map<OutputBlock, ApplyEngine.BlockResult> blockChecks = new IdentityHashMap<>();
+    private long blockCheckGeneration;
+    // Compile errors per block from the last Compile Check (same generation as blockChecks)
+    private final Map<OutputBlock, List<CompileCheck.Problem>> blockProblems = new IdentityHashMap<>();
+    private final ExecutorService blockCheckPool = Executors.newFixedThreadPool(
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())), r -> {
+                Thread t = new Thread(r, "block-check");
+                t.setDaemon(true);
+                return t;
+            });
+
     private static final DateTimeFormatter TS_LOCAL = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-    private static final DateTimeFormatter TS_OFFSET = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss XXX");
 
     private boolean switchingChat = false;
+    // set while chatItems follows a store reorder: selection events then are not chat switches
+    private boolean reorderingChats = false;
 
     private static String fmt(LocalDateTime t) {
         if (t == null) return "";
         return TS_LOCAL.format(t);
     }
 
-    private static String fmt(OffsetDateTime t) {
-        if (t == null) return "";
-        return TS_OFFSET.format(t);
-    }
-
     public void show(Stage stage) {
         stage.setTitle("GPT-Agent");
 
-        // Load chats from disk
-        chatStore.load();
+        // Load chats from disk (fails while another GPT-Agent process has them open)
+        String chatLoadError = null;
+        try {
+            chatStore.load();
+        } catch (IllegalStateException ex) {
+            chatLoadError = ex.getMessage();
+        }
+        chatPersister.setErrorListener(this::reportPersistError);
+        chatPersister.attachSearchIndex(chatSearchIndex);
+        chatStore.setOrderListener(new ChatStore.OrderListener() {
+            @Override
+            public void inserted(int index, ChatSession s) {
+                followChatOrder(() -> chatItems.add(index, s));
+            }
+
+            @Override
+            public void removed(int index, ChatSession s) {
+                followChatOrder(() -> chatItems.remove(index));
+            }
+
+            @Override
+            public void moved(int from, int to, ChatSession s) {
+                followChatOrder(() -> {
+                    chatItems.remove(from);
+                    chatItems.add(to, s);
+                });
+            }
+
+            @Override
+            public void changed(int index, ChatSession s) {
+                followChatOrder(() -> chatItems.set(index, s)); // redraws that one cell
+            }
+        });
         refreshChatListFromStore();
 
         // ========= Top Bar =========
@@ -309,8 +386,8 @@ public class MainWindow {
             boolean promote = cur.revisionCount() > 0;
             chatStore.touch(cur, promote);
 
-            persistChatsSilently();
-            refreshChatListFromStorePreserveSelection();
+            chatPersister.markDirty(cur);
+            schedulePackPrebuild();
         });
 
 
@@ -331,7 +408,8 @@ public class MainWindow {
             boolean promote = cur.revisionCount() > 0;
             chatStore.touch(cur, promote);
 
-            persistChatsSilently();
+            chatPersister.markDirty(cur);
+            schedulePackPrebuild();
         });
 
 
@@ -356,6 +434,12 @@ public class MainWindow {
 
         sendBtn.setOnAction(e -> sendToGpt());
 
+        Button compareBtn = new Button("Compare");
+        compareBtn.getStyleClass().add("btn-secondary");
+        compareBtn.setTooltip(new Tooltip("Send the same context pack to every model in Settings → Compare models"));
+        compareBtn.disableProperty().bind(sendBtn.disableProperty().or(compareModelsMissing));
+        compareBtn.setOnAction(e -> sendCompare());
+
         Button cancelBtn = new Button("Cancel");
         cancelBtn.getStyleClass().add("btn-ghost");
         cancelBtn.disableProperty().bind(isRunning.not());
@@ -366,7 +450,7 @@ public class MainWindow {
         clearOutputBtn.disableProperty().bind(isRunning);
         clearOutputBtn.setOnAction(e -> clearOutputWithConfirm());
 
-        HBox promptButtons = new HBox(10, buildContextBtn, sendBtn, cancelBtn, clearOutputBtn);
+        HBox promptButtons = new HBox(10, buildContextBtn, sendBtn, compareBtn, cancelBtn, clearOutputBtn);
         promptButtons.setAlignment(Pos.CENTER_LEFT);
 
         contextStatsLabel.getStyleClass().addAll("hint", "mono");
@@ -398,9 +482,24 @@ public class MainWindow {
         copyCodeBtn.getStyleClass().add("btn-secondary");
         copyCodeBtn.setOnAction(e -> copyFromMonacoSmart());
 
+        Button applyBtn = new Button("Apply All");
+        applyBtn.getStyleClass().add("btn-secondary");
+        applyBtn.disableProperty().bind(isRunning.or(Bindings.isEmpty(blockItems)));
+        applyBtn.setOnAction(e -> applyAllBlocks());
+
+        Button compileBtn = new Button("Compile Check");
+        compileBtn.getStyleClass().add("btn-ghost");
+        compileBtn.disableProperty().bind(isRunning.or(Bindings.isEmpty(blockItems)));
+        compileBtn.setOnAction(e -> compileCheckBlocks());
+
+        Button undoApplyBtn = new Button("Undo Apply");
+        undoApplyBtn.getStyleClass().add("btn-ghost");
+        undoApplyBtn.disableProperty().bind(isRunning);
+        undoApplyBtn.setOnAction(e -> undoLastApply());
+
         setupRevisionNavButtons();
 
-        HBox viewerToolbar = new HBox(10, revBackBtn, revForwardBtn, revLabel, spacer(), copyCodeBtn);
+        HBox viewerToolbar = new HBox(10, revBackBtn, revForwardBtn, revLabel, spacer(), compileBtn, applyBtn, undoApplyBtn, copyCodeBtn);
         viewerToolbar.setAlignment(Pos.CENTER_LEFT);
         viewerToolbar.setPadding(new Insets(10));
         viewerToolbar.getStyleClass().add("panel-subtle");
@@ -451,7 +550,7 @@ public class MainWindow {
 
         SplitPane debugSplit = new SplitPane(
                 wrapTextAreaWithTitle("Request", debugRequestArea),
-                wrapTextAreaWithTitle("Response", debugResponseArea)
+                wrapTextAreaWithTitle("Response (raw, last 64 KB)", debugResponseArea)
         );
         debugSplit.setDividerPositions(0.5);
 
@@ -461,7 +560,12 @@ public class MainWindow {
 
         Tab dbgTab = new Tab("Debug", debugRoot);
 
-        TabPane tabs = new TabPane(outTab, ctxTab);
+        // ========= Compare Tab =========
+        compareView.setOnOpen(this::openRevision);
+        compareTab = new Tab("Compare", compareView.getNode());
+
+        TabPane tabs = new TabPane(outTab, compareTab, ctxTab);
+        outputTabs = tabs;
         tabs.setTabClosingPolicy(TabPane.TabClosingPolicy.UNAVAILABLE);
 
         detailsMode.addListener((obs, oldV, newV) -> {
@@ -471,6 +575,7 @@ public class MainWindow {
                 tabs.getTabs().remove(dbgTab);
             }
             refreshContextStats();
+            refreshDebugUI();
         });
 
         // ========= Right Side =========
@@ -527,9 +632,16 @@ public class MainWindow {
         updateApiKeyFlag();
         tryConfigureClientSilently();
 
+        packPrebuilder.setListener(w -> Platform.runLater(this::refreshContextStats));
+
         refreshContextStats();
+        if (chatLoadError == null) {
+            setStatus(StatusKind.INFO, "Ready.");
+        } else {
+            setStatus(StatusKind.ERROR, chatLoadError);
+            lastErrorText = "Chat store: " + chatLoadError;
+        }
         refreshDebugUI();
-        setStatus(StatusKind.INFO, "Ready.");
 
         if (chatItems.isEmpty()) {
             createNewChatAndSelect();
@@ -572,40 +684,121 @@ public class MainWindow {
         });
 
         chatListView.getSelectionModel().selectedItemProperty().addListener((obs, oldV, newV) -> {
-            if (newV == null) return;
+            if (newV == null || reorderingChats) return;
             switchToChat(newV);
         });
 
-        VBox box = new VBox(10, header, chatListView);
+        chatSearchField.setPromptText("Search chats…");
+        chatSearchField.textProperty().addListener((obs, oldV, newV) -> runChatSearch(newV));
+        chatSearchField.setOnKeyPressed(e -> {
+            if (e.getCode() == KeyCode.ESCAPE) chatSearchField.clear();
+        });
+
+        chatSearchResults.setPlaceholder(new Label("No matches"));
+        chatSearchResults.setCellFactory(lv -> new ListCell<>() {
+            @Override
+            protected void updateItem(ChatSearchIndex.Hit item, boolean empty) {
+                super.updateItem(item, empty);
+                if (empty || item == null) {
+                    setText(null);
+                    return;
+                }
+                ChatSession s = findChat(item.sessionId());
+                String title = s == null || s.title == null ? "Chat" : s.title;
+                String where = item.isSession() ? "Title / prompt" : "Revision " + (item.revision() + 1);
+                setText(title + "\n" + where + String.format(Locale.ROOT, " • score %.2f", item.score()));
+            }
+        });
+        chatSearchResults.setOnMouseClicked(e -> openSearchHit(chatSearchResults.getSelectionModel().getSelectedItem()));
+        chatSearchResults.setOnKeyPressed(e -> {
+            if (e.getCode() == KeyCode.ENTER) openSearchHit(chatSearchResults.getSelectionModel().getSelectedItem());
+        });
+        chatSearchResults.setVisible(false);
+        chatSearchResults.setManaged(false);
+
+        VBox box = new VBox(10, header, chatSearchField, chatListView, chatSearchResults);
         box.setPadding(new Insets(12));
         box.getStyleClass().add("panel");
         VBox.setVgrow(chatListView, Priority.ALWAYS);
+        VBox.setVgrow(chatSearchResults, Priority.ALWAYS);
         return box;
     }
 
+    // a blank query shows the chat list again
+    private void runChatSearch(String q) {
+        boolean searching = q != null && !q.isBlank();
+        chatSearchResults.setVisible(searching);
+        chatSearchResults.setManaged(searching);
+        chatListView.setVisible(!searching);
+        chatListView.setManaged(!searching);
+        if (!searching) {
+            chatSearchResults.getItems().clear();
+            return;
+        }
+        long t0 = System.nanoTime();
+        List<ChatSearchIndex.Hit> hits = chatSearchIndex.search(q, 100);
+        chatSearchResults.getItems().setAll(hits);
+        setStatus(StatusKind.INFO, hits.size() + " matches in " + (System.nanoTime() - t0) / 1_000_000L + " ms ("
+                + chatSearchIndex.documentCount() + " indexed)");
+    }
+
+    private ChatSession findChat(String id) {
+        for (ChatSession s : chatItems) {
+            if (s.id != null && s.id.equals(id)) return s;
+        }
+        return null;
+    }
+
+    private void openSearchHit(ChatSearchIndex.Hit hit) {
+        if (hit == null) return;
+        ChatSession s = findChat(hit.sessionId());
+        if (s == null) return;
+        chatListView.getSelectionModel().select(s);
+        if (hit.isSession()) return;
+        List<ChatRevision> revs = loadRevisions(s);
+        if (revs != null && hit.revision() < revs.size()) openRevision(revs.get(hit.revision()));
+    }
+
+    /**
+     * ChatStore.ensureLoaded for FX-thread callers: an unreadable segment or a missing blob chunk is
+     * reported in the status bar and Debug tab instead of escaping the handler; null then.
+     */
+    private List<ChatRevision> loadRevisions(ChatSession s) {
+        try {
+            return chatStore.ensureLoaded(s);
+        } catch (UncheckedIOException ex) {
+            String msg = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+            setStatus(StatusKind.ERROR, msg);
+            lastErrorText = "Chat store: " + msg;
+            refreshDebugUI();
+            return null;
+        }
+    }
+
     private void refreshChatListFromStore() {
         chatItems.setAll(chatStore.getSessionsSorted());
     }
 
-    private void refreshChatListFromStorePreserveSelection() {
-        ChatSession cur = currentChatProperty.get();
-        String curId = cur == null ? null : cur.id;
-        refreshChatListFromStore();
-        if (curId != null) {
-            for (int i = 0; i < chatItems.size(); i++) {
-                if (curId.equals(chatItems.get(i).id)) {
-                    chatListView.getSelectionModel().select(i);
-                    break;
-                }
+    // Applies one fine-grained order change to chatItems, keeping the selected chat selected
+    private void followChatOrder(Runnable change) {
+        ChatSession selected = chatListView.getSelectionModel().getSelectedItem();
+        reorderingChats = true;
+        try {
+            change.run();
+            if (selected != null && chatListView.getSelectionModel().getSelectedItem() != selected) {
+                int i = chatStore.positionOf(selected);
+                if (i >= 0) chatListView.getSelectionModel().select(i);
+                else chatListView.getSelectionModel().clearSelection(); // deleted: the caller picks the next chat
             }
+        } finally {
+            reorderingChats = false;
         }
     }
 
     private void createNewChatAndSelect() {
         ChatSession s = chatStore.createNew();
         chatStore.touch(s);
-        persistChatsSilently();
-        refreshChatListFromStore();
+        chatPersister.markDirty(s);
         chatListView.getSelectionModel().select(s);
     }
 
@@ -624,8 +817,7 @@ public class MainWindow {
                 && currentChatProperty.get().id.equals(s.id);
 
         chatStore.delete(s);
-        persistChatsSilently();
-        refreshChatListFromStore();
+        chatPersister.markDeleted(s);
 
         if (wasCurrent) {
             currentChatProperty.set(null);
@@ -646,33 +838,65 @@ public class MainWindow {
         promptArea.setText(s.promptText == null ? "" : s.promptText);
         includeHistoryCheck.setSelected(s.includeHistory);
 
-        s.clampRevisionIndex();
-        ChatRevision rev = s.getCurrentRevision();
+        ChatRevision rev = null;
+        if (loadRevisions(s) != null) {
+            s.clampRevisionIndex();
+            rev = s.getCurrentRevision();
+        }
         if (rev == null || rev.responseText == null) {
             clearOutput();
         } else {
             lastModelUsed = rev.model == null ? "" : rev.model;
             lastResponseText = rev.responseText;
+            lastTimings = rev.timings;
             renderBlocks(rev.responseText);
         }
+        refreshCompareView();
         updateRevisionNavUI();
+        schedulePackPrebuild();
     }
 
     private String deriveTitleFromPrompt(String prompt) {
-        if (prompt == null) return null;
-        String p = prompt.strip();
-        if (p.isBlank()) return "New Chat";
-        int nl = p.indexOf('\n');
-        String first = (nl < 0) ? p : p.substring(0, nl);
-        first = first.strip();
-        if (first.length() > 42) first = first.substring(0, 42).strip() + "…";
-        return first.isBlank() ? "Chat" : first;
+        return ChatStore.titleFromPrompt(prompt);
     }
 
-    private void persistChatsSilently() {
-        try {
-            chatStore.save();
-        } catch (Exception ignored) {}
+    // Called from MainApp.stop(): writes pending chat changes, then waits for a running compaction
+    public void shutdown() {
+        chatPersister.shutdown();
+        packPrebuilder.shutdown();
+        blockCheckPool.shutdownNow();
+    }
+
+    // Reads every stored revision, so it runs off the FX thread; the dialog opens when done
+    private void showLatencyStats() {
+        Task<List<LatencyReport.Row>> task = new Task<>() {
+            @Override
+            protected List<LatencyReport.Row> call() throws Exception {
+                return LatencyReport.compute(chatStore);
+            }
+        };
+        task.setOnSucceeded(e -> {
+            setStatus(StatusKind.OK, "Latency stats ready.");
+            new LatencyStatsDialog().show(task.getValue());
+        });
+        task.setOnFailed(e -> {
+            Throwable ex = task.getException();
+            setStatus(StatusKind.ERROR, "Could not read chat history: " + (ex == null ? "unknown" : ex.getMessage()));
+        });
+
+        setStatus(StatusKind.RUNNING, "Reading chat history...");
+        Thread t = new Thread(task, "latency-stats");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void reportPersistError(Exception ex) {
+        String msg = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+        Platform.runLater(() -> {
+            setStatus(StatusKind.ERROR, "Could not save chats: " + msg);
+            lastErrorText = "Chat store: " + msg;
+            refreshDebugUI();
+        });
     }
 
     // ---------------- Revision navigation ----------------
@@ -704,7 +928,7 @@ public class MainWindow {
 
         cur.currentRevisionIndex = next;
         chatStore.touch(cur);
-        persistChatsSilently();
+        chatPersister.markDirty(cur);
 
         ChatRevision rev = cur.getCurrentRevision();
         if (rev != null) {
@@ -719,10 +943,45 @@ public class MainWindow {
                 currentBlockIndex = 0;
             }
         }
+        refreshCompareView();
         updateRevisionNavUI();
         setStatus(StatusKind.INFO, "Revision " + (next + 1) + " / " + n);
     }
 
+    // Compare tab "Open": jump to that model's revision in the Output tab
+    private void openRevision(ChatRevision target) {
+        ChatSession cur = currentChatProperty.get();
+        if (cur == null || target == null) return;
+        List<ChatRevision> revs = loadRevisions(cur);
+        int idx = revs == null ? -1 : revs.indexOf(target);
+        if (idx < 0) return;
+        cur.clampRevisionIndex();
+        int delta = idx - (cur.currentRevisionIndex < 0 ? cur.revisionCount() - 1 : cur.currentRevisionIndex);
+        if (delta != 0) moveRevision(delta);
+        outputTabs.getSelectionModel().select(0);
+    }
+
+    // Shows the compare group of the current revision (empty when it came from a normal Send)
+    private void refreshCompareView() {
+        ChatSession cur = currentChatProperty.get();
+        ChatRevision rev = cur == null ? null : cur.getCurrentRevision();
+        if (rev == null || rev.compareGroup == null) {
+            compareView.show(List.of());
+            return;
+        }
+        List<ChatRevision> revs = loadRevisions(cur);
+        if (revs == null) {
+            compareView.show(List.of());
+            return;
+        }
+        List<CompareView.Column> cols = new ArrayList<>();
+        for (ChatRevision r : revs) {
+            if (!rev.compareGroup.equals(r.compareGroup)) continue;
+            cols.add(new CompareView.Column(r.model, r, outputParser.parse(r.responseText == null ? "" : r.responseText), null));
+        }
+        compareView.show(cols);
+    }
+
     private void updateRevisionNavUI() {
         ChatSession cur = currentChatProperty.get();
         if (cur == null) {
@@ -743,7 +1002,9 @@ public class MainWindow {
         int idx = cur.currentRevisionIndex;
         if (idx < 0) idx = n - 1;
 
-        revLabel.setText("Revision: " + (idx + 1) + "/" + n);
+        ChatRevision rev = cur.getCurrentRevision();
+        boolean cached = rev != null && Boolean.TRUE.equals(rev.cached);
+        revLabel.setText("Revision: " + (idx + 1) + "/" + n + (cached ? " (cached)" : ""));
         revBackBtn.setDisable(idx <= 0);
         revForwardBtn.setDisable(idx >= n - 1);
     }
@@ -817,12 +1078,26 @@ public class MainWindow {
         detailsBtn.setFocusTraversable(false);
         detailsBtn.selectedProperty().bindBidirectional(detailsMode);
 
+        Button latencyBtn = new Button("Latency");
+        latencyBtn.getStyleClass().add("btn-ghost");
+        latencyBtn.visibleProperty().bind(detailsMode);
+        latencyBtn.managedProperty().bind(detailsMode);
+        latencyBtn.setOnAction(e -> showLatencyStats());
+
+        Button profileBtn = new Button("Profile 60s");
+        profileBtn.getStyleClass().add("btn-ghost");
+        profileBtn.visibleProperty().bind(detailsMode);
+        profileBtn.managedProperty().bind(detailsMode);
+        profileBtn.disableProperty().bind(profiling);
+        profileBtn.textProperty().bind(Bindings.when(profiling).then("Recording…").otherwise("Profile 60s"));
+        profileBtn.setOnAction(e -> startProfile());
+
         Button settingsBtn = new Button("Settings");
         settingsBtn.getStyleClass().add("btn-ghost");
         settingsBtn.disableProperty().bind(isRunning);
         settingsBtn.setOnAction(e -> openSettings());
 
-        HBox top = new HBox(10, projectPathField, chooseBtn, reloadBtn, detailsBtn, settingsBtn);
+        HBox top = new HBox(10, projectPathField, chooseBtn, reloadBtn, detailsBtn, latencyBtn, profileBtn, settingsBtn);
         top.setAlignment(Pos.CENTER_LEFT);
         HBox.setHgrow(projectPathField, Priority.ALWAYS);
         top.getStyleClass().add("panel");
@@ -830,6 +1105,21 @@ public class MainWindow {
         return top;
     }
 
+    // JFR recording of the next 60 seconds; reproduce the slow action meanwhile
+    private void startProfile() {
+        try {
+            Path out = profileRecorder.start(Duration.ofSeconds(60), file -> Platform.runLater(() -> {
+                profiling.set(false);
+                setStatus(StatusKind.OK, "Profile written: " + file);
+            }));
+            profiling.set(true);
+            setStatus(StatusKind.RUNNING, "Recording JFR profile for 60s → " + out.getFileName());
+        } catch (Exception ex) {
+            profiling.set(false);
+            setStatus(StatusKind.ERROR, "Profile failed: " + ex.getMessage());
+        }
+    }
+
     private void installCopyShortcut(Scene scene) {
         var ctrlC = new KeyCodeCombination(KeyCode.C, KeyCombination.SHORTCUT_DOWN);
         scene.getAccelerators().put(ctrlC, () -> {
@@ -856,6 +1146,8 @@ public class MainWindow {
                 super.updateItem(item, empty);
                 if (empty || item == null) {
                     setText(null);
+                    setGraphic(null);
+                    setTooltip(null);
                     return;
                 }
                 String action = item.action == null ? "CHANGE" : item.action;
@@ -864,6 +1156,36 @@ public class MainWindow {
                 if (item.range != null && !item.range.isBlank()) hint = " [" + item.range + "]";
                 else if (item.target != null && !item.target.isBlank()) hint = " [" + item.target + "]";
                 setText(action + hint + "\n" + file);
+                updateBadge(item);
+            }
+
+            private final Label badge = new Label();
+
+            {
+                badge.getStyleClass().add("block-badge");
+                setContentDisplay(ContentDisplay.RIGHT);
+                setGraphicTextGap(8);
+            }
+
+            private void updateBadge(OutputBlock item) {
+                ApplyEngine.BlockResult r = blockChecks.get(item);
+                if ("RAW".equals(item.action) || (r == null && currentProjectRoot == null)) {
+                    setGraphic(null);
+                    setTooltip(null);
+                    return;
+                }
+                List<CompileCheck.Problem> problems = blockProblems.getOrDefault(item, List.of());
+                boolean compileError = problems.stream().anyMatch(CompileCheck.Problem::error);
+                boolean warn = r != null && (r.check() != ApplyEngine.Check.OK || !problems.isEmpty()) && r.ok() && !compileError;
+                badge.setText(compileError ? "compile error" : r == null ? "…" : r.check().badge);
+                badge.pseudoClassStateChanged(PC_OK, r != null && r.check() == ApplyEngine.Check.OK && problems.isEmpty());
+                badge.pseudoClassStateChanged(PC_WARN, warn);
+                badge.pseudoClassStateChanged(PC_ERROR, compileError || (r != null && !r.ok()));
+                setGraphic(badge);
+                StringBuilder tip = new StringBuilder(r == null ? "" : r.message());
+                for (int k = 0; k < problems.size() && k < 5; k++) tip.append('\n').append(problems.get(k));
+                if (problems.size() > 5) tip.append("\n… ").append(problems.size() - 5).append(" more");
+                setTooltip(tip.isEmpty() ? null : new Tooltip(tip.toString()));
             }
         });
 
@@ -874,7 +1196,7 @@ public class MainWindow {
 
         blockListView.getSelectionModel().selectedItemProperty().addListener((obs, oldV, newV) -> {
             if (newV == null) return;
-            String text = newV.code == null ? "" : newV.code;
+            String text = newV.code() == null ? "" : newV.code();
 
             String lang = resolveLanguageForBlock(newV, text);
 
@@ -905,10 +1227,14 @@ public class MainWindow {
 
     private void clearOutput() {
         blockItems.clear();
+        blockCheckGeneration++;
+        blockChecks.clear();
+        blockProblems.clear();
         monacoViewer.setContent("", "plaintext");
         tokenLabel.setText("Tokens: in=? out=? total=?");
         setStatus(StatusKind.INFO, "Output cleared.");
         lastResponseText = "";
+        lastRawResponse = "";
         lastErrorText = "";
         refreshDebugUI();
         updateRevisionNavUI();
@@ -924,7 +1250,8 @@ public class MainWindow {
     }
 
     private void updateApiKeyFlag() {
-        apiKeyMissing.set(config.getApiKey() == null || config.getApiKey().isBlank());
+        apiKeyMissing.set((config.getApiKey() == null || config.getApiKey().isBlank()) && !config.isMockProvider());
+        compareModelsMissing.set(config.getCompareModelList().size() < 2);
     }
 
     private void openSettings() {
@@ -943,9 +1270,27 @@ public class MainWindow {
     }
 
     private void tryConfigureClientSilently() {
-        if (config.getApiKey() == null || config.getApiKey().isBlank()) return;
+        // mock knobs live in config too, so a mock provider is always rebuilt on save
+        if (!llm.id().equals(config.getProvider()) || config.isMockProvider()) {
+            try {
+                LlmProvider next = LlmProvider.fromConfig(config);
+                if (llm instanceof AutoCloseable c) {
+                    try { c.close(); } catch (Exception ignored) {}
+                }
+                llm = next;
+            } catch (Exception ex) {
+                setStatus(StatusKind.ERROR, "Provider error: " + ex.getMessage());
+            }
+        }
+
+        llm.setResponseCache(config.isResponseCacheEnabled()
+                ? new ResponseCache(llm.id(), config.getResponseCacheMaxMb() * 1024L * 1024L,
+                Duration.ofHours(config.getResponseCacheTtlHours()))
+                : null);
+
+        if (apiKeyMissing.get()) return;
         try {
-            openAIService.configure(config.getApiKey());
+            llm.configure(config.getApiKey());
         } catch (Exception ignored) {}
     }
 
@@ -985,14 +1330,16 @@ public class MainWindow {
             regexToggle.setSelected(false);
 
             lastBuiltContext = "";
-            lastRequestText = "";
+            lastRequestParts = List.of();
             lastResponseText = "";
             lastModelUsed = "";
             lastErrorText = "";
             refreshDebugUI();
 
+            packPrebuilder.invalidateTree();
             var result = scanner.scan(root);
-            originalRootItem = result.rootItem();
+            originalRootItem = result.root() == null ? null : toTreeItem(result.root());
+            if (originalRootItem != null) originalRootItem.setExpanded(true);
 
             if (originalRootItem == null) {
                 treeView.setRoot(null);
@@ -1014,6 +1361,7 @@ public class MainWindow {
             setStatus(StatusKind.OK, "Loaded. Files: " + result.allFiles().size());
             refreshSelectedFilesUI();
             refreshContextStats();
+            schedulePackPrebuild();
         } catch (Exception ex) {
             setStatus(StatusKind.ERROR, "Error: " + ex.getMessage());
             treeView.setRoot(null);
@@ -1025,6 +1373,14 @@ public class MainWindow {
         }
     }
 
+    private static CheckBoxTreeItem<Path> toTreeItem(ProjectScanner.FileNode node) {
+        CheckBoxTreeItem<Path> item = new CheckBoxTreeItem<>(node.path());
+        for (ProjectScanner.FileNode child : node.children()) {
+            item.getChildren().add(toTreeItem(child));
+        }
+        return item;
+    }
+
     private void applyTreeFilter(String filterText, boolean regexMode) {
         String ft = (filterText == null) ? "" : filterText.trim();
 
@@ -1171,6 +1527,7 @@ public class MainWindow {
                 selectionModel.setSelected(p, newV);
                 refreshSelectedFilesUI();
                 refreshContextStats();
+                schedulePackPrebuild();
             }
         }));
     }
@@ -1191,45 +1548,56 @@ public class MainWindow {
         }
         try {
             setStatus(StatusKind.RUNNING, "Building context pack...");
-            List<Path> selectedFiles = selectionModel.getSelectedFilesSorted();
-
-            String prompt = promptArea.getText();
-            String history = buildChatHistoryAddonIfEnabled();
 
-            String pack = contextPackBuilder.build(currentProjectRoot, selectedFiles, prompt, history);
+            PackPrebuilder.Warm before = packPrebuilder.current();
+            PackPrebuilder.Warm w = packPrebuilder.getOrBuild(currentPackInputs());
 
-            lastBuiltContext = pack;
-            contextPreviewArea.setText(pack);
+            lastBuiltContext = w.pack();
+            contextPreviewArea.setText(w.pack());
 
             refreshContextStats();
-            setStatus(StatusKind.OK, "Context pack ready.");
+            setStatus(StatusKind.OK, w == before ? "Context pack ready (prebuilt)." : "Context pack ready.");
         } catch (Exception ex) {
             setStatus(StatusKind.ERROR, "Error: " + ex.getMessage());
         }
     }
 
+    private PackPrebuilder.Inputs currentPackInputs() {
+        ChatSession cur = currentChatProperty.get();
+        boolean historyOn = cur != null && Boolean.TRUE.equals(cur.includeHistory);
+        return new PackPrebuilder.Inputs(
+                currentProjectRoot,
+                selectionModel.getSelectedFilesSorted(),
+                promptArea.getText(),
+                historyOn ? buildChatHistoryAddonIfEnabled() : null
+        );
+    }
+
+    private void schedulePackPrebuild() {
+        if (currentProjectRoot == null) return;
+        packPrebuilder.request(currentPackInputs());
+    }
+
     private String buildChatHistoryAddonIfEnabled() {
         ChatSession cur = currentChatProperty.get();
         if (cur == null) return null;
         if (!cur.includeHistory) return null;
-        if (cur.revisions == null || cur.revisions.isEmpty()) return null;
-
-        int n = cur.revisions.size();
-        int from = Math.max(0, n - 5);
-
-        StringBuilder sb = new StringBuilder();
-        for (int i = from; i < n; i++) {
-            ChatRevision r = cur.revisions.get(i);
-            if (r == null) continue;
-
-            sb.append("---- REVISION ").append(i + 1).append("/").append(n).append(" ----\n");
-            sb.append("at: ").append(fmt(r.at)).append("\n");
-            sb.append("model: ").append(r.model == null ? "" : r.model).append("\n");
-            sb.append("prompt: ").append(r.userPrompt == null ? "" : r.userPrompt.strip()).append("\n");
-            sb.append("ai_output:\n");
-            sb.append(r.responseText == null ? "" : r.responseText.strip()).append("\n\n");
+        List<ChatRevision> revs = loadRevisions(cur);
+        if (revs == null || revs.isEmpty()) return null;
+
+        List<String> selected = new ArrayList<>();
+        for (Path p : selectionModel.getSelectedFilesSorted()) {
+            if (currentProjectRoot != null && p.startsWith(currentProjectRoot)) {
+                selected.add(currentProjectRoot.relativize(p).toString().replace('\\', '/'));
+            }
         }
-        return sb.toString().strip();
+        // called on every prompt keystroke (pack prebuild): only recompute when the inputs changed
+        List<Object> key = List.of(cur.id, cur.revisions.size(), selected, config.getHistoryTokenBudget());
+        if (lastHistory == null || !key.equals(lastHistoryKey)) {
+            lastHistory = historyCompactor.compact(cur.revisions, selected, config.getHistoryTokenBudget());
+            lastHistoryKey = key;
+        }
+        return lastHistory.text();
     }
 
     private void refreshContextStats() {
@@ -1243,7 +1611,9 @@ public class MainWindow {
             } catch (Exception ignored) {}
         }
 
-        String ctx = contextPreviewArea.getText();
+        // the warm pack is the most current estimate; the preview only changes on Build Context / Send
+        PackPrebuilder.Warm w = packPrebuilder.current();
+        String ctx = w != null ? w.pack() : contextPreviewArea.getText();
         if (ctx == null) ctx = "";
         int chars = ctx.length();
 
@@ -1259,9 +1629,8 @@ public class MainWindow {
         }
     }
 
-    private long estimateTokens(int chars) {
-        if (chars <= 0) return 0;
-        return (chars + 3L) / 4L;
+    private long estimateTokens(long chars) {
+        return RateLimitController.estimateTokens(chars);
     }
 
     private String humanBytes(long bytes) {
@@ -1275,7 +1644,7 @@ public class MainWindow {
     }
 
     private void cancelRunningTask() {
-        Task<OpenAIResult> t = runningTask;
+        Task<?> t = runningTask;
         if (t == null) return;
         if (!t.isRunning()) return;
 
@@ -1300,12 +1669,18 @@ public class MainWindow {
         isRunning.set(true);
 
         final String model = (config.getModel() == null || config.getModel().isBlank()) ? "gpt-4.1" : config.getModel();
-        final List<Path> selectedFiles = selectionModel.getSelectedFilesSorted();
         final String prompt = promptArea.getText();
         final boolean historyOn = currentChatProperty.get().includeHistory;
+        final PackPrebuilder.Inputs packInputs = currentPackInputs();
+        final HistoryCompactor.Result history = historyOn ? lastHistory : null;
+        final long sendStartNanos = System.nanoTime();
+        final RequestTimings packTimings = new RequestTimings();
+
+        final LlmProvider provider = llm;
 
         lastModelUsed = model;
         lastErrorText = "";
+        lastTimings = null;
         refreshDebugUI();
 
         Task<OpenAIResult> task = new Task<>() {
@@ -1313,11 +1688,16 @@ public class MainWindow {
             protected OpenAIResult call() throws Exception {
                 if (isCancelled()) throw new InterruptedException("Cancelled.");
 
-                openAIService.configure(config.getApiKey());
+                provider.configure(config.getApiKey());
 
+                // usually already warm: returns at once unless inputs or files changed since the last prebuild
                 Platform.runLater(() -> setStatus(StatusKind.RUNNING, "Building context pack..."));
-                String history = historyOn ? buildChatHistoryAddonIfEnabled() : null;
-                String pack = contextPackBuilder.build(currentProjectRoot, selectedFiles, prompt, history);
+                PackPrebuilder.Warm before = packPrebuilder.current();
+                long p0 = System.nanoTime();
+                PackPrebuilder.Warm warm = packPrebuilder.getOrBuild(packInputs);
+                packTimings.packMs = (System.nanoTime() - p0) / 1_000_000L;
+                packTimings.packWarm = warm == before;
+                String pack = warm.pack();
                 Platform.runLater(() -> {
                     lastBuiltContext = pack;
                     contextPreviewArea.setText(pack);
@@ -1326,19 +1706,21 @@ public class MainWindow {
 
                 if (isCancelled()) throw new InterruptedException("Cancelled.");
 
-                Platform.runLater(() -> setStatus(StatusKind.RUNNING, "Calling OpenAI..."));
-                String request = PromptTemplates.buildRequest(pack);
+                Platform.runLater(() -> setStatus(StatusKind.RUNNING, "Calling " + provider.id() + "..."));
+                List<CharSequence> request = PromptTemplates.buildRequestParts(pack);
 
-                lastRequestText = request;
+                lastRequestParts = request;
                 Platform.runLater(() -> refreshDebugUI());
 
-                return openAIService.generateDiff(model, request);
+                return provider.generateDiff(model, request);
             }
         };
 
         runningTask = task;
 
         task.setOnSucceeded(e -> {
+            isRunning.set(false);
+            runningTask = null;
             OpenAIResult r = task.getValue();
 
             String inTok = (r == null || r.inputTokens() == null) ? "?" : r.inputTokens().toString();
@@ -1348,17 +1730,182 @@ public class MainWindow {
 
             String modelText = (r == null || r.diffText() == null) ? "" : r.diffText();
             lastResponseText = modelText;
-            renderBlocks(modelText);
+            lastRawResponse = (r == null || r.rawText() == null) ? "" : r.rawText();
+
+            // the provider's timings may be shared with a coalesced caller, so work on a copy
+            RequestTimings timings = (r == null || r.timings() == null) ? new RequestTimings() : r.timings().copy();
+            timings.packMs = packTimings.packMs;
+            timings.packWarm = packTimings.packWarm;
+
+            long t0 = System.nanoTime();
+            List<OutputBlock> blocks = outputParser.parse(modelText);
+            long t1 = System.nanoTime();
+            renderBlocks(blocks, modelText);
+            long t2 = System.nanoTime();
+            timings.parseMs = (t1 - t0) / 1_000_000L;
+            timings.renderMs = (t2 - t1) / 1_000_000L;
+            timings.totalMs = (t2 - sendStartNanos) / 1_000_000L;
+            lastTimings = timings;
+
+            // the response is shown above even when the chat cannot store it
+            boolean stored = addRevisionToCurrentChat(newRevision(r, model, prompt, historyOn, timings, null));
+            if (stored) refreshCompareView();
+
+            boolean cached = r != null && r.cached();
+            String saved = history == null || history.savedTokens() == 0 ? ""
+                    : " History compacted: ~" + history.tokens() + " tokens, saved ~" + history.savedTokens() + ".";
+            if (stored) {
+                setStatus(StatusKind.OK, (cached ? "Done (cache hit — no request sent)." : "Done.") + saved);
+            } else {
+                setStatus(StatusKind.ERROR, "Done, but the response could not be stored in this chat: " + lastErrorText);
+            }
+            refreshDebugUI(cached ? "OK (cache hit)" : "OK", inTok, outTok, totalTok);
+            updateRevisionNavUI();
+        });
+
+        task.setOnFailed(e -> {
+            Throwable ex = task.getException();
+            String msg = (ex == null ? "unknown" : ex.getMessage());
+            if (msg == null || msg.isBlank()) msg = ex == null ? "unknown" : ex.getClass().getSimpleName();
+
+            setStatus(StatusKind.ERROR, "OpenAI error: " + msg);
+            isRunning.set(false);
+            runningTask = null;
+
+            lastErrorText = msg;
+            refreshDebugUI();
+        });
+
+        task.setOnCancelled(e -> {
+            setStatus(StatusKind.WARN, "Cancelled.");
+            isRunning.set(false);
+            runningTask = null;
+
+            lastErrorText = "Cancelled by user at " + fmt(LocalDateTime.now());
+            refreshDebugUI();
+        });
+
+        Thread t = new Thread(task, "openai-call");
+        t.setDaemon(true);
+        t.start();
+    }
 
-            saveRevisionToCurrentChat(r, model, prompt, historyOn);
+    // One pack, every "Compare models" entry in parallel; each answer becomes a revision of the same group
+    private void sendCompare() {
+        if (isRunning.get()) return;
+        if (currentChatProperty.get() == null) {
+            setStatus(StatusKind.WARN, "Select or create a chat first.");
+            return;
+        }
+        final List<String> models = config.getCompareModelList();
+        if (models.size() < 2) {
+            setStatus(StatusKind.WARN, "Add at least two models to Settings → Compare models.");
+            return;
+        }
+
+        clearOutput();
+        setStatus(StatusKind.RUNNING, "Preparing request...");
+        isRunning.set(true);
+
+        final String prompt = promptArea.getText();
+        final boolean historyOn = currentChatProperty.get().includeHistory;
+        final PackPrebuilder.Inputs packInputs = currentPackInputs();
+        final long sendStartNanos = System.nanoTime();
+        final RequestTimings packTimings = new RequestTimings();
+        final LlmProvider provider = llm;
+
+        lastModelUsed = String.join(", ", models);
+        lastErrorText = "";
+        lastTimings = null;
+        refreshDebugUI();
+
+        Task<FanOutSender.Report> task = new Task<>() {
+            @Override
+            protected FanOutSender.Report call() throws Exception {
+                provider.configure(config.getApiKey());
+
+                Platform.runLater(() -> setStatus(StatusKind.RUNNING, "Building context pack..."));
+                PackPrebuilder.Warm before = packPrebuilder.current();
+                long p0 = System.nanoTime();
+                PackPrebuilder.Warm warm = packPrebuilder.getOrBuild(packInputs);
+                packTimings.packMs = (System.nanoTime() - p0) / 1_000_000L;
+                packTimings.packWarm = warm == before;
+                String pack = warm.pack();
+                Platform.runLater(() -> {
+                    lastBuiltContext = pack;
+                    contextPreviewArea.setText(pack);
+                    refreshContextStats();
+                });
 
+                if (isCancelled()) throw new InterruptedException("Cancelled.");
+
+                Platform.runLater(() -> setStatus(StatusKind.RUNNING, "Calling " + models.size() + " models..."));
+                List<CharSequence> request = PromptTemplates.buildRequestParts(pack);
+                lastRequestParts = request;
+                Platform.runLater(() -> refreshDebugUI());
+
+                return new FanOutSender(provider).send(models, request);
+            }
+        };
+
+        runningTask = task;
+
+        task.setOnSucceeded(e -> {
             isRunning.set(false);
             runningTask = null;
+            FanOutSender.Report report = task.getValue();
+            String group = UUID.randomUUID().toString();
+
+            List<CompareView.Column> cols = new ArrayList<>();
+            OpenAIResult shown = null;
+            RequestTimings shownTimings = null;
+            int ok = 0;
+            int unsaved = 0;
+            for (FanOutSender.Outcome o : report.outcomes()) {
+                if (!o.ok()) {
+                    cols.add(new CompareView.Column(o.model(), null, List.of(), o.error()));
+                    continue;
+                }
+                OpenAIResult r = o.result();
+                RequestTimings timings = r.timings() == null ? new RequestTimings() : r.timings().copy();
+                timings.packMs = packTimings.packMs;
+                timings.packWarm = packTimings.packWarm;
+                // the pack was serialized once for all models
+                timings.serializeMs = report.serializeMs();
+
+                long t0 = System.nanoTime();
+                List<OutputBlock> blocks = outputParser.parse(r.diffText() == null ? "" : r.diffText());
+                timings.parseMs = (System.nanoTime() - t0) / 1_000_000L;
+                timings.totalMs = (System.nanoTime() - sendStartNanos) / 1_000_000L;
+
+                ChatRevision rev = newRevision(r, o.model(), prompt, historyOn, timings, group);
+                if (!addRevisionToCurrentChat(rev)) unsaved++;
+                cols.add(new CompareView.Column(o.model(), rev, blocks, null));
+                shown = r;
+                shownTimings = timings;
+                ok++;
+            }
+
+            // the Output tab shows the last stored revision, which is now the current one
+            if (shown != null) {
+                lastResponseText = shown.diffText() == null ? "" : shown.diffText();
+                lastRawResponse = shown.rawText() == null ? "" : shown.rawText();
+                lastTimings = shownTimings;
+                renderBlocks(lastResponseText);
+            }
+            compareView.show(cols);
+            outputTabs.getSelectionModel().select(compareTab);
 
-            setStatus(StatusKind.OK, "Done.");
-            refreshDebugUI("OK", inTok, outTok, totalTok);
+            int failed = report.outcomes().size() - ok;
+            if (unsaved > 0) {
+                setStatus(StatusKind.ERROR, "Compared " + ok + " model(s), but " + unsaved
+                        + " answer(s) could not be stored in this chat: " + lastErrorText);
+            } else {
+                setStatus(failed == 0 ? StatusKind.OK : StatusKind.WARN, "Compared " + ok + " model(s)"
+                        + (failed == 0 ? "" : ", " + failed + " failed") + " in " + report.millis() + " ms.");
+            }
+            refreshDebugUI();
             updateRevisionNavUI();
-            refreshChatListFromStorePreserveSelection();
         });
 
         task.setOnFailed(e -> {
@@ -1366,7 +1913,7 @@ public class MainWindow {
             String msg = (ex == null ? "unknown" : ex.getMessage());
             if (msg == null || msg.isBlank()) msg = ex == null ? "unknown" : ex.getClass().getSimpleName();
 
-            setStatus(StatusKind.ERROR, "OpenAI error: " + msg);
+            setStatus(StatusKind.ERROR, "Compare error: " + msg);
             isRunning.set(false);
             runningTask = null;
 
@@ -1383,17 +1930,13 @@ public class MainWindow {
             refreshDebugUI();
         });
 
-        Thread t = new Thread(task, "openai-call");
+        Thread t = new Thread(task, "compare-call");
         t.setDaemon(true);
         t.start();
     }
 
-    private void saveRevisionToCurrentChat(OpenAIResult r, String model, String prompt, boolean historyOn) {
-        ChatSession cur = currentChatProperty.get();
-        if (cur == null) return;
-
-        if (cur.revisions == null) cur.revisions = new java.util.ArrayList<>();
-
+    private ChatRevision newRevision(OpenAIResult r, String model, String prompt, boolean historyOn,
+                                     RequestTimings timings, String compareGroup) {
         ChatRevision rev = new ChatRevision();
         rev.at = OffsetDateTime.now();
         rev.model = model;
@@ -1403,6 +1946,17 @@ public class MainWindow {
         rev.outputTokens = r == null ? null : r.outputTokens();
         rev.totalTokens = r == null ? null : r.totalTokens();
         rev.responseText = r == null ? "" : (r.diffText() == null ? "" : r.diffText());
+        rev.cached = r != null && r.cached();
+        rev.timings = timings;
+        rev.compareGroup = compareGroup;
+        return rev;
+    }
+
+    // false (already reported) when the chat's stored revisions cannot be read, so rev was not added
+    private boolean addRevisionToCurrentChat(ChatRevision rev) {
+        ChatSession cur = currentChatProperty.get();
+        if (cur == null) return true; // no chat selected: nothing to store
+        if (loadRevisions(cur) == null) return false;
 
         cur.revisions.add(rev);
         cur.currentRevisionIndex = cur.revisions.size() - 1;
@@ -1411,7 +1965,11 @@ public class MainWindow {
         if (t != null && !t.isBlank()) cur.title = t;
 
         chatStore.touch(cur);
-        persistChatsSilently();
+        chatPersister.markDirty(cur);
+
+        // history add-on changed
+        if (Boolean.TRUE.equals(cur.includeHistory)) schedulePackPrebuild();
+        return true;
     }
 
     private void refreshDebugUI() {
@@ -1432,26 +1990,37 @@ public class MainWindow {
         }
         if (lastErrorText != null && !lastErrorText.isBlank()) meta.append("Error: ").append(lastErrorText).append("\n");
 
-        int reqChars = (lastRequestText == null) ? 0 : lastRequestText.length();
+        long reqChars = 0;
+        for (CharSequence part : lastRequestParts) reqChars += part.length();
         int resChars = (lastResponseText == null) ? 0 : lastResponseText.length();
         meta.append("Request chars: ").append(reqChars).append(" (estTokens≈").append(estimateTokens(reqChars)).append(")\n");
         meta.append("Response chars: ").append(resChars).append("\n");
+        meta.append("Provider: ").append(llm.id()).append("\n");
+        meta.append(llm.getRateLimitStats().toDebugLine()).append("\n");
+        if (lastTimings != null) meta.append(lastTimings.toDebugLine()).append("\n");
+        if (lastHistory != null && currentChatProperty.get() != null
+                && Boolean.TRUE.equals(currentChatProperty.get().includeHistory)) {
+            meta.append(lastHistory.toDebugLine()).append("\n");
+        }
 
         debugMetaLabel.setText(meta.toString());
-        debugRequestArea.setText(lastRequestText == null ? "" : lastRequestText);
-        debugResponseArea.setText(lastResponseText == null ? "" : lastResponseText);
+        // The full request is only materialized while the Debug tab is visible
+        debugRequestArea.setText(detailsMode.get() ? String.join("", lastRequestParts) : "");
+        debugResponseArea.setText(detailsMode.get() && lastRawResponse != null ? lastRawResponse : "");
     }
 
     private void renderBlocks(String modelText) {
-        blockItems.clear();
+        renderBlocks(outputParser.parse(modelText), modelText);
+    }
 
-        List<OutputBlock> blocks = outputParser.parse(modelText);
+    private void renderBlocks(List<OutputBlock> blocks, String modelText) {
+        blockItems.clear();
 
         if (blocks.isEmpty()) {
             OutputBlock raw = new OutputBlock();
             raw.file = "model-output.txt";
             raw.action = "RAW";
-            raw.code = modelText == null ? "" : modelText;
+            raw.setCode(modelText == null ? "" : modelText);
             blockItems.add(raw);
         } else {
             blockItems.addAll(blocks);
@@ -1460,6 +2029,236 @@ public class MainWindow {
         blockListView.setItems(blockItems);
         blockListView.getSelectionModel().select(0);
         currentBlockIndex = 0;
+        validateBlocks(blocks);
+    }
+
+    /**
+     * Resolves the blocks against the project in the background (files in parallel) and shows the
+     * outcome as badges. Nothing is written; Apply All plans again against the files as they are then.
+     */
+    private void validateBlocks(List<OutputBlock> blocks) {
+        long gen = ++blockCheckGeneration;
+        blockChecks.clear();
+        blockProblems.clear();
+        Path root = currentProjectRoot;
+        if (root == null || blocks.isEmpty()) return;
+
+        Task<ApplyEngine.Plan> task = new Task<>() {
+            @Override
+            protected ApplyEngine.Plan call() throws Exception {
+                return applyEngine.plan(root, blocks, blockCheckPool);
+            }
+        };
+        task.setOnSucceeded(e -> {
+            if (gen != blockCheckGeneration) return; // other blocks are shown by now
+            ApplyEngine.Plan plan = task.getValue();
+            for (ApplyEngine.BlockResult r : plan.results) blockChecks.put(r.block(), r);
+            blockListView.refresh();
+            List<ApplyEngine.Conflict> hard = plan.conflicts.stream()
+                    .filter(c -> c.kind() != ApplyEngine.Conflict.Kind.ORDER).toList();
+            if (!hard.isEmpty()) {
+                ApplyEngine.Conflict c = hard.get(0);
+                setStatus(StatusKind.WARN, hard.size() + " block conflict(s), first: #" + (c.other() + 1) + " and #"
+                        + (c.block() + 1) + " in " + c.file() + " at line " + c.line() + ".");
+            } else if (plan.overwrites() > 0) {
+                setStatus(StatusKind.WARN, plan.overwrites() + " CREATE_FILE block(s) would overwrite existing files; Apply asks first.");
+            }
+        });
+        task.setOnFailed(e -> {
+            if (gen != blockCheckGeneration) return;
+            Throwable ex = task.getException();
+            setStatus(StatusKind.WARN, "Could not check blocks: " + (ex == null ? "unknown" : ex.getMessage()));
+        });
+
+        Thread t = new Thread(task, "block-check-plan");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Plans every block against the project, asks, then writes all files as one transaction
+    private void applyAllBlocks() {
+        if (isRunning.get()) return;
+        if (currentProjectRoot == null) {
+            setStatus(StatusKind.WARN, "Open a project first.");
+            return;
+        }
+        List<OutputBlock> blocks = shownBlocks();
+        if (blocks.isEmpty()) {
+            setStatus(StatusKind.WARN, "No change blocks to apply.");
+            return;
+        }
+
+        long gen = blockCheckGeneration;
+        Path root = currentProjectRoot;
+        Task<ApplyEngine.Plan> task = new Task<>() {
+            @Override
+            protected ApplyEngine.Plan call() throws Exception {
+                return applyEngine.plan(root, blocks, blockCheckPool);
+            }
+        };
+        task.setOnSucceeded(e -> {
+            isRunning.set(false);
+            if (gen != blockCheckGeneration) {
+                setStatus(StatusKind.WARN, "Blocks changed while planning; press Apply again.");
+                return;
+            }
+            confirmAndApply(task.getValue());
+        });
+        task.setOnFailed(e -> {
+            isRunning.set(false);
+            Throwable ex = task.getException();
+            setStatus(StatusKind.ERROR, "Apply failed: " + (ex == null ? "unknown" : ex.getMessage()));
+        });
+
+        setStatus(StatusKind.RUNNING, "Planning " + blocks.size() + " block(s)...");
+        isRunning.set(true);
+        Thread t = new Thread(task, "apply-plan");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // FX thread: report a failed plan, or confirm and commit a good one
+    private void confirmAndApply(ApplyEngine.Plan plan) {
+        if (plan.failed() > 0) {
+            ApplyEngine.BlockResult first = plan.results.stream().filter(r -> !r.ok()).findFirst().orElseThrow();
+            blockListView.getSelectionModel().select(first.index());
+            blockListView.scrollTo(first.index());
+            setStatus(StatusKind.ERROR, "Nothing applied: " + plan.failed() + " block(s) failed. Block #"
+                    + (first.index() + 1) + " (" + first.file() + "): " + first.message());
+            return;
+        }
+
+        Alert a = new Alert(Alert.AlertType.CONFIRMATION);
+        a.setTitle("Apply Changes");
+        int overwrites = plan.overwrites();
+        a.setHeaderText("Apply " + plan.results.size() + " block(s) to " + plan.files.size() + " file(s)?"
+                + (overwrites > 0 ? "\nCREATE_FILE replaces " + overwrites + " existing file(s) (marked O)." : ""));
+        Set<String> overwritten = new HashSet<>();
+        for (ApplyEngine.BlockResult br : plan.results) {
+            if (br.check() == ApplyEngine.Check.OVERWRITES) overwritten.add(br.file());
+        }
+        StringBuilder files = new StringBuilder();
+        for (ApplyEngine.FileChange fc : plan.files) {
+            files.append(overwritten.contains(fc.file) ? "O  " : fc.existed() ? "M  " : "A  ").append(fc.file).append('\n');
+        }
+        a.setContentText(files.append("\nUndo Apply restores these files.").toString());
+        Optional<ButtonType> r = a.showAndWait();
+        if (r.isEmpty() || r.get() != ButtonType.OK) return;
+
+        boolean created = plan.files.stream().anyMatch(fc -> !fc.existed());
+        // OK on this dialog is the confirmation overwrites need
+        runApplyTask("Applying...", () -> applyEngine.commit(plan, true), tx -> {
+            if (created) packPrebuilder.invalidateTree();
+            packPrebuilder.request(currentPackInputs());
+            setStatus(StatusKind.OK, "Applied " + plan.results.size() + " block(s) to " + tx.files().size()
+                    + " file(s) in " + (plan.millis + tx.millis()) + " ms." + (created ? " Reload to see new files." : ""));
+        });
+    }
+
+    /**
+     * Compiles the Java files the shown blocks would change, plus their dependents, in memory
+     * (CompileCheck) and badges the blocks the errors are blamed on. Nothing is written.
+     */
+    private void compileCheckBlocks() {
+        if (isRunning.get()) return;
+        if (currentProjectRoot == null) {
+            setStatus(StatusKind.WARN, "Open a project first.");
+            return;
+        }
+        List<OutputBlock> blocks = shownBlocks();
+        if (blocks.isEmpty()) {
+            setStatus(StatusKind.WARN, "No change blocks to check.");
+            return;
+        }
+        if (!compileCheck.available()) {
+            setStatus(StatusKind.ERROR, "Compile Check needs a JDK (no javac in this runtime).");
+            return;
+        }
+
+        long gen = blockCheckGeneration;
+        Path root = currentProjectRoot;
+        Task<CompileCheck.Result> task = new Task<>() {
+            @Override
+            protected CompileCheck.Result call() throws Exception {
+                return compileCheck.check(applyEngine.plan(root, blocks, blockCheckPool));
+            }
+        };
+        task.setOnSucceeded(e -> {
+            if (gen != blockCheckGeneration) return; // other blocks are shown by now
+            CompileCheck.Result res = task.getValue();
+            blockProblems.clear();
+            for (CompileCheck.Problem p : res.problems()) {
+                if (p.block() != null) blockProblems.computeIfAbsent(p.block(), k -> new ArrayList<>()).add(p);
+            }
+            blockListView.refresh();
+            if (res.ok()) {
+                setStatus(StatusKind.OK, "Compiles: " + res.summary());
+            } else {
+                CompileCheck.Problem first = res.problems().stream().filter(CompileCheck.Problem::error).findFirst().orElseThrow();
+                setStatus(StatusKind.ERROR, res.errors() + " compile error(s), first: " + first.toString().lines().findFirst().orElse("")
+                        + " (" + res.summary() + ")");
+            }
+        });
+        task.setOnFailed(e -> {
+            if (gen != blockCheckGeneration) return;
+            Throwable ex = task.getException();
+            setStatus(StatusKind.ERROR, "Compile Check failed: " + (ex == null ? "unknown" : ex.getMessage()));
+        });
+
+        setStatus(StatusKind.RUNNING, "Compiling changed Java files...");
+        Thread t = new Thread(task, "compile-check");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void undoLastApply() {
+        if (isRunning.get()) return;
+        String id;
+        try {
+            id = applyEngine.lastTransaction();
+        } catch (Exception ex) {
+            setStatus(StatusKind.ERROR, "Undo failed: " + ex.getMessage());
+            return;
+        }
+        if (id == null) {
+            setStatus(StatusKind.INFO, "Nothing to undo.");
+            return;
+        }
+        runApplyTask("Undoing...", () -> applyEngine.undo(id), tx -> {
+            packPrebuilder.invalidateTree();
+            packPrebuilder.request(currentPackInputs());
+            setStatus(StatusKind.OK, "Undid " + tx.id() + ": restored " + tx.files().size() + " file(s).");
+        });
+    }
+
+    private List<OutputBlock> shownBlocks() {
+        return blockItems.stream().filter(b -> !"RAW".equals(b.action)).toList();
+    }
+
+    private void runApplyTask(String runningMsg, Callable<ApplyEngine.Transaction> work,
+                              Consumer<ApplyEngine.Transaction> done) {
+        Task<ApplyEngine.Transaction> task = new Task<>() {
+            @Override
+            protected ApplyEngine.Transaction call() throws Exception {
+                return work.call();
+            }
+        };
+        task.setOnSucceeded(e -> {
+            isRunning.set(false);
+            done.accept(task.getValue());
+            validateBlocks(shownBlocks()); // the files changed under the badges
+        });
+        task.setOnFailed(e -> {
+            isRunning.set(false);
+            Throwable ex = task.getException();
+            setStatus(StatusKind.ERROR, ex == null || ex.getMessage() == null ? "Apply failed." : ex.getMessage());
+        });
+
+        setStatus(StatusKind.RUNNING, runningMsg);
+        isRunning.set(true);
+        Thread t = new Thread(task, "apply");
+        t.setDaemon(true);
+        t.start();
     }
 
     private void copyTextToClipboard(String text, String msg) {
@@ -1470,7 +2269,7 @@ public class MainWindow {
         setStatus(StatusKind.OK, msg);
     }
 
-    private void walk(CheckBoxTreeItem<Path> node, java.util.function.Consumer<CheckBoxTreeItem<Path>> action) {
+    private void walk(CheckBoxTreeItem<Path> node, Consumer<CheckBoxTreeItem<Path>> action) {
         action.accept(node);
         for (var child : node.getChildren()) {
             @SuppressWarnings("unchecked")
@@ -1540,6 +2339,17 @@ public class MainWindow {
                     -fx-font-size: 12px;
                 }
 
+                .block-badge {
+                    -fx-background-radius: 8;
+                    -fx-padding: 1 6 1 6;
+                    -fx-font-size: 11px;
+                    -fx-font-weight: 700;
+                    -fx-background-color: rgba(255,255,255,0.08);
+                }
+                .block-badge:ok { -fx-text-fill: #86efac; -fx-background-color: rgba(34,197,94,0.16); }
+                .block-badge:warn { -fx-text-fill: #fcd34d; -fx-background-color: rgba(245,158,11,0.16); }
+                .block-badge:error { -fx-text-fill: #fca5a5; -fx-background-color: rgba(239,68,68,0.16); }
+
                 .btn-primary {
                     -fx-background-radius: 12;
                     -fx-font-weight: 700;
@@ -1,5 +1,6 @@
 package com.QM4RS.agent.ui;
 
+import com.QM4RS.agent.core.PipelineEvents;
 import javafx.application.Platform;
 import javafx.concurrent.Worker;
 import javafx.scene.Node;
@@ -66,6 +67,9 @@ public class MonacoViewer extends Region {
         final String lang = (language == null || language.isBlank()) ? "plaintext" : language;
 
         runWhenReady(() -> {
+            PipelineEvents.EditorUpdate ev = new PipelineEvents.EditorUpdate();
+            ev.begin();
+
             // Prefer functions exposed by monaco.html; fallback to direct editor usage.
             jsVoid("""
                     try{
@@ -87,6 +91,12 @@ public class MonacoViewer extends Region {
                     jsString(content), jsString(lang)
             ));
 
+            if (ev.shouldCommit()) {
+                ev.operation = "setContent";
+                ev.chars = content.length();
+                ev.language = lang;
+                ev.commit();
+            }
             requestEditorLayout();
         });
     }
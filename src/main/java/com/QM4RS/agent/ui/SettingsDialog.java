@@ -25,6 +25,21 @@ public class SettingsDialog {
         modelField.setPromptText("e.g. gpt-4.1");
         modelField.setText(current == null ? "gpt-4.1" : current.getModel());
 
+        ComboBox<String> providerBox = new ComboBox<>();
+        providerBox.getItems().addAll("openai", "mock");
+        providerBox.setValue(current == null ? "openai" : current.getProvider());
+
+        TextField compareField = new TextField();
+        compareField.setPromptText("e.g. gpt-4.1, gpt-4.1-mini");
+        compareField.setText(current == null ? "" : current.getCompareModels());
+
+        TextField historyBudgetField = new TextField();
+        historyBudgetField.setPromptText("estimated tokens, e.g. 4000");
+        historyBudgetField.setText(Long.toString(current == null ? new AppConfig().getHistoryTokenBudget() : current.getHistoryTokenBudget()));
+
+        CheckBox cacheCheck = new CheckBox("Cache identical requests (~/.gpt-agent/cache)");
+        cacheCheck.setSelected(current != null && current.isResponseCacheEnabled());
+
         GridPane grid = new GridPane();
         grid.setHgap(10);
         grid.setVgap(10);
@@ -36,16 +51,38 @@ public class SettingsDialog {
         grid.add(new Label("Model:"), 0, 1);
         grid.add(modelField, 1, 1);
 
+        grid.add(new Label("Provider:"), 0, 2);
+        grid.add(providerBox, 1, 2);
+
+        grid.add(new Label("Cache:"), 0, 3);
+        grid.add(cacheCheck, 1, 3);
+
+        grid.add(new Label("Compare models:"), 0, 4);
+        grid.add(compareField, 1, 4);
+
+        grid.add(new Label("History budget:"), 0, 5);
+        grid.add(historyBudgetField, 1, 5);
+
         dialog.getDialogPane().setContent(grid);
 
-        // Validation: disable Save if API key empty
-        dialog.getDialogPane().lookupButton(saveBtn).disableProperty().bind(apiKeyField.textProperty().isEmpty());
+        // Validation: disable Save if API key empty (the mock provider needs none)
+        dialog.getDialogPane().lookupButton(saveBtn).disableProperty().bind(
+                apiKeyField.textProperty().isEmpty().and(providerBox.valueProperty().isNotEqualTo("mock")));
 
         dialog.setResultConverter(btn -> {
             if (btn == saveBtn) {
-                AppConfig cfg = new AppConfig();
+                // start from current so settings without a field here survive a save
+                AppConfig cfg = current == null ? new AppConfig() : current.copy();
                 cfg.setApiKey(apiKeyField.getText());
                 cfg.setModel(modelField.getText());
+                cfg.setProvider(providerBox.getValue());
+                cfg.setResponseCacheEnabled(cacheCheck.isSelected());
+                cfg.setCompareModels(compareField.getText());
+                try {
+                    cfg.setHistoryTokenBudget(Long.parseLong(historyBudgetField.getText().trim()));
+                } catch (NumberFormatException ignored) {
+                    // keep the previous budget
+                }
                 return cfg;
             }
             return null;
@@ -0,0 +1,77 @@
+package com.QM4RS.agent.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Random model outputs (snippet, legacy and mixed; LF and CRLF) must parse to exactly the same blocks,
+ * field by field, with OutputParser and with the line-splitting LegacyOutputParser it replaced.
+ */
+class OutputParserDifferentialTest {
+
+    private static final String[] HEADERS = {"// FILE: src/A.java", "// OPERATION: replace_method", "# ANCHOR: foo()",
+            "<!-- LANGUAGE: html -->", "  // FILE: b.py", "#OPERATION:CREATE_FILE", "// ANCHOR: x", "// anchor: y",
+            "// note", "<div>", "/x", "// FILE:", "#"};
+    private static final String[] CODE = {"int x = 1;", "", "   ", "\t", "    return y;", "}", "// comment", "code: inside",
+            "CHANGE:", "file: z", "action: REPLACE", "code:", "  CHANGE:", "\u2003", "x\r", "<p>", "# not header", "def f():"};
+    private static final String[] LEGACY = {"CHANGE:", "file: a/b.c", "action: REPLACE_RANGE", "range: 1-3", "target: A#b",
+            "anchor: after 3", "note: hi", "code:", "code: again", "file:x"};
+
+    @Test
+    void edgeCases() {
+        for (String t : new String[]{null, "", "  \n", "x\r\r\n", "CHANGE:\r\naction: A\r\ncode:\r\nx\r\r\n",
+                "// FILE: a\n// OPERATION: b\nx\r\r\n", "// FILE: a\n// OPERATION: b\n\n<div>\n// FILE: c\n// OPERATION: d\ny"}) {
+            assertSame(t);
+        }
+    }
+
+    @Test
+    void randomOutputs() {
+        Random r = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            assertSame(generate(r, 1 + r.nextInt(400)));
+        }
+    }
+
+    private static void assertSame(String text) {
+        assertEquals(describe(new LegacyOutputParser().parse(text)), describe(new OutputParser().parse(text)),
+                () -> "input: " + (text == null ? null : text.replace("\r", "\\r").replace("\n", "\\n")));
+    }
+
+    static String describe(List<OutputBlock> blocks) {
+        StringBuilder sb = new StringBuilder();
+        for (OutputBlock b : blocks) {
+            for (String s : new String[]{b.file, b.action, b.range, b.target, b.anchor, b.note, b.code(), b.body()}) {
+                sb.append(s == null ? "<null>" : s).append('\u0001');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String generate(Random r, int approxChars) {
+        StringBuilder sb = new StringBuilder();
+        boolean crlf = r.nextInt(3) == 0;
+        int mode = r.nextInt(3); // 0 snippet, 1 legacy, 2 both mixed
+        if (r.nextBoolean()) sb.append(r.nextBoolean() ? "\n\n" : "  \n");
+        while (sb.length() < approxChars) {
+            int k = r.nextInt(10);
+            String line;
+            if (mode == 0) line = k < 3 ? pick(r, HEADERS) : pick(r, CODE);
+            else if (mode == 1) line = k < 3 ? pick(r, LEGACY) : pick(r, CODE);
+            else line = k < 2 ? pick(r, HEADERS) : k < 4 ? pick(r, LEGACY) : pick(r, CODE);
+            sb.append(line);
+            if (r.nextInt(50) > 0 || sb.length() >= approxChars) sb.append(crlf ? "\r\n" : "\n");
+        }
+        if (r.nextBoolean()) sb.append("  ");
+        return sb.toString();
+    }
+
+    private static String pick(Random r, String[] options) {
+        return options[r.nextInt(options.length)];
+    }
+}